@@ -466,6 +466,7 @@ def genJavaImpl(spec):
                 print
                 print "            public int protocolClassId() { return %s; }" % (c.index)
                 print "            public int protocolMethodId() { return %s; }" % (m.index)
+                print "            public int protocolId() { return ID; }"
                 print "            public String protocolMethodName() { return \"%s.%s\";}" % (c.name, m.name)
                 print
                 print "            public boolean hasContent() { return %s; }" % (trueOrFalse(m.hasContent))
@@ -504,6 +505,7 @@ def genJavaImpl(spec):
             print "            implements com.rabbitmq.client3.AMQP.%s.%s" % (java_class_name(c.name), java_class_name(m.name))
             print "        {"
             print "            public static final int INDEX = %s;" % (m.index)
+            print "            public static final int ID = (%s << 16) | %s;" % (c.index, m.index)
             print
             for a in m.arguments:
                 print "            private final %s %s;" % (java_field_type(spec, a.domain), java_field_name(a.name))
@@ -535,24 +537,61 @@ def genJavaImpl(spec):
         print "    }"
 
     def printMethodArgumentReader():
+        maxClassId = max([c.index for c in spec.allClasses()])
         print
-        print "    public static Method readMethodFrom(DataInputStream in) throws IOException {"
-        print "        int classId = in.readShort();"
-        print "        int methodId = in.readShort();"
-        print "        switch (classId) {"
+        print "    /** Decoder for the arguments of one method */"
+        print "    private interface MethodReader {"
+        print "        Method read(MethodArgumentReader rdr) throws IOException;"
+        print "    }"
+        print
+        print "    /** Method decoders, indexed by class id and then method id; null where there is no method */"
+        print "    private static final MethodReader[][] METHOD_READERS = new MethodReader[%s][];" % (maxClassId + 1)
+        print "    static {"
         for c in spec.allClasses():
-            print "            case %s:" % (c.index)
-            print "                switch (methodId) {"
+            maxMethodId = max([m.index for m in c.allMethods()])
+            print "        METHOD_READERS[%s] = new MethodReader[%s];" % (c.index, maxMethodId + 1)
             for m in c.allMethods():
                 fq_name = java_class_name(c.name) + '.' + java_class_name(m.name)
-                print "                    case %s: {" % (m.index)
-                print "                        return new %s(new MethodArgumentReader(new ValueReader(in)));" % (fq_name)
-                print "                    }"
-            print "                    default: break;"
-            print "                } break;"
+                print "        METHOD_READERS[%s][%s] = new MethodReader() {" % (c.index, m.index)
+                print "            public Method read(MethodArgumentReader rdr) throws IOException { return new %s(rdr); }" % (fq_name)
+                print "        };"
+        print "    }"
+        print
+        print "    public static Method readMethodFrom(DataInputStream in) throws IOException {"
+        print "        return readMethodFrom(in, null);"
+        print "    }"
+        print
+        print "    /**"
+        print "     * Private API - Read a method, looking up its short string arguments"
+        print "     * and table keys in a connection's cache, or in none if it is null."
+        print "     */"
+        print "    public static Method readMethodFrom(DataInputStream in, ShortStringCache cache)"
+        print "        throws IOException"
+        print "    {"
+        print "        int classId = in.readShort();"
+        print "        int methodId = in.readShort();"
+        print "        MethodReader reader = null;"
+        print "        if (classId >= 0 && classId < METHOD_READERS.length) {"
+        print "            MethodReader[] readers = METHOD_READERS[classId];"
+        print "            if (readers != null && methodId >= 0 && methodId < readers.length) {"
+        print "                reader = readers[methodId];"
+        print "            }"
+        print "        }"
+        print "        if (reader == null) {"
+        print "            throw new UnknownClassOrMethodId(classId, methodId);"
         print "        }"
+        print "        return reader.read(new MethodArgumentReader(new ValueReader(in, cache)));"
+        print "    }"
         print
-        print "        throw new UnknownClassOrMethodId(classId, methodId);"
+        print "    /**"
+        print "     * Private API - The {@link Method#protocolId} of any method, for"
+        print "     * dispatching on it with a switch over the generated ID constants."
+        print "     */"
+        print "    public static int protocolId(com.rabbitmq.client3.Method method) {"
+        print "        if (method instanceof Method) {"
+        print "            return ((Method) method).protocolId();"
+        print "        }"
+        print "        return (method.protocolClassId() << 16) | method.protocolMethodId();"
         print "    }"
 
     def printContentHeaderReader():
@@ -0,0 +1,90 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.rabbitmq.client3.AMQP.BasicProperties;
+
+/**
+ * Convenience class: a {@link DefaultConsumer} which unpacks the batches
+ * published by {@link BatchingPublisher}, and hands each logical message
+ * to {@link #handleMessage} in turn. Messages which are not batches, as
+ * told by their content type, are handed over whole, so one consumer can
+ * read a queue holding both.
+ * <p/>
+ * All the messages of a batch share its envelope, and so its delivery
+ * tag: acknowledging the delivery acknowledges the whole batch. Consumers
+ * acknowledging by hand should do so once <code>lastInDelivery</code> is
+ * true. A batch holding no messages at all is handed over as a single
+ * empty message, so that it too is seen as the last in its delivery.
+ */
+public abstract class BatchingConsumer extends DefaultConsumer {
+    /**
+     * Constructs a new instance and records its association to the passed-in channel.
+     * @param channel the channel to which this consumer is attached
+     */
+    public BatchingConsumer(Channel channel) {
+        super(channel);
+    }
+
+    /**
+     * Unpacks batches, see {@link #handleMessage}.
+     * @throws IOException if a batch is malformed, or
+     * {@link #handleMessage} throws it
+     */
+    @Override public void handleDelivery(String consumerTag,
+                                         Envelope envelope,
+                                         BasicProperties properties,
+                                         byte[] body)
+        throws IOException
+    {
+        if (!MessageBatch.isBatch(properties)) {
+            handleMessage(consumerTag, envelope, properties, body, true);
+            return;
+        }
+        List<byte[]> messages = MessageBatch.unpack(body);
+        if (messages.isEmpty()) {
+            // still a delivery to acknowledge
+            handleMessage(consumerTag, envelope, properties, new byte[0], true);
+            return;
+        }
+        int last = messages.size() - 1;
+        for (int i = 0; i <= last; i++) {
+            handleMessage(consumerTag, envelope, properties, messages.get(i), i == last);
+        }
+    }
+
+    /**
+     * Called for each logical message delivered to this consumer.
+     * @param consumerTag the <i>consumer tag</i> associated with the consumer
+     * @param envelope packaging data for the AMQP message carrying this one
+     * @param properties content header data for the AMQP message
+     * @param body the logical message body
+     * @param lastInDelivery true if this is the last logical message of
+     * the AMQP message
+     * @throws IOException if the consumer encounters an I/O error while processing the message
+     */
+    public abstract void handleMessage(String consumerTag,
+                                       Envelope envelope,
+                                       BasicProperties properties,
+                                       byte[] body,
+                                       boolean lastInDelivery)
+        throws IOException;
+}
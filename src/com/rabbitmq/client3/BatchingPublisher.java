@@ -0,0 +1,220 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client3.AMQP.BasicProperties;
+
+/**
+ * Convenience class: publishes many small logical messages to one
+ * exchange and routing key as fewer, larger AMQP messages, in the format
+ * of {@link MessageBatch}. For messages of a few tens of bytes, the
+ * method and header frames and the broker's routing of each message cost
+ * far more than the body; batching shares that cost out.
+ * <p/>
+ * A batch is published once it holds <code>maxMessages</code> messages
+ * or <code>maxBytes</code> bytes, when {@link #flush} or {@link #close}
+ * is called, or, if a linger time is given, that long after its first
+ * message was added. A message too big to fit in a batch alongside others
+ * is published in a batch of its own.
+ * <p/>
+ * Batches are published with the properties given at construction, but
+ * with the content type {@link MessageBatch#CONTENT_TYPE}, so the logical
+ * messages share properties. Consume them with a {@link BatchingConsumer}.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * This class is thread-safe. A batch published when its linger time runs
+ * out is published on the scheduler's thread; if that fails, the
+ * exception is thrown from the next call to {@link #publish},
+ * {@link #flush} or {@link #close}.
+ */
+public class BatchingPublisher {
+    private final Channel channel;
+    private final String exchange;
+    private final String routingKey;
+    private final BasicProperties props;
+    private final int maxMessages;
+    private final int maxBytes;
+    private final long lingerMillis;
+    private final ScheduledExecutorService scheduler;
+
+    /** The batch being filled - guarded by this */
+    private byte[] buffer;
+    private int length = 0;
+    private int count = 0;
+    /** Incremented for every batch published, so stale linger timers can tell - guarded by this */
+    private long generation = 0;
+    /** Failure to publish a lingering batch, not yet reported - guarded by this */
+    private IOException lingerFailure = null;
+    private boolean closed = false;
+
+    /**
+     * Construct a publisher which publishes batches only when they are
+     * full, or when {@link #flush} or {@link #close} is called.
+     * @param channel the channel to publish on
+     * @param exchange the exchange to publish batches to
+     * @param routingKey the routing key
+     * @param props other properties for the batches - routing headers etc
+     * @param maxMessages the most messages in a batch
+     * @param maxBytes the largest batch body worth filling
+     */
+    public BatchingPublisher(Channel channel, String exchange, String routingKey,
+                             BasicProperties props, int maxMessages, int maxBytes)
+    {
+        this(channel, exchange, routingKey, props, maxMessages, maxBytes, 0, null);
+    }
+
+    /**
+     * Construct a publisher which also publishes a batch once it has been
+     * filling for <code>lingerMillis</code>.
+     * @param channel the channel to publish on
+     * @param exchange the exchange to publish batches to
+     * @param routingKey the routing key
+     * @param props other properties for the batches - routing headers etc
+     * @param maxMessages the most messages in a batch
+     * @param maxBytes the largest batch body worth filling
+     * @param lingerMillis the longest time in milliseconds a message waits
+     * in a batch, or 0 to wait for the batch to fill
+     * @param scheduler the executor on which lingering batches are
+     * published; only needed if <code>lingerMillis</code> is not 0
+     */
+    public BatchingPublisher(Channel channel, String exchange, String routingKey,
+                             BasicProperties props, int maxMessages, int maxBytes,
+                             long lingerMillis, ScheduledExecutorService scheduler)
+    {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("Batches must hold at least one message: " + maxMessages);
+        }
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + maxBytes);
+        }
+        if (lingerMillis < 0 || (lingerMillis > 0 && scheduler == null)) {
+            throw new IllegalArgumentException("Linger time needs a scheduler, and may not be negative");
+        }
+        this.channel = channel;
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        BasicProperties useProps = (props == null) ? MessageProperties.MINIMAL_BASIC : props;
+        this.props = useProps.builder().contentType(MessageBatch.CONTENT_TYPE).build();
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.lingerMillis = lingerMillis;
+        this.scheduler = scheduler;
+        this.buffer = new byte[Math.min(maxBytes, 4096)];
+    }
+
+    /**
+     * Add a message to the current batch, publishing the batch if it is full.
+     * @param body the message body
+     * @throws IOException if a batch cannot be published
+     */
+    public synchronized void publish(byte[] body) throws IOException {
+        ensureOpen();
+        int size = MessageBatch.packedSize(body.length);
+        if (this.count > 0 && this.length + size > this.maxBytes) {
+            publishBatch();
+        }
+        if (this.length + size > this.buffer.length) {
+            byte[] grown = new byte[Math.max(this.length + size, 2 * this.buffer.length)];
+            System.arraycopy(this.buffer, 0, grown, 0, this.length);
+            this.buffer = grown;
+        }
+        int pos = MessageBatch.writeLength(this.buffer, this.length, body.length);
+        System.arraycopy(body, 0, this.buffer, pos, body.length);
+        this.length = pos + body.length;
+        if (++this.count == 1 && this.lingerMillis > 0) {
+            scheduleLinger();
+        }
+        if (this.count >= this.maxMessages || this.length >= this.maxBytes) {
+            publishBatch();
+        }
+    }
+
+    /**
+     * Publish the current batch now, if it holds any messages.
+     * @throws IOException if the batch cannot be published
+     */
+    public synchronized void flush() throws IOException {
+        ensureOpen();
+        publishBatch();
+    }
+
+    /**
+     * Publish the current batch, and refuse any more messages. The
+     * publisher is closed even if this throws.
+     * @throws IOException if the batch cannot be published, or else if
+     * publishing a lingering batch failed and has not yet been reported
+     */
+    public synchronized void close() throws IOException {
+        if (this.closed) return;
+        this.closed = true;
+        IOException failure = this.lingerFailure;
+        this.lingerFailure = null;
+        publishBatch();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /** @return the number of messages waiting in the current batch */
+    public synchronized int getPendingCount() {
+        return this.count;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (this.closed) {
+            throw new IllegalStateException("Batching publisher is closed");
+        }
+        IOException failure = this.lingerFailure;
+        if (failure != null) {
+            this.lingerFailure = null;
+            throw failure;
+        }
+    }
+
+    private void scheduleLinger() {
+        final long batch = this.generation;
+        this.scheduler.schedule(new Runnable() {
+            public void run() {
+                lingerExpired(batch);
+            }
+        }, this.lingerMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void lingerExpired(long batch) {
+        if (batch != this.generation || this.closed) return;
+        try {
+            publishBatch();
+        } catch (IOException ioe) {
+            this.lingerFailure = ioe;
+        }
+    }
+
+    private void publishBatch() throws IOException {
+        if (this.count == 0) return;
+        byte[] body = new byte[this.length];
+        System.arraycopy(this.buffer, 0, body, 0, this.length);
+        this.length = 0;
+        this.count = 0;
+        this.generation++;
+        this.channel.basicPublish(this.exchange, this.routingKey, this.props, body);
+    }
+}
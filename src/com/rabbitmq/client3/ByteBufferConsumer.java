@@ -0,0 +1,47 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Consumer} which receives message bodies as read-only
+ * {@link ByteBuffer}s rather than arrays. A buffer is a view of the body
+ * as it was read, so no copy is made even where the array it was read
+ * into is longer than the body, as pooled arrays are.
+ * <p/>
+ * {@link #handleDelivery(String, Envelope, AMQP.BasicProperties, byte[])}
+ * is never called for deliveries to this consumer.
+ */
+public interface ByteBufferConsumer extends Consumer {
+    /**
+     * Called when a <code><b>basic.deliver</b></code> is received for this consumer.
+     * @param consumerTag the <i>consumer tag</i> associated with the consumer
+     * @param envelope packaging data for the message
+     * @param properties content header data for the message
+     * @param body the message body, read-only; the consumer may keep it
+     * @throws IOException if the consumer encounters an I/O error while processing the message
+     * @see Envelope
+     */
+    void handleDelivery(String consumerTag,
+                        Envelope envelope,
+                        AMQP.BasicProperties properties,
+                        ByteBuffer body)
+        throws IOException;
+}
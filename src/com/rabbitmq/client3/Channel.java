@@ -17,6 +17,9 @@
 package com.rabbitmq.client3;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Map;
 import java.util.concurrent.TimeoutException;
 
@@ -277,6 +280,129 @@ public interface Channel extends ShutdownNotifier {
     void basicPublish(String exchange, String routingKey, boolean mandatory, boolean immediate, BasicProperties props, byte[] body)
             throws IOException;
 
+    /**
+     * Publish a message whose body is read from a stream as it is sent,
+     * a frame at a time, so it is never held in memory whole.
+     * <p/>
+     * If the stream ends before <code>length</code> bytes, the broker has
+     * already been told to expect them, so the connection is closed.
+     * @see com.rabbitmq.client3.AMQP.Basic.Publish
+     * @param exchange the exchange to publish the message to
+     * @param routingKey the routing key
+     * @param mandatory true if the 'mandatory' flag is to be set
+     * @param props other properties for the message - routing headers etc
+     * @param body the stream to read the message body from
+     * @param length the length of the message body
+     * @throws java.io.IOException if an error is encountered
+     */
+    void basicPublish(String exchange, String routingKey, boolean mandatory, BasicProperties props,
+                      InputStream body, long length)
+            throws IOException;
+
+    /**
+     * Publish a message whose body is a region of a file. On plain (not
+     * TLS) connections whose sockets have channels - those made with the
+     * default socket factory, or with non-blocking I/O - the region is
+     * sent from the file straight to the socket with
+     * {@link FileChannel#transferTo}, never entering the Java heap;
+     * otherwise, as with a custom socket factory, it is read a frame at
+     * a time.
+     * @see com.rabbitmq.client3.AMQP.Basic.Publish
+     * @param exchange the exchange to publish the message to
+     * @param routingKey the routing key
+     * @param mandatory true if the 'mandatory' flag is to be set
+     * @param props other properties for the message - routing headers etc
+     * @param body the file to send the message body from
+     * @param position where in the file the message body starts
+     * @param length the length of the message body
+     * @throws java.io.IOException if an error is encountered, or the file
+     * is too short to hold the body
+     */
+    void basicPublish(String exchange, String routingKey, boolean mandatory, BasicProperties props,
+                      FileChannel body, long position, long length)
+            throws IOException;
+
+    /**
+     * Publish a message whose body is the bytes remaining in a buffer.
+     * A direct buffer is written to the socket without first being copied
+     * into the heap, unless the connection writes frames on a separate
+     * thread. The buffer's position and limit are not changed, and its
+     * contents must not change until this method returns.
+     * @see com.rabbitmq.client3.AMQP.Basic.Publish
+     * @param exchange the exchange to publish the message to
+     * @param routingKey the routing key
+     * @param mandatory true if the 'mandatory' flag is to be set
+     * @param props other properties for the message - routing headers etc
+     * @param body the message body, between the buffer's position and limit
+     * @throws java.io.IOException if an error is encountered
+     */
+    void basicPublish(String exchange, String routingKey, boolean mandatory, BasicProperties props,
+                      ByteBuffer body)
+            throws IOException;
+
+    /**
+     * Set whether this channel's consumers are called directly, on the
+     * thread reading (or, with decode threads, decoding) the connection's
+     * inbound commands, rather than handed to the connection's consumer
+     * executor. Calling them directly saves a thread hand-off per
+     * delivery, which is most of the client's delivery latency.
+     * <p/>
+     * <b>Blocking contract</b>: while an inline consumer's method runs, no
+     * other command is read for any channel of the connection - not even
+     * the replies and confirms its own calls may be waiting for. So an
+     * inline consumer must return promptly, and must not call anything
+     * that waits for the broker: no synchronous methods such as
+     * {@link #queueDeclare} or {@link #basicCancel}, no
+     * {@link #waitForConfirms}, and no {@link #basicPublish} on a channel
+     * which may be flow-controlled. Asynchronous methods such as
+     * {@link #basicAck} are safe. Breaking this deadlocks the connection
+     * or stalls every channel on it. Shutdown, and exceptions thrown by an
+     * inline consumer, are still handled on the consumer executor.
+     * <p/>
+     * The mode can only be changed while the channel has no consumers.
+     * @param inline true to call consumers directly, false (the default)
+     * to call them on the consumer executor
+     * @throws IllegalStateException if the channel has consumers
+     */
+    void setInlineDelivery(boolean inline);
+
+    /**
+     * Compress the bodies of messages published on this channel, and
+     * decompress those received on it. Bodies published with
+     * {@link #basicPublish(String, String, boolean, boolean, BasicProperties, byte[])}
+     * (or the shorter forms of it) which are at least <code>threshold</code>
+     * bytes long, and have no <code>contentEncoding</code> already, are
+     * sent compressed if the codec makes them smaller, with the codec's
+     * content encoding set. Bodies delivered to consumers, other than
+     * {@link StreamingConsumer}s, or got with {@link #basicGet}, which
+     * carry the codec's content encoding are decompressed before they are
+     * handed over, and the content encoding cleared.
+     * @param codec the codec to use, or null to stop compressing
+     * @param threshold the smallest body size worth compressing
+     */
+    void setContentCodec(ContentCodec codec, int threshold);
+
+    /**
+     * @return running totals for the codec set by {@link #setContentCodec},
+     * or null if there is none; setting a new codec starts new totals
+     */
+    CompressionStatistics getCompressionStatistics();
+
+    /**
+     * Make a template for publishing many messages to the same exchange
+     * and routing key, with the same properties. The method and content
+     * header are encoded once, here, rather than for every message.
+     * @see com.rabbitmq.client3.AMQP.Basic.Publish
+     * @param exchange the exchange to publish messages to
+     * @param routingKey the routing key
+     * @param mandatory true if the 'mandatory' flag is to be set
+     * @param props other properties for the messages - routing headers etc
+     * @return a template which publishes on this channel
+     * @throws java.io.IOException if an error is encountered
+     */
+    PublishTemplate createPublishTemplate(String exchange, String routingKey, boolean mandatory, BasicProperties props)
+            throws IOException;
+
     /**
      * Actively declare a non-autodelete, non-durable exchange with no extra arguments
      * @see com.rabbitmq.client3.AMQP.Exchange.Declare
@@ -0,0 +1,58 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3;
+
+/**
+ * Running totals of the work a channel's {@link ContentCodec} has done,
+ * see {@link Channel#getCompressionStatistics}.
+ * <p/>
+ * Times are CPU time of the threads doing the work where the JVM measures
+ * it, and elapsed time otherwise.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * Implementations are thread-safe; each total is read separately, so
+ * totals read together may be from slightly different moments.
+ */
+public interface CompressionStatistics {
+    /** @return the number of published bodies sent compressed */
+    long getCompressedCount();
+
+    /** @return the total size of published bodies before compression */
+    long getUncompressedBytes();
+
+    /** @return the total size of published bodies after compression */
+    long getCompressedBytes();
+
+    /**
+     * @return compressed bytes divided by uncompressed bytes over all
+     * compressed publishes, or 1.0 if none have been compressed
+     */
+    double getCompressionRatio();
+
+    /**
+     * @return nanoseconds spent compressing bodies, including those sent
+     * uncompressed because compression did not make them smaller
+     */
+    long getCompressionNanos();
+
+    /** @return the number of received bodies decompressed */
+    long getDecompressedCount();
+
+    /** @return nanoseconds spent decompressing received bodies */
+    long getDecompressionNanos();
+}
@@ -234,4 +234,18 @@ public interface Connection extends ShutdownNotifier { // rename to AMQPConnecti
      */
     void clearBlockedListeners();
 
+    /**
+     * @return running totals of the dispatch of this connection's
+     * consumer callbacks
+     * @see ConnectionFactory#setConsumerDispatchBlockSize
+     */
+    DispatchStatistics getDispatchStatistics();
+
+    /**
+     * @return running totals of this connection's cache of decoded short
+     * strings
+     * @see ConnectionFactory#setShortStringCacheCapacity
+     */
+    ShortStringCacheStatistics getShortStringCacheStatistics();
+
 }
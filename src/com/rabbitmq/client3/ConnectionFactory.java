@@ -19,22 +19,32 @@ package com.rabbitmq.client3;
 import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
+import java.nio.channels.SocketChannel;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 
 import com.rabbitmq.client3.impl.AMQConnection;
 import com.rabbitmq.client3.impl.FrameHandler;
+import com.rabbitmq.client3.impl.NioLoopGroup;
+import com.rabbitmq.client3.impl.ShortStringCache;
 import com.rabbitmq.client3.impl.SocketFrameHandler;
 
 /**
@@ -72,6 +82,17 @@ public class ConnectionFactory implements Cloneable {
     /** The default connection timeout;
      *  zero means wait indefinitely */
     public static final int    DEFAULT_CONNECTION_TIMEOUT = 0;
+    /** The default number of NIO reader threads, shared by all
+     *  connections from one factory */
+    public static final int    DEFAULT_NIO_THREADS = 1;
+    /** The default size of a connection's read-ahead buffer, in bytes */
+    public static final int    DEFAULT_READ_BUFFER_SIZE = 64 * 1024;
+    /** The default write batch size, in bytes; zero means flush after every command */
+    public static final int    DEFAULT_WRITE_BATCH_SIZE = 0;
+    /** The default longest time, in microseconds, a batched command waits to be flushed */
+    public static final long   DEFAULT_WRITE_LINGER_MICROS = 200;
+    /** The default number of a channel's consumer callbacks run per executor hand-off */
+    public static final int    DEFAULT_DISPATCH_BLOCK_SIZE = 16;
 
     /** The default SSL protocol */
     private static final String DEFAULT_SSL_PROTOCOL = "SSLv3";
@@ -88,6 +109,23 @@ public class ConnectionFactory implements Cloneable {
     private Map<String, Object> _clientProperties = AMQConnection.defaultClientProperties();
     private SocketFactory factory                 = SocketFactory.getDefault();
     private SaslConfig saslConfig                 = DefaultSaslConfig.PLAIN;
+    private SSLContext sslContext                 = null;
+    private AtomicLong tlsSessionsResumed         = new AtomicLong();
+    private AtomicLong tlsSessionsCreated         = new AtomicLong();
+    /** Last TLS session with each "host:port" - to tell resumed sessions */
+    private ConcurrentMap<String, SSLSession> tlsSessions = new ConcurrentHashMap<String, SSLSession>();
+    private boolean nio                           = false;
+    private int nioThreads                        = DEFAULT_NIO_THREADS;
+    private NioLoopGroup nioLoopGroup             = null;
+    private boolean readBufferPooling             = true;
+    private int readBufferSize                    = DEFAULT_READ_BUFFER_SIZE;
+    private int writeBatchSize                    = DEFAULT_WRITE_BATCH_SIZE;
+    private long writeLingerMicros                = DEFAULT_WRITE_LINGER_MICROS;
+    private boolean dedicatedWriter               = false;
+    private int decodeThreads                     = 0;
+    private int dispatchBlockSize                 = DEFAULT_DISPATCH_BLOCK_SIZE;
+    private int maxDispatchBlockSize              = DEFAULT_DISPATCH_BLOCK_SIZE;
+    private int shortStringCacheCapacity          = ShortStringCache.DEFAULT_CAPACITY;
 
     /** @return number of consumer threads in default {@link ExecutorService} */
     @Deprecated
@@ -382,6 +420,7 @@ public class ConnectionFactory implements Cloneable {
      */
     public void setSocketFactory(SocketFactory factory) {
         this.factory = factory;
+        this.sslContext = null;
     }
 
     public boolean isSSL(){
@@ -424,13 +463,282 @@ public class ConnectionFactory implements Cloneable {
 
     /**
      * Convenience method for setting up an SSL socket factory.
-     * Pass in an initialized SSLContext.
+     * Pass in an initialized SSLContext. Connections using non-blocking
+     * I/O (see {@link #useNio}) get their TLS from the context's
+     * {@link javax.net.ssl.SSLEngine} instead.
      *
      * @param context An initialized SSLContext
      */
     public void useSslProtocol(SSLContext context)
     {
         setSocketFactory(context.getSocketFactory());
+        this.sslContext = context;
+    }
+
+    /**
+     * Use non-blocking I/O for subsequently created connections: rather
+     * than each connection having a thread of its own blocked reading its
+     * socket, a small pool of threads (see {@link #setNioThreads}) reads
+     * for all connections made by this factory. Frames are still handed
+     * to channels on those threads, so consumers must not block them any
+     * more than they would block a connection's own reader thread.
+     * <p/>
+     * SSL connections set up with {@link #useSslProtocol} use non-blocking
+     * I/O too, with TLS done by an {@link javax.net.ssl.SSLEngine}; those
+     * given an SSL socket factory directly through
+     * {@link #setSocketFactory} still use blocking I/O.
+     */
+    public void useNio() {
+        this.nio = true;
+    }
+
+    /**
+     * Use blocking I/O, with a reader thread per connection, for
+     * subsequently created connections. This is the default.
+     */
+    public void useBlockingIo() {
+        this.nio = false;
+    }
+
+    /** @return true if new connections will use non-blocking I/O */
+    public boolean isNio() {
+        return this.nio;
+    }
+
+    /** @return the number of threads reading for connections which use non-blocking I/O */
+    public int getNioThreads() {
+        return this.nioThreads;
+    }
+
+    /**
+     * Set the number of threads reading for connections which use
+     * non-blocking I/O. Connections already open keep their thread.
+     * @param nioThreads number of reader threads, at least one
+     * @see #useNio
+     */
+    public synchronized void setNioThreads(int nioThreads) {
+        if (nioThreads < 1) {
+            throw new IllegalArgumentException("NIO thread count must be positive: " + nioThreads);
+        }
+        if (nioThreads != this.nioThreads) {
+            this.nioThreads = nioThreads;
+            this.nioLoopGroup = null;
+        }
+    }
+
+    private synchronized NioLoopGroup getNioLoopGroup() {
+        if (this.nioLoopGroup == null) {
+            this.nioLoopGroup = new NioLoopGroup(this.nioThreads);
+        }
+        return this.nioLoopGroup;
+    }
+
+    /**
+     * Set whether new connections read inbound frames into byte arrays
+     * pooled by their reader thread, rather than allocating an array for
+     * every frame. Pooled arrays go back to the pool as soon as their
+     * frame has been decoded; message bodies handed to consumers are
+     * never pooled, so consumers may keep them. Pooling is on by default.
+     * <p/>
+     * Turning pooling off saves copying message bodies which arrive in a
+     * single frame, at the cost of more garbage.
+     * @param readBufferPooling true to pool read buffers
+     */
+    public void setReadBufferPooling(boolean readBufferPooling) {
+        this.readBufferPooling = readBufferPooling;
+    }
+
+    /** @return true if new connections pool their read buffers */
+    public boolean isReadBufferPooling() {
+        return this.readBufferPooling;
+    }
+
+    /**
+     * Set the size of the buffer new connections read into. A connection
+     * reads as much as the socket has available, up to this size, with
+     * each read, then decodes and dispatches every complete frame it
+     * contains, so that many small messages cost few reads. The buffer
+     * grows to fit any larger frame.
+     * <p/>
+     * Zero makes connections using blocking I/O read one frame at a time
+     * through a stream; connections using non-blocking I/O then use
+     * the default size.
+     * @param readBufferSize buffer size in bytes, or zero
+     * @see #useNio
+     */
+    public void setReadBufferSize(int readBufferSize) {
+        if (readBufferSize < 0) {
+            throw new IllegalArgumentException("Read buffer size cannot be negative: " + readBufferSize);
+        }
+        this.readBufferSize = readBufferSize;
+    }
+
+    /** @return the size of new connections' read buffers, in bytes */
+    public int getReadBufferSize() {
+        return this.readBufferSize;
+    }
+
+    /**
+     * Set the write batch size for new connections. With a batch size of
+     * zero, the default, a connection's output is flushed after every
+     * command. Otherwise commands from all channels accumulate until
+     * this many bytes are waiting, or until the linger time has passed,
+     * and are then written together; commands awaiting a reply are
+     * flushed straight away.
+     * <p/>
+     * Batch sizes beyond the frame handler's output buffer, 8KB for a
+     * socket, save few further writes.
+     * @param writeBatchSize bytes which may accumulate before a flush, or zero
+     * @see #setWriteLingerMicros
+     */
+    public void setWriteBatchSize(int writeBatchSize) {
+        if (writeBatchSize < 0) {
+            throw new IllegalArgumentException("Write batch size cannot be negative: " + writeBatchSize);
+        }
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    /** @return the write batch size in bytes, zero meaning no batching */
+    public int getWriteBatchSize() {
+        return this.writeBatchSize;
+    }
+
+    /**
+     * Set the longest time a command may wait to be flushed when write
+     * batching is on, bounding the latency batching adds when traffic is
+     * sparse.
+     * @param writeLingerMicros linger time in microseconds
+     * @see #setWriteBatchSize
+     */
+    public void setWriteLingerMicros(long writeLingerMicros) {
+        if (writeLingerMicros < 0) {
+            throw new IllegalArgumentException("Write linger cannot be negative: " + writeLingerMicros);
+        }
+        this.writeLingerMicros = writeLingerMicros;
+    }
+
+    /** @return the write linger time in microseconds */
+    public long getWriteLingerMicros() {
+        return this.writeLingerMicros;
+    }
+
+    /**
+     * Set whether new connections write on a dedicated writer thread.
+     * Channels then queue each command's frames on a lock-free queue and
+     * return without touching the socket, so many publishing threads
+     * sharing a connection do not contend for it; the writer thread
+     * writes whatever has been queued in as few writes as it can.
+     * Write batching settings have no effect on such connections.
+     * <p/>
+     * The writer interleaves the frames of messages published on
+     * different channels, and writes commands without content, such as
+     * acks, ahead of them, so that one channel publishing a large message
+     * does not hold up the others.
+     * <p/>
+     * Since publishing returns before the message is written, message
+     * bodies are copied; a write failure is reported by the connection
+     * shutting down, and to the next publisher.
+     * @param dedicatedWriter true for a writer thread per connection
+     */
+    public void setDedicatedWriter(boolean dedicatedWriter) {
+        this.dedicatedWriter = dedicatedWriter;
+    }
+
+    /** @return true if new connections write on a dedicated writer thread */
+    public boolean isDedicatedWriter() {
+        return this.dedicatedWriter;
+    }
+
+    /**
+     * Set how many threads each new connection uses to decode inbound
+     * commands. With the default of zero, the thread reading a
+     * connection's frames also assembles them into commands and decodes
+     * their methods, content headers and field tables, which can leave a
+     * single busy connection bound to one core. Otherwise that work is
+     * done on a private pool of this many threads, and the reader only
+     * sorts frames by channel.
+     * <p/>
+     * Each channel's commands are still decoded and dispatched one at a
+     * time, in the order they arrived, but commands on different channels
+     * may be processed out of order with respect to each other and to
+     * connection-level commands such as Connection.Blocked.
+     * @param decodeThreads decode threads per connection, or 0 to decode
+     * on the reading thread
+     */
+    public void setDecodeThreads(int decodeThreads) {
+        if (decodeThreads < 0) {
+            throw new IllegalArgumentException("Decode thread count cannot be negative: " + decodeThreads);
+        }
+        this.decodeThreads = decodeThreads;
+    }
+
+    /** @return decode threads per connection, 0 if commands are decoded on the reading thread */
+    public int getDecodeThreads() {
+        return this.decodeThreads;
+    }
+
+    /**
+     * Set how many of a channel's consumer callbacks new connections run
+     * for each hand-off to the consumer executor. Larger blocks cost a
+     * busy channel fewer hand-offs; smaller ones let other channels'
+     * consumers run sooner when the executor's threads are all busy.
+     * @param blockSize callbacks per block
+     * @see #setConsumerDispatchBlockSize(int, int)
+     */
+    public void setConsumerDispatchBlockSize(int blockSize) {
+        setConsumerDispatchBlockSize(blockSize, blockSize);
+    }
+
+    /**
+     * Set new connections to size each channel's blocks of consumer
+     * callbacks adaptively. A channel's limit starts at
+     * <code>blockSize</code>. It doubles, up to <code>maxBlockSize</code>,
+     * each time its block is filled with more callbacks still waiting
+     * and no other channel waiting for a thread. It halves, down to
+     * <code>blockSize</code>, each time its backlog drains or other
+     * channels are kept waiting. The sizes chosen are reported by
+     * {@link Connection#getDispatchStatistics}.
+     * @param blockSize callbacks per block at least
+     * @param maxBlockSize callbacks per block at most; if no greater than
+     * <code>blockSize</code>, blocks are of fixed size
+     */
+    public void setConsumerDispatchBlockSize(int blockSize, int maxBlockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Dispatch block size must be positive: " + blockSize);
+        }
+        this.dispatchBlockSize = blockSize;
+        this.maxDispatchBlockSize = Math.max(blockSize, maxBlockSize);
+    }
+
+    /** @return the least number of a channel's consumer callbacks run per block */
+    public int getConsumerDispatchBlockSize() {
+        return this.dispatchBlockSize;
+    }
+
+    /** @return the greatest number of a channel's consumer callbacks run per block */
+    public int getMaxConsumerDispatchBlockSize() {
+        return this.maxDispatchBlockSize;
+    }
+
+    /**
+     * Set the number of entries in each new connection's cache of decoded
+     * short strings - exchange names, routing keys, consumer tags and
+     * field table keys - from which deliveries take repeated values
+     * instead of allocating new Strings.
+     * @param capacity number of entries, rounded up to a power of two and
+     * at most {@link ShortStringCache#MAX_CAPACITY}; 0 stops caching
+     * @see Connection#getShortStringCacheStatistics
+     */
+    public void setShortStringCacheCapacity(int capacity) {
+        if (capacity < 0 || capacity > ShortStringCache.MAX_CAPACITY) {
+            throw new IllegalArgumentException("Short string cache capacity out of range: " + capacity);
+        }
+        this.shortStringCacheCapacity = capacity;
+    }
+
+    /** @return the number of entries asked for in each connection's short string cache */
+    public int getShortStringCacheCapacity() {
+        return this.shortStringCacheCapacity;
     }
 
     protected FrameHandler createFrameHandler(Address addr)
@@ -438,12 +746,18 @@ public class ConnectionFactory implements Cloneable {
 
         String hostName = addr.getHost();
         int portNumber = portOrDefault(addr.getPort());
+        if (this.nio && (!isSSL() || this.sslContext != null)) {
+            return createNioFrameHandler(hostName, portNumber);
+        }
         Socket socket = null;
         try {
-            socket = factory.createSocket();
+            socket = createSocket();
             configureSocket(socket);
             socket.connect(new InetSocketAddress(hostName, portNumber),
                     connectionTimeout);
+            if (socket instanceof SSLSocket) {
+                handshake((SSLSocket) socket, hostName, portNumber);
+            }
             return createFrameHandler(socket);
         } catch (IOException ioe) {
             quietTrySocketClose(socket);
@@ -451,15 +765,116 @@ public class ConnectionFactory implements Cloneable {
         }
     }
 
+    /**
+     * Sockets from the default factory are made from a socket channel
+     * instead, which behaves the same as a stream socket but lets a
+     * frame handler write with gathering writes and send file regions
+     * with {@link java.nio.channels.FileChannel#transferTo}.
+     */
+    private Socket createSocket() throws IOException {
+        if (this.factory == SocketFactory.getDefault()) {
+            return SocketChannel.open().socket();
+        }
+        return this.factory.createSocket();
+    }
+
+    /**
+     * Runs the TLS handshake on a newly connected socket, within the
+     * connection timeout, so as to count whether it resumed a session.
+     */
+    private void handshake(SSLSocket socket, String hostName, int portNumber)
+        throws IOException
+    {
+        int timeout = socket.getSoTimeout();
+        socket.setSoTimeout(connectionTimeout);
+        socket.startHandshake();
+        countTlsSession(hostName, portNumber, socket.getSession());
+        socket.setSoTimeout(timeout);
+    }
+
+    /**
+     * A session is counted as resumed if it is the last session with the
+     * same peer over again: up to TLS 1.2 a resumed session has the ID of
+     * the session it resumes; a TLS 1.3 resumption is given a new ID but
+     * keeps the creation time of the session it resumes.
+     */
+    private void countTlsSession(String hostName, int portNumber, SSLSession session) {
+        SSLSession previous = this.tlsSessions.put(hostName + ":" + portNumber, session);
+        byte[] id = session.getId();
+        if (previous != null &&
+            ((id.length > 0 && Arrays.equals(id, previous.getId())) ||
+             session.getCreationTime() == previous.getCreationTime())) {
+            this.tlsSessionsResumed.incrementAndGet();
+        } else {
+            this.tlsSessionsCreated.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns how many TLS connections made by this factory resumed an
+     * earlier session rather than running a full handshake: the hits of
+     * the client session cache of the factory's SSL context.
+     * <p/>
+     * That cache is kept by peer host and port, which connections name
+     * from their {@link Address}, and is shared by every connection made
+     * with the same context, so reconnecting to a broker resumes the
+     * session of an earlier connection to it, for as long as the broker
+     * still accepts it. Its size and lifetime can be set through
+     * {@link SSLContext#getClientSessionContext}.
+     * @return number of TLS sessions resumed
+     * @see #getTlsSessionCacheMisses
+     */
+    public long getTlsSessionCacheHits() {
+        return this.tlsSessionsResumed.get();
+    }
+
+    /**
+     * Returns how many TLS connections made by this factory ran a full
+     * handshake, for want of a session the broker would resume.
+     * @return number of new TLS sessions
+     * @see #getTlsSessionCacheHits
+     */
+    public long getTlsSessionCacheMisses() {
+        return this.tlsSessionsCreated.get();
+    }
+
     private static void quietTrySocketClose(Socket socket) {
         if (socket != null)
             try { socket.close(); } catch (Exception _) {/*ignore exceptions*/}
     }
 
+    private FrameHandler createNioFrameHandler(String hostName, int portNumber)
+        throws IOException
+    {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            configureSocket(channel.socket());
+            channel.socket().connect(new InetSocketAddress(hostName, portNumber),
+                    connectionTimeout);
+            SSLEngine sslEngine = null;
+            if (this.sslContext != null) {
+                sslEngine = this.sslContext.createSSLEngine(hostName, portNumber);
+                sslEngine.setUseClientMode(true);
+            }
+            FrameHandler frameHandler = getNioLoopGroup().newFrameHandler(channel, sslEngine,
+                    connectionTimeout, readBufferPooling,
+                    (readBufferSize > 0) ? readBufferSize : DEFAULT_READ_BUFFER_SIZE);
+            if (sslEngine != null) {
+                countTlsSession(hostName, portNumber, sslEngine.getSession());
+            }
+            return frameHandler;
+        } catch (IOException ioe) {
+            if (channel != null)
+                try { channel.close(); } catch (Exception _) {/*ignore exceptions*/}
+            throw ioe;
+        }
+    }
+
     protected FrameHandler createFrameHandler(Socket sock)
         throws IOException
     {
-        return new SocketFrameHandler(sock);
+        return new SocketFrameHandler(sock, readBufferPooling, readBufferSize);
     }
 
     /**
@@ -513,6 +928,16 @@ public class ConnectionFactory implements Cloneable {
                                       requestedChannelMax,
                                       requestedHeartbeat,
                                       saslConfig);
+                if (dedicatedWriter) {
+                    conn.useFrameWriter();
+                } else if (writeBatchSize > 0) {
+                    conn.setWriteBatching(writeBatchSize, writeLingerMicros);
+                }
+                if (decodeThreads > 0) {
+                    conn.useDecodeThreads(decodeThreads);
+                }
+                conn.setConsumerDispatchBlockSize(dispatchBlockSize, maxDispatchBlockSize);
+                conn.setShortStringCacheCapacity(shortStringCacheCapacity);
                 conn.start();
                 return conn;
             } catch (IOException e) {
@@ -549,7 +974,11 @@ public class ConnectionFactory implements Cloneable {
 
     @Override public ConnectionFactory clone(){
         try {
-            return (ConnectionFactory)super.clone();
+            ConnectionFactory clone = (ConnectionFactory)super.clone();
+            clone.tlsSessionsResumed = new AtomicLong();
+            clone.tlsSessionsCreated = new AtomicLong();
+            clone.tlsSessions = new ConcurrentHashMap<String, SSLSession>();
+            return clone;
         } catch (CloneNotSupportedException e) {
             throw new Error(e);
         }
@@ -0,0 +1,48 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3;
+
+import java.io.IOException;
+
+/**
+ * Compresses and decompresses message bodies for a channel, see
+ * {@link Channel#setContentCodec}. A codec is named by the
+ * <code>contentEncoding</code> property it marks its messages with.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * Implementations must be thread-safe: a codec is used by every thread
+ * publishing on its channel, and by the threads its consumers run on.
+ */
+public interface ContentCodec {
+    /** @return the <code>contentEncoding</code> of bodies this codec encodes */
+    String getContentEncoding();
+
+    /**
+     * @param body the body to compress
+     * @return the compressed body
+     * @throws IOException if the body cannot be compressed
+     */
+    byte[] encode(byte[] body) throws IOException;
+
+    /**
+     * @param body a body compressed by {@link #encode}
+     * @return the body as it was before compression
+     * @throws IOException if the body is not validly compressed
+     */
+    byte[] decode(byte[] body) throws IOException;
+}
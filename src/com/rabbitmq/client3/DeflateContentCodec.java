@@ -0,0 +1,162 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link ContentCodec} using the zlib format of {@link Deflater}, with
+ * the content encoding <code>deflate</code>.
+ * <p/>
+ * Each thread keeps its own {@link Deflater} and {@link Inflater}, reset
+ * between bodies, rather than allocating new ones (and their native
+ * buffers) for every message.
+ * <p/>
+ * A small deflated body can inflate to a very large one, so bodies are
+ * decoded only up to a maximum size, beyond which {@link #decode} fails
+ * rather than exhaust the heap.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * This class is thread-safe.
+ */
+public class DeflateContentCodec implements ContentCodec {
+    /** The content encoding of deflated bodies */
+    public static final String CONTENT_ENCODING = "deflate";
+
+    /** Default largest size, in bytes, of a decoded body: 64MB */
+    public static final int DEFAULT_MAX_DECODED_SIZE = 64 * 1024 * 1024;
+
+    private final int maxDecodedSize;
+
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    /** Construct a codec compressing at the default level */
+    public DeflateContentCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level compression level, from {@link Deflater#BEST_SPEED}
+     * to {@link Deflater#BEST_COMPRESSION}, or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public DeflateContentCodec(int level) {
+        this(level, DEFAULT_MAX_DECODED_SIZE);
+    }
+
+    /**
+     * @param level compression level, from {@link Deflater#BEST_SPEED}
+     * to {@link Deflater#BEST_COMPRESSION}, or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param maxDecodedSize largest size, in bytes, a body may inflate to
+     */
+    public DeflateContentCodec(final int level, int maxDecodedSize) {
+        if ((level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+            && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Bad compression level: " + level);
+        }
+        if (maxDecodedSize < 0) {
+            throw new IllegalArgumentException("Negative maximum decoded size: " + maxDecodedSize);
+        }
+        this.maxDecodedSize = maxDecodedSize;
+        this.deflaters = new ThreadLocal<Deflater>() {
+            @Override protected Deflater initialValue() {
+                return new Deflater(level);
+            }
+        };
+    }
+
+    public String getContentEncoding() {
+        return CONTENT_ENCODING;
+    }
+
+    public byte[] encode(byte[] body) throws IOException {
+        Deflater deflater = this.deflaters.get();
+        deflater.reset();
+        deflater.setInput(body);
+        deflater.finish();
+        byte[] out = new byte[body.length / 2 + 64];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == out.length) out = grow(out, length, Integer.MAX_VALUE);
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return trim(out, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws IOException if the body is corrupt or truncated, or would
+     * inflate to more than the maximum decoded size
+     */
+    public byte[] decode(byte[] body) throws IOException {
+        Inflater inflater = this.inflaters.get();
+        inflater.reset();
+        inflater.setInput(body);
+        // room for one byte more than the maximum, to tell when it is exceeded
+        int limit = (this.maxDecodedSize == Integer.MAX_VALUE) ? Integer.MAX_VALUE
+                                                               : this.maxDecodedSize + 1;
+        byte[] out = new byte[(int) Math.min(Math.max(body.length * 4L, 64), limit)];
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == out.length) {
+                    if (length == limit) {
+                        throw new IOException("Deflated body inflates to more than "
+                                              + this.maxDecodedSize + " bytes");
+                    }
+                    out = grow(out, length, limit);
+                }
+                int n = inflater.inflate(out, length, out.length - length);
+                if (n == 0 && !inflater.finished()
+                    && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Deflated body is truncated");
+                }
+                length += n;
+            }
+        } catch (DataFormatException dfe) {
+            IOException ioe = new IOException("Deflated body is corrupt");
+            ioe.initCause(dfe);
+            throw ioe;
+        }
+        if (length > this.maxDecodedSize) {
+            throw new IOException("Deflated body inflates to more than "
+                                  + this.maxDecodedSize + " bytes");
+        }
+        return trim(out, length);
+    }
+
+    private static byte[] grow(byte[] array, int length, int limit) {
+        byte[] grown = new byte[(int) Math.min(array.length * 2L, limit)];
+        System.arraycopy(array, 0, grown, 0, length);
+        return grown;
+    }
+
+    private static byte[] trim(byte[] array, int length) {
+        if (array.length == length) return array;
+        byte[] trimmed = new byte[length];
+        System.arraycopy(array, 0, trimmed, 0, length);
+        return trimmed;
+    }
+}
@@ -0,0 +1,60 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3;
+
+/**
+ * Running totals of a connection's dispatch of consumer callbacks, see
+ * {@link Connection#getDispatchStatistics}. Callbacks for each channel are
+ * run in blocks, one block at a time, on the connection's consumer
+ * executor; each block costs the executor a hand-off.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * Implementations are thread-safe; each total is read separately, so
+ * totals read together may be from slightly different moments.
+ */
+public interface DispatchStatistics {
+    /** @return the number of blocks of callbacks run */
+    long getBlockCount();
+
+    /** @return the number of callbacks run */
+    long getCallbackCount();
+
+    /** @return callbacks run per block, or 0 if no blocks have been run */
+    double getAverageBlockSize();
+
+    /**
+     * @return the number of times a channel's block size limit has been
+     * raised, because its backlog stayed high; always 0 unless dispatch
+     * is adaptive
+     */
+    long getBlockSizeIncreases();
+
+    /**
+     * @return the number of times a channel's block size limit has been
+     * lowered, because its backlog drained or other channels were
+     * waiting; always 0 unless dispatch is adaptive
+     */
+    long getBlockSizeDecreases();
+
+    /**
+     * @param channel a channel of the connection
+     * @return the most callbacks the channel's next block may hold, or 0
+     * if the channel is closed
+     */
+    int getBlockSizeLimit(Channel channel);
+}
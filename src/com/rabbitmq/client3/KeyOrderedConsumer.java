@@ -0,0 +1,297 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3;
+
+import java.io.IOException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client3.AMQP.BasicProperties;
+
+/**
+ * Convenience class: a {@link Consumer} which processes one queue's
+ * messages on several threads, while keeping messages with the same key in
+ * order. Each delivery's key, given by a {@link KeyFunction}, picks one of
+ * a fixed number of <i>lanes</i>, each a single thread running
+ * {@link #handleMessage} for its messages in the order they arrived.
+ * Messages with a null key have no order to keep and are spread over the
+ * lanes.
+ * <p/>
+ * Messages are acknowledged once handled, in as few acknowledgements as
+ * possible: whenever every message up to some delivery tag has been
+ * handled, one <code>basicAck(tag, multiple=true)</code> covers them all.
+ * A message whose handling throws is rejected, by default without being
+ * requeued; see {@link #requeueOnFailure}.
+ * <p/>
+ * So consume with <code>autoAck</code> false, and set a prefetch count (see
+ * {@link Channel#basicQos}) of several times the number of lanes, so the
+ * lanes have work. Since multiple acknowledgements cover every delivery on
+ * the channel up to the tag, the channel must have no other consumer.
+ * <p/>
+ * The lanes stop when the consumer is cancelled, once they have handled
+ * the messages already given to them, or at once when the channel shuts
+ * down.
+ */
+public abstract class KeyOrderedConsumer extends DefaultConsumer {
+    /**
+     * Picks the key whose messages must be handled in order.
+     */
+    public interface KeyFunction {
+        /**
+         * @param envelope packaging data for the message
+         * @param properties content header data for the message
+         * @return the message's key, or null if it need not be ordered
+         * with any other message
+         */
+        Object keyOf(Envelope envelope, BasicProperties properties);
+    }
+
+    /** Keys messages by their routing key */
+    public static final KeyFunction ROUTING_KEY = new KeyFunction() {
+        public Object keyOf(Envelope envelope, BasicProperties properties) {
+            return envelope.getRoutingKey();
+        }
+    };
+
+    /**
+     * @param name the name of a message header
+     * @return a function keying messages by the value of the header, or
+     * null for messages without it
+     */
+    public static KeyFunction header(final String name) {
+        return new KeyFunction() {
+            public Object keyOf(Envelope envelope, BasicProperties properties) {
+                if (properties == null || properties.getHeaders() == null) return null;
+                Object value = properties.getHeaders().get(name);
+                // LongString values are equal only by identity, so key by their text
+                return (value instanceof LongString) ? value.toString() : value;
+            }
+        };
+    }
+
+    /** What has become of a delivery */
+    private enum Outcome { PENDING, HANDLED, REJECTED }
+
+    private final ExecutorService[] lanes;
+    private final KeyFunction keyFunction;
+
+    /** Delivery tags not yet settled by an acknowledgement - guarded by itself */
+    private final SortedMap<Long, Outcome> outstanding = new TreeMap<Long, Outcome>();
+    /** Sequence number of the next settlement to be worked out - guarded by outstanding */
+    private long nextSettlement = 0;
+
+    /** Orders the sending of settlements */
+    private final Object sendLock = new Object();
+    /** Sequence number of the next settlement to be sent - guarded by sendLock */
+    private long nextToSend = 0;
+
+    /**
+     * @param channel the channel to which this consumer is attached
+     * @param laneCount the number of threads handling messages
+     * @param keyFunction picks the key whose messages must be handled in order
+     */
+    public KeyOrderedConsumer(Channel channel, int laneCount, KeyFunction keyFunction) {
+        super(channel);
+        if (laneCount < 1) {
+            throw new IllegalArgumentException("Lane count must be positive: " + laneCount);
+        }
+        this.keyFunction = keyFunction;
+        this.lanes = new ExecutorService[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            this.lanes[i] = Executors.newSingleThreadExecutor();
+        }
+    }
+
+    /**
+     * Called on a lane thread for each message delivered to this consumer.
+     * The message is acknowledged once this returns, and rejected if it throws.
+     * @param consumerTag the <i>consumer tag</i> associated with the consumer
+     * @param envelope packaging data for the message
+     * @param properties content header data for the message
+     * @param body the message body
+     * @throws Exception if the message cannot be handled
+     */
+    protected abstract void handleMessage(String consumerTag,
+                                          Envelope envelope,
+                                          BasicProperties properties,
+                                          byte[] body)
+        throws Exception;
+
+    /**
+     * Decide whether a message whose handling failed is requeued.
+     * Requeued messages are redelivered to the back of the lane for
+     * their key, out of order. This implementation never requeues.
+     * @param envelope packaging data for the message
+     * @param cause what {@link #handleMessage} threw
+     * @return true to requeue the message, false to discard or dead-letter it
+     */
+    protected boolean requeueOnFailure(Envelope envelope, Throwable cause) {
+        return false;
+    }
+
+    /**
+     * Hands the message to the lane for its key.
+     */
+    @Override public void handleDelivery(final String consumerTag,
+                                         final Envelope envelope,
+                                         final BasicProperties properties,
+                                         final byte[] body)
+    {
+        final long deliveryTag = envelope.getDeliveryTag();
+        synchronized (this.outstanding) {
+            this.outstanding.put(deliveryTag, Outcome.PENDING);
+        }
+        Object key = this.keyFunction.keyOf(envelope, properties);
+        long hash = (key == null) ? deliveryTag : key.hashCode();
+        int lane = (int) ((hash & Long.MAX_VALUE) % this.lanes.length);
+        try {
+            this.lanes[lane].execute(new Runnable() {
+                public void run() {
+                    Throwable failure = null;
+                    try {
+                        handleMessage(consumerTag, envelope, properties, body);
+                    } catch (Throwable t) {
+                        failure = t;
+                    }
+                    handled(envelope, failure);
+                }
+            });
+        } catch (RejectedExecutionException _) {
+            // the lanes have stopped: the broker redelivers unacknowledged messages
+        }
+    }
+
+    /** Stops the lanes once they have handled the messages given to them. */
+    @Override public void handleCancelOk(String consumerTag) {
+        stopLanes(false);
+    }
+
+    /** Stops the lanes once they have handled the messages given to them. */
+    @Override public void handleCancel(String consumerTag) {
+        stopLanes(false);
+    }
+
+    /** Stops the lanes at once: messages not yet handled cannot now be acknowledged. */
+    @Override public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+        stopLanes(true);
+    }
+
+    /**
+     * Wait for the lanes to stop, after cancellation or shutdown.
+     * @param timeout the longest time to wait
+     * @param unit the unit of the timeout
+     * @return true if the lanes have stopped, false if the time ran out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ExecutorService lane : this.lanes) {
+            long remaining = deadline - System.nanoTime();
+            if (!lane.awaitTermination(Math.max(remaining, 0), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void stopLanes(boolean now) {
+        for (ExecutorService lane : this.lanes) {
+            if (now) {
+                lane.shutdownNow();
+            } else {
+                lane.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Settle a handled message: reject it if it failed, then acknowledge
+     * every message up to the end of the handled prefix of deliveries.
+     * What to send is worked out under the lock, but sent outside it, so
+     * a slow channel holds up only other lanes, never new deliveries.
+     * Each settlement takes a sequence number under the lock and is sent
+     * in that order, so acknowledgements go out in tag order, and a
+     * rejection before any acknowledgement covering it. The broker refuses
+     * a multiple acknowledgement of an already rejected tag, so the
+     * acknowledgement is of the last message handled successfully.
+     */
+    private void handled(Envelope envelope, Throwable failure) {
+        long deliveryTag = envelope.getDeliveryTag();
+        boolean requeue = (failure != null) && requeueOnFailure(envelope, failure);
+        long ackTag = -1;
+        long sequence;
+        synchronized (this.outstanding) {
+            this.outstanding.put(deliveryTag, (failure == null) ? Outcome.HANDLED : Outcome.REJECTED);
+            while (!this.outstanding.isEmpty()) {
+                Long first = this.outstanding.firstKey();
+                Outcome outcome = this.outstanding.get(first);
+                if (outcome == Outcome.PENDING) break;
+                this.outstanding.remove(first);
+                if (outcome == Outcome.HANDLED) ackTag = first;
+            }
+            if (failure == null && ackTag < 0) return; // nothing to send
+            sequence = this.nextSettlement++;
+        }
+        awaitTurn(sequence);
+        try {
+            if (failure != null) {
+                getChannel().basicReject(deliveryTag, requeue);
+            }
+            if (ackTag >= 0) {
+                getChannel().basicAck(ackTag, true);
+            }
+        } catch (IOException _) {
+            // the channel is closing: the broker redelivers unacknowledged messages
+        } catch (AlreadyClosedException _) {
+            // as above
+        } finally {
+            endTurn();
+        }
+    }
+
+    /**
+     * Wait until every earlier settlement has been sent. Not interruptible,
+     * since later settlements wait in turn for this one.
+     */
+    private void awaitTurn(long sequence) {
+        boolean interrupted = false;
+        synchronized (this.sendLock) {
+            while (this.nextToSend != sequence) {
+                try {
+                    this.sendLock.wait();
+                } catch (InterruptedException _) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void endTurn() {
+        synchronized (this.sendLock) {
+            this.nextToSend++;
+            this.sendLock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The format of a batch: many small logical messages packed into the body
+ * of one AMQP message by {@link BatchingPublisher}, and unpacked again by
+ * {@link BatchingConsumer}.
+ * <p/>
+ * A batch is marked by the content type {@link #CONTENT_TYPE}. Its body
+ * is the logical messages one after another, each preceded by its length
+ * as an unsigned varint: seven bits to a byte, least significant first,
+ * with the top bit set on every byte but the last. A message of under 128
+ * bytes so costs a single byte of framing.
+ */
+public final class MessageBatch {
+    /** The content type of a batch */
+    public static final String CONTENT_TYPE = "application/x-rabbitmq-batch";
+
+    private MessageBatch() {
+    }
+
+    /**
+     * @param props the properties of a message, possibly null
+     * @return true if the message is a batch
+     */
+    public static boolean isBatch(AMQP.BasicProperties props) {
+        return props != null && CONTENT_TYPE.equals(props.getContentType());
+    }
+
+    /**
+     * @param messages the logical messages
+     * @return a batch body holding the messages, in order
+     */
+    public static byte[] pack(List<byte[]> messages) {
+        int size = 0;
+        for (byte[] message : messages) {
+            size += packedSize(message.length);
+        }
+        byte[] batch = new byte[size];
+        int pos = 0;
+        for (byte[] message : messages) {
+            pos = writeLength(batch, pos, message.length);
+            System.arraycopy(message, 0, batch, pos, message.length);
+            pos += message.length;
+        }
+        return batch;
+    }
+
+    /**
+     * @param batch a batch body
+     * @return the logical messages in the batch, in order
+     * @throws IOException if the body is not a well-formed batch
+     */
+    public static List<byte[]> unpack(byte[] batch) throws IOException {
+        List<byte[]> messages = new ArrayList<byte[]>();
+        int pos = 0;
+        while (pos < batch.length) {
+            int length = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (pos == batch.length || shift > 28) {
+                    throw new IOException("Malformed message length in batch at byte " + pos);
+                }
+                b = batch[pos++] & 0xFF;
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (length < 0 || length > batch.length - pos) {
+                throw new IOException("Message of " + length + " bytes overruns batch at byte " + pos);
+            }
+            byte[] message = new byte[length];
+            System.arraycopy(batch, pos, message, 0, length);
+            messages.add(message);
+            pos += length;
+        }
+        return messages;
+    }
+
+    /**
+     * @param length the length of a logical message
+     * @return the number of bytes the message takes up in a batch
+     */
+    static int packedSize(int length) {
+        int prefix = 1;
+        for (int rest = length >>> 7; rest != 0; rest >>>= 7) {
+            prefix++;
+        }
+        return prefix + length;
+    }
+
+    /**
+     * Write the length prefix of a logical message.
+     * @param batch the batch being packed
+     * @param pos where the prefix goes
+     * @param length the length of the message
+     * @return the position just after the prefix
+     */
+    static int writeLength(byte[] batch, int pos, int length) {
+        int rest = length;
+        while ((rest & ~0x7F) != 0) {
+            batch[pos++] = (byte) ((rest & 0x7F) | 0x80);
+            rest >>>= 7;
+        }
+        batch[pos++] = (byte) rest;
+        return pos;
+    }
+}
@@ -0,0 +1,41 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3;
+
+import java.io.IOException;
+
+/**
+ * Publishes messages to a fixed exchange and routing key, with fixed
+ * properties, on one channel. The Basic.Publish method and the content
+ * header are encoded once, when the template is made, so publishing a
+ * message through it costs little more than writing its body.
+ * <p/>
+ * Templates are made by {@link Channel#createPublishTemplate}. Changes
+ * made to the properties afterwards do not affect the template.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * A template may be used from several threads, as its channel may.
+ */
+public interface PublishTemplate {
+    /**
+     * Publish a message, as {@link Channel#basicPublish} would.
+     * @param body the message body
+     * @throws java.io.IOException if an error is encountered
+     */
+    void publish(byte[] body) throws IOException;
+}
@@ -0,0 +1,43 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3;
+
+/**
+ * Running totals of a connection's cache of decoded short strings, see
+ * {@link Connection#getShortStringCacheStatistics}. Only the short
+ * strings which take few distinct values are looked up in the cache:
+ * method arguments such as exchange names, routing keys and consumer
+ * tags, and the keys of field tables.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * Implementations are thread-safe; each total is read separately, so
+ * totals read together may be from slightly different moments.
+ */
+public interface ShortStringCacheStatistics {
+    /** @return the number of entries in the cache, 0 if not caching */
+    int getCapacity();
+
+    /** @return the number of short strings found in the cache */
+    long getHits();
+
+    /** @return the number of short strings decoded afresh while caching */
+    long getMisses();
+
+    /** @return the fraction of lookups which found their string, or 0 if there have been none */
+    double getHitRatio();
+}
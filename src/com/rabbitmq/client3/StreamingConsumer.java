@@ -0,0 +1,74 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3;
+
+import java.io.IOException;
+
+/**
+ * A {@link Consumer} which receives message bodies a piece at a time,
+ * as their frames arrive, rather than whole. The client then never
+ * holds a complete copy of a large body, so a consumer which deals with
+ * each piece as it comes can handle messages of any size in memory
+ * bounded by the frame size.
+ * <p/>
+ * For each delivery the consumer is called with
+ * {@link #handleDeliveryStart} once, {@link #handleBodyChunk} for each
+ * body frame, in order, and then {@link #handleDeliveryEnd} once.
+ * {@link #handleDelivery} is never called. If the channel closes while
+ * a body is still arriving, {@link #handleShutdownSignal} is called
+ * instead of {@link #handleDeliveryEnd}.
+ * <p/>
+ * As with other consumers, these methods are invoked serially on the
+ * channel's dispatch thread, so bodies still arrive in memory as fast as
+ * the broker sends them if the consumer falls behind; limit this with
+ * {@link Channel#basicQos}.
+ */
+public interface StreamingConsumer extends Consumer {
+    /**
+     * Called when the method and content header of a
+     * <code><b>basic.deliver</b></code> for this consumer are received.
+     * @param consumerTag the <i>consumer tag</i> associated with the consumer
+     * @param envelope packaging data for the message
+     * @param properties content header data for the message; its
+     * <code>getBodySize()</code> is the total length of the chunks to come
+     * @throws IOException if the consumer encounters an I/O error while processing the message
+     */
+    void handleDeliveryStart(String consumerTag,
+                             Envelope envelope,
+                             AMQP.BasicProperties properties)
+        throws IOException;
+
+    /**
+     * Called with each successive piece of the body of the message last
+     * started. The array belongs to the consumer.
+     * @param consumerTag the <i>consumer tag</i> associated with the consumer
+     * @param chunk the next bytes of the message body
+     * @throws IOException if the consumer encounters an I/O error while processing the message
+     */
+    void handleBodyChunk(String consumerTag, byte[] chunk)
+        throws IOException;
+
+    /**
+     * Called once the whole body of the message last started has been
+     * passed to {@link #handleBodyChunk}.
+     * @param consumerTag the <i>consumer tag</i> associated with the consumer
+     * @throws IOException if the consumer encounters an I/O error while processing the message
+     */
+    void handleDeliveryEnd(String consumerTag)
+        throws IOException;
+}
@@ -20,6 +20,7 @@ package com.rabbitmq.client3.impl;
 import java.io.IOException;
 import java.util.concurrent.TimeoutException;
 
+import com.rabbitmq.client3.AMQP;
 import com.rabbitmq.client3.AlreadyClosedException;
 import com.rabbitmq.client3.Command;
 import com.rabbitmq.client3.Method;
@@ -52,7 +53,7 @@ public abstract class AMQChannel extends ShutdownNotifierComponent {
     private final int _channelNumber;
 
     /** Command being assembled */
-    private AMQCommand _command = new AMQCommand();
+    private AMQCommand _command;
 
     /** The current outstanding RPC request, if any. (Could become a queue in future.) */
     private RpcContinuation _activeRpc = null;
@@ -68,6 +69,12 @@ public abstract class AMQChannel extends ShutdownNotifierComponent {
     public AMQChannel(AMQConnection connection, int channelNumber) {
         this._connection = connection;
         this._channelNumber = channelNumber;
+        this._command = newInboundCommand();
+    }
+
+    /** @return a command to assemble from inbound frames, using the connection's short string cache */
+    private AMQCommand newInboundCommand() {
+        return new AMQCommand(_connection == null ? null : _connection.getShortStringCache());
     }
 
     /**
@@ -87,11 +94,31 @@ public abstract class AMQChannel extends ShutdownNotifierComponent {
     public void handleFrame(Frame frame) throws IOException {
         AMQCommand command = _command;
         if (command.handleFrame(frame)) { // a complete command has rolled off the assembly line
-            _command = new AMQCommand(); // prepare for the next one
-            handleCompleteInboundCommand(command);
+            _command = newInboundCommand(); // prepare for the next one
+            if (!command.isStreamed()) { // else its sink has already seen the end
+                handleCompleteInboundCommand(command);
+            }
+        } else if (frame.type == AMQP.FRAME_HEADER && command.isExpectingContentBody()) {
+            ContentBodySink sink = contentBodySink(command);
+            if (sink != null) {
+                command.streamContentBody(sink);
+            }
         }
     }
 
+    /**
+     * Protected API - called once the method and header of an inbound
+     * command with a non-empty body have arrived, to decide whether its
+     * body should be streamed rather than accumulated. The default
+     * accumulates every body.
+     * @param command the command, complete but for its body
+     * @return where to send the body fragments, or null to accumulate them
+     * @throws IOException if there's any problem
+     */
+    protected ContentBodySink contentBodySink(AMQCommand command) throws IOException {
+        return null;
+    }
+
     /**
      * Placeholder until we address bug 15786 (implementing a proper exception hierarchy).
      * In the meantime, this at least won't throw away any information from the wrapped exception.
@@ -145,6 +172,10 @@ public abstract class AMQChannel extends ShutdownNotifierComponent {
             // The filter decided not to handle/consume the command,
             // so it must be some reply to an earlier RPC.
             nextOutstandingRpc().handleCommand(command);
+        } else {
+            // Handlers take what they need of the body before returning;
+            // a discarded command may still be holding a pooled array.
+            command.releaseContentBody();
         }
     }
 
@@ -302,21 +333,41 @@ public abstract class AMQChannel extends ShutdownNotifierComponent {
     public void quiescingTransmit(AMQCommand c) throws IOException {
         synchronized (_channelMutex) {
             if (c.getMethod().hasContent()) {
-                while (_blockContent) {
-                    try {
-                        _channelMutex.wait();
-                    } catch (InterruptedException e) {}
-
-                    // This is to catch a situation when the thread wakes up during
-                    // shutdown. Currently, no command that has content is allowed
-                    // to send anything in a closing state.
-                    ensureIsOpen();
-                }
+                awaitContentUnblocked();
             }
             c.transmit(this);
         }
     }
 
+    /**
+     * Private API - send a content-bearing command whose body is taken
+     * from a source as it is sent, rather than held in the command.
+     * @param c the command, with no body of its own
+     * @param body where to take the body from
+     * @throws IOException if an error is encountered
+     */
+    public void transmit(AMQCommand c, ContentBodySource body) throws IOException {
+        synchronized (_channelMutex) {
+            ensureIsOpen();
+            awaitContentUnblocked();
+            c.transmit(this, body);
+        }
+    }
+
+    /** Waits while the broker has asked for content to stop - called with _channelMutex held */
+    private void awaitContentUnblocked() {
+        while (_blockContent) {
+            try {
+                _channelMutex.wait();
+            } catch (InterruptedException e) {}
+
+            // This is to catch a situation when the thread wakes up during
+            // shutdown. Currently, no command that has content is allowed
+            // to send anything in a closing state.
+            ensureIsOpen();
+        }
+    }
+
     public AMQConnection getConnection() {
         return _connection;
     }
@@ -19,6 +19,9 @@ package com.rabbitmq.client3.impl;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.rabbitmq.client3.AMQP;
 import com.rabbitmq.client3.Command;
@@ -42,12 +45,24 @@ public class AMQCommand implements Command {
      */
     public static final int EMPTY_FRAME_SIZE = 8;
 
+    /** Frame size for a streamed body when frames are unlimited, since it is never held whole */
+    private static final int STREAMED_FRAME_SIZE = 128 * 1024;
+
     /** The assembler for this command - synchronised on - contains all the state */
     private final CommandAssembler assembler;
 
     /** Construct a command ready to fill in by reading frames */
     public AMQCommand() {
-        this(null, null, null);
+        this((ShortStringCache) null);
+    }
+
+    /**
+     * Construct a command ready to fill in by reading frames, looking up
+     * its method's short string arguments in a connection's cache.
+     * @param shortStringCache the cache, or null to decode them afresh
+     */
+    public AMQCommand(ShortStringCache shortStringCache) {
+        this.assembler = new CommandAssembler(null, null, null, shortStringCache);
     }
 
     /**
@@ -83,10 +98,47 @@ public class AMQCommand implements Command {
         return this.assembler.getContentBody();
     }
 
+    /**
+     * Public API - a read-only view of the content body. Unlike
+     * {@link #getContentBody}, this does not copy a large body read into
+     * a pooled array longer than itself.
+     * @return the content body
+     */
+    public ByteBuffer getContentBodyBuffer() {
+        return this.assembler.getContentBodyBuffer();
+    }
+
+    /**
+     * Private API - give back any pooled array still holding the content
+     * body, once the command has been dealt with without it.
+     */
+    public void releaseContentBody() {
+        this.assembler.releaseContentBody();
+    }
+
     public boolean handleFrame(Frame f) throws IOException {
         return this.assembler.handleFrame(f);
     }
 
+    /** @return true if the method and header are complete and body frames are expected */
+    public boolean isExpectingContentBody() {
+        return this.assembler.isExpectingContentBody();
+    }
+
+    /** @return true if the body is being passed to a sink rather than accumulated */
+    public boolean isStreamed() {
+        return this.assembler.isStreamed();
+    }
+
+    /**
+     * Private API - Pass the rest of the body to a sink as its frames
+     * arrive, rather than accumulating it.
+     * @param sink where to send the body fragments
+     */
+    public void streamContentBody(ContentBodySink sink) {
+        this.assembler.streamContentBody(sink);
+    }
+
     /**
      * Sends this command down the named channel on the channel's
      * connection, possibly in multiple frames.
@@ -99,30 +151,79 @@ public class AMQCommand implements Command {
 
         synchronized (assembler) {
             Method m = this.assembler.getMethod();
-            connection.writeFrame(m.toFrame(channelNumber));
             if (m.hasContent()) {
                 byte[] body = this.assembler.getContentBody();
 
-                connection.writeFrame(this.assembler.getContentHeader()
-                        .toFrame(channelNumber, body.length));
-
                 int frameMax = connection.getFrameMax();
                 int bodyPayloadMax = (frameMax == 0) ? body.length : frameMax
                         - EMPTY_FRAME_SIZE;
 
+                List<Frame> frames = new ArrayList<Frame>(2 + body.length / Math.max(1, bodyPayloadMax) + 1);
+                frames.add(m.toFrame(channelNumber));
+                frames.add(this.assembler.getContentHeader()
+                        .toFrame(channelNumber, body.length));
+
+                // a frame writer thread may write the body after we return,
+                // when the caller is free to change it, so it needs a copy
+                boolean copyBody = connection.writesAsynchronously();
                 for (int offset = 0; offset < body.length; offset += bodyPayloadMax) {
                     int remaining = body.length - offset;
 
                     int fragmentLength = (remaining < bodyPayloadMax) ? remaining
                             : bodyPayloadMax;
-                    Frame frame = Frame.fromBodyFragment(channelNumber, body,
-                            offset, fragmentLength);
-                    connection.writeFrame(frame);
+                    frames.add(copyBody
+                            ? Frame.copyOfBodyFragment(channelNumber, body, offset, fragmentLength)
+                            : Frame.fromBodyFragment(channelNumber, body, offset, fragmentLength));
+                }
+                connection.writeFrames(frames);
+            } else {
+                connection.writeFrame(m.toFrame(channelNumber));
+            }
+        }
+
+        connection.commandWritten(channel.isOutstandingRpc());
+    }
+
+    /**
+     * Sends this command down the named channel on the channel's
+     * connection, taking its body from a source a frame at a time
+     * rather than from the body given at construction. If the body
+     * cannot be sent whole, the broker has already been promised it, so
+     * the connection is closed.
+     * @param channel the channel on which to transmit the command
+     * @param body where to take the content body from
+     * @throws IOException if an error is encountered
+     */
+    public void transmit(AMQChannel channel, ContentBodySource body) throws IOException {
+        int channelNumber = channel.getChannelNumber();
+        AMQConnection connection = channel.getConnection();
+
+        synchronized (assembler) {
+            Method m = this.assembler.getMethod();
+            long length = body.length();
+            int frameMax = connection.getFrameMax();
+            int bodyPayloadMax = ((frameMax == 0) ? STREAMED_FRAME_SIZE : frameMax) - EMPTY_FRAME_SIZE;
+
+            List<Frame> frames = new ArrayList<Frame>(2);
+            frames.add(m.toFrame(channelNumber));
+            frames.add(this.assembler.getContentHeader().toFrame(channelNumber, length));
+            connection.writeFrames(frames);
+            try {
+                for (long offset = 0; offset < length; offset += bodyPayloadMax) {
+                    connection.awaitWriteCapacity();
+                    body.writeFragment(connection, channelNumber,
+                                       (int) Math.min(bodyPayloadMax, length - offset));
                 }
+            } catch (IOException ioe) {
+                connection.abandonPartialCommand();
+                throw ioe;
+            } catch (RuntimeException re) {
+                connection.abandonPartialCommand();
+                throw re;
             }
         }
 
-        connection.flush();
+        connection.commandWritten(channel.isOutstandingRpc());
     }
 
     @Override public String toString() {
@@ -21,13 +21,18 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.rabbitmq.client3.AMQP;
 import com.rabbitmq.client3.AuthenticationFailureException;
@@ -38,9 +43,11 @@ import com.rabbitmq.client3.Channel;
 import com.rabbitmq.client3.Command;
 import com.rabbitmq.client3.Connection;
 import com.rabbitmq.client3.ConnectionFactory;
+import com.rabbitmq.client3.DispatchStatistics;
 import com.rabbitmq.client3.LongString;
 import com.rabbitmq.client3.MissedHeartbeatException;
 import com.rabbitmq.client3.PossibleAuthenticationFailureException;
+import com.rabbitmq.client3.ShortStringCacheStatistics;
 import com.rabbitmq.client3.ProtocolVersionMismatchException;
 import com.rabbitmq.client3.SaslConfig;
 import com.rabbitmq.client3.SaslMechanism;
@@ -96,6 +103,13 @@ public class AMQConnection extends ShutdownNotifierComponent implements Connecti
     private static final Version clientVersion =
         new Version(AMQP.PROTOCOL.MAJOR, AMQP.PROTOCOL.MINOR);
 
+    /**
+     * Where inbound commands look up repeated short strings; declared
+     * before {@link #_channel0}, whose constructor asks for it
+     */
+    private final ShortStringCache _shortStringCache =
+        new ShortStringCache(ShortStringCache.DEFAULT_CAPACITY);
+
     /** The special channel 0 (<i>not</i> managed by the <code><b>_channelManager</b></code>) */
     private final AMQChannel _channel0 = new AMQChannel(this, 0) {
         @Override public boolean processAsync(Command c) throws IOException {
@@ -128,6 +142,33 @@ public class AMQConnection extends ShutdownNotifierComponent implements Connecti
     /** Manages heart-beat sending for this connection */
     private final HeartbeatSender _heartbeatSender;
 
+    /** Most bytes of one command written while holding the output lock */
+    private static final int MAX_GATHERING_WRITE_BYTES = 256 * 1024;
+
+    /**
+     * Most bytes of frames a streamed body may leave queued for the frame
+     * writer before the sender waits for them to be written
+     */
+    private static final int MAX_STREAMED_QUEUED_BYTES = 1024 * 1024;
+
+    /**
+     * Longest time, in milliseconds, the frame writer is given on shutdown
+     * to write what is still queued before the socket is closed
+     */
+    private static final int WRITER_DRAIN_TIMEOUT = 1000;
+
+    /** Coalesces flushes of our output, if write batching is on; otherwise null */
+    private volatile WriteBatcher _writeBatcher;
+
+    /** Writes our frames on a dedicated thread, if that is on; otherwise null */
+    private volatile FrameWriter _frameWriter;
+
+    /** Decodes inbound commands on worker threads, if that is on; otherwise null */
+    private volatile FrameDecodeService _decodeService;
+
+    /** Flag indicating a decode worker has already failed and shut the connection down */
+    private final AtomicBoolean _decodeFailed = new AtomicBoolean(false);
+
     private final String _virtualHost;
     private final Map<String, Object> _clientProperties;
     private final SaslConfig saslConfig;
@@ -151,6 +192,16 @@ public class AMQConnection extends ShutdownNotifierComponent implements Connecti
     /** Saved server properties field from connection.start */
     private volatile Map<String, Object> _serverProperties;
 
+    /**
+     * Private API - called as a channel is created, before it is opened.
+     * @param channel the new channel
+     */
+    final void channelCreated(ChannelN channel) {
+        FrameDecodeService decodeService = _decodeService;
+        if (decodeService != null)
+            decodeService.startDecoding(channel);
+    }
+
     /**
      * Protected API - respond, in the driver thread, to a ShutdownSignal.
      * @param channel the channel to disconnect
@@ -159,6 +210,9 @@ public class AMQConnection extends ShutdownNotifierComponent implements Connecti
         ChannelManager cm = _channelManager;
         if (cm != null)
             cm.releaseChannelNumber(channel);
+        FrameDecodeService decodeService = _decodeService;
+        if (decodeService != null)
+            decodeService.stopDecoding(channel);
     }
 
     private final void ensureIsOpen()
@@ -312,7 +366,19 @@ public class AMQConnection extends ShutdownNotifierComponent implements Connecti
         }
 
         // start the main loop going
-        new MainLoop("AMQP Connection " + getHostAddress() + ":" + getPort()).start();
+        if (_frameHandler instanceof NioFrameHandler) {
+            try {
+                ((NioFrameHandler) _frameHandler).startReading(new MainLoopReceiver());
+            } catch (IOException ioe) {
+                _frameHandler.close();
+                throw ioe;
+            }
+        } else {
+            new MainLoop("AMQP Connection " + getHostAddress() + ":" + getPort()).start();
+        }
+        if (_frameWriter != null) {
+            _frameWriter.start("AMQP Connection Writer " + getHostAddress() + ":" + getPort());
+        }
         // after this point clear-up of MainLoop is triggered by closing the frameHandler.
 
         AMQP.Connection.Start connStart = null;
@@ -408,10 +474,12 @@ public class AMQConnection extends ShutdownNotifierComponent implements Connecti
                                     .build());
         } catch (IOException ioe) {
             _heartbeatSender.shutdown();
+            shutdownWriteBatcher();
             _frameHandler.close();
             throw ioe;
         } catch (ShutdownSignalException sse) {
             _heartbeatSender.shutdown();
+            shutdownWriteBatcher();
             _frameHandler.close();
             throw AMQChannel.wrap(sse);
         }
@@ -495,15 +563,239 @@ public class AMQConnection extends ShutdownNotifierComponent implements Connecti
      * Public API - sends a frame directly to the broker.
      */
     public void writeFrame(Frame f) throws IOException {
+        FrameWriter writer = _frameWriter;
+        if (writer != null) {
+            writer.enqueue(f);
+            return;
+        }
         _frameHandler.writeFrame(f);
         _heartbeatSender.signalActivity();
+        WriteBatcher batcher = _writeBatcher;
+        if (batcher != null) {
+            batcher.bytesWritten(f.getPayloadLength() + AMQCommand.EMPTY_FRAME_SIZE);
+        }
+    }
+
+    /**
+     * Public API - sends a run of frames directly to the broker, with a
+     * single gathering write if the frame handler supports it.
+     */
+    public void writeFrames(List<Frame> frames) throws IOException {
+        FrameWriter writer = _frameWriter;
+        if (writer != null) {
+            writer.enqueue(frames);
+            return;
+        }
+        if (_frameHandler instanceof GatheringFrameHandler) {
+            // Write a large command in pieces, letting other channels'
+            // frames in between, so it does not hold everyone else up
+            GatheringFrameHandler handler = (GatheringFrameHandler) _frameHandler;
+            int start = 0;
+            int bytes = 0;
+            for (int i = 0; i < frames.size(); i++) {
+                bytes += frames.get(i).getPayloadLength() + AMQCommand.EMPTY_FRAME_SIZE;
+                if (bytes >= MAX_GATHERING_WRITE_BYTES || i == frames.size() - 1) {
+                    handler.writeFrames(frames.subList(start, i + 1));
+                    start = i + 1;
+                    bytes = 0;
+                }
+            }
+        } else {
+            for (Frame frame : frames) {
+                _frameHandler.writeFrame(frame);
+            }
+        }
+        _heartbeatSender.signalActivity();
+        WriteBatcher batcher = _writeBatcher;
+        if (batcher != null) {
+            int bytes = 0;
+            for (Frame frame : frames) {
+                bytes += frame.getPayloadLength() + AMQCommand.EMPTY_FRAME_SIZE;
+            }
+            batcher.bytesWritten(bytes);
+        }
+    }
+
+    /**
+     * Private API - sends a body frame whose payload is a region of a
+     * file. Where the frame handler is able, and no frame writer thread is
+     * in use, the region goes from the file to the socket without being
+     * copied into the heap; otherwise it is read into an array and sent as
+     * any other frame.
+     */
+    void writeFileRegion(int channelNumber, FileChannel file, long position, int length)
+        throws IOException
+    {
+        if (_frameWriter == null && _frameHandler instanceof FileTransferFrameHandler
+                && ((FileTransferFrameHandler) _frameHandler).canTransferFiles()) {
+            ((FileTransferFrameHandler) _frameHandler).writeFileRegion(channelNumber, file, position, length);
+            _heartbeatSender.signalActivity();
+            WriteBatcher batcher = _writeBatcher;
+            if (batcher != null) {
+                batcher.bytesWritten(length + AMQCommand.EMPTY_FRAME_SIZE);
+            }
+        } else {
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            while (payload.hasRemaining()) {
+                if (file.read(payload, position + payload.position()) < 0) {
+                    throw new EOFException("File ended before the end of the body");
+                }
+            }
+            writeFrame(new Frame(AMQP.FRAME_BODY, channelNumber, payload.array()));
+        }
+    }
+
+    /**
+     * Private API - called when a command has been only partly sent, so
+     * the broker is left waiting for frames which will never come and
+     * nothing more can be sent on this connection. Closes the socket; the
+     * connection then shuts down as it would on any other I/O error.
+     */
+    void abandonPartialCommand() {
+        _frameHandler.close();
+    }
+
+    /**
+     * Private API - called by a sender producing its command a frame at a
+     * time, before producing each frame. With a frame writer thread,
+     * waits until no more than {@link #MAX_STREAMED_QUEUED_BYTES} are
+     * queued, so a streamed body is read no faster than it is written.
+     * @throws IOException if writing has failed
+     */
+    void awaitWriteCapacity() throws IOException {
+        FrameWriter writer = _frameWriter;
+        if (writer != null) {
+            writer.awaitQueuedBytesAtMost(MAX_STREAMED_QUEUED_BYTES);
+        }
     }
 
     /**
      * Public API - flush the output buffers
      */
     public void flush() throws IOException {
-        _frameHandler.flush();
+        WriteBatcher batcher = _writeBatcher;
+        if (batcher != null) {
+            batcher.flush();
+        } else {
+            _frameHandler.flush();
+        }
+    }
+
+    /**
+     * Private API - called once a whole command has been written. Flushes
+     * the output buffers, unless write batching is on and the flush can
+     * be left to the {@link WriteBatcher}.
+     * @param replyAwaited true if the sender is waiting for a reply to the
+     * command, so it must not be held back
+     */
+    void commandWritten(boolean replyAwaited) throws IOException {
+        if (_frameWriter != null) {
+            return; // the writer flushes whenever it runs out of frames
+        }
+        WriteBatcher batcher = _writeBatcher;
+        if (batcher != null) {
+            batcher.commandWritten(replyAwaited);
+        } else {
+            _frameHandler.flush();
+        }
+    }
+
+    /**
+     * Private API - turn on write batching: rather than after every
+     * command, the output is flushed once <code>batchSize</code> bytes
+     * have accumulated, or <code>lingerMicros</code> after the first
+     * unflushed command, or as soon as a command awaiting a reply has
+     * been written. Call before {@link #start}.
+     * @param batchSize bytes which may accumulate before a flush is forced
+     * @param lingerMicros longest time, in microseconds, a command may wait to be flushed
+     */
+    public void setWriteBatching(int batchSize, long lingerMicros) {
+        _writeBatcher = new WriteBatcher(_frameHandler, batchSize, lingerMicros);
+    }
+
+    /**
+     * Private API - write frames on a dedicated writer thread: channels
+     * queue their commands' frames and return without waiting for the
+     * socket, and the writer writes whatever has been queued together.
+     * Write batching has no further effect. Call before {@link #start}.
+     */
+    public void useFrameWriter() {
+        _frameWriter = new FrameWriter(_frameHandler, _heartbeatSender);
+    }
+
+    /**
+     * Private API - set how many consumer callbacks of a channel are run
+     * for each hand-off to the consumer executor. Sizing is adaptive,
+     * between the two sizes, if <code>maxBlockSize</code> is the greater.
+     * Call before {@link #start}.
+     * @param blockSize the fixed block size, or the least adaptive size
+     * @param maxBlockSize the greatest adaptive size
+     */
+    public void setConsumerDispatchBlockSize(int blockSize, int maxBlockSize) {
+        _workService.setBlockSize(blockSize, maxBlockSize);
+    }
+
+    /** Public API - {@inheritDoc} */
+    public DispatchStatistics getDispatchStatistics() {
+        return _workService;
+    }
+
+    /**
+     * Private API - Set the number of entries in this connection's short
+     * string cache. Call before {@link #start}.
+     * @param capacity number of entries, rounded up to a power of two and
+     * at most {@link ShortStringCache#MAX_CAPACITY}; 0 stops caching
+     */
+    public void setShortStringCacheCapacity(int capacity) {
+        _shortStringCache.setCapacity(capacity);
+    }
+
+    /** Private API - @return the cache inbound commands look up short strings in */
+    ShortStringCache getShortStringCache() {
+        return _shortStringCache;
+    }
+
+    /** Public API - {@inheritDoc} */
+    public ShortStringCacheStatistics getShortStringCacheStatistics() {
+        return _shortStringCache;
+    }
+
+    /**
+     * @return true if frames are written after the writing thread has
+     * moved on, so must not share arrays the caller may change
+     */
+    boolean writesAsynchronously() {
+        return _frameWriter != null;
+    }
+
+    /**
+     * Private API - assemble and decode inbound commands for all but
+     * channel zero on a pool of worker threads, rather than on the thread
+     * reading frames. Each channel's commands are still handled one at a
+     * time, in order. Call before {@link #start}.
+     * @param numThreads number of worker threads
+     */
+    public void useDecodeThreads(int numThreads) {
+        _decodeService = new FrameDecodeService(this, numThreads);
+    }
+
+    /**
+     * Called on a decode worker when a channel fails to handle a frame:
+     * shuts the connection down as the main loop would have, then closes
+     * the frame handler to stop reading.
+     */
+    void handleDecodeFailure(Throwable ex) {
+        if (_decodeFailed.compareAndSet(false, true)) {
+            handleDriverException(ex);
+            _frameHandler.close();
+        }
+    }
+
+    private void shutdownWriteBatcher() {
+        WriteBatcher batcher = _writeBatcher;
+        if (batcher != null) {
+            batcher.shutdown();
+        }
     }
 
     private static final int negotiatedMaxValue(int clientValue, int serverValue) {
@@ -529,52 +821,154 @@ public class AMQConnection extends ShutdownNotifierComponent implements Connecti
          */
         @Override public void run() {
             try {
+                if (_frameHandler instanceof SocketFrameHandler
+                        && ((SocketFrameHandler) _frameHandler).isReadingAhead()) {
+                    readFrameBatches((SocketFrameHandler) _frameHandler);
+                }
                 while (_running) {
                     Frame frame = _frameHandler.readFrame();
 
                     if (frame != null) {
-                        _missedHeartbeats = 0;
-                        if (frame.type == AMQP.FRAME_HEARTBEAT) {
-                            // Ignore it: we've already just reset the heartbeat counter.
-                        } else {
-                            if (frame.channel == 0) { // the special channel
-                                _channel0.handleFrame(frame);
-                            } else {
-                                if (isOpen()) {
-                                    // If we're still _running, but not isOpen(), then we
-                                    // must be quiescing, which means any inbound frames
-                                    // for non-zero channels (and any inbound commands on
-                                    // channel zero that aren't Connection.CloseOk) must
-                                    // be discarded.
-                                    ChannelManager cm = _channelManager;
-                                    if (cm != null) {
-                                        cm.getChannel(frame.channel).handleFrame(frame);
-                                    }
-                                }
-                            }
-                        }
+                        handleReadFrame(frame);
                     } else {
                         // Socket timeout waiting for a frame.
                         // Maybe missed heartbeat.
                         handleSocketTimeout();
                     }
                 }
-            } catch (EOFException ex) {
-                if (!_brokerInitiatedShutdown)
-                    shutdown(ex, false, ex, true);
             } catch (Throwable ex) {
-                _exceptionHandler.handleUnexpectedConnectionDriverException(AMQConnection.this,
-                                                                            ex);
-                shutdown(ex, false, ex, true);
+                handleMainLoopException(ex);
             } finally {
-                // Finally, shut down our underlying data connection.
-                _frameHandler.close();
-                _appContinuation.set(null);
-                notifyListeners();
+                mainLoopFinished();
+            }
+        }
+
+        /**
+         * As the loop in {@link #run}, but dispatching every frame the
+         * frame handler has read ahead before reading again.
+         */
+        private void readFrameBatches(SocketFrameHandler frameHandler) throws IOException {
+            List<Frame> frames = new ArrayList<Frame>();
+            while (_running) {
+                if (frameHandler.readFrames(frames) > 0) {
+                    for (Frame frame : frames) {
+                        if (!_running) break;
+                        handleReadFrame(frame);
+                    }
+                    frames.clear();
+                } else {
+                    // Socket timeout waiting for a frame.
+                    // Maybe missed heartbeat.
+                    handleSocketTimeout();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stands in for the {@link MainLoop} when frames are read by an
+     * event-driven {@link NioFrameHandler} instead of by our own thread.
+     */
+    private class MainLoopReceiver implements FrameReceiver {
+        public boolean isRunning() {
+            return _running;
+        }
+
+        public void handleFrame(Frame frame) throws IOException {
+            handleReadFrame(frame);
+        }
+
+        public void handleTimeout() throws IOException {
+            handleSocketTimeout();
+        }
+
+        public void handleTermination(Throwable cause) {
+            try {
+                if (cause != null) handleMainLoopException(cause);
+            } finally {
+                mainLoopFinished();
+            }
+        }
+    }
+
+    /**
+     * Dispatches a frame read by the main loop to the channel it refers
+     * to, unless it is a heartbeat frame.
+     */
+    private void handleReadFrame(Frame frame) throws IOException {
+        _missedHeartbeats = 0;
+        if (frame.type == AMQP.FRAME_HEARTBEAT) {
+            // Ignore it: we've already just reset the heartbeat counter.
+        } else {
+            if (frame.channel == 0) { // the special channel
+                _channel0.handleFrame(frame);
+            } else {
+                if (isOpen()) {
+                    // If we're still _running, but not isOpen(), then we
+                    // must be quiescing, which means any inbound frames
+                    // for non-zero channels (and any inbound commands on
+                    // channel zero that aren't Connection.CloseOk) must
+                    // be discarded.
+                    ChannelManager cm = _channelManager;
+                    if (cm != null) {
+                        ChannelN channel = cm.getChannel(frame.channel);
+                        FrameDecodeService decodeService = _decodeService;
+                        if (decodeService != null) {
+                            decodeService.addFrame(channel, frame);
+                        } else {
+                            channel.handleFrame(frame);
+                        }
+                    }
+                }
             }
         }
     }
 
+    /** Shuts the connection down after the main loop failed with the given exception. */
+    private void handleMainLoopException(Throwable ex) {
+        if (_decodeFailed.get()) {
+            return; // already shut down; ex comes from closing the frame handler
+        }
+        handleDriverException(ex);
+    }
+
+    /** Shuts the connection down after reading or handling frames failed. */
+    private void handleDriverException(Throwable ex) {
+        if (ex instanceof EOFException) {
+            if (!_brokerInitiatedShutdown)
+                shutdown(ex, false, ex, true);
+        } else {
+            _exceptionHandler.handleUnexpectedConnectionDriverException(AMQConnection.this,
+                                                                        ex);
+            shutdown(ex, false, ex, true);
+        }
+    }
+
+    /** Called, however the main loop ended, once no more frames will be read. */
+    private void mainLoopFinished() {
+        // Let the writer finish anything queued, such as a close-ok, then
+        // shut down our underlying data connection.
+        FrameWriter writer = _frameWriter;
+        if (writer != null) {
+            writer.drainAndShutdown(WRITER_DRAIN_TIMEOUT);
+        }
+        _frameHandler.close();
+        FrameDecodeService decodeService = _decodeService;
+        if (decodeService != null) {
+            decodeService.shutdown();
+        }
+        _appContinuation.set(null);
+        notifyListeners();
+    }
+
+    /** @return true if the current thread reads this connection's inbound frames */
+    private boolean inMainLoop() {
+        if (_frameHandler instanceof NioFrameHandler) {
+            return ((NioFrameHandler) _frameHandler).inReaderThread();
+        }
+        return Thread.currentThread() instanceof MainLoop;
+    }
+
     /**
      * Called when a frame-read operation times out
      * @throws MissedHeartbeatException if heart-beats have been missed
@@ -610,12 +1004,14 @@ public class AMQConnection extends ShutdownNotifierComponent implements Connecti
         // See the detailed comments in ChannelN.processAsync.
 
         Method method = c.getMethod();
+        int methodId = AMQImpl.protocolId(method);
 
         if (isOpen()) {
-            if (method instanceof AMQP.Connection.Close) {
+            switch (methodId) {
+            case AMQImpl.Connection.Close.ID:
                 handleConnectionClose(c);
                 return true;
-            } else if (method instanceof AMQP.Connection.Blocked) {
+            case AMQImpl.Connection.Blocked.ID: {
                 AMQP.Connection.Blocked blocked = (AMQP.Connection.Blocked) method;
                 try {
                     for (BlockedListener l : this.blockedListeners) {
@@ -625,7 +1021,8 @@ public class AMQConnection extends ShutdownNotifierComponent implements Connecti
                     getExceptionHandler().handleBlockedListenerException(this, ex);
                 }
                 return true;
-            } else if (method instanceof AMQP.Connection.Unblocked) {
+            }
+            case AMQImpl.Connection.Unblocked.ID:
                 try {
                     for (BlockedListener l : this.blockedListeners) {
                         l.handleUnblocked();
@@ -634,24 +1031,25 @@ public class AMQConnection extends ShutdownNotifierComponent implements Connecti
                     getExceptionHandler().handleBlockedListenerException(this, ex);
                 }
                 return true;
-            } else {
+            default:
                 return false;
             }
         } else {
-            if (method instanceof AMQP.Connection.Close) {
+            switch (methodId) {
+            case AMQImpl.Connection.Close.ID:
                 // Already shutting down, so just send back a CloseOk.
                 try {
                     _channel0.quiescingTransmit(new AMQP.Connection.CloseOk.Builder().build());
                 } catch (IOException _) { } // ignore
                 return true;
-            } else if (method instanceof AMQP.Connection.CloseOk) {
+            case AMQImpl.Connection.CloseOk.ID:
                 // It's our final "RPC". Time to shut down.
                 _running = false;
                 // If Close was sent from within the MainLoop we
                 // will not have a continuation to return to, so
                 // we treat this as processed in that case.
                 return !_channel0.isOutstandingRpc();
-            } else { // Ignore all others.
+            default: // Ignore all others.
                 return true;
             }
         }
@@ -722,6 +1120,7 @@ public class AMQConnection extends ShutdownNotifierComponent implements Connecti
 
         // stop any heartbeating
         _heartbeatSender.shutdown();
+        shutdownWriteBatcher();
 
         _channel0.processShutdownSignal(sse, !initiatedByApplication, notifyRpc);
 
@@ -816,7 +1215,7 @@ public class AMQConnection extends ShutdownNotifierComponent implements Connecti
                       boolean abort)
         throws IOException
     {
-        boolean sync = !(Thread.currentThread() instanceof MainLoop);
+        boolean sync = !inMainLoop();
 
         try {
             AMQP.Connection.Close reason =
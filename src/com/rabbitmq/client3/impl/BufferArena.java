@@ -0,0 +1,106 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.impl;
+
+/**
+ * A pool of byte arrays, in power-of-two size classes, into which a
+ * reader thread reads inbound frame payloads. Arrays are handed back with
+ * {@link #release} once their frame has been decoded, so that a busy
+ * connection does not allocate a fresh array for every frame it reads.
+ * <p/>
+ * Payloads larger than the largest size class are not pooled, and each
+ * size class keeps only a few free arrays, so the arena stays small.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * An arena belongs to the last thread which allocated from it, normally
+ * a connection's reader thread; a new thread allocating, as when a reader
+ * loop is restarted, takes the arena over with empty free lists. Arrays
+ * released from any thread but the owner are simply dropped, so free
+ * lists are never shared between threads.
+ */
+final class BufferArena {
+    /** Smallest size class, 128 bytes */
+    private static final int MIN_CLASS_SHIFT = 7;
+    /** Largest size class, 128KB: enough for a frame of the default frame_max */
+    private static final int MAX_CLASS_SHIFT = 17;
+    /** Most free arrays kept per size class */
+    private static final int MAX_FREE_PER_CLASS = 16;
+
+    /** The owning thread's free lists, replaced whenever another thread allocates */
+    private volatile Pool pool = new Pool(null);
+
+    /** @return true if a payload of this size is read into a pooled array */
+    boolean pools(int size) {
+        return size > 0 && size <= (1 << MAX_CLASS_SHIFT);
+    }
+
+    /**
+     * Take an array of at least the given size from the pool, or allocate
+     * one if the pool is empty.
+     * @param size the number of bytes needed; {@link #pools} must be true of it
+     * @return an array of the size class covering <code>size</code>
+     */
+    byte[] allocate(int size) {
+        Pool pool = this.pool;
+        if (pool.owner != Thread.currentThread()) {
+            pool = new Pool(Thread.currentThread());
+            this.pool = pool;
+        }
+        int sizeClass = sizeClass(size);
+        int count = pool.freeCount[sizeClass];
+        if (count > 0) {
+            byte[] buffer = pool.free[sizeClass][--count];
+            pool.free[sizeClass][count] = null;
+            pool.freeCount[sizeClass] = count;
+            return buffer;
+        }
+        return new byte[1 << (sizeClass + MIN_CLASS_SHIFT)];
+    }
+
+    /**
+     * Give an array obtained from {@link #allocate} back to the pool. The
+     * caller must not use it again.
+     * @param buffer the array to give back
+     */
+    void release(byte[] buffer) {
+        Pool pool = this.pool;
+        if (pool.owner != Thread.currentThread()) return;
+        int sizeClass = sizeClass(buffer.length);
+        int count = pool.freeCount[sizeClass];
+        if (count < MAX_FREE_PER_CLASS) {
+            pool.free[sizeClass][count] = buffer;
+            pool.freeCount[sizeClass] = count + 1;
+        }
+    }
+
+    /** Free arrays, only ever touched by their owner */
+    private static final class Pool {
+        final Thread owner;
+        final byte[][][] free = new byte[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1][MAX_FREE_PER_CLASS][];
+        final int[] freeCount = new int[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+
+        Pool(Thread owner) {
+            this.owner = owner;
+        }
+    }
+
+    private static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+    }
+}
@@ -146,6 +146,7 @@ public final class ChannelManager {
                     + "Please report this as a bug.");
         }
         ChannelN ch = new ChannelN(connection, channelNumber, this.workService);
+        connection.channelCreated(ch);
         _channelMap.put(ch.getChannelNumber(), ch);
         return ch;
     }
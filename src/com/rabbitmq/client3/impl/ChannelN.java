@@ -17,6 +17,9 @@
 package com.rabbitmq.client3.impl;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -28,6 +31,9 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeoutException;
 import com.rabbitmq.client3.AMQP;
 import com.rabbitmq.client3.AMQP.BasicProperties;
+import com.rabbitmq.client3.ByteBufferConsumer;
+import com.rabbitmq.client3.CompressionStatistics;
+import com.rabbitmq.client3.ContentCodec;
 import com.rabbitmq.client3.Command;
 import com.rabbitmq.client3.ConfirmListener;
 import com.rabbitmq.client3.Connection;
@@ -37,8 +43,10 @@ import com.rabbitmq.client3.FlowListener;
 import com.rabbitmq.client3.GetResponse;
 import com.rabbitmq.client3.Method;
 import com.rabbitmq.client3.MessageProperties;
+import com.rabbitmq.client3.PublishTemplate;
 import com.rabbitmq.client3.ReturnListener;
 import com.rabbitmq.client3.ShutdownSignalException;
+import com.rabbitmq.client3.StreamingConsumer;
 import com.rabbitmq.client3.UnexpectedMethodError;
 import com.rabbitmq.client3.impl.AMQImpl.Basic;
 import com.rabbitmq.client3.impl.AMQImpl.Channel;
@@ -86,6 +94,9 @@ public class ChannelN extends AMQChannel implements com.rabbitmq.client3.Channel
     /** The current default consumer, or null if there is none. */
     private volatile Consumer defaultConsumer = null;
 
+    /** Compresses and decompresses bodies, or null to leave them alone */
+    private volatile ContentCompressor compressor = null;
+
     /** Dispatcher of consumer work for this channel */
     private final ConsumerDispatcher dispatcher;
 
@@ -239,6 +250,25 @@ public class ChannelN extends AMQChannel implements com.rabbitmq.client3.Channel
         defaultConsumer = consumer;
     }
 
+    /** Public API - {@inheritDoc} */
+    public void setInlineDelivery(boolean inline) {
+        if (!_consumers.isEmpty()) {
+            throw new IllegalStateException("Cannot change how deliveries are dispatched " +
+                                            "while the channel has consumers");
+        }
+        dispatcher.setInline(inline);
+    }
+
+    /** Public API - {@inheritDoc} */
+    public void setContentCodec(ContentCodec codec, int threshold) {
+        compressor = (codec == null) ? null : new ContentCompressor(codec, threshold);
+    }
+
+    /** Public API - {@inheritDoc} */
+    public CompressionStatistics getCompressionStatistics() {
+        return compressor;
+    }
+
     /**
      * Sends a ShutdownSignal to all active consumers.
      * Idempotent.
@@ -310,8 +340,9 @@ public class ChannelN extends AMQChannel implements com.rabbitmq.client3.Channel
         // incoming commands except for a close and close-ok.
 
         Method method = command.getMethod();
+        int methodId = AMQImpl.protocolId(method);
         // we deal with channel.close in the same way, regardless
-        if (method instanceof Channel.Close) {
+        if (methodId == Channel.Close.ID) {
             asyncShutdown(command);
             return true;
         }
@@ -319,33 +350,47 @@ public class ChannelN extends AMQChannel implements com.rabbitmq.client3.Channel
         if (isOpen()) {
             // We're in normal running mode.
 
-            if (method instanceof Basic.Deliver) {
+            switch (methodId) {
+            case Basic.Deliver.ID: {
                 Basic.Deliver m = (Basic.Deliver) method;
-
-                Consumer callback = _consumers.get(m.getConsumerTag());
-                if (callback == null) {
-                    if (defaultConsumer == null) {
-                        // No handler set. We should blow up as this message
-                        // needs acking, just dropping it is not enough. See bug
-                        // 22587 for discussion.
-                        throw new IllegalStateException("Unsolicited delivery -" +
-                                " see Channel.setDefaultConsumer to handle this" +
-                                " case.");
-                    }
-                    else {
-                        callback = defaultConsumer;
+                Consumer callback = deliveryConsumer(m);
+                Envelope envelope = envelopeOf(m);
+                if (callback instanceof StreamingConsumer) {
+                    // an empty body, which never reaches contentBodySink
+                    StreamingConsumer streamer = (StreamingConsumer) callback;
+                    byte[] body = command.getContentBody();
+                    this.dispatcher.handleDeliveryStart(streamer, m.getConsumerTag(), envelope,
+                                                        (BasicProperties) command.getContentHeader());
+                    if (body.length > 0) {
+                        this.dispatcher.handleBodyChunk(streamer, m.getConsumerTag(), body);
                     }
+                    this.dispatcher.handleDeliveryEnd(streamer, m.getConsumerTag());
+                    return true;
+                }
+                BasicProperties props = (BasicProperties) command.getContentHeader();
+                ContentCompressor decompressor = this.compressor;
+                if (decompressor != null && decompressor.decompresses(props)) {
+                    this.dispatcher.handleCompressedDelivery(callback,
+                                                             m.getConsumerTag(),
+                                                             envelope,
+                                                             props,
+                                                             command.getContentBody(),
+                                                             decompressor);
+                    return true;
+                }
+                if (callback instanceof ByteBufferConsumer) {
+                    this.dispatcher.handleDelivery((ByteBufferConsumer) callback,
+                                                   m.getConsumerTag(),
+                                                   envelope,
+                                                   props,
+                                                   ((AMQCommand) command).getContentBodyBuffer());
+                    return true;
                 }
-
-                Envelope envelope = new Envelope(m.getDeliveryTag(),
-                                                 m.getRedelivered(),
-                                                 m.getExchange(),
-                                                 m.getRoutingKey());
                 try {
                     this.dispatcher.handleDelivery(callback,
                                                    m.getConsumerTag(),
                                                    envelope,
-                                                   (BasicProperties) command.getContentHeader(),
+                                                   props,
                                                    command.getContentBody());
                 } catch (Throwable ex) {
                     getConnection().getExceptionHandler().handleConsumerException(this,
@@ -355,10 +400,11 @@ public class ChannelN extends AMQChannel implements com.rabbitmq.client3.Channel
                                                                                   "handleDelivery");
                 }
                 return true;
-            } else if (method instanceof Basic.Return) {
+            }
+            case Basic.Return.ID:
                 callReturnListeners(command, (Basic.Return) method);
                 return true;
-            } else if (method instanceof Channel.Flow) {
+            case Channel.Flow.ID: {
                 Channel.Flow channelFlow = (Channel.Flow) method;
                 synchronized (_channelMutex) {
                     _blockContent = !channelFlow.getActive();
@@ -367,17 +413,20 @@ public class ChannelN extends AMQChannel implements com.rabbitmq.client3.Channel
                 }
                 callFlowListeners(command, channelFlow);
                 return true;
-            } else if (method instanceof Basic.Ack) {
+            }
+            case Basic.Ack.ID: {
                 Basic.Ack ack = (Basic.Ack) method;
                 callConfirmListeners(command, ack);
                 handleAckNack(ack.getDeliveryTag(), ack.getMultiple(), false);
                 return true;
-            } else if (method instanceof Basic.Nack) {
+            }
+            case Basic.Nack.ID: {
                 Basic.Nack nack = (Basic.Nack) method;
                 callConfirmListeners(command, nack);
                 handleAckNack(nack.getDeliveryTag(), nack.getMultiple(), true);
                 return true;
-            } else if (method instanceof Basic.RecoverOk) {
+            }
+            case Basic.RecoverOk.ID:
                 for (Map.Entry<String, Consumer> entry : _consumers.entrySet()) {
                     this.dispatcher.handleRecoverOk(entry.getValue(), entry.getKey());
                 }
@@ -385,7 +434,7 @@ public class ChannelN extends AMQChannel implements com.rabbitmq.client3.Channel
                 // be handled by whichever RPC continuation invoked Recover,
                 // so return false
                 return false;
-            } else if (method instanceof Basic.Cancel) {
+            case Basic.Cancel.ID: {
                 Basic.Cancel m = (Basic.Cancel)method;
                 String consumerTag = m.getConsumerTag();
                 Consumer callback = _consumers.remove(consumerTag);
@@ -404,13 +453,14 @@ public class ChannelN extends AMQChannel implements com.rabbitmq.client3.Channel
                     }
                 }
                 return true;
-            } else {
+            }
+            default:
                 return false;
             }
         } else {
             // We're in quiescing mode == !isOpen()
 
-            if (method instanceof Channel.CloseOk) {
+            if (methodId == Channel.CloseOk.ID) {
                 // We're quiescing, and we see a channel.close-ok:
                 // this is our signal to leave quiescing mode and
                 // finally shut down for good. Let it be handled as an
@@ -425,6 +475,60 @@ public class ChannelN extends AMQChannel implements com.rabbitmq.client3.Channel
         }
     }
 
+    /**
+     * Protected API - Streams the bodies of deliveries to
+     * {@link StreamingConsumer}s; accumulates all others.
+     */
+    @Override protected ContentBodySink contentBodySink(AMQCommand command) throws IOException {
+        Method method = command.getMethod();
+        if (AMQImpl.protocolId(method) != Basic.Deliver.ID || !isOpen()) {
+            return null;
+        }
+        Basic.Deliver m = (Basic.Deliver) method;
+        Consumer callback = deliveryConsumer(m);
+        if (!(callback instanceof StreamingConsumer)) {
+            return null;
+        }
+        final StreamingConsumer streamer = (StreamingConsumer) callback;
+        final String consumerTag = m.getConsumerTag();
+        this.dispatcher.handleDeliveryStart(streamer, consumerTag, envelopeOf(m),
+                                            (BasicProperties) command.getContentHeader());
+        return new ContentBodySink() {
+            public void handleBodyFragment(byte[] fragment) {
+                dispatcher.handleBodyChunk(streamer, consumerTag, fragment);
+            }
+            public void handleBodyEnd() {
+                dispatcher.handleDeliveryEnd(streamer, consumerTag);
+            }
+        };
+    }
+
+    /** @return the consumer a delivery is for, or the default consumer if it has none */
+    private Consumer deliveryConsumer(Basic.Deliver m) {
+        Consumer callback = _consumers.get(m.getConsumerTag());
+        if (callback == null) {
+            if (defaultConsumer == null) {
+                // No handler set. We should blow up as this message
+                // needs acking, just dropping it is not enough. See bug
+                // 22587 for discussion.
+                throw new IllegalStateException("Unsolicited delivery -" +
+                        " see Channel.setDefaultConsumer to handle this" +
+                        " case.");
+            }
+            else {
+                callback = defaultConsumer;
+            }
+        }
+        return callback;
+    }
+
+    private static Envelope envelopeOf(Basic.Deliver m) {
+        return new Envelope(m.getDeliveryTag(),
+                            m.getRedelivered(),
+                            m.getExchange(),
+                            m.getRoutingKey());
+    }
+
     private void callReturnListeners(Command command, Basic.Return basicReturn) {
         try {
             for (ReturnListener l : this.returnListeners) {
@@ -625,21 +729,102 @@ public class ChannelN extends AMQChannel implements com.rabbitmq.client3.Channel
                              BasicProperties props, byte[] body)
         throws IOException
     {
-        if (nextPublishSeqNo > 0) {
-            unconfirmedSet.add(getNextPublishSeqNo());
-            nextPublishSeqNo++;
+        BasicProperties useProps = props;
+        if (props == null) {
+            useProps = MessageProperties.MINIMAL_BASIC;
+        }
+        byte[] useBody = body;
+        ContentCompressor c = compressor;
+        if (c != null && c.compresses(useProps, body)) {
+            byte[] compressed = c.compress(body);
+            if (compressed != null) {
+                useBody = compressed;
+                useProps = c.compressed(useProps);
+            }
         }
+        publish(new Basic.Publish.Builder()
+                    .exchange(exchange)
+                    .routingKey(routingKey)
+                    .mandatory(mandatory)
+                    .immediate(immediate)
+                .build(),
+                useProps, useBody);
+    }
+
+    /** Public API - {@inheritDoc} */
+    public void basicPublish(String exchange, String routingKey,
+                             boolean mandatory, BasicProperties props,
+                             InputStream body, long length)
+        throws IOException
+    {
+        publish(exchange, routingKey, mandatory, props, ContentBodySource.of(body, length));
+    }
+
+    /** Public API - {@inheritDoc} */
+    public void basicPublish(String exchange, String routingKey,
+                             boolean mandatory, BasicProperties props,
+                             FileChannel body, long position, long length)
+        throws IOException
+    {
+        publish(exchange, routingKey, mandatory, props, ContentBodySource.of(body, position, length));
+    }
+
+    /** Public API - {@inheritDoc} */
+    public void basicPublish(String exchange, String routingKey,
+                             boolean mandatory, BasicProperties props,
+                             ByteBuffer body)
+        throws IOException
+    {
+        publish(exchange, routingKey, mandatory, props, ContentBodySource.of(body));
+    }
+
+    private void publish(String exchange, String routingKey, boolean mandatory,
+                         BasicProperties props, ContentBodySource body)
+        throws IOException
+    {
         BasicProperties useProps = props;
         if (props == null) {
             useProps = MessageProperties.MINIMAL_BASIC;
         }
+        if (nextPublishSeqNo > 0) {
+            unconfirmedSet.add(getNextPublishSeqNo());
+            nextPublishSeqNo++;
+        }
         transmit(new AMQCommand(new Basic.Publish.Builder()
                                     .exchange(exchange)
                                     .routingKey(routingKey)
                                     .mandatory(mandatory)
-                                    .immediate(immediate)
                                 .build(),
-                                useProps, body));
+                                useProps, null),
+                 body);
+    }
+
+    /** Public API - {@inheritDoc} */
+    public PublishTemplate createPublishTemplate(String exchange, String routingKey,
+                                                 boolean mandatory, BasicProperties props)
+        throws IOException
+    {
+        BasicProperties useProps = props;
+        if (props == null) {
+            useProps = MessageProperties.MINIMAL_BASIC;
+        }
+        return new PublishTemplateImpl(this,
+                                       new Basic.Publish(0, exchange, routingKey, mandatory, false),
+                                       useProps);
+    }
+
+    /**
+     * Private API - Publish a message, taking a sequence number for it
+     * if in confirm mode. Shared by basicPublish and {@link PublishTemplateImpl}.
+     */
+    void publish(Method publish, AMQContentHeader header, byte[] body)
+        throws IOException
+    {
+        if (nextPublishSeqNo > 0) {
+            unconfirmedSet.add(getNextPublishSeqNo());
+            nextPublishSeqNo++;
+        }
+        transmit(new AMQCommand(publish, header, body));
     }
 
     /** Public API - {@inheritDoc} */
@@ -891,6 +1076,11 @@ public class ChannelN extends AMQChannel implements com.rabbitmq.client3.Channel
                                              getOk.getRoutingKey());
             BasicProperties props = (BasicProperties)replyCommand.getContentHeader();
             byte[] body = replyCommand.getContentBody();
+            ContentCompressor c = compressor;
+            if (c != null && c.decompresses(props)) {
+                body = c.decompress(body);
+                props = c.decompressed(props);
+            }
             int messageCount = getOk.getMessageCount();
             return new GetResponse(envelope, props, body, messageCount);
         } else if (method instanceof Basic.GetEmpty) {
@@ -17,8 +17,7 @@
 package com.rabbitmq.client3.impl;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 import com.rabbitmq.client3.AMQP;
 import com.rabbitmq.client3.UnexpectedFrameError;
@@ -32,6 +31,11 @@ import com.rabbitmq.client3.UnexpectedFrameError;
  */
 final class CommandAssembler {
     private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
+    /**
+     * Largest body {@link #getContentBodyBuffer} copies out of its pooled
+     * array, rather than taking the array out of the pool
+     */
+    private static final int MAX_COPIED_BODY_SIZE = 1024;
 
     /** Current state, used to decide how to handle each incoming frame. */
     private enum CAState {
@@ -45,21 +49,34 @@ final class CommandAssembler {
     /** The content header for this command */
     private AMQContentHeader contentHeader;
 
-    /** The fragments of this command's content body - a list of byte[] */
-    private final List<byte[]> bodyN;
+    /** This command's content body; once it spans several frames, filled in as they arrive */
+    private byte[] body;
+    /** The pooled frame holding the whole body, if it arrived in one; else null */
+    private Frame bodyFrame;
     /** sum of the lengths of all fragments */
     private int bodyLength;
 
     /** No bytes of content body not yet accumulated */
     private long remainingBodyBytes;
 
+    /** Where body fragments go instead of being accumulated, if the body is streamed */
+    private ContentBodySink bodySink;
+
+    /** Where the method's short string arguments are looked up, or null */
+    private final ShortStringCache shortStringCache;
+
     public CommandAssembler(Method method, AMQContentHeader contentHeader, byte[] body) {
+        this(method, contentHeader, body, null);
+    }
+
+    public CommandAssembler(Method method, AMQContentHeader contentHeader, byte[] body,
+                            ShortStringCache shortStringCache) {
+        this.shortStringCache = shortStringCache;
         this.method = method;
         this.contentHeader = contentHeader;
-        this.bodyN = new ArrayList<byte[]>(2);
-        this.bodyLength = 0;
+        this.body = body;
+        this.bodyLength = (body == null) ? 0 : body.length;
         this.remainingBodyBytes = 0;
-        appendBodyFragment(body);
         if (method == null) {
             this.state = CAState.EXPECTING_METHOD;
         } else if (contentHeader == null) {
@@ -83,6 +100,29 @@ final class CommandAssembler {
         return (this.state == CAState.COMPLETE);
     }
 
+    /** @return true if the method and header are complete and body frames are expected */
+    public synchronized boolean isExpectingContentBody() {
+        return (this.state == CAState.EXPECTING_CONTENT_BODY);
+    }
+
+    /** @return true if the body is being passed to a sink rather than accumulated */
+    public synchronized boolean isStreamed() {
+        return this.bodySink != null;
+    }
+
+    /**
+     * Pass the rest of the body to a sink, fragment by fragment, rather
+     * than accumulating it. Only allowed once the header has arrived and
+     * before any body frame has.
+     * @param sink where to send the body fragments
+     */
+    public synchronized void streamContentBody(ContentBodySink sink) {
+        if (this.state != CAState.EXPECTING_CONTENT_BODY || this.bodyLength != 0) {
+            throw new IllegalStateException("Content body cannot be streamed in state " + this.state);
+        }
+        this.bodySink = sink;
+    }
+
     /** Decides whether more body frames are expected */
     private void updateContentBodyState() {
         this.state = (this.remainingBodyBytes > 0) ? CAState.EXPECTING_CONTENT_BODY : CAState.COMPLETE;
@@ -90,7 +130,8 @@ final class CommandAssembler {
 
     private void consumeMethodFrame(Frame f) throws IOException {
         if (f.type == AMQP.FRAME_METHOD) {
-            this.method = AMQImpl.readMethodFrom(f.getInputStream());
+            this.method = AMQImpl.readMethodFrom(f.getInputStream(), this.shortStringCache);
+            f.release();
             this.state = this.method.hasContent() ? CAState.EXPECTING_CONTENT_HEADER : CAState.COMPLETE;
         } else {
             throw new UnexpectedFrameError(f, AMQP.FRAME_METHOD);
@@ -99,7 +140,8 @@ final class CommandAssembler {
 
     private void consumeHeaderFrame(Frame f) throws IOException {
         if (f.type == AMQP.FRAME_HEADER) {
-            this.contentHeader = AMQImpl.readContentHeaderFrom(f.getInputStream());
+            this.contentHeader = LazyBasicProperties.readFrom(f.getPayload());
+            f.release();
             this.remainingBodyBytes = this.contentHeader.getBodySize();
             updateContentBodyState();
         } else {
@@ -107,44 +149,111 @@ final class CommandAssembler {
         }
     }
 
-    private void consumeBodyFrame(Frame f) {
+    private void consumeBodyFrame(Frame f) throws IOException {
         if (f.type == AMQP.FRAME_BODY) {
-            byte[] fragment = f.getPayload();
-            this.remainingBodyBytes -= fragment.length;
+            int fragmentLength = f.getPayloadLength();
+            this.remainingBodyBytes -= fragmentLength;
             updateContentBodyState();
             if (this.remainingBodyBytes < 0) {
                 throw new UnsupportedOperationException("%%%%%% FIXME unimplemented");
             }
-            appendBodyFragment(fragment);
+            if (this.bodySink != null) {
+                streamBodyFragment(f);
+            } else {
+                appendBodyFragment(f, fragmentLength);
+            }
         } else {
             throw new UnexpectedFrameError(f, AMQP.FRAME_BODY);
         }
     }
 
-    /** Stitches together a fragmented content body into a single byte array */
-    private byte[] coalesceContentBody() {
-        if (this.bodyLength == 0) return EMPTY_BYTE_ARRAY;
-        if (this.bodyN.size() == 1) return this.bodyN.get(0);
+    /**
+     * Adds a body frame's payload to the content body. A body arriving
+     * whole in one unpooled frame is taken as it is, and one arriving
+     * whole in a pooled frame is kept in that frame until asked for;
+     * otherwise each fragment is copied straight into place in the
+     * complete body, and pooled frames are released.
+     */
+    private void appendBodyFragment(Frame f, int fragmentLength) {
+        if (this.bodyLength == 0 && this.remainingBodyBytes == 0) {
+            if (f.isPooled()) {
+                this.bodyFrame = f;
+            } else {
+                this.body = f.getPayload();
+            }
+        } else {
+            long totalLength = this.bodyLength + fragmentLength + this.remainingBodyBytes;
+            if (this.body == null || this.body.length < totalLength) {
+                byte[] newBody = new byte[(int) totalLength];
+                if (this.body != null) {
+                    System.arraycopy(this.body, 0, newBody, 0, this.bodyLength);
+                }
+                this.body = newBody;
+            }
+            f.copyPayloadTo(this.body, this.bodyLength);
+            f.release();
+        }
+        this.bodyLength += fragmentLength;
+    }
 
-        byte[] body = new byte[bodyLength];
-        int offset = 0;
-        for (byte[] fragment : this.bodyN) {
-            System.arraycopy(fragment, 0, body, offset, fragment.length);
-            offset += fragment.length;
+    /** Hands a body frame's payload to the sink, and tells it when the body is complete. */
+    private void streamBodyFragment(Frame f) throws IOException {
+        byte[] fragment = f.getPayload(); // a copy, if the frame is pooled
+        f.release();
+        this.bodySink.handleBodyFragment(fragment);
+        if (this.state == CAState.COMPLETE) {
+            this.bodySink.handleBodyEnd();
         }
-        this.bodyN.clear();
-        this.bodyN.add(body);
-        return body;
     }
 
+    /** @return the content body; empty if it was streamed */
     public synchronized byte[] getContentBody() {
-        return coalesceContentBody();
+        if (this.bodyLength == 0) return EMPTY_BYTE_ARRAY;
+        if (this.bodyFrame != null) {
+            this.body = this.bodyFrame.getPayload(); // a copy
+            this.bodyFrame.release();
+            this.bodyFrame = null;
+        } else if (this.body.length != this.bodyLength) {
+            // detached from a pooled frame by getContentBodyBuffer
+            byte[] exact = new byte[this.bodyLength];
+            System.arraycopy(this.body, 0, exact, 0, this.bodyLength);
+            this.body = exact;
+        }
+        return this.body;
     }
 
-    private void appendBodyFragment(byte[] fragment) {
-        if (fragment == null || fragment.length == 0) return;
-        bodyN.add(fragment);
-        bodyLength += fragment.length;
+    /**
+     * @return a read-only view of the content body. A body kept in a
+     * pooled frame's array is taken out of the pool rather than copied,
+     * unless it is small or fills less than half the array, when it is
+     * copied to an array of its own and the pooled one given back.
+     */
+    public synchronized ByteBuffer getContentBodyBuffer() {
+        if (this.bodyLength == 0) return ByteBuffer.wrap(EMPTY_BYTE_ARRAY).asReadOnlyBuffer();
+        if (this.bodyFrame != null) {
+            if (this.bodyLength <= MAX_COPIED_BODY_SIZE
+                    || this.bodyLength < this.bodyFrame.payloadArrayLength() / 2) {
+                this.body = this.bodyFrame.getPayload(); // a copy
+                this.bodyFrame.release();
+            } else {
+                this.body = this.bodyFrame.detachPayload();
+            }
+            this.bodyFrame = null;
+        }
+        return ByteBuffer.wrap(this.body, 0, this.bodyLength).asReadOnlyBuffer();
+    }
+
+    /**
+     * Give back the pooled frame holding the content body, if the body
+     * has not been taken from it, once the command has been dealt with.
+     * The body reads as empty afterwards.
+     */
+    public synchronized void releaseContentBody() {
+        if (this.bodyFrame != null) {
+            this.bodyFrame.release();
+            this.bodyFrame = null;
+            this.bodyLength = 0;
+        }
     }
 
     /**
@@ -16,19 +16,22 @@
 package com.rabbitmq.client3.impl;
 
 import com.rabbitmq.client3.AMQP;
+import com.rabbitmq.client3.ByteBufferConsumer;
 import com.rabbitmq.client3.Channel;
 import com.rabbitmq.client3.Consumer;
 import com.rabbitmq.client3.Envelope;
 import com.rabbitmq.client3.ShutdownSignalException;
+import com.rabbitmq.client3.StreamingConsumer;
 import com.rabbitmq.utility3.Utility;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
 /**
  * Dispatches notifications to a {@link Consumer} on an internally-managed executor service and work
- * pool.
+ * pool, or, if inline, directly on the calling thread.
  * <p/>
  * Each {@link Channel} has a single <code>ConsumerDispatcher</code>, but the executor service and work
  * pool may be shared with other channels, typically those on the same {@link AMQConnection}.
@@ -42,6 +45,8 @@ final class ConsumerDispatcher {
     private final Channel channel;
 
     private volatile boolean shuttingDown = false;
+    /** Whether consumers are called on the thread handing over their notifications */
+    private volatile boolean inline = false;
     private volatile boolean shutdownConsumersDriven = false;
     private volatile CountDownLatch shutdownConsumersComplete;
 
@@ -56,6 +61,17 @@ final class ConsumerDispatcher {
         this.workService = workService;
     }
 
+    /**
+     * Call consumers directly, on the thread which hands over each
+     * notification, rather than through the work service. Notification
+     * of shutdown, and reporting of consumer exceptions, still go through
+     * the work service.
+     * @param inline true to call consumers directly
+     */
+    public void setInline(boolean inline) {
+        this.inline = inline;
+    }
+
     /** Prepare for shutdown of all consumers on this channel */
     public void quiesce() {
         // Prevent any more items being put on the queue (except the shutdown item)
@@ -70,7 +86,7 @@ final class ConsumerDispatcher {
                 try {
                     delegate.handleConsumeOk(consumerTag);
                 } catch (Throwable ex) {
-                    connection.getExceptionHandler().handleConsumerException(
+                    handleConsumerException(
                             channel,
                             ex,
                             delegate,
@@ -89,7 +105,7 @@ final class ConsumerDispatcher {
                 try {
                     delegate.handleCancelOk(consumerTag);
                 } catch (Throwable ex) {
-                    connection.getExceptionHandler().handleConsumerException(
+                    handleConsumerException(
                             channel,
                             ex,
                             delegate,
@@ -107,7 +123,7 @@ final class ConsumerDispatcher {
                 try {
                     delegate.handleCancel(consumerTag);
                 } catch (Throwable ex) {
-                    connection.getExceptionHandler().handleConsumerException(
+                    handleConsumerException(
                             channel,
                             ex,
                             delegate,
@@ -142,7 +158,7 @@ final class ConsumerDispatcher {
                             properties,
                             body);
                 } catch (Throwable ex) {
-                    connection.getExceptionHandler().handleConsumerException(
+                    handleConsumerException(
                             channel,
                             ex,
                             delegate,
@@ -153,6 +169,133 @@ final class ConsumerDispatcher {
         });
     }
 
+    public void handleDelivery(final ByteBufferConsumer delegate,
+                               final String consumerTag,
+                               final Envelope envelope,
+                               final AMQP.BasicProperties properties,
+                               final ByteBuffer body) {
+        executeUnlessShuttingDown(
+        new Runnable() {
+            public void run() {
+                try {
+                    delegate.handleDelivery(consumerTag,
+                            envelope,
+                            properties,
+                            body);
+                } catch (Throwable ex) {
+                    handleConsumerException(
+                            channel,
+                            ex,
+                            delegate,
+                            consumerTag,
+                            "handleDelivery");
+                }
+            }
+        });
+    }
+
+    /**
+     * Decompress a delivery's body on the consumer's thread, rather than
+     * the connection's, then hand it on as an ordinary delivery.
+     */
+    public void handleCompressedDelivery(final Consumer delegate,
+                                         final String consumerTag,
+                                         final Envelope envelope,
+                                         final AMQP.BasicProperties properties,
+                                         final byte[] body,
+                                         final ContentCompressor decompressor) {
+        executeUnlessShuttingDown(
+        new Runnable() {
+            public void run() {
+                try {
+                    byte[] decompressed = decompressor.decompress(body);
+                    AMQP.BasicProperties decompressedProperties =
+                        decompressor.decompressed(properties);
+                    if (delegate instanceof ByteBufferConsumer) {
+                        ((ByteBufferConsumer) delegate).handleDelivery(consumerTag,
+                                envelope,
+                                decompressedProperties,
+                                ByteBuffer.wrap(decompressed).asReadOnlyBuffer());
+                    } else {
+                        delegate.handleDelivery(consumerTag,
+                                envelope,
+                                decompressedProperties,
+                                decompressed);
+                    }
+                } catch (Throwable ex) {
+                    handleConsumerException(
+                            channel,
+                            ex,
+                            delegate,
+                            consumerTag,
+                            "handleDelivery");
+                }
+            }
+        });
+    }
+
+    public void handleDeliveryStart(final StreamingConsumer delegate,
+                                    final String consumerTag,
+                                    final Envelope envelope,
+                                    final AMQP.BasicProperties properties) {
+        executeUnlessShuttingDown(
+        new Runnable() {
+            public void run() {
+                try {
+                    delegate.handleDeliveryStart(consumerTag,
+                            envelope,
+                            properties);
+                } catch (Throwable ex) {
+                    handleConsumerException(
+                            channel,
+                            ex,
+                            delegate,
+                            consumerTag,
+                            "handleDeliveryStart");
+                }
+            }
+        });
+    }
+
+    public void handleBodyChunk(final StreamingConsumer delegate,
+                                final String consumerTag,
+                                final byte[] chunk) {
+        executeUnlessShuttingDown(
+        new Runnable() {
+            public void run() {
+                try {
+                    delegate.handleBodyChunk(consumerTag, chunk);
+                } catch (Throwable ex) {
+                    handleConsumerException(
+                            channel,
+                            ex,
+                            delegate,
+                            consumerTag,
+                            "handleBodyChunk");
+                }
+            }
+        });
+    }
+
+    public void handleDeliveryEnd(final StreamingConsumer delegate,
+                                  final String consumerTag) {
+        executeUnlessShuttingDown(
+        new Runnable() {
+            public void run() {
+                try {
+                    delegate.handleDeliveryEnd(consumerTag);
+                } catch (Throwable ex) {
+                    handleConsumerException(
+                            channel,
+                            ex,
+                            delegate,
+                            consumerTag,
+                            "handleDeliveryEnd");
+                }
+            }
+        });
+    }
+
     public CountDownLatch handleShutdownSignal(final Map<String, Consumer> consumers,
                                      final ShutdownSignalException signal) {
         // ONLY CASE WHERE WE IGNORE shuttingDown
@@ -195,8 +338,37 @@ final class ConsumerDispatcher {
         }
     }
 
+    /**
+     * Report an exception thrown by a consumer. The exception handler may
+     * close the channel, which blocks awaiting the broker's reply; when
+     * consumers are called inline that reply could only be read by the
+     * thread we are on, so the handler is run through the work service.
+     */
+    private void handleConsumerException(final Channel channel,
+                                         final Throwable ex,
+                                         final Consumer consumer,
+                                         final String consumerTag,
+                                         final String methodName) {
+        final ExceptionHandler handler = this.connection.getExceptionHandler();
+        if (this.inline) {
+            this.workService.addWork(channel, new Runnable() {
+                public void run() {
+                    handler.handleConsumerException(channel, ex, consumer, consumerTag, methodName);
+                }
+            });
+        } else {
+            handler.handleConsumerException(channel, ex, consumer, consumerTag, methodName);
+        }
+    }
+
     private void executeUnlessShuttingDown(Runnable r) {
-        if (!this.shuttingDown) execute(r);
+        if (this.shuttingDown) return;
+        if (this.inline) {
+            checkShutdown();
+            r.run();
+        } else {
+            execute(r);
+        }
     }
 
     private void execute(Runnable r) {
@@ -17,18 +17,48 @@ package com.rabbitmq.client3.impl;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.rabbitmq.client3.Channel;
+import com.rabbitmq.client3.DispatchStatistics;
 
-final class ConsumerWorkService {
-    private static final int MAX_RUNNABLE_BLOCK_SIZE = 16;
+/**
+ * Runs consumer callbacks for a connection's channels on an executor, one
+ * block of a channel's callbacks at a time, in order.
+ * <p/>
+ * Each block costs an executor hand-off. With adaptive sizing, a channel
+ * whose backlog fills its block, while no other channel is waiting for a
+ * thread, has its block size limit doubled, up to the maximum; a channel
+ * whose backlog drains, or which holds a thread while others wait, has it
+ * halved, down to the base size. Busy channels so pay fewer hand-offs
+ * without starving the rest.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * This class is thread-safe. Block sizes must be set before any channel
+ * is registered.
+ */
+final class ConsumerWorkService implements DispatchStatistics {
+    private static final int DEFAULT_BLOCK_SIZE = 16;
     private static final int DEFAULT_NUM_THREADS = 5;
     private final ExecutorService executor;
     private final boolean privateExecutor;
     private final WorkPool<Channel, Runnable> workPool;
 
+    private volatile int blockSize = DEFAULT_BLOCK_SIZE;
+    private volatile int maxBlockSize = DEFAULT_BLOCK_SIZE;
+    /** Block size limits of the registered channels */
+    private final ConcurrentMap<Channel, BlockSizeLimit> limits =
+        new ConcurrentHashMap<Channel, BlockSizeLimit>();
+
+    private final AtomicLong blockCount = new AtomicLong();
+    private final AtomicLong callbackCount = new AtomicLong();
+    private final AtomicLong increases = new AtomicLong();
+    private final AtomicLong decreases = new AtomicLong();
+
     public ConsumerWorkService(ExecutorService executor) {
         this.privateExecutor = (executor == null);
         this.executor = (executor == null) ? Executors.newFixedThreadPool(DEFAULT_NUM_THREADS)
@@ -36,11 +66,28 @@ final class ConsumerWorkService {
         this.workPool = new WorkPool<Channel, Runnable>();
     }
 
+    /**
+     * Set how many callbacks of a channel are run for each executor
+     * hand-off. Sizing is adaptive if <code>maxBlockSize</code> is
+     * greater than <code>blockSize</code>, and fixed otherwise.
+     * @param blockSize the fixed block size, or the least the adaptive
+     * limit falls to
+     * @param maxBlockSize the most the adaptive limit rises to
+     */
+    public void setBlockSize(int blockSize, int maxBlockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Dispatch block size must be positive: " + blockSize);
+        }
+        this.blockSize = blockSize;
+        this.maxBlockSize = Math.max(blockSize, maxBlockSize);
+    }
+
     /**
      * Stop executing all consumer work
      */
     public void shutdown() {
         this.workPool.unregisterAllKeys();
+        this.limits.clear();
         if (privateExecutor)
             this.executor.shutdown();
     }
@@ -51,9 +98,11 @@ final class ConsumerWorkService {
      */
     public void stopWork(Channel channel) {
         this.workPool.unregisterKey(channel);
+        this.limits.remove(channel);
     }
 
     public void registerKey(Channel channel) {
+        this.limits.putIfAbsent(channel, new BlockSizeLimit(this.blockSize));
         this.workPool.registerKey(channel);
     }
 
@@ -63,22 +112,81 @@ final class ConsumerWorkService {
         }
     }
 
+    public long getBlockCount()          { return this.blockCount.get(); }
+    public long getCallbackCount()       { return this.callbackCount.get(); }
+    public long getBlockSizeIncreases()  { return this.increases.get(); }
+    public long getBlockSizeDecreases()  { return this.decreases.get(); }
+
+    public double getAverageBlockSize() {
+        long blocks = this.blockCount.get();
+        return (blocks == 0) ? 0.0 : (double) this.callbackCount.get() / blocks;
+    }
+
+    public int getBlockSizeLimit(Channel channel) {
+        BlockSizeLimit limit = this.limits.get(channel);
+        return (limit == null) ? 0 : limit.size;
+    }
+
+    /**
+     * The block size limit of one channel, changed after each of its
+     * blocks. The next block may already be running on another thread, so
+     * an update may race with the next; the loser's size is simply lost.
+     */
+    private static final class BlockSizeLimit {
+        volatile int size;
+
+        BlockSizeLimit(int size) {
+            this.size = size;
+        }
+    }
+
+    private void adapt(BlockSizeLimit limit, boolean filled, boolean moreWork, boolean othersWaiting) {
+        int size = limit.size;
+        if (filled && moreWork && !othersWaiting) {
+            if (size < this.maxBlockSize) {
+                limit.size = Math.min(size * 2, this.maxBlockSize);
+                this.increases.incrementAndGet();
+            }
+        } else if (!filled || othersWaiting) {
+            if (size > this.blockSize) {
+                limit.size = Math.max(size / 2, this.blockSize);
+                this.decreases.incrementAndGet();
+            }
+        }
+    }
+
     private final class WorkPoolRunnable implements Runnable {
 
         public void run() {
-            int size = MAX_RUNNABLE_BLOCK_SIZE;
-            List<Runnable> block = new ArrayList<Runnable>(size);
+            WorkPool<Channel, Runnable> pool = ConsumerWorkService.this.workPool;
+            int baseSize = ConsumerWorkService.this.blockSize;
+            List<Runnable> block = new ArrayList<Runnable>(baseSize);
             try {
-                Channel key = ConsumerWorkService.this.workPool.nextWorkBlock(block, size);
+                Channel key = pool.nextWorkBlock(block, baseSize);
                 if (key == null) return; // nothing ready to run
+                BlockSizeLimit limit = ConsumerWorkService.this.limits.get(key);
+                int size = (limit == null) ? baseSize : limit.size;
+                if (size > baseSize && block.size() == baseSize) {
+                    pool.takeWorkItems(key, block, size - baseSize);
+                }
+                boolean filled = block.size() >= size;
+                boolean moreWork = false;
                 try {
                     for (Runnable runnable : block) {
                         runnable.run();
                     }
                 } finally {
-                    if (ConsumerWorkService.this.workPool.finishWorkBlock(key)) {
+                    ConsumerWorkService.this.blockCount.incrementAndGet();
+                    ConsumerWorkService.this.callbackCount.addAndGet(block.size());
+                    // looked at before this channel is itself ready again
+                    boolean othersWaiting = pool.hasReadyClients();
+                    if (pool.finishWorkBlock(key)) {
+                        moreWork = true;
                         ConsumerWorkService.this.executor.execute(new WorkPoolRunnable());
                     }
+                    if (limit != null && ConsumerWorkService.this.maxBlockSize > baseSize) {
+                        adapt(limit, filled, moreWork, othersWaiting);
+                    }
                 }
             } catch (RuntimeException e) {
                 Thread.currentThread().interrupt();
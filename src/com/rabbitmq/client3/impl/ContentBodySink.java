@@ -0,0 +1,40 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.impl;
+
+import java.io.IOException;
+
+/**
+ * Receives the body of an inbound command fragment by fragment, in place
+ * of the command accumulating it.
+ * @see AMQCommand#streamContentBody
+ */
+public interface ContentBodySink {
+    /**
+     * Called with each body frame's payload, in order.
+     * @param fragment the payload, which the sink may keep
+     * @throws IOException if the fragment cannot be processed
+     */
+    void handleBodyFragment(byte[] fragment) throws IOException;
+
+    /**
+     * Called after the last fragment.
+     * @throws IOException if the end of the body cannot be processed
+     */
+    void handleBodyEnd() throws IOException;
+}
@@ -0,0 +1,136 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.rabbitmq.client3.AMQP;
+
+/**
+ * The body of an outbound command, read a frame at a time as the command
+ * is sent rather than held in memory whole.
+ * @see AMQCommand#transmit(AMQChannel, ContentBodySource)
+ */
+abstract class ContentBodySource {
+    private final long length;
+
+    private ContentBodySource(long length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative body length: " + length);
+        }
+        this.length = length;
+    }
+
+    /** @return the length of the whole body, as declared in the content header */
+    final long length() {
+        return this.length;
+    }
+
+    /**
+     * Send the next part of the body as a single body frame.
+     * @param connection the connection to send the frame on
+     * @param channelNumber the channel the frame is for
+     * @param fragmentLength the number of bytes to send
+     * @throws IOException if the body cannot be read, or it ends early,
+     * or there is a problem writing the frame
+     */
+    abstract void writeFragment(AMQConnection connection, int channelNumber, int fragmentLength)
+        throws IOException;
+
+    /**
+     * @param in the stream to read the body from
+     * @param length the number of bytes of the stream which make up the body
+     * @return a source which reads the body from the stream
+     */
+    static ContentBodySource of(final InputStream in, long length) {
+        return new ContentBodySource(length) {
+            void writeFragment(AMQConnection connection, int channelNumber, int fragmentLength)
+                throws IOException
+            {
+                // a fresh array, since a frame writer thread may still be holding the last
+                byte[] fragment = new byte[fragmentLength];
+                int read = 0;
+                while (read < fragmentLength) {
+                    int n = in.read(fragment, read, fragmentLength - read);
+                    if (n < 0) {
+                        throw new EOFException("Stream ended before the end of the body");
+                    }
+                    read += n;
+                }
+                connection.writeFrame(new Frame(AMQP.FRAME_BODY, channelNumber, fragment));
+            }
+        };
+    }
+
+    /**
+     * @param body the buffer holding the body between its position and
+     * limit; neither the position nor the limit is changed
+     * @return a source which sends the body straight from the buffer,
+     * copying it only where frames outlive the call that sends them
+     */
+    static ContentBodySource of(ByteBuffer body) {
+        final ByteBuffer remaining = body.duplicate();
+        return new ContentBodySource(remaining.remaining()) {
+            void writeFragment(AMQConnection connection, int channelNumber, int fragmentLength)
+                throws IOException
+            {
+                ByteBuffer fragment = remaining.duplicate();
+                fragment.limit(fragment.position() + fragmentLength);
+                remaining.position(fragment.limit());
+                if (connection.writesAsynchronously()) {
+                    byte[] copy = new byte[fragmentLength];
+                    fragment.get(copy);
+                    connection.writeFrame(new Frame(AMQP.FRAME_BODY, channelNumber, copy));
+                } else {
+                    connection.writeFrame(Frame.fromBodyBuffer(channelNumber, fragment));
+                }
+            }
+        };
+    }
+
+    /**
+     * @param file the file to send the body from
+     * @param position where in the file the body starts
+     * @param length the length of the body
+     * @return a source which sends the body from the file, without
+     * copying it through the heap where the connection can
+     * @throws IOException if the file is shorter than the body
+     */
+    static ContentBodySource of(final FileChannel file, final long position, long length)
+        throws IOException
+    {
+        if (position < 0 || position + length > file.size()) {
+            throw new EOFException("File of " + file.size() + " bytes has no " + length +
+                                   " byte body at position " + position);
+        }
+        return new ContentBodySource(length) {
+            private long next = position;
+
+            void writeFragment(AMQConnection connection, int channelNumber, int fragmentLength)
+                throws IOException
+            {
+                connection.writeFileRegion(channelNumber, file, this.next, fragmentLength);
+                this.next += fragmentLength;
+            }
+        };
+    }
+}
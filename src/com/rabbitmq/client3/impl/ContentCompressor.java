@@ -0,0 +1,145 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.impl;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rabbitmq.client3.AMQP;
+import com.rabbitmq.client3.CompressionStatistics;
+import com.rabbitmq.client3.ContentCodec;
+
+/**
+ * Applies a channel's {@link ContentCodec} to the bodies it publishes and
+ * receives, and keeps its {@link CompressionStatistics}.
+ * <p/>
+ * Bodies are compressed only if they are at least the threshold size, not
+ * already marked with a content encoding, and made smaller by the codec.
+ * Received bodies are decompressed only if marked with the codec's own
+ * content encoding, which is then cleared from their properties.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * This class is thread-safe.
+ */
+final class ContentCompressor implements CompressionStatistics {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final ContentCodec codec;
+    private final int threshold;
+
+    private final AtomicLong compressedCount = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressionNanos = new AtomicLong();
+    private final AtomicLong decompressedCount = new AtomicLong();
+    private final AtomicLong decompressionNanos = new AtomicLong();
+
+    ContentCompressor(ContentCodec codec, int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Negative compression threshold: " + threshold);
+        }
+        this.codec = codec;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param props the properties the body is to be published with
+     * @param body the body to be published
+     * @return true if the body should be offered to {@link #compress}
+     */
+    boolean compresses(AMQP.BasicProperties props, byte[] body) {
+        return body.length >= this.threshold && body.length > 0
+            && props.getContentEncoding() == null;
+    }
+
+    /**
+     * @param body a body for which {@link #compresses} is true
+     * @return the compressed body, or null if it is no smaller
+     * @throws IOException if the codec fails
+     */
+    byte[] compress(byte[] body) throws IOException {
+        long start = now();
+        byte[] compressed = this.codec.encode(body);
+        this.compressionNanos.addAndGet(now() - start);
+        if (compressed.length >= body.length) return null;
+        this.compressedCount.incrementAndGet();
+        this.uncompressedBytes.addAndGet(body.length);
+        this.compressedBytes.addAndGet(compressed.length);
+        return compressed;
+    }
+
+    /**
+     * @param props properties of a body {@link #compress} has compressed
+     * @return the properties with this codec's content encoding set
+     */
+    AMQP.BasicProperties compressed(AMQP.BasicProperties props) {
+        return props.builder().contentEncoding(this.codec.getContentEncoding()).build();
+    }
+
+    /**
+     * @param props the properties of a received body
+     * @return true if the body should be given to {@link #decompress}
+     */
+    boolean decompresses(AMQP.BasicProperties props) {
+        return props != null && this.codec.getContentEncoding().equals(props.getContentEncoding());
+    }
+
+    /**
+     * @param body a body for whose properties {@link #decompresses} is true
+     * @return the decompressed body
+     * @throws IOException if the body cannot be decompressed
+     */
+    byte[] decompress(byte[] body) throws IOException {
+        long start = now();
+        byte[] decompressed = this.codec.decode(body);
+        this.decompressionNanos.addAndGet(now() - start);
+        this.decompressedCount.incrementAndGet();
+        return decompressed;
+    }
+
+    /**
+     * @param props the properties of a body {@link #decompress} has decompressed
+     * @return the properties with the content encoding cleared
+     */
+    AMQP.BasicProperties decompressed(AMQP.BasicProperties props) {
+        return props.builder().contentEncoding(null).build();
+    }
+
+    public long getCompressedCount()     { return this.compressedCount.get(); }
+    public long getUncompressedBytes()   { return this.uncompressedBytes.get(); }
+    public long getCompressedBytes()     { return this.compressedBytes.get(); }
+    public long getCompressionNanos()    { return this.compressionNanos.get(); }
+    public long getDecompressedCount()   { return this.decompressedCount.get(); }
+    public long getDecompressionNanos()  { return this.decompressionNanos.get(); }
+
+    public double getCompressionRatio() {
+        long uncompressed = this.uncompressedBytes.get();
+        if (uncompressed == 0) return 1.0;
+        return (double) this.compressedBytes.get() / uncompressed;
+    }
+
+    /** @return this thread's CPU time where measured, else the time, in nanoseconds */
+    private static long now() {
+        if (THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled()) {
+            return THREADS.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+}
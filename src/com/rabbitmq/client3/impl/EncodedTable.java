@@ -0,0 +1,267 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.impl;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.rabbitmq.client3.MalformedFrameException;
+
+/**
+ * A read-only view of an AMQP field table, backed by its encoded bytes.
+ * <p/>
+ * Looking up a key scans the encoded entries and decodes only the value
+ * asked for, each time it is asked for; nested tables are views onto the
+ * same bytes. Iterating over the table, or asking its size, decodes every
+ * entry once. A table read this way costs nothing beyond a check of its
+ * structure until it is looked at, which suits large header tables, such
+ * as x-death, that are seldom inspected.
+ * <p/>
+ * Values have the same types as those read by {@link ValueReader}; as
+ * there, only the first of several entries with the same key counts.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * This class is thread-safe.
+ */
+final class EncodedTable extends AbstractMap<String, Object> {
+    /** The encoding - never modified */
+    private final byte[] bytes;
+    /** Offset of the first entry in bytes */
+    private final int start;
+    /** Offset just past the last entry in bytes */
+    private final int end;
+
+    /** Every entry, once decoded for iteration */
+    private volatile Map<String, Object> decoded;
+
+    private EncodedTable(byte[] bytes, int start, int end) {
+        this.bytes = bytes;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Wrap an encoded table, checking its structure.
+     * @param bytes array holding the encoded table, which must not change
+     * @param offset offset of the table's length prefix
+     * @return a view of the table
+     * @throws MalformedFrameException if the table is not well formed
+     */
+    static EncodedTable wrap(byte[] bytes, int offset) throws MalformedFrameException {
+        int end = skipLengthPrefixed(bytes, offset, bytes.length);
+        int start = offset + 4;
+        for (int pos = start; pos < end; ) {
+            pos = skipValue(bytes, skipShortstr(bytes, pos, end), end);
+        }
+        return new EncodedTable(bytes, start, end);
+    }
+
+    @Override public Object get(Object key) {
+        int valueOffset = find(key);
+        return (valueOffset < 0) ? null : readValue(valueOffset);
+    }
+
+    @Override public boolean containsKey(Object key) {
+        return find(key) >= 0;
+    }
+
+    @Override public boolean isEmpty() {
+        return this.start == this.end;
+    }
+
+    @Override public int size() {
+        return decodeAll().size();
+    }
+
+    @Override public Set<Map.Entry<String, Object>> entrySet() {
+        return decodeAll().entrySet();
+    }
+
+    /** @return offset of the value stored under key, or -1 if there is none */
+    private int find(Object key) {
+        if (!(key instanceof String)) return -1;
+        byte[] name;
+        try {
+            name = ((String) key).getBytes("utf-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        for (int pos = this.start; pos < this.end; ) {
+            int length = this.bytes[pos] & 0xff;
+            int valueOffset = pos + 1 + length;
+            if (length == name.length && regionMatches(pos + 1, name)) {
+                return valueOffset;
+            }
+            pos = skipUnchecked(valueOffset);
+        }
+        return -1;
+    }
+
+    private boolean regionMatches(int offset, byte[] name) {
+        for (int i = 0; i < name.length; i++) {
+            if (this.bytes[offset + i] != name[i]) return false;
+        }
+        return true;
+    }
+
+    private Map<String, Object> decodeAll() {
+        Map<String, Object> all = this.decoded;
+        if (all == null) {
+            all = new HashMap<String, Object>();
+            for (int pos = this.start; pos < this.end; ) {
+                int length = this.bytes[pos] & 0xff;
+                String name = utf8(this.bytes, pos + 1, length);
+                int valueOffset = pos + 1 + length;
+                if (!all.containsKey(name)) {
+                    all.put(name, readValue(valueOffset));
+                }
+                pos = skipUnchecked(valueOffset);
+            }
+            all = Collections.unmodifiableMap(all);
+            this.decoded = all;
+        }
+        return all;
+    }
+
+    /** Skips a value whose structure {@link #wrap} has already checked */
+    private int skipUnchecked(int offset) {
+        try {
+            return skipValue(this.bytes, offset, this.end);
+        } catch (MalformedFrameException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /** Decodes the type tag and value at offset, whose structure has been checked */
+    private Object readValue(int offset) {
+        byte[] b = this.bytes;
+        int pos = offset + 1;
+        switch (b[offset]) {
+          case 'S': return LongStringHelper.asLongString(copy(b, pos + 4, readInt(b, pos)));
+          case 'I': return readInt(b, pos);
+          case 'D': return new BigDecimal(new BigInteger(copy(b, pos + 1, 4)), b[pos] & 0xff);
+          case 'T': return new Date(readLong(b, pos) * 1000);
+          case 'F': return new EncodedTable(b, pos + 4, pos + 4 + readInt(b, pos));
+          case 'A': return readArray(pos + 4, pos + 4 + readInt(b, pos));
+          case 'b': return b[pos];
+          case 'd': return Double.longBitsToDouble(readLong(b, pos));
+          case 'f': return Float.intBitsToFloat(readInt(b, pos));
+          case 'l': return readLong(b, pos);
+          case 's': return (short) ((b[pos] << 8) | (b[pos + 1] & 0xff));
+          case 't': return b[pos] != 0;
+          case 'x': return copy(b, pos + 4, readInt(b, pos));
+          default:  return null; // 'V'
+        }
+    }
+
+    private List<Object> readArray(int from, int to) {
+        List<Object> array = new ArrayList<Object>();
+        for (int pos = from; pos < to; pos = skipUnchecked(pos)) {
+            array.add(readValue(pos));
+        }
+        return array;
+    }
+
+    /** @return offset just past the type tag and value at offset */
+    private static int skipValue(byte[] b, int offset, int limit) throws MalformedFrameException {
+        checkAvailable(offset, 1, limit);
+        int pos = offset + 1;
+        switch (b[offset]) {
+          case 'S':
+          case 'x': return skipLengthPrefixed(b, pos, limit);
+          case 'F':
+              int tableEnd = skipLengthPrefixed(b, pos, limit);
+              for (int entry = pos + 4; entry < tableEnd; ) {
+                  entry = skipValue(b, skipShortstr(b, entry, tableEnd), tableEnd);
+              }
+              return tableEnd;
+          case 'A':
+              int arrayEnd = skipLengthPrefixed(b, pos, limit);
+              for (int element = pos + 4; element < arrayEnd; ) {
+                  element = skipValue(b, element, arrayEnd);
+              }
+              return arrayEnd;
+          case 'V': return pos;
+          case 'b':
+          case 't': return checkAvailable(pos, 1, limit);
+          case 's': return checkAvailable(pos, 2, limit);
+          case 'I':
+          case 'f': return checkAvailable(pos, 4, limit);
+          case 'D': return checkAvailable(pos, 5, limit);
+          case 'T':
+          case 'd':
+          case 'l': return checkAvailable(pos, 8, limit);
+          default:
+              throw new MalformedFrameException("Unrecognised type in table");
+        }
+    }
+
+    private static int skipShortstr(byte[] b, int offset, int limit) throws MalformedFrameException {
+        checkAvailable(offset, 1, limit);
+        return checkAvailable(offset + 1, b[offset] & 0xff, limit);
+    }
+
+    /** @return offset just past the 32-bit length prefix at offset and the bytes it counts */
+    private static int skipLengthPrefixed(byte[] b, int offset, int limit) throws MalformedFrameException {
+        checkAvailable(offset, 4, limit);
+        int length = readInt(b, offset);
+        if (length < 0) {
+            throw new UnsupportedOperationException("Very long byte vectors and strings not currently supported");
+        }
+        return checkAvailable(offset + 4, length, limit);
+    }
+
+    private static int checkAvailable(int offset, int length, int limit) throws MalformedFrameException {
+        if (length > limit - offset) {
+            throw new MalformedFrameException("Field table entry overruns its table");
+        }
+        return offset + length;
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16)
+             | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+    }
+
+    private static long readLong(byte[] b, int offset) {
+        return ((long) readInt(b, offset) << 32) | (readInt(b, offset + 4) & 0xffffffffL);
+    }
+
+    private static byte[] copy(byte[] b, int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(b, offset, copy, 0, length);
+        return copy;
+    }
+
+    private static String utf8(byte[] b, int offset, int length) {
+        try {
+            return new String(b, offset, length, "utf-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
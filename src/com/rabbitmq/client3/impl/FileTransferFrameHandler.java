@@ -0,0 +1,47 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.impl;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link FrameHandler} which can send a body frame's payload straight
+ * from a file to its socket, with {@link FileChannel#transferTo}, so the
+ * file's contents never pass through the Java heap.
+ */
+public interface FileTransferFrameHandler extends FrameHandler {
+    /**
+     * @return true if {@link #writeFileRegion} may be used; false if, for
+     * example, the socket has no channel or its data must be encrypted
+     */
+    boolean canTransferFiles();
+
+    /**
+     * Write a body frame whose payload is a region of a file. Frames
+     * written earlier are sent first.
+     * @param channelNumber the channel the frame is for
+     * @param file the file to send from
+     * @param position where in the file the payload starts
+     * @param length the length of the payload
+     * @throws IOException if there is a problem accessing the connection
+     * or the file; the frame may then have been partly written
+     */
+    void writeFileRegion(int channelNumber, FileChannel file, long position, int length)
+        throws IOException;
+}
@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.sql.Timestamp;
 import java.util.Date;
 import java.util.Map;
@@ -44,12 +45,24 @@ public class Frame {
     /** Frame channel number, 0-65535 */
     public final int channel;
 
-    /** Frame payload bytes (for inbound frames) */
+    /** Frame payload bytes (for inbound frames and outbound body fragments) */
     private final byte[] payload;
 
+    /** Where the payload starts in the payload array */
+    private final int payloadOffset;
+
+    /** Payload length; may be less than the array length */
+    private final int payloadLength;
+
+    /** The arena the payload array was taken from, if pooled; null once released */
+    private BufferArena arena;
+
     /** Frame payload (for outbound frames) */
     private final ByteArrayOutputStream accumulator;
 
+    /** Frame payload (for outbound body fragments taken from a ByteBuffer) */
+    private final ByteBuffer buffer;
+
     /**
      * Constructs a frame for output with a type and a channel number and a
      * fresh accumulator waiting for payload.
@@ -58,7 +71,10 @@ public class Frame {
         this.type = type;
         this.channel = channel;
         this.payload = null;
+        this.payloadOffset = 0;
+        this.payloadLength = 0;
         this.accumulator = new ByteArrayOutputStream();
+        this.buffer = null;
     }
 
     /**
@@ -66,19 +82,58 @@ public class Frame {
      * payload byte array.
      */
     public Frame(int type, int channel, byte[] payload) {
+        this(type, channel, payload, 0, payload.length, null);
+    }
+
+    private Frame(int type, int channel, byte[] payload, int offset, int length, BufferArena arena) {
         this.type = type;
         this.channel = channel;
         this.payload = payload;
+        this.payloadOffset = offset;
+        this.payloadLength = length;
+        this.arena = arena;
         this.accumulator = null;
+        this.buffer = null;
     }
 
+    private Frame(int channel, ByteBuffer buffer) {
+        this.type = AMQP.FRAME_BODY;
+        this.channel = channel;
+        this.payload = null;
+        this.payloadOffset = 0;
+        this.payloadLength = 0;
+        this.accumulator = null;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Constructs a body frame whose payload is a slice of the given
+     * array. The slice is not copied, so the array must not change until
+     * the frame has been written.
+     */
     public static Frame fromBodyFragment(int channelNumber, byte[] body, int offset, int length)
         throws IOException
     {
-        Frame frame = new Frame(AMQP.FRAME_BODY, channelNumber);
-        DataOutputStream bodyOut = frame.getOutputStream();
-        bodyOut.write(body, offset, length);
-        return frame;
+        return new Frame(AMQP.FRAME_BODY, channelNumber, body, offset, length, null);
+    }
+
+    /**
+     * Constructs a body frame whose payload is the remaining bytes of the
+     * given buffer, which may be direct. They are not copied, so must not
+     * change until the frame has been written.
+     */
+    public static Frame fromBodyBuffer(int channelNumber, ByteBuffer body) {
+        return new Frame(channelNumber, body.slice());
+    }
+
+    /**
+     * Constructs a body frame whose payload is a copy of a slice of the
+     * given array, for frames written after the array may have changed.
+     */
+    public static Frame copyOfBodyFragment(int channelNumber, byte[] body, int offset, int length) {
+        byte[] payload = new byte[length];
+        System.arraycopy(body, offset, payload, 0, length);
+        return new Frame(AMQP.FRAME_BODY, channelNumber, payload);
     }
 
     /**
@@ -88,6 +143,19 @@ public class Frame {
      * @return a new Frame if we read a frame successfully, otherwise null
      */
     public static Frame readFrom(DataInputStream is) throws IOException {
+        return readFrom(is, null);
+    }
+
+    /**
+     * Protected API - Factory method to instantiate a Frame by reading an
+     * AMQP-wire-protocol frame from the given input stream, into an array
+     * from the given arena if it pools arrays of the payload's size.
+     * Pooled frames must be given back with {@link #release}.
+     *
+     * @param arena the arena to take the payload array from, or null
+     * @return a new Frame if we read a frame successfully, otherwise null
+     */
+    static Frame readFrom(DataInputStream is, BufferArena arena) throws IOException {
         int type;
         int channel;
 
@@ -113,15 +181,73 @@ public class Frame {
 
         channel = is.readUnsignedShort();
         int payloadSize = is.readInt();
-        byte[] payload = new byte[payloadSize];
-        is.readFully(payload);
+        boolean pooled = arena != null && arena.pools(payloadSize);
+        byte[] payload = pooled ? arena.allocate(payloadSize) : new byte[payloadSize];
+        is.readFully(payload, 0, payloadSize);
 
         int frameEndMarker = is.readUnsignedByte();
         if (frameEndMarker != AMQP.FRAME_END) {
+            if (pooled) arena.release(payload);
             throw new MalformedFrameException("Bad frame end marker: " + frameEndMarker);
         }
 
-        return new Frame(type, channel, payload);
+        return new Frame(type, channel, payload, 0, payloadSize, pooled ? arena : null);
+    }
+
+    /**
+     * Protected API - Factory method to instantiate a Frame by decoding an
+     * AMQP-wire-protocol frame from the given buffer, which holds bytes
+     * between its position and limit.
+     *
+     * @return a new Frame if the buffer holds a complete frame, which is
+     * consumed; otherwise null, leaving the buffer's position unchanged
+     */
+    public static Frame readFrom(ByteBuffer buffer) throws IOException {
+        return readFrom(buffer, null);
+    }
+
+    /**
+     * Protected API - As {@link #readFrom(ByteBuffer)}, taking the payload
+     * array from the given arena if it pools arrays of the payload's size.
+     * Pooled frames must be given back with {@link #release}.
+     *
+     * @param arena the arena to take the payload array from, or null
+     */
+    static Frame readFrom(ByteBuffer buffer, BufferArena arena) throws IOException {
+        int start = buffer.position();
+        int available = buffer.remaining();
+        if (available < 1) return null;
+
+        int type = buffer.get(start) & 0xff;
+        if (type == 'A') {
+            // See readFrom(DataInputStream): wait for the whole protocol header
+            if (available < 8) return null;
+            byte[] header = new byte[7];
+            buffer.position(start + 1);
+            buffer.get(header);
+            protocolVersionMismatch(new DataInputStream(new ByteArrayInputStream(header)));
+        }
+
+        if (available < AMQCommand.EMPTY_FRAME_SIZE - 1) return null;
+        int channel = buffer.getShort(start + 1) & 0xffff;
+        int payloadSize = buffer.getInt(start + 3);
+        if (payloadSize < 0) {
+            throw new MalformedFrameException("Bad frame payload size: " + (payloadSize & 0xffffffffL));
+        }
+        if (available - AMQCommand.EMPTY_FRAME_SIZE < payloadSize) return null;
+
+        int frameEndMarker = buffer.get(start + AMQCommand.EMPTY_FRAME_SIZE - 1 + payloadSize) & 0xff;
+        if (frameEndMarker != AMQP.FRAME_END) {
+            throw new MalformedFrameException("Bad frame end marker: " + frameEndMarker);
+        }
+
+        boolean pooled = arena != null && arena.pools(payloadSize);
+        byte[] payload = pooled ? arena.allocate(payloadSize) : new byte[payloadSize];
+        buffer.position(start + AMQCommand.EMPTY_FRAME_SIZE - 1);
+        buffer.get(payload, 0, payloadSize);
+        buffer.get(); // frame end
+
+        return new Frame(type, channel, payload, 0, payloadSize, pooled ? arena : null);
     }
 
     /**
@@ -186,23 +312,103 @@ public class Frame {
      * Public API - writes this Frame to the given DataOutputStream
      */
     public void writeTo(DataOutputStream os) throws IOException {
-        os.writeByte(type);
-        os.writeShort(channel);
         if (accumulator != null) {
-            os.writeInt(accumulator.size());
+            writeHeader(os, type, channel, accumulator.size());
             accumulator.writeTo(os);
         } else {
-            os.writeInt(payload.length);
-            os.write(payload);
+            writeHeader(os, type, channel, getPayloadLength());
+            if (buffer != null) {
+                writeBuffer(os);
+            } else {
+                os.write(payload, payloadOffset, payloadLength);
+            }
         }
         os.write(AMQP.FRAME_END);
     }
 
+    /** Writes a buffer payload to a stream, through a small array if the buffer has none. */
+    private void writeBuffer(DataOutputStream os) throws IOException {
+        if (buffer.hasArray()) {
+            os.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            ByteBuffer source = buffer.duplicate();
+            byte[] chunk = new byte[Math.min(source.remaining(), 8192)];
+            while (source.hasRemaining()) {
+                int n = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, n);
+                os.write(chunk, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Private API - writes the header of a frame, for a caller which
+     * writes the payload and the frame-end marker itself.
+     */
+    static void writeHeader(DataOutputStream os, int type, int channel, int payloadLength)
+        throws IOException
+    {
+        os.writeByte(type);
+        os.writeShort(channel);
+        os.writeInt(payloadLength);
+    }
+
+    /**
+     * Private API - lays out the wire encoding of a run of frames as
+     * buffers for a single gathering write. Body payloads are wrapped, not
+     * copied; each frame-end marker shares a buffer with the following
+     * frame header.
+     * @param frames the frames to encode, in order
+     * @return buffers which together hold the encoded frames
+     */
+    public static ByteBuffer[] toByteBuffers(List<Frame> frames) {
+        ByteBuffer[] buffers = new ByteBuffer[2 * frames.size() + 1];
+        int i = 0;
+        boolean first = true;
+        for (Frame frame : frames) {
+            ByteBuffer payloadBuffer = frame.payloadBuffer();
+            ByteBuffer header = ByteBuffer.allocate(first ? 7 : 8);
+            if (!first) header.put((byte) AMQP.FRAME_END);
+            header.put((byte) frame.type);
+            header.putShort((short) frame.channel);
+            header.putInt(payloadBuffer.remaining());
+            header.flip();
+            buffers[i++] = header;
+            buffers[i++] = payloadBuffer;
+            first = false;
+        }
+        ByteBuffer end = ByteBuffer.allocate(1);
+        end.put(0, (byte) AMQP.FRAME_END);
+        buffers[i] = end;
+        return buffers;
+    }
+
+    private ByteBuffer payloadBuffer() {
+        if (accumulator != null) {
+            return ByteBuffer.wrap(accumulator.toByteArray());
+        }
+        if (buffer != null) {
+            return buffer.duplicate();
+        }
+        return ByteBuffer.wrap(payload, payloadOffset, payloadLength);
+    }
+
     /**
      * Public API - retrieves the frame payload
      */
     public byte[] getPayload() {
-        if (payload != null) return payload;
+        if (payload != null) {
+            // a pooled array goes back to its arena, so never hand it out
+            if (arena == null && payloadOffset == 0 && payloadLength == payload.length) return payload;
+            byte[] slice = new byte[payloadLength];
+            System.arraycopy(payload, payloadOffset, slice, 0, payloadLength);
+            return slice;
+        }
+        if (buffer != null) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return bytes;
+        }
 
         // This is a Frame we've constructed ourselves. For some reason (e.g.
         // testing), we're acting as if we received it even though it
@@ -210,10 +416,73 @@ public class Frame {
         return accumulator.toByteArray();
     }
 
+    /**
+     * Public API - retrieves the length of the frame payload
+     */
+    public int getPayloadLength() {
+        if (buffer != null) return buffer.remaining();
+        return (accumulator == null) ? payloadLength : accumulator.size();
+    }
+
+    /**
+     * Private API - copies the frame payload into the given array
+     * @param dest the array to copy into
+     * @param offset where in <code>dest</code> to copy to
+     */
+    void copyPayloadTo(byte[] dest, int offset) {
+        if (payload != null) {
+            System.arraycopy(payload, payloadOffset, dest, offset, payloadLength);
+        } else if (buffer != null) {
+            buffer.duplicate().get(dest, offset, buffer.remaining());
+        } else {
+            byte[] bytes = accumulator.toByteArray();
+            System.arraycopy(bytes, 0, dest, offset, bytes.length);
+        }
+    }
+
+    /** @return the length of the array holding the payload, or of the payload if there is none */
+    int payloadArrayLength() {
+        return (payload != null) ? payload.length : getPayloadLength();
+    }
+
+    /** @return true if the payload array was taken from a {@link BufferArena} */
+    boolean isPooled() {
+        return arena != null;
+    }
+
+    /**
+     * Private API - takes the payload array of a frame read from the wire,
+     * for keeping beyond the frame's life. A pooled array is not given
+     * back to its arena.
+     * @return the payload array, whose first {@link #getPayloadLength}
+     * bytes are the payload
+     */
+    byte[] detachPayload() {
+        if (payload == null || payloadOffset != 0) {
+            return getPayload();
+        }
+        arena = null;
+        return payload;
+    }
+
+    /**
+     * Private API - gives a pooled payload array back to its arena, once
+     * the frame has been decoded. The frame must not be used afterwards.
+     */
+    void release() {
+        if (arena != null) {
+            arena.release(payload);
+            arena = null;
+        }
+    }
+
     /**
      * Public API - retrieves a new DataInputStream streaming over the payload
      */
     public DataInputStream getInputStream() {
+        if (payload != null) {
+            return new DataInputStream(new ByteArrayInputStream(payload, payloadOffset, payloadLength));
+        }
         return new DataInputStream(new ByteArrayInputStream(getPayload()));
     }
 
@@ -228,7 +497,7 @@ public class Frame {
         StringBuilder sb = new StringBuilder();
         sb.append("Frame(type=").append(type).append(", channel=").append(channel).append(", ");
         if (accumulator == null) {
-            sb.append(payload.length).append(" bytes of payload)");
+            sb.append(getPayloadLength()).append(" bytes of payload)");
         } else {
             sb.append(accumulator.size()).append(" bytes of accumulator)");
         }
@@ -0,0 +1,142 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+package com.rabbitmq.client3.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assembles and decodes inbound commands off the connection's reader
+ * thread. The reader only splits frames by channel and hands them here;
+ * running {@link AMQChannel#handleFrame} (the {@link CommandAssembler},
+ * method, header and field table decoding, and the command's dispatch)
+ * then happens on a pool of worker threads, so a busy connection can
+ * decode on as many cores as it has busy channels.
+ * <p/>
+ * Frames are queued per channel in a {@link WorkPool}, which never lets
+ * two workers take frames for the same channel at once, so each channel
+ * still sees its frames in the order they arrived. No order is kept
+ * between channels, nor between a channel and channel zero, whose frames
+ * the reader goes on handling itself. A channel's frames are only queued
+ * between {@link #startDecoding} and {@link #stopDecoding}.
+ * <p/>
+ * The worker threads are daemons, so a connection left open does not keep
+ * the JVM running.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * This class is thread-safe.
+ */
+final class FrameDecodeService {
+    /** Most frames a worker takes for one channel before letting other channels have a turn */
+    private static final int MAX_FRAME_BLOCK_SIZE = 64;
+
+    private final AMQConnection connection;
+    private final ExecutorService executor;
+    private final WorkPool<AMQChannel, Frame> workPool;
+
+    /**
+     * @param connection told of any failure to handle a frame
+     * @param numThreads number of worker threads
+     */
+    public FrameDecodeService(AMQConnection connection, int numThreads) {
+        this.connection = connection;
+        this.executor = Executors.newFixedThreadPool(numThreads, new DecodeThreadFactory());
+        this.workPool = new WorkPool<AMQChannel, Frame>();
+    }
+
+    /**
+     * Start accepting frames for a new channel; call before the channel
+     * is opened, so that no reply to the open is missed.
+     * @param channel the channel to decode frames for
+     */
+    public void startDecoding(AMQChannel channel) {
+        this.workPool.registerKey(channel);
+    }
+
+    /**
+     * Queue a frame to be handled by a channel after any frames already
+     * queued for it. Frames for a channel not being decoded are dropped.
+     * @param channel the channel the frame belongs to
+     * @param frame an inbound frame
+     */
+    public void addFrame(AMQChannel channel, Frame frame) {
+        if (this.workPool.addWorkItem(channel, frame)) {
+            execute();
+        }
+    }
+
+    /**
+     * Discard any frames still queued for a channel which has gone away
+     * @param channel the channel to forget
+     */
+    public void stopDecoding(AMQChannel channel) {
+        this.workPool.unregisterKey(channel);
+    }
+
+    /**
+     * Discard all queued frames and stop the worker threads
+     */
+    public void shutdown() {
+        this.workPool.unregisterAllKeys();
+        this.executor.shutdown();
+    }
+
+    private void execute() {
+        try {
+            this.executor.execute(new DecodeRunnable());
+        } catch (RejectedExecutionException _) {
+            // shut down, and the queued frames discarded
+        }
+    }
+
+    private static final class DecodeThreadFactory implements ThreadFactory {
+        private static final AtomicInteger serviceNumber = new AtomicInteger();
+        private final String prefix = "AMQP Frame Decoder " + serviceNumber.incrementAndGet() + "-";
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, this.prefix + this.threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    private final class DecodeRunnable implements Runnable {
+        public void run() {
+            List<Frame> block = new ArrayList<Frame>(MAX_FRAME_BLOCK_SIZE);
+            AMQChannel channel = FrameDecodeService.this.workPool.nextWorkBlock(block, MAX_FRAME_BLOCK_SIZE);
+            if (channel == null) return; // nothing ready to run
+            try {
+                for (Frame frame : block) {
+                    channel.handleFrame(frame);
+                }
+            } catch (Throwable t) {
+                FrameDecodeService.this.workPool.unregisterKey(channel);
+                FrameDecodeService.this.connection.handleDecodeFailure(t);
+            } finally {
+                if (FrameDecodeService.this.workPool.finishWorkBlock(channel)) {
+                    execute();
+                }
+            }
+        }
+    }
+}
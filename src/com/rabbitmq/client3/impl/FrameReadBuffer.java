@@ -0,0 +1,92 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Buffers inbound bytes read from the broker in large chunks, and decodes
+ * all the complete frames each chunk contains in one pass. The buffer
+ * grows to fit any frame larger than itself.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * This class is not thread-safe: it belongs to a connection's reader.
+ */
+final class FrameReadBuffer {
+    /** Holds undecoded bytes between its start and position */
+    private ByteBuffer buffer;
+
+    /**
+     * @param size initial buffer size in bytes
+     */
+    FrameReadBuffer(int size) {
+        this.buffer = ByteBuffer.allocate(size);
+    }
+
+    /**
+     * @return the buffer, positioned to receive more bytes; there is
+     * always room for at least one more
+     */
+    public ByteBuffer writable() {
+        if (!this.buffer.hasRemaining()) {
+            grow();
+        }
+        return this.buffer;
+    }
+
+    /**
+     * Decode every complete frame received so far, keeping any partial
+     * frame for when the rest of it arrives.
+     * @param frames list to add the decoded frames to
+     * @param arena arena to take payload arrays from, or null
+     * @return the number of frames decoded
+     * @throws IOException if the bytes do not make a valid frame
+     */
+    public int decode(List<Frame> frames, BufferArena arena) throws IOException {
+        this.buffer.flip();
+        int count = 0;
+        try {
+            Frame frame;
+            while ((frame = Frame.readFrom(this.buffer, arena)) != null) {
+                frames.add(frame);
+                count++;
+            }
+        } finally {
+            this.buffer.compact();
+        }
+        return count;
+    }
+
+    /** Makes room for the frame at the head of a full buffer. */
+    private void grow() {
+        long needed = 2L * this.buffer.capacity();
+        if (this.buffer.position() >= AMQCommand.EMPTY_FRAME_SIZE - 1) {
+            long frameSize = (this.buffer.getInt(3) & 0xffffffffL) + AMQCommand.EMPTY_FRAME_SIZE;
+            if (frameSize > Integer.MAX_VALUE) {
+                throw new UnsupportedOperationException("Very large frames not currently supported");
+            }
+            needed = Math.max(needed, frameSize);
+        }
+        ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(needed, Integer.MAX_VALUE));
+        this.buffer.flip();
+        bigger.put(this.buffer);
+        this.buffer = bigger;
+    }
+}
@@ -0,0 +1,58 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+package com.rabbitmq.client3.impl;
+
+import java.io.IOException;
+
+/**
+ * Callback interface through which an event-driven frame handler (such as
+ * {@link NioFrameHandler}) hands inbound frames to its connection, in place
+ * of a reader thread calling {@link FrameHandler#readFrame} in a loop.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * All methods are called from a single thread at a time, in the order the
+ * frames arrive.
+ */
+public interface FrameReceiver {
+    /**
+     * @return true while the receiver wants more frames, false once it
+     * has seen the last frame it expects (for example, Connection.CloseOk)
+     */
+    boolean isRunning();
+
+    /**
+     * Handle a single inbound frame.
+     * @param frame the frame read from the connection
+     * @throws IOException if the frame cannot be processed; the handler
+     * then stops reading and calls {@link #handleTermination}
+     */
+    void handleFrame(Frame frame) throws IOException;
+
+    /**
+     * Called when no frame has arrived within the handler's current read
+     * timeout, see {@link FrameHandler#setTimeout}.
+     * @throws IOException to give up on the connection
+     */
+    void handleTimeout() throws IOException;
+
+    /**
+     * Called exactly once, when the handler stops reading.
+     * @param cause the exception that stopped reading, or null if
+     * {@link #isRunning} returned false
+     */
+    void handleTermination(Throwable cause);
+}
@@ -0,0 +1,166 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.rabbitmq.client3.AMQP;
+
+/**
+ * Decides the order in which a {@link FrameWriter} writes the commands
+ * queued by a connection's channels.
+ * <p/>
+ * Each channel's commands are written in the order they were queued, and
+ * a channel's content frames are never interleaved with its other
+ * commands; but different channels' frames are interleaved, as the
+ * protocol allows. Commands without content (acks, rejects, RPCs such as
+ * channel.close) at the head of a channel's queue go first; then content
+ * frames are taken one at a time from each channel in turn. So a large
+ * message being published on one channel holds up the other channels by
+ * at most a frame each, rather than for the time it takes to write the
+ * whole message.
+ * <p/>
+ * Whether a command has content is settled when it is queued, from the
+ * types of its frames rather than their number: a body sent a frame at a
+ * time is queued as a method and header, then each body frame on its
+ * own, and every one of those is content.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * This class is not thread-safe: it is only used by the writer thread.
+ */
+final class FrameScheduler {
+    /** Channels with queued frames, by channel number */
+    private final Map<Integer, ChannelQueue> channels = new HashMap<Integer, ChannelQueue>();
+
+    /** Channels with queued frames, in round-robin order */
+    private final LinkedList<ChannelQueue> ring = new LinkedList<ChannelQueue>();
+
+    /**
+     * Queue a command's frames.
+     * @param frames a whole command, all on one channel
+     */
+    public void add(List<Frame> frames) {
+        Integer channelNumber = frames.get(0).channel;
+        ChannelQueue queue = this.channels.get(channelNumber);
+        if (queue == null) {
+            queue = new ChannelQueue(channelNumber);
+            this.channels.put(channelNumber, queue);
+            this.ring.addLast(queue);
+        }
+        queue.commands.addLast(new PendingCommand(frames, hasContent(frames)));
+    }
+
+    /** @return true if no frames are queued */
+    public boolean isEmpty() {
+        return this.ring.isEmpty();
+    }
+
+    /**
+     * Choose the next frames to write.
+     * @param batch list to add the frames to, in the order to write them
+     * @param maxBytes stop adding content frames once this many bytes
+     * have been chosen; at least one frame is chosen if any are queued
+     */
+    public void nextBatch(List<Frame> batch, int maxBytes) {
+        int bytes = 0;
+        // commands without content first
+        for (Iterator<ChannelQueue> it = this.ring.iterator(); it.hasNext(); ) {
+            ChannelQueue queue = it.next();
+            while (queue.headIsControl()) {
+                for (Frame frame : queue.commands.removeFirst().frames) {
+                    batch.add(frame);
+                    bytes += size(frame);
+                }
+            }
+            if (queue.commands.isEmpty()) {
+                it.remove();
+                this.channels.remove(queue.channelNumber);
+            }
+        }
+        // then a frame from each channel in turn
+        while (bytes < maxBytes && !this.ring.isEmpty()) {
+            ChannelQueue queue = this.ring.removeFirst();
+            Frame frame = queue.nextFrame();
+            batch.add(frame);
+            bytes += size(frame);
+            if (queue.commands.isEmpty()) {
+                this.channels.remove(queue.channelNumber);
+            } else {
+                this.ring.addLast(queue);
+            }
+        }
+    }
+
+    private static int size(Frame frame) {
+        return frame.getPayloadLength() + AMQCommand.EMPTY_FRAME_SIZE;
+    }
+
+    /** @return true if the frames are, or are part of, a command with content */
+    private static boolean hasContent(List<Frame> frames) {
+        for (Frame frame : frames) {
+            if (frame.type == AMQP.FRAME_HEADER || frame.type == AMQP.FRAME_BODY) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** A command, some of whose frames may have been written */
+    private static final class PendingCommand {
+        final List<Frame> frames;
+        /** Whether this is, or is part of, a command with content */
+        final boolean content;
+        int next = 0;
+
+        PendingCommand(List<Frame> frames, boolean content) {
+            this.frames = frames;
+            this.content = content;
+        }
+    }
+
+    /** The commands queued on one channel */
+    private static final class ChannelQueue {
+        final Integer channelNumber;
+        final LinkedList<PendingCommand> commands = new LinkedList<PendingCommand>();
+
+        ChannelQueue(Integer channelNumber) {
+            this.channelNumber = channelNumber;
+        }
+
+        /** @return true if the next command is a whole command without content */
+        boolean headIsControl() {
+            if (this.commands.isEmpty()) return false;
+            PendingCommand head = this.commands.getFirst();
+            return head.next == 0 && !head.content;
+        }
+
+        /** @return the next frame, removing the command once all its frames are taken */
+        Frame nextFrame() {
+            PendingCommand head = this.commands.getFirst();
+            Frame frame = head.frames.get(head.next++);
+            if (head.next == head.frames.size()) {
+                this.commands.removeFirst();
+            }
+            return frame;
+        }
+    }
+}
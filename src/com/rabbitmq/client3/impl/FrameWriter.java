@@ -0,0 +1,299 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes an {@link AMQConnection}'s outbound frames on a thread of its
+ * own, so that channels need neither contend for the socket nor wait for
+ * it: they put each command's frames on a lock-free queue and return.
+ * <p/>
+ * The writer takes everything queued at once and hands it to a
+ * {@link FrameScheduler}, which orders it fairly between channels, then
+ * writes up to {@link #MAX_BATCH_BYTES} at a time, with a single gathering
+ * write where the frame handler supports it, flushing only when nothing
+ * is left to write. The busier the connection, the larger its writes.
+ * <p/>
+ * A command's frames are queued as one item, so it is never split up on
+ * its own channel. If a write fails the frame handler is closed, which shuts the
+ * connection down, and later writers are given the failure. Since frames
+ * are written after their senders return, the writer, not the sender,
+ * tells the {@link HeartbeatSender} of outbound activity; and on shutdown
+ * it can be given a while to finish writing what is queued, so that a
+ * final command such as connection.close-ok is not lost.
+ * <p/>
+ * The queue is unbounded, since a sender usually holds its whole command
+ * in memory anyway; a sender producing its command a frame at a time can
+ * use {@link #awaitQueuedBytesAtMost} to keep no more than a bounded
+ * amount of it queued.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * {@link #enqueue} may be called from any number of threads.
+ */
+final class FrameWriter implements Runnable {
+    /**
+     * Bytes of content frames written together, bounding how long newly
+     * queued commands without content wait
+     */
+    private static final int MAX_BATCH_BYTES = 128 * 1024;
+
+    private final FrameHandler frameHandler;
+
+    /** Told of each write, if not null */
+    private final HeartbeatSender heartbeatSender;
+
+    /** Queued items: each a {@link Frame} or a command's List&lt;Frame&gt; */
+    private final Queue<Object> queue = new ConcurrentLinkedQueue<Object>();
+
+    private volatile Thread thread;
+
+    /** True while the writer thread is parked, or about to park */
+    private volatile boolean waiting = false;
+
+    private volatile boolean running = false;
+
+    /** True once the writer is to stop when it has written everything queued */
+    private volatile boolean draining = false;
+
+    /** Why writing stopped, if it failed */
+    private volatile IOException failure;
+
+    /** Bytes of frames queued and not yet written */
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    /** Notified as queued frames are written - guards nothing */
+    private final Object writtenMonitor = new Object();
+
+    /** Number of threads waiting on writtenMonitor */
+    private volatile int writtenWaiters = 0;
+
+    FrameWriter(FrameHandler frameHandler) {
+        this(frameHandler, null);
+    }
+
+    FrameWriter(FrameHandler frameHandler, HeartbeatSender heartbeatSender) {
+        this.frameHandler = frameHandler;
+        this.heartbeatSender = heartbeatSender;
+    }
+
+    /**
+     * Start the writer thread.
+     * @param name the thread's name
+     */
+    public void start(String name) {
+        this.running = true;
+        Thread t = new Thread(this, name);
+        t.setDaemon(true);
+        this.thread = t;
+        t.start();
+    }
+
+    /**
+     * Queue a frame for writing.
+     * @throws IOException if writing has failed
+     */
+    public void enqueue(Frame frame) throws IOException {
+        add(frame);
+    }
+
+    /**
+     * Queue a command's frames, to be written contiguously.
+     * @throws IOException if writing has failed
+     */
+    public void enqueue(List<Frame> frames) throws IOException {
+        add(frames);
+    }
+
+    private void add(Object item) throws IOException {
+        checkFailure();
+        this.queuedBytes.addAndGet(sizeOf(item));
+        this.queue.add(item);
+        if (this.waiting) {
+            LockSupport.unpark(this.thread);
+        }
+    }
+
+    /**
+     * Wait until no more than <code>maxBytes</code> of frames are queued.
+     * @param maxBytes the most bytes which may remain queued
+     * @throws IOException if writing has failed, or the writer stops
+     * while there is more queued
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void awaitQueuedBytesAtMost(long maxBytes) throws IOException {
+        if (this.queuedBytes.get() <= maxBytes) return;
+        synchronized (this.writtenMonitor) {
+            this.writtenWaiters++;
+            try {
+                while (this.queuedBytes.get() > maxBytes) {
+                    checkFailure();
+                    if (!this.running) {
+                        throw new IOException("Connection writer stopped");
+                    }
+                    this.writtenMonitor.wait();
+                }
+            } catch (InterruptedException _) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted awaiting the connection writer");
+            } finally {
+                this.writtenWaiters--;
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException failure = this.failure;
+        if (failure != null) {
+            IOException ioe = new IOException("Connection writer failed");
+            ioe.initCause(failure);
+            throw ioe;
+        }
+    }
+
+    /** Stop the writer thread; anything still queued is dropped. */
+    public void shutdown() {
+        this.running = false;
+        Thread t = this.thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Stop the writer thread once it has written and flushed everything
+     * queued, waiting at most <code>timeoutMs</code> for it to do so;
+     * anything still queued after that is dropped.
+     * @param timeoutMs longest time, in milliseconds, to wait
+     * @return true if everything queued was written
+     */
+    public boolean drainAndShutdown(int timeoutMs) {
+        Thread t = this.thread;
+        if (t == null || t == Thread.currentThread()) {
+            shutdown();
+            return false;
+        }
+        this.draining = true;
+        LockSupport.unpark(t);
+        boolean drained = false;
+        try {
+            t.join(timeoutMs);
+            drained = !t.isAlive() && this.failure == null;
+        } catch (InterruptedException _) {
+            Thread.currentThread().interrupt();
+        }
+        shutdown();
+        return drained;
+    }
+
+    public void run() {
+        FrameScheduler scheduler = new FrameScheduler();
+        List<Frame> batch = new ArrayList<Frame>();
+        try {
+            while (this.running) {
+                Object item;
+                while ((item = this.queue.poll()) != null) {
+                    addToScheduler(scheduler, item);
+                }
+                if (scheduler.isEmpty()) {
+                    if (this.draining && this.queue.isEmpty()) {
+                        this.frameHandler.flush();
+                        break;
+                    }
+                    awaitWork();
+                    continue;
+                }
+                scheduler.nextBatch(batch, MAX_BATCH_BYTES);
+                write(batch);
+                written(sizeOf(batch));
+                batch.clear();
+                if (this.heartbeatSender != null) {
+                    this.heartbeatSender.signalActivity();
+                }
+                if (scheduler.isEmpty() && this.queue.isEmpty()) {
+                    this.frameHandler.flush();
+                }
+            }
+        } catch (IOException ioe) {
+            this.failure = ioe;
+            this.frameHandler.close();
+        } finally {
+            this.running = false;
+            this.queue.clear();
+            written(0);
+        }
+    }
+
+    /** Account for frames written, waking anyone waiting for the queue to shrink */
+    private void written(long bytes) {
+        this.queuedBytes.addAndGet(-bytes);
+        if (this.writtenWaiters > 0) {
+            synchronized (this.writtenMonitor) {
+                this.writtenMonitor.notifyAll();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long sizeOf(Object item) {
+        if (item instanceof Frame) {
+            return ((Frame) item).getPayloadLength() + AMQCommand.EMPTY_FRAME_SIZE;
+        }
+        long bytes = 0;
+        for (Frame frame : (List<Frame>) item) {
+            bytes += frame.getPayloadLength() + AMQCommand.EMPTY_FRAME_SIZE;
+        }
+        return bytes;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void addToScheduler(FrameScheduler scheduler, Object item) {
+        if (item instanceof Frame) {
+            scheduler.add(Collections.singletonList((Frame) item));
+        } else {
+            scheduler.add((List<Frame>) item);
+        }
+    }
+
+    private void write(List<Frame> batch) throws IOException {
+        if (this.frameHandler instanceof GatheringFrameHandler) {
+            ((GatheringFrameHandler) this.frameHandler).writeFrames(batch);
+        } else {
+            for (Frame frame : batch) {
+                this.frameHandler.writeFrame(frame);
+            }
+        }
+    }
+
+    private void awaitWork() {
+        this.waiting = true;
+        // re-check after announcing we are waiting, so no wakeup is missed
+        if (this.running && !this.draining && this.queue.isEmpty()) {
+            LockSupport.park(this);
+        }
+        this.waiting = false;
+    }
+}
@@ -0,0 +1,36 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.impl;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A {@link FrameHandler} which can write a run of frames at once, with a
+ * single gathering write to its socket channel, rather than copying each
+ * frame through an output buffer.
+ */
+public interface GatheringFrameHandler extends FrameHandler {
+    /**
+     * Write a run of frames, unbroken by frames written from other threads.
+     * Frames written earlier with {@link #writeFrame} are sent first.
+     * @param frames the frames to write, in order
+     * @throws IOException if there is a problem accessing the connection
+     */
+    void writeFrames(List<Frame> frames) throws IOException;
+}
@@ -0,0 +1,248 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.rabbitmq.client3.AMQP;
+import com.rabbitmq.client3.MalformedFrameException;
+
+/**
+ * Basic content header properties which keep the header frame's payload
+ * and decode each property from it only when it is first asked for.
+ * <p/>
+ * On receipt only the property flags are read and the position of each
+ * present property found, which also checks the header is well formed;
+ * a delivery whose consumer never looks at, say, its headers table or
+ * timestamp never pays for decoding them. The headers table is a
+ * read-only {@link EncodedTable} over the payload, which decodes only the
+ * entries looked up; one which turns out to be malformed is reported with
+ * an {@link IllegalStateException} from its getter.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * This class is thread-safe.
+ */
+final class LazyBasicProperties extends AMQP.BasicProperties {
+    private static final int CLASS_ID = 60;
+
+    /** Offset of the property flags in the payload, after class id, weight and body size */
+    private static final int FLAGS_OFFSET = 12;
+
+    private static final int CONTENT_TYPE = 0;
+    private static final int CONTENT_ENCODING = 1;
+    private static final int HEADERS = 2;
+    private static final int DELIVERY_MODE = 3;
+    private static final int PRIORITY = 4;
+    private static final int CORRELATION_ID = 5;
+    private static final int REPLY_TO = 6;
+    private static final int EXPIRATION = 7;
+    private static final int MESSAGE_ID = 8;
+    private static final int TIMESTAMP = 9;
+    private static final int TYPE = 10;
+    private static final int USER_ID = 11;
+    private static final int APP_ID = 12;
+    private static final int CLUSTER_ID = 13;
+    private static final int PROPERTY_COUNT = 14;
+
+    /** The header frame's payload - never modified */
+    private final byte[] payload;
+    private final long bodySize;
+    /** Where each property starts in the payload, or -1 if it is absent */
+    private final int[] offsets = new int[PROPERTY_COUNT];
+
+    /** Properties decoded or set so far - guarded by this */
+    private Object[] values = new Object[PROPERTY_COUNT];
+    /** Bit i is set once values[i] holds property i - guarded by this */
+    private int decoded;
+
+    /**
+     * Private API - Read a content header from a header frame's payload,
+     * lazily if it is one of ours.
+     * @param payload the payload of a header frame
+     * @return the content header
+     * @throws IOException if the header is malformed
+     */
+    static AMQContentHeader readFrom(byte[] payload) throws IOException {
+        if (payload.length >= FLAGS_OFFSET + 2 && readShort(payload, 0) == CLASS_ID) {
+            return new LazyBasicProperties(payload);
+        }
+        return AMQImpl.readContentHeaderFrom(new DataInputStream(new ByteArrayInputStream(payload)));
+    }
+
+    private LazyBasicProperties(byte[] payload) throws IOException {
+        this.payload = payload;
+        this.bodySize = ((long) readInt(payload, 4) << 32) | (readInt(payload, 8) & 0xffffffffL);
+        int flags = readShort(payload, FLAGS_OFFSET);
+        if ((flags & 1) != 0) {
+            throw new MalformedFrameException("Unexpected continuation flag word");
+        }
+        int offset = FLAGS_OFFSET + 2;
+        for (int i = 0; i < PROPERTY_COUNT; i++) {
+            if ((flags & (1 << (15 - i))) == 0) {
+                this.offsets[i] = -1;
+            } else {
+                this.offsets[i] = offset;
+                offset += encodedLength(i, offset);
+            }
+        }
+        if (offset > payload.length) {
+            throw new MalformedFrameException("Content header properties overrun the frame");
+        }
+    }
+
+    /** @return the length of property i, found at offset in the payload */
+    private int encodedLength(int property, int offset) throws MalformedFrameException {
+        if (offset >= this.payload.length) {
+            throw new MalformedFrameException("Content header properties overrun the frame");
+        }
+        switch (property) {
+          case HEADERS:
+              if (offset + 4 > this.payload.length) {
+                  throw new MalformedFrameException("Content header properties overrun the frame");
+              }
+              int length = readInt(this.payload, offset);
+              if (length < 0) {
+                  throw new MalformedFrameException("Negative headers table length " + length);
+              }
+              if (length > this.payload.length - offset - 4) {
+                  throw new MalformedFrameException("Content header properties overrun the frame");
+              }
+              return 4 + length;
+          case DELIVERY_MODE:
+          case PRIORITY:
+              return 1;
+          case TIMESTAMP:
+              return 8;
+          default: // a short string
+              return 1 + (this.payload[offset] & 0xff);
+        }
+    }
+
+    private synchronized Object property(int property) {
+        if ((this.decoded & (1 << property)) == 0) {
+            this.values[property] = decode(property);
+            this.decoded |= 1 << property;
+        }
+        return this.values[property];
+    }
+
+    private synchronized void setProperty(int property, Object value) {
+        this.values[property] = value;
+        this.decoded |= 1 << property;
+    }
+
+    private Object decode(int property) {
+        int offset = this.offsets[property];
+        if (offset < 0) return null;
+        try {
+            if (property == HEADERS) {
+                return EncodedTable.wrap(this.payload, offset);
+            }
+            ValueReader reader = new ValueReader(new DataInputStream(
+                new ByteArrayInputStream(this.payload, offset, this.payload.length - offset)));
+            switch (property) {
+              case DELIVERY_MODE:
+              case PRIORITY:      return Integer.valueOf(reader.readOctet());
+              case TIMESTAMP:     return reader.readTimestamp();
+              default:            return reader.readShortstr();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Malformed content header property", e);
+        }
+    }
+
+    private static int readShort(byte[] b, int offset) {
+        return ((b[offset] & 0xff) << 8) | (b[offset + 1] & 0xff);
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16)
+             | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+    }
+
+    /** @return an eagerly decoded copy, for the operations which need every property */
+    private AMQP.BasicProperties decodeAll() {
+        return new AMQP.BasicProperties(getContentType(), getContentEncoding(), getHeaders(),
+                                        getDeliveryMode(), getPriority(), getCorrelationId(),
+                                        getReplyTo(), getExpiration(), getMessageId(),
+                                        getTimestamp(), getType(), getUserId(), getAppId(),
+                                        getClusterId());
+    }
+
+    @Override public long getBodySize() { return this.bodySize; }
+
+    @Override public Builder builder() {
+        return decodeAll().builder();
+    }
+
+    @Override public void writePropertiesTo(ContentHeaderPropertyWriter writer) throws IOException {
+        decodeAll().writePropertiesTo(writer);
+    }
+
+    @Override public void appendPropertyDebugStringTo(StringBuilder acc) {
+        decodeAll().appendPropertyDebugStringTo(acc);
+    }
+
+    @Override public Object clone() throws CloneNotSupportedException {
+        LazyBasicProperties clone = (LazyBasicProperties) super.clone();
+        synchronized (this) {
+            clone.values = this.values.clone();
+        }
+        return clone;
+    }
+
+    @Override public String getContentType() { return (String) property(CONTENT_TYPE); }
+    @Override public String getContentEncoding() { return (String) property(CONTENT_ENCODING); }
+    @SuppressWarnings("unchecked")
+    @Override public Map<String, Object> getHeaders() { return (Map<String, Object>) property(HEADERS); }
+    @Override public Integer getDeliveryMode() { return (Integer) property(DELIVERY_MODE); }
+    @Override public Integer getPriority() { return (Integer) property(PRIORITY); }
+    @Override public String getCorrelationId() { return (String) property(CORRELATION_ID); }
+    @Override public String getReplyTo() { return (String) property(REPLY_TO); }
+    @Override public String getExpiration() { return (String) property(EXPIRATION); }
+    @Override public String getMessageId() { return (String) property(MESSAGE_ID); }
+    @Override public Date getTimestamp() { return (Date) property(TIMESTAMP); }
+    @Override public String getType() { return (String) property(TYPE); }
+    @Override public String getUserId() { return (String) property(USER_ID); }
+    @Override public String getAppId() { return (String) property(APP_ID); }
+    @Override public String getClusterId() { return (String) property(CLUSTER_ID); }
+
+    @Deprecated @Override public void setContentType(String contentType) { setProperty(CONTENT_TYPE, contentType); }
+    @Deprecated @Override public void setContentEncoding(String contentEncoding) { setProperty(CONTENT_ENCODING, contentEncoding); }
+    @Deprecated @Override public void setHeaders(Map<String, Object> headers) {
+        setProperty(HEADERS, headers == null ? null
+                             : Collections.unmodifiableMap(new HashMap<String, Object>(headers)));
+    }
+    @Deprecated @Override public void setDeliveryMode(Integer deliveryMode) { setProperty(DELIVERY_MODE, deliveryMode); }
+    @Deprecated @Override public void setPriority(Integer priority) { setProperty(PRIORITY, priority); }
+    @Deprecated @Override public void setCorrelationId(String correlationId) { setProperty(CORRELATION_ID, correlationId); }
+    @Deprecated @Override public void setReplyTo(String replyTo) { setProperty(REPLY_TO, replyTo); }
+    @Deprecated @Override public void setExpiration(String expiration) { setProperty(EXPIRATION, expiration); }
+    @Deprecated @Override public void setMessageId(String messageId) { setProperty(MESSAGE_ID, messageId); }
+    @Deprecated @Override public void setTimestamp(Date timestamp) { setProperty(TIMESTAMP, timestamp); }
+    @Deprecated @Override public void setType(String type) { setProperty(TYPE, type); }
+    @Deprecated @Override public void setUserId(String userId) { setProperty(USER_ID, userId); }
+    @Deprecated @Override public void setAppId(String appId) { setProperty(APP_ID, appId); }
+    @Deprecated @Override public void setClusterId(String clusterId) { setProperty(CLUSTER_ID, clusterId); }
+}
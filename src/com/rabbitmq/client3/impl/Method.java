@@ -37,6 +37,17 @@ public abstract class Method implements com.rabbitmq.client3.Method {
     /** {@inheritDoc} */
     public abstract String protocolMethodName();
 
+    /**
+     * Private API - The class and method ids together, as
+     * <code>classId &lt;&lt; 16 | methodId</code>. Autogenerated method
+     * classes return their <code>ID</code> constant, so inbound commands
+     * can be dispatched with a switch on it.
+     * @return the combined protocol id of this method
+     */
+    public int protocolId() {
+        return (protocolClassId() << 16) | protocolMethodId();
+    }
+
     /**
      * Tell if content is present.
      * @return true if the wire-protocol for this method should involve a content header and body,
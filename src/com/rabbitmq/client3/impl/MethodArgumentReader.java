@@ -62,7 +62,7 @@ public class MethodArgumentReader
         throws IOException
     {
         clearBits();
-        return in.readShortstr();
+        return in.readCachedShortstr();
     }
 
     /** Public API - reads a long string argument. */
@@ -0,0 +1,471 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+package com.rabbitmq.client3.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLEngine;
+
+import com.rabbitmq.client3.AMQP;
+
+/**
+ * A frame handler over a non-blocking {@link SocketChannel}.
+ * <p/>
+ * Rather than the connection dedicating a thread to {@link #readFrame},
+ * inbound data is read by a shared {@link NioLoop} thread, which decodes
+ * every complete frame it receives and hands it to the connection's
+ * {@link FrameReceiver}. A caller which does read with {@link #readFrame}
+ * is handed frames the loop has queued for it. Writes happen on the calling thread, as with
+ * {@link SocketFrameHandler}; runs of frames are written with a single
+ * gathering write.
+ * <p/>
+ * Given an {@link SSLEngine}, the handler speaks TLS, encrypting and
+ * decrypting in the same buffers it would otherwise read and write
+ * directly; see {@link SslEngineChannel}. Only plain connections can send
+ * file contents without copying, see {@link #writeFileRegion}.
+ */
+public class NioFrameHandler implements GatheringFrameHandler, FileTransferFrameHandler {
+    /** Default initial size of the read buffer; it grows to fit the largest frame seen */
+    public static final int DEFAULT_READ_BUFFER_SIZE = 64 * 1024;
+
+    /** How long a blocked writer waits for the socket before re-checking it is open */
+    private static final long WRITE_WAIT_MILLIS = 1000;
+
+    /** The underlying channel, in non-blocking mode */
+    private final SocketChannel _channel;
+
+    /** The loop doing our reading */
+    private final NioLoop _loop;
+
+    /** Channel's outputstream - data to the broker - synchronized on */
+    private final DataOutputStream _outputStream;
+
+    /** TLS layer over _channel, or null for plain connections */
+    private final SslEngineChannel _ssl;
+
+    /** Selector used only to wait for the socket to become writable - guarded by _outputStream */
+    private Selector _writeSelector;
+
+    /** Whether to read frame payloads into arrays pooled by the loop */
+    private final boolean _pooledReadBuffers;
+
+    /** Inbound bytes not yet decoded into frames - only touched by the loop thread */
+    private final FrameReadBuffer _readBuffer;
+
+    /** Frames decoded but not yet delivered - only touched by the loop thread */
+    private final List<Frame> _decodedFrames = new ArrayList<Frame>();
+
+    /** Where to send inbound frames, once reading has started */
+    private volatile FrameReceiver _receiver;
+
+    /** Frames queued for {@link #readFrame}, once it has been called */
+    private QueueingReceiver _readQueue;
+
+    /** Read timeout in milliseconds, zero for none */
+    private volatile int _timeout = 0;
+
+    /** Time of the last inbound frame or timeout, from System.nanoTime() */
+    private volatile long _lastActivity;
+
+    private volatile boolean _closed = false;
+
+    /**
+     * @param channel a connected socket channel
+     * @param loop the loop to read on
+     * @param pooledReadBuffers whether to read frame payloads into pooled arrays
+     * @param readBufferSize initial size of the read buffer
+     * @see NioLoopGroup#newFrameHandler
+     */
+    NioFrameHandler(SocketChannel channel, NioLoop loop, boolean pooledReadBuffers, int readBufferSize)
+        throws IOException
+    {
+        this(channel, loop, null, pooledReadBuffers, readBufferSize);
+    }
+
+    /**
+     * @param channel a connected socket channel
+     * @param loop the loop to read on
+     * @param sslEngine client-mode engine to speak TLS with, whose
+     * handshake has not begun, or null for a plain connection; the
+     * handshake is run by {@link #handshake}
+     * @param pooledReadBuffers whether to read frame payloads into pooled arrays
+     * @param readBufferSize initial size of the read buffer
+     * @throws IOException if the channel cannot be made non-blocking
+     * @see NioLoopGroup#newFrameHandler
+     */
+    NioFrameHandler(SocketChannel channel, NioLoop loop, SSLEngine sslEngine,
+                    boolean pooledReadBuffers, int readBufferSize)
+        throws IOException
+    {
+        _channel = channel;
+        _loop = loop;
+        _pooledReadBuffers = pooledReadBuffers;
+        _channel.configureBlocking(false);
+        if (sslEngine == null) {
+            _ssl = null;
+        } else {
+            _ssl = new SslEngineChannel(channel, sslEngine);
+        }
+        _outputStream = new DataOutputStream(new BufferedOutputStream(new ChannelOutputStream()));
+        _readBuffer = new FrameReadBuffer(readBufferSize);
+        _lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Run the TLS handshake, if this handler speaks TLS; it must be done
+     * before anything is read or written. Never waits without a bound.
+     * @param timeoutMs longest time in milliseconds the handshake may take,
+     * or 0 for {@link AMQConnection#HANDSHAKE_TIMEOUT}
+     * @throws IOException if the handshake fails or times out
+     */
+    void handshake(int timeoutMs) throws IOException {
+        if (_ssl != null) {
+            _ssl.handshake((timeoutMs > 0) ? timeoutMs : AMQConnection.HANDSHAKE_TIMEOUT);
+        }
+    }
+
+    /**
+     * Private API - start delivering inbound frames to a receiver. Takes
+     * the place of a reader thread calling {@link #readFrame}.
+     * @param receiver where to deliver frames
+     * @throws IOException if the handler cannot be registered for reading
+     */
+    public void startReading(FrameReceiver receiver) throws IOException {
+        _receiver = receiver;
+        _lastActivity = System.nanoTime();
+        _loop.register(this);
+    }
+
+    /** @return true if called from the thread which delivers our inbound frames */
+    public boolean inReaderThread() {
+        return _loop.inLoop();
+    }
+
+    SocketChannel getChannel() {
+        return _channel;
+    }
+
+    public InetAddress getAddress() {
+        return _channel.socket().getInetAddress();
+    }
+
+    public int getPort() {
+        return _channel.socket().getPort();
+    }
+
+    public void setTimeout(int timeoutMs)
+        throws SocketException
+    {
+        _timeout = timeoutMs;
+        _loop.wakeup(); // so that a shorter timeout takes effect now
+    }
+
+    public int getTimeout()
+        throws SocketException
+    {
+        return _timeout;
+    }
+
+    public void sendHeader() throws IOException {
+        synchronized (_outputStream) {
+            _outputStream.write("AMQP".getBytes("US-ASCII"));
+            _outputStream.write(0);
+            _outputStream.write(AMQP.PROTOCOL.MAJOR);
+            _outputStream.write(AMQP.PROTOCOL.MINOR);
+            _outputStream.write(AMQP.PROTOCOL.REVISION);
+            _outputStream.flush();
+        }
+    }
+
+    /**
+     * Read a frame on the calling thread, as with a blocking frame
+     * handler. The first call starts the loop reading into a queue, which
+     * later calls take from; it cannot be mixed with {@link #startReading}.
+     * @return the next frame, or null if none arrived within the timeout,
+     * as with {@link SocketFrameHandler#readFrame}
+     * @throws IOException if reading stopped, or the handler is closed
+     * @throws IllegalStateException if frames are being delivered to a
+     * {@link FrameReceiver} given to {@link #startReading}
+     */
+    public Frame readFrame() throws IOException {
+        QueueingReceiver queue;
+        synchronized (this) {
+            if (_readQueue == null) {
+                if (_receiver != null) {
+                    throw new IllegalStateException("Frames are being delivered to a FrameReceiver");
+                }
+                _readQueue = new QueueingReceiver();
+                startReading(_readQueue);
+            }
+            queue = _readQueue;
+        }
+        Frame frame = queue.take(_timeout);
+        if (frame == null && isClosed()) {
+            throw new SocketException("Socket closed");
+        }
+        return frame;
+    }
+
+    public void writeFrame(Frame frame) throws IOException {
+        synchronized (_outputStream) {
+            frame.writeTo(_outputStream);
+        }
+    }
+
+    public void writeFrames(List<Frame> frames) throws IOException {
+        synchronized (_outputStream) {
+            _outputStream.flush();
+            ByteBuffer[] buffers = Frame.toByteBuffers(frames);
+            ByteBuffer last = buffers[buffers.length - 1];
+            while (last.hasRemaining()) {
+                if (channelWrite(buffers) == 0) {
+                    awaitWritable();
+                }
+            }
+            flushSsl();
+        }
+    }
+
+    public boolean canTransferFiles() {
+        return _ssl == null;
+    }
+
+    public void writeFileRegion(int channelNumber, FileChannel file, long position, int length)
+        throws IOException
+    {
+        synchronized (_outputStream) {
+            Frame.writeHeader(_outputStream, AMQP.FRAME_BODY, channelNumber, length);
+            _outputStream.flush();
+            long written = 0;
+            while (written < length) {
+                long n = file.transferTo(position + written, length - written, _channel);
+                if (n == 0) {
+                    if (position + written >= file.size()) {
+                        throw new EOFException("File ended before the end of the body");
+                    }
+                    awaitWritable();
+                }
+                written += n;
+            }
+            _outputStream.write(AMQP.FRAME_END);
+        }
+    }
+
+    public void flush() throws IOException {
+        synchronized (_outputStream) {
+            _outputStream.flush();
+        }
+    }
+
+    public void close() {
+        try { flush();                                    } catch (Exception _) {}
+        _closed = true;
+        if (_ssl != null) {
+            _ssl.close();
+        }
+        try { _channel.close();                           } catch (Exception _) {}
+        synchronized (_outputStream) {
+            if (_writeSelector != null) {
+                try { _writeSelector.close();             } catch (Exception _) {}
+                _writeSelector = null;
+            }
+        }
+        _loop.wakeup(); // so that the loop notices and tells the receiver
+    }
+
+    boolean isClosed() {
+        return _closed || !_channel.isOpen();
+    }
+
+    /** The exception a blocked reader would have seen had the socket been closed under it. */
+    Throwable closedException() {
+        return new SocketException("Socket closed");
+    }
+
+    /**
+     * Called on the loop thread when the channel is readable: reads what is
+     * available and delivers every complete frame.
+     * @return false if the receiver has finished and reading should stop
+     */
+    boolean readAvailable() throws IOException {
+        do {
+            ByteBuffer buffer = _readBuffer.writable();
+            int n = (_ssl == null) ? _channel.read(buffer) : _ssl.read(buffer);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            BufferArena arena = _pooledReadBuffers ? _loop.arena() : null;
+            try {
+                if (_readBuffer.decode(_decodedFrames, arena) > 0) {
+                    _lastActivity = System.nanoTime();
+                }
+                for (Frame frame : _decodedFrames) {
+                    if (!_receiver.isRunning()) break;
+                    _receiver.handleFrame(frame);
+                }
+            } finally {
+                _decodedFrames.clear();
+            }
+            // Input the TLS layer has already taken off the socket will not make it readable again
+        } while (_ssl != null && _ssl.hasBufferedInput() && _receiver.isRunning());
+        return _receiver.isRunning();
+    }
+
+    /** @return nanoseconds until the read timeout expires, or Long.MAX_VALUE if there is none */
+    long nanosUntilTimeout(long now) {
+        int timeout = _timeout;
+        if (timeout <= 0) return Long.MAX_VALUE;
+        return Math.max(0, _lastActivity + TimeUnit.MILLISECONDS.toNanos(timeout) - now);
+    }
+
+    /** Called on the loop thread to report an expired read timeout to the receiver. */
+    void checkTimeout(long now) throws IOException {
+        if (nanosUntilTimeout(now) == 0) {
+            _lastActivity = now;
+            _receiver.handleTimeout();
+        }
+    }
+
+    /** Called on the loop thread, once, when reading stops. */
+    void terminate(Throwable cause) {
+        FrameReceiver receiver = _receiver;
+        if (receiver != null) {
+            receiver.handleTermination(cause);
+        }
+    }
+
+    /** Writes what the socket will take without blocking - called with _outputStream held */
+    private long channelWrite(ByteBuffer[] buffers) throws IOException {
+        return (_ssl == null) ? _channel.write(buffers) : _ssl.write(buffers);
+    }
+
+    /** Writes any encrypted records left over by earlier writes - called with _outputStream held */
+    private void flushSsl() throws IOException {
+        if (_ssl != null) {
+            while (!_ssl.flush()) {
+                awaitWritable();
+            }
+        }
+    }
+
+    /** Waits for the socket to become writable - called with _outputStream held */
+    private void awaitWritable() throws IOException {
+        if (!_channel.isOpen()) {
+            throw new SocketException("Socket closed");
+        }
+        if (_writeSelector == null) {
+            _writeSelector = Selector.open();
+            _channel.register(_writeSelector, SelectionKey.OP_WRITE);
+        }
+        if (_writeSelector.select(WRITE_WAIT_MILLIS) > 0) {
+            _writeSelector.selectedKeys().clear();
+        } else if (!_channel.isOpen()) {
+            throw new SocketTimeoutException("Socket closed while waiting to write");
+        }
+    }
+
+    /**
+     * Queues frames from the loop thread for {@link #readFrame}. Read
+     * timeouts are left to the reading thread.
+     */
+    private static final class QueueingReceiver implements FrameReceiver {
+        /** Frames, then the Throwable which stopped reading, if any */
+        private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+
+        public boolean isRunning() {
+            return true;
+        }
+
+        public void handleFrame(Frame frame) {
+            this.queue.add(frame);
+        }
+
+        public void handleTimeout() {
+        }
+
+        public void handleTermination(Throwable cause) {
+            this.queue.add((cause == null) ? new EOFException() : cause);
+        }
+
+        /** @return the next frame, or null if none arrived in time */
+        Frame take(int timeoutMs) throws IOException {
+            Object item;
+            try {
+                item = (timeoutMs > 0) ? this.queue.poll(timeoutMs, TimeUnit.MILLISECONDS)
+                                       : this.queue.take();
+            } catch (InterruptedException _) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted awaiting a frame");
+            }
+            if (item == null) {
+                return null;
+            }
+            if (item instanceof Frame) {
+                return (Frame) item;
+            }
+            // leave the termination for any later reader
+            this.queue.add(item);
+            if (item instanceof IOException) {
+                throw (IOException) item;
+            }
+            IOException ioe = new IOException("Reading stopped");
+            ioe.initCause((Throwable) item);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Writes to the non-blocking channel, waiting on a private selector
+     * whenever the socket send buffer is full.
+     */
+    private final class ChannelOutputStream extends OutputStream {
+        @Override public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer[] buffers = new ByteBuffer[] { ByteBuffer.wrap(b, off, len) };
+            while (buffers[0].hasRemaining()) {
+                if (channelWrite(buffers) == 0) {
+                    awaitWritable();
+                }
+            }
+        }
+
+        @Override public void flush() throws IOException {
+            flushSsl();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+package com.rabbitmq.client3.impl;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single selector thread, reading and dispatching inbound frames for
+ * every {@link NioFrameHandler} registered with it.
+ * <p/>
+ * Frames are handed to each connection's {@link FrameReceiver} on this
+ * thread, so a receiver which blocks holds up every other connection on
+ * the same loop.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * {@link #register} and {@link #wakeup} may be called from any thread;
+ * everything else happens on the loop thread.
+ */
+final class NioLoop implements Runnable {
+    private final String name;
+
+    /** Handlers waiting to be registered with the selector */
+    private final Queue<NioFrameHandler> registrations = new ConcurrentLinkedQueue<NioFrameHandler>();
+
+    /** Handlers currently registered - only touched by the loop thread */
+    private final Set<NioFrameHandler> handlers = new HashSet<NioFrameHandler>();
+
+    /** The loop thread, or null if not running - guarded by this */
+    private volatile Thread thread;
+    /** The selector used by the loop thread - guarded by this */
+    private Selector selector;
+
+    /** Pool of inbound payload arrays, shared by the handlers on this loop */
+    private final BufferArena arena = new BufferArena();
+
+    NioLoop(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Start reading for a handler, starting the loop thread if necessary.
+     * @param handler the handler to read for
+     * @throws IOException if a selector cannot be opened
+     */
+    void register(NioFrameHandler handler) throws IOException {
+        this.registrations.add(handler);
+        synchronized (this) {
+            if (this.thread == null) {
+                this.selector = Selector.open();
+                Thread t = new Thread(this, this.name);
+                t.setDaemon(true);
+                this.thread = t;
+                t.start();
+            } else {
+                this.selector.wakeup();
+            }
+        }
+    }
+
+    /** Wake the loop thread, so it re-examines timeouts and closed handlers. */
+    void wakeup() {
+        synchronized (this) {
+            if (this.selector != null) {
+                this.selector.wakeup();
+            }
+        }
+    }
+
+    /** @return the arena which handlers on this loop read payloads into */
+    BufferArena arena() {
+        return this.arena;
+    }
+
+    /** @return true if called from this loop's thread */
+    boolean inLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    public void run() {
+        Selector sel;
+        synchronized (this) {
+            sel = this.selector;
+        }
+        try {
+            while (true) {
+                registerPending(sel);
+                if (this.handlers.isEmpty()) {
+                    synchronized (this) {
+                        if (this.registrations.isEmpty()) {
+                            this.thread = null;
+                            this.selector = null;
+                            return;
+                        }
+                    }
+                    continue;
+                }
+                sel.select(nextTimeoutMillis());
+                processSelectedKeys(sel);
+                processClosedAndTimedOut(sel);
+            }
+        } catch (Throwable t) {
+            // The selector itself has failed: nothing more can be read on this loop
+            synchronized (this) {
+                this.thread = null;
+                this.selector = null;
+            }
+            for (NioFrameHandler handler : new ArrayList<NioFrameHandler>(this.handlers)) {
+                terminate(sel, handler, t);
+            }
+            NioFrameHandler pending;
+            while ((pending = this.registrations.poll()) != null) {
+                pending.terminate(t);
+            }
+        } finally {
+            try { sel.close(); } catch (IOException _) { /* ignore */ }
+        }
+    }
+
+    private void registerPending(Selector sel) {
+        NioFrameHandler handler;
+        while ((handler = this.registrations.poll()) != null) {
+            try {
+                handler.getChannel().register(sel, SelectionKey.OP_READ, handler);
+                this.handlers.add(handler);
+            } catch (ClosedChannelException cce) {
+                handler.terminate(cce);
+            }
+        }
+    }
+
+    private void processSelectedKeys(Selector sel) {
+        Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            NioFrameHandler handler = (NioFrameHandler) key.attachment();
+            if (!key.isValid()) {
+                continue; // picked up by processClosedAndTimedOut
+            }
+            try {
+                if (!handler.readAvailable()) {
+                    terminate(sel, handler, null);
+                }
+            } catch (Throwable t) {
+                terminate(sel, handler, t);
+            }
+        }
+    }
+
+    private void processClosedAndTimedOut(Selector sel) {
+        long now = System.nanoTime();
+        List<NioFrameHandler> snapshot = new ArrayList<NioFrameHandler>(this.handlers);
+        for (NioFrameHandler handler : snapshot) {
+            if (handler.isClosed()) {
+                terminate(sel, handler, handler.closedException());
+                continue;
+            }
+            try {
+                handler.checkTimeout(now);
+            } catch (Throwable t) {
+                terminate(sel, handler, t);
+            }
+        }
+    }
+
+    /** @return milliseconds until the earliest read timeout, or 0 for none */
+    private long nextTimeoutMillis() {
+        long now = System.nanoTime();
+        long earliest = Long.MAX_VALUE;
+        for (NioFrameHandler handler : this.handlers) {
+            long remaining = handler.nanosUntilTimeout(now);
+            if (remaining < earliest) earliest = remaining;
+        }
+        if (earliest == Long.MAX_VALUE) return 0;
+        // select(0) means forever, so never ask for less than a millisecond
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(earliest));
+    }
+
+    private void terminate(Selector sel, NioFrameHandler handler, Throwable cause) {
+        if (this.handlers.remove(handler)) {
+            SelectionKey key = handler.getChannel().keyFor(sel);
+            if (key != null) key.cancel();
+            handler.terminate(cause);
+        }
+    }
+}
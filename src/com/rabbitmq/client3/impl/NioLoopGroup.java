@@ -0,0 +1,122 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+package com.rabbitmq.client3.impl;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLEngine;
+
+/**
+ * A fixed set of selector threads shared by the {@link NioFrameHandler}s
+ * of many connections. Handlers are spread over the threads round-robin.
+ * <p/>
+ * Threads are only started when the first handler is registered with
+ * them, and exit again once all their handlers are closed, so an unused
+ * group holds no resources.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * This class is thread-safe.
+ */
+public final class NioLoopGroup {
+    private static final AtomicInteger groupCount = new AtomicInteger();
+
+    private final NioLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * @param numThreads number of selector threads, at least one
+     */
+    public NioLoopGroup(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("NIO thread count must be positive: " + numThreads);
+        }
+        int group = groupCount.incrementAndGet();
+        this.loops = new NioLoop[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            this.loops[i] = new NioLoop("AMQP NIO Loop " + group + "-" + (i + 1));
+        }
+    }
+
+    /** @return the number of selector threads in this group */
+    public int size() {
+        return this.loops.length;
+    }
+
+    /**
+     * Private API - Create a frame handler for a connected socket channel,
+     * reading on the next of this group's threads.
+     * @param channel a connected socket channel
+     * @return a handler which has not yet started reading
+     * @throws IOException if the channel cannot be made non-blocking
+     */
+    public NioFrameHandler newFrameHandler(SocketChannel channel) throws IOException {
+        return newFrameHandler(channel, false, NioFrameHandler.DEFAULT_READ_BUFFER_SIZE);
+    }
+
+    /**
+     * Private API - Create a frame handler for a connected socket channel,
+     * reading on the next of this group's threads.
+     * @param channel a connected socket channel
+     * @param pooledReadBuffers whether to read frame payloads into arrays
+     * pooled by the reading thread
+     * @param readBufferSize initial size of the handler's read buffer
+     * @return a handler which has not yet started reading
+     * @throws IOException if the channel cannot be made non-blocking
+     */
+    public NioFrameHandler newFrameHandler(SocketChannel channel, boolean pooledReadBuffers,
+                                           int readBufferSize)
+        throws IOException
+    {
+        return newFrameHandler(channel, null, 0, pooledReadBuffers, readBufferSize);
+    }
+
+    /**
+     * Private API - Create a frame handler for a connected socket channel,
+     * reading on the next of this group's threads, and speaking TLS if
+     * given an engine. The TLS handshake is done before returning, on the
+     * calling thread, and is bounded by the timeout.
+     * @param channel a connected socket channel
+     * @param sslEngine client-mode engine whose handshake has not begun,
+     * or null for a plain connection
+     * @param handshakeTimeout longest time in milliseconds to spend on the
+     * TLS handshake, or 0 for {@link AMQConnection#HANDSHAKE_TIMEOUT}
+     * @param pooledReadBuffers whether to read frame payloads into arrays
+     * pooled by the reading thread
+     * @param readBufferSize initial size of the handler's read buffer
+     * @return a handler which has not yet started reading
+     * @throws IOException if the channel cannot be made non-blocking, or
+     * the TLS handshake fails
+     */
+    public NioFrameHandler newFrameHandler(SocketChannel channel, SSLEngine sslEngine,
+                                           int handshakeTimeout, boolean pooledReadBuffers,
+                                           int readBufferSize)
+        throws IOException
+    {
+        NioFrameHandler handler = new NioFrameHandler(channel, next(), sslEngine,
+                                                      pooledReadBuffers, readBufferSize);
+        handler.handshake(handshakeTimeout);
+        return handler;
+    }
+
+    /** @return the loop to use for the next new connection */
+    NioLoop next() {
+        int index = (this.nextLoop.getAndIncrement() & Integer.MAX_VALUE) % this.loops.length;
+        return this.loops[index];
+    }
+}
@@ -0,0 +1,121 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.impl;
+
+import java.io.IOException;
+
+import com.rabbitmq.client3.AMQP;
+import com.rabbitmq.client3.AMQP.BasicProperties;
+import com.rabbitmq.client3.PublishTemplate;
+import com.rabbitmq.client3.impl.AMQImpl.MethodVisitor;
+
+/**
+ * Implementation of {@link PublishTemplate}: holds the method and content
+ * header frame payloads, encoded once, and sends every message through
+ * {@link ChannelN} with them.
+ * <p/>
+ * The method payload is shared by every frame made from it, since frames
+ * never change their payloads; the header payload is copied per message
+ * with the body size patched in.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * This class is immutable.
+ */
+final class PublishTemplateImpl implements PublishTemplate {
+    /** Offset of the body size in a content header payload: after class id and weight */
+    private static final int BODY_SIZE_OFFSET = 4;
+
+    private final ChannelN channel;
+    private final EncodedMethod method;
+    private final EncodedHeader header;
+
+    PublishTemplateImpl(ChannelN channel, Method publish, BasicProperties props)
+        throws IOException
+    {
+        this.channel = channel;
+        this.method = new EncodedMethod(publish, publish.toFrame(0).getPayload());
+        this.header = new EncodedHeader(props, props.toFrame(0, 0).getPayload());
+    }
+
+    public void publish(byte[] body) throws IOException {
+        this.channel.publish(this.method, this.header, body);
+    }
+
+    /** A method which writes its arguments from a cached encoding. */
+    static final class EncodedMethod extends Method {
+        private final Method delegate;
+        private final byte[] payload;
+
+        EncodedMethod(Method delegate, byte[] payload) {
+            this.delegate = delegate;
+            this.payload = payload;
+        }
+
+        public int protocolClassId() { return this.delegate.protocolClassId(); }
+        public int protocolMethodId() { return this.delegate.protocolMethodId(); }
+        public String protocolMethodName() { return this.delegate.protocolMethodName(); }
+        public boolean hasContent() { return this.delegate.hasContent(); }
+
+        public Object visit(MethodVisitor visitor) throws IOException {
+            return this.delegate.visit(visitor);
+        }
+
+        public void writeArgumentsTo(MethodArgumentWriter writer) throws IOException {
+            this.delegate.writeArgumentsTo(writer);
+        }
+
+        @Override public void appendArgumentDebugStringTo(StringBuilder buffer) {
+            this.delegate.appendArgumentDebugStringTo(buffer);
+        }
+
+        @Override public Frame toFrame(int channelNumber) {
+            return new Frame(AMQP.FRAME_METHOD, channelNumber, this.payload);
+        }
+    }
+
+    /** A content header which copies a cached encoding, patching only the body size. */
+    static final class EncodedHeader extends AMQContentHeader {
+        private final BasicProperties delegate;
+        private final byte[] payload;
+
+        EncodedHeader(BasicProperties delegate, byte[] payload) {
+            this.delegate = delegate;
+            this.payload = payload;
+        }
+
+        public int getClassId() { return this.delegate.getClassId(); }
+        public String getClassName() { return this.delegate.getClassName(); }
+
+        public void writePropertiesTo(ContentHeaderPropertyWriter writer) throws IOException {
+            this.delegate.writePropertiesTo(writer);
+        }
+
+        @Override public void appendPropertyDebugStringTo(StringBuilder acc) {
+            this.delegate.appendPropertyDebugStringTo(acc);
+        }
+
+        @Override public Frame toFrame(int channelNumber, long bodySize) {
+            byte[] patched = this.payload.clone();
+            for (int i = 7; i >= 0; i--) {
+                patched[BODY_SIZE_OFFSET + i] = (byte) bodySize;
+                bodySize >>>= 8;
+            }
+            return new Frame(AMQP.FRAME_HEADER, channelNumber, patched);
+        }
+    }
+}
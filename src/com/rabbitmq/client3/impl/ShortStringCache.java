@@ -0,0 +1,212 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.impl;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.rabbitmq.client3.Connection;
+import com.rabbitmq.client3.ConnectionFactory;
+import com.rabbitmq.client3.ShortStringCacheStatistics;
+
+/**
+ * A bounded cache of decoded AMQP short strings, one for each connection.
+ * <p/>
+ * Deliveries repeat the same few exchange names, routing keys and
+ * consumer tags over and over. Rather than allocating a new array and a
+ * new String for each, {@link ValueReader#readCachedShortstr} reads a
+ * short string's bytes into a per-thread scratch array and looks them up
+ * here: the cache is a hash-indexed array of two-entry sets, each entry
+ * keeping the bytes it was decoded from, so a repeated string is found by
+ * comparing bytes and the String already made for it returned. A string
+ * that misses goes first in its set, moving the entry there second and
+ * dropping the one that was second; two hot strings which share a set
+ * therefore both stay cached.
+ * <p/>
+ * Only fields which take few distinct values are looked up - method
+ * arguments and field table keys. Properties such as message and
+ * correlation ids, which are usually unique, would only evict the
+ * entries worth keeping, so are decoded afresh.
+ * <p/>
+ * Each connection has its own cache, sized by
+ * {@link ConnectionFactory#setShortStringCacheCapacity} and reported by
+ * {@link Connection#getShortStringCacheStatistics}.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * This class is thread-safe. Lookups take no locks: entries are
+ * immutable, so a thread may miss an entry another has just added, but
+ * never sees a half-made one. Hits and misses are counted by each thread
+ * in counters of its own, which the statistics add up, so lookups on
+ * different threads never write to the same counter.
+ */
+public final class ShortStringCache implements ShortStringCacheStatistics {
+    /** Default number of entries */
+    public static final int DEFAULT_CAPACITY = 256;
+    /** Largest number of entries allowed */
+    public static final int MAX_CAPACITY = 1 << 16;
+
+    private volatile Entry[] entries;
+
+    /** The counters of every thread which has looked up a string */
+    private final List<Lookups> allLookups = new CopyOnWriteArrayList<Lookups>();
+
+    private final ThreadLocal<Lookups> lookups = new ThreadLocal<Lookups>() {
+        @Override protected Lookups initialValue() {
+            Lookups threadLookups = new Lookups();
+            allLookups.add(threadLookups);
+            return threadLookups;
+        }
+    };
+
+    /**
+     * Private API - Construct a cache.
+     * @param capacity number of entries, as for {@link #setCapacity}
+     */
+    public ShortStringCache(int capacity) {
+        this.entries = new Entry[size(capacity)];
+    }
+
+    /**
+     * Private API - Set the number of entries in the cache, discarding
+     * its contents if the number changes.
+     * @param capacity number of entries, rounded up to a power of two
+     * and at most {@link #MAX_CAPACITY}, or 0 to stop caching
+     */
+    public void setCapacity(int capacity) {
+        int size = size(capacity);
+        if (size != this.entries.length) {
+            this.entries = new Entry[size];
+        }
+    }
+
+    private static int size(int capacity) {
+        if (capacity < 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Short string cache capacity out of range: " + capacity);
+        }
+        return (capacity <= 1) ? capacity : Integer.highestOneBit(capacity - 1) << 1;
+    }
+
+    /** Public API - {@inheritDoc} */
+    public int getCapacity() {
+        return this.entries.length;
+    }
+
+    /** Public API - {@inheritDoc} */
+    public long getHits() {
+        long total = 0;
+        for (Lookups threadLookups : this.allLookups) {
+            total += threadLookups.hits;
+        }
+        return total;
+    }
+
+    /** Public API - {@inheritDoc} */
+    public long getMisses() {
+        long total = 0;
+        for (Lookups threadLookups : this.allLookups) {
+            total += threadLookups.misses;
+        }
+        return total;
+    }
+
+    /** Public API - {@inheritDoc} */
+    public double getHitRatio() {
+        long h = getHits();
+        long total = h + getMisses();
+        return (total == 0) ? 0 : (double) h / total;
+    }
+
+    /**
+     * Private API - Read a short string from a stream, returning a cached
+     * String for it if there is one.
+     * @param in stream positioned at the string's length octet
+     * @return the string
+     * @throws IOException if the stream cannot be read
+     */
+    String read(DataInputStream in) throws IOException {
+        int length = in.readUnsignedByte();
+        Lookups threadLookups = this.lookups.get();
+        byte[] bytes = threadLookups.scratch;
+        in.readFully(bytes, 0, length);
+        Entry[] table = this.entries;
+        if (table.length == 0) {
+            return new String(bytes, 0, length, "utf-8");
+        }
+        int hash = hash(bytes, length);
+        int index = hash & (table.length - 1) & ~1;
+        Entry first = table[index];
+        if (first != null && first.hash == hash && first.matches(bytes, length)) {
+            threadLookups.hits++;
+            return first.value;
+        }
+        boolean twoWay = table.length > 1;
+        if (twoWay) {
+            Entry second = table[index + 1];
+            if (second != null && second.hash == hash && second.matches(bytes, length)) {
+                threadLookups.hits++;
+                return second.value;
+            }
+        }
+        byte[] key = new byte[length];
+        System.arraycopy(bytes, 0, key, 0, length);
+        String value = new String(key, "utf-8");
+        if (twoWay) {
+            table[index + 1] = first;
+        }
+        table[index] = new Entry(hash, key, value);
+        threadLookups.misses++;
+        return value;
+    }
+
+    private static int hash(byte[] bytes, int length) {
+        int h = length;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + bytes[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /** One thread's scratch array and counts, written only by that thread */
+    private static final class Lookups {
+        final byte[] scratch = new byte[255];
+        volatile long hits;
+        volatile long misses;
+    }
+
+    private static final class Entry {
+        final int hash;
+        final byte[] key;
+        final String value;
+
+        Entry(int hash, byte[] key, String value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+
+        boolean matches(byte[] bytes, int length) {
+            if (this.key.length != length) return false;
+            for (int i = 0; i < length; i++) {
+                if (this.key[i] != bytes[i]) return false;
+            }
+            return true;
+        }
+    }
+}
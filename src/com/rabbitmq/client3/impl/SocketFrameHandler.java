@@ -20,18 +20,32 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.rabbitmq.client3.AMQP;
 
 /**
- * A socket-based frame handler.
+ * A socket-based frame handler. If the socket has a channel (that is, it
+ * was created by {@link SocketChannel#open}), runs of frames are written
+ * with a single gathering write, and file contents are sent without
+ * copying, see {@link #writeFileRegion}.
+ * <p/>
+ * Given a read buffer, the handler reads ahead: it reads as much as the
+ * socket has available, up to the buffer size, and decodes every
+ * complete frame in it at once, see {@link #readFrames}.
  */
 
-public class SocketFrameHandler implements FrameHandler {
+public class SocketFrameHandler implements GatheringFrameHandler, FileTransferFrameHandler {
     /** The underlying socket */
     private final Socket _socket;
 
@@ -41,6 +55,15 @@ public class SocketFrameHandler implements FrameHandler {
     /** Socket's outputstream - data to the broker - synchronized on */
     private final DataOutputStream _outputStream;
 
+    /** Pool of inbound payload arrays, or null to allocate every one */
+    private final BufferArena _arena;
+
+    /** Inbound bytes not yet decoded into frames, or null to read frame by frame */
+    private final FrameReadBuffer _readBuffer;
+
+    /** Frames read ahead but not yet returned by readFrame - guarded by _inputStream */
+    private final List<Frame> _readAhead = new ArrayList<Frame>();
+
     /** Time to linger before closing the socket forcefully. */
     public static final int SOCKET_CLOSING_TIMEOUT = 1;
 
@@ -48,7 +71,29 @@ public class SocketFrameHandler implements FrameHandler {
      * @param socket the socket to use
      */
     public SocketFrameHandler(Socket socket) throws IOException {
+        this(socket, false);
+    }
+
+    /**
+     * @param socket the socket to use
+     * @param pooledReadBuffers whether to read frame payloads into pooled arrays
+     */
+    public SocketFrameHandler(Socket socket, boolean pooledReadBuffers) throws IOException {
+        this(socket, pooledReadBuffers, 0);
+    }
+
+    /**
+     * @param socket the socket to use
+     * @param pooledReadBuffers whether to read frame payloads into pooled arrays
+     * @param readBufferSize size of the read-ahead buffer, or zero to read
+     * one frame at a time
+     */
+    public SocketFrameHandler(Socket socket, boolean pooledReadBuffers, int readBufferSize)
+        throws IOException
+    {
         _socket = socket;
+        _arena = pooledReadBuffers ? new BufferArena() : null;
+        _readBuffer = (readBufferSize > 0) ? new FrameReadBuffer(readBufferSize) : null;
 
         _inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
         _outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
@@ -128,7 +173,61 @@ public class SocketFrameHandler implements FrameHandler {
 
     public Frame readFrame() throws IOException {
         synchronized (_inputStream) {
-            return Frame.readFrom(_inputStream);
+            if (_readBuffer == null) {
+                return Frame.readFrom(_inputStream, _arena);
+            }
+            if (_readAhead.isEmpty() && readFrames(_readAhead) == 0) {
+                return null;
+            }
+            return _readAhead.remove(0);
+        }
+    }
+
+    /** @return true if this handler reads ahead, so {@link #readFrames} is worthwhile */
+    public boolean isReadingAhead() {
+        return _readBuffer != null;
+    }
+
+    /**
+     * Read at least one frame, and whatever further frames are already
+     * available, up to the size of the read buffer. Returns none if the
+     * socket timeout expires first.
+     * @param frames list to add the frames read to
+     * @return the number of frames read
+     * @throws IOException if there is a problem accessing the connection
+     */
+    public int readFrames(List<Frame> frames) throws IOException {
+        synchronized (_inputStream) {
+            if (_readBuffer == null) {
+                Frame frame = Frame.readFrom(_inputStream, _arena);
+                if (frame == null) return 0;
+                frames.add(frame);
+                return 1;
+            }
+            if (!_readAhead.isEmpty()) {
+                int count = _readAhead.size();
+                frames.addAll(_readAhead);
+                _readAhead.clear();
+                return count;
+            }
+            int count;
+            do {
+                ByteBuffer buffer = _readBuffer.writable();
+                int read;
+                try {
+                    read = _inputStream.read(buffer.array(),
+                                             buffer.arrayOffset() + buffer.position(),
+                                             buffer.remaining());
+                } catch (SocketTimeoutException ste) {
+                    return 0;
+                }
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                buffer.position(buffer.position() + read);
+                count = _readBuffer.decode(frames, _arena);
+            } while (count == 0);
+            return count;
         }
     }
 
@@ -138,6 +237,47 @@ public class SocketFrameHandler implements FrameHandler {
         }
     }
 
+    public void writeFrames(List<Frame> frames) throws IOException {
+        synchronized (_outputStream) {
+            SocketChannel channel = _socket.getChannel();
+            if (channel == null) {
+                for (Frame frame : frames) {
+                    frame.writeTo(_outputStream);
+                }
+            } else {
+                _outputStream.flush();
+                ByteBuffer[] buffers = Frame.toByteBuffers(frames);
+                ByteBuffer last = buffers[buffers.length - 1];
+                while (last.hasRemaining()) {
+                    channel.write(buffers);
+                }
+            }
+        }
+    }
+
+    public boolean canTransferFiles() {
+        return _socket.getChannel() != null;
+    }
+
+    public void writeFileRegion(int channelNumber, FileChannel file, long position, int length)
+        throws IOException
+    {
+        synchronized (_outputStream) {
+            SocketChannel channel = _socket.getChannel();
+            Frame.writeHeader(_outputStream, AMQP.FRAME_BODY, channelNumber, length);
+            _outputStream.flush();
+            long written = 0;
+            while (written < length) {
+                long n = file.transferTo(position + written, length - written, channel);
+                if (n == 0 && position + written >= file.size()) {
+                    throw new EOFException("File ended before the end of the body");
+                }
+                written += n;
+            }
+            _outputStream.write(AMQP.FRAME_END);
+        }
+    }
+
     public void flush() throws IOException {
         _outputStream.flush();
     }
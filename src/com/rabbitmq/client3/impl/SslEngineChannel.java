@@ -0,0 +1,380 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * TLS over a non-blocking {@link SocketChannel}, using an {@link SSLEngine}
+ * to encrypt and decrypt {@link ByteBuffer}s in place of an SSLSocket's
+ * streams.
+ * <p/>
+ * Reads fetch as many records as the socket has ready with a single read
+ * and decrypt them all straight into the caller's buffer. Writes encrypt
+ * the caller's buffers into as many records as fit in the outbound buffer
+ * before writing them to the socket together.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * Reads must come from a single thread at a time, as must writes; a read
+ * and a write may run concurrently.
+ */
+final class SslEngineChannel {
+    /** Records buffered in each direction, so that several go in each socket read or write */
+    private static final int RECORDS_PER_BUFFER = 4;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+
+    /** Encrypted bytes read from the socket and not yet decrypted; in write mode - reader only */
+    private ByteBuffer netIn;
+    /** Decrypted bytes which did not fit the caller's buffer; in read mode - reader only */
+    private ByteBuffer appIn;
+    /** True if input is buffered here which the socket will not signal - reader only */
+    private boolean inputBuffered;
+
+    /** Encrypted bytes not yet written to the socket; in read mode - guarded by writeLock */
+    private ByteBuffer netOut;
+    private final Object writeLock = new Object();
+
+    /**
+     * @param channel a connected socket channel, in non-blocking mode
+     * @param engine an engine whose handshake has not begun; in client mode
+     * when talking to a broker
+     */
+    SslEngineChannel(SocketChannel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        this.netIn = ByteBuffer.allocate(packetSize * RECORDS_PER_BUFFER);
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        this.appIn.flip();
+        this.netOut = ByteBuffer.allocate(packetSize * RECORDS_PER_BUFFER);
+        this.netOut.flip();
+    }
+
+    /**
+     * Run the TLS handshake to completion, waiting for the socket as needed.
+     * @param timeoutMs longest time in milliseconds the whole handshake may take
+     * @throws IOException if the handshake fails or times out
+     */
+    void handshake(int timeoutMs) throws IOException {
+        if (timeoutMs <= 0) throw new IllegalArgumentException("timeoutMs must be positive");
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        Selector selector = Selector.open();
+        try {
+            SelectionKey key = this.channel.register(selector, 0);
+            this.engine.beginHandshake();
+            HandshakeStatus status = this.engine.getHandshakeStatus();
+            while (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING) {
+                switch (status) {
+                  case NEED_TASK:
+                      runDelegatedTasks();
+                      status = this.engine.getHandshakeStatus();
+                      break;
+                  case NEED_WRAP:
+                      synchronized (this.writeLock) {
+                          status = wrap(new ByteBuffer[] { EMPTY }).getHandshakeStatus();
+                          while (!flush()) {
+                              await(selector, key, SelectionKey.OP_WRITE, deadline);
+                          }
+                      }
+                      break;
+                  default: // NEED_UNWRAP, or from Java 9 NEED_UNWRAP_AGAIN
+                      status = handshakeUnwrap(selector, key, deadline);
+                      break;
+                }
+            }
+        } finally {
+            selector.close();
+        }
+    }
+
+    private HandshakeStatus handshakeUnwrap(Selector selector, SelectionKey key, long deadline)
+        throws IOException
+    {
+        while (true) {
+            this.netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = this.engine.unwrap(this.netIn, this.appIn.compact());
+            } finally {
+                this.appIn.flip();
+                this.netIn.compact();
+            }
+            switch (result.getStatus()) {
+              case OK:
+                  return result.getHandshakeStatus();
+              case BUFFER_UNDERFLOW:
+                  growNetIn();
+                  int n = this.channel.read(this.netIn);
+                  if (n < 0) throw new EOFException("Connection closed during TLS handshake");
+                  if (n == 0) await(selector, key, SelectionKey.OP_READ, deadline);
+                  break;
+              case BUFFER_OVERFLOW:
+                  this.appIn = grow(this.appIn, this.engine.getSession().getApplicationBufferSize());
+                  break;
+              default:
+                  throw new SSLException("TLS engine closed during handshake");
+            }
+        }
+    }
+
+    /** Waits for the socket to be ready for ops, until the deadline, from System.nanoTime() */
+    private static void await(Selector selector, SelectionKey key, int ops, long deadline)
+        throws IOException
+    {
+        key.interestOps(ops);
+        while (true) {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs <= 0) {
+                throw new SocketTimeoutException("Timed out during TLS handshake");
+            }
+            if (selector.select(remainingMs) > 0) break;
+        }
+        selector.selectedKeys().clear();
+    }
+
+    /**
+     * Read and decrypt whatever the socket has ready.
+     * @param dst where to put the decrypted bytes
+     * @return number of bytes decrypted, possibly zero, or -1 at end of stream
+     * @throws IOException if reading or decryption fails
+     */
+    int read(ByteBuffer dst) throws IOException {
+        int produced = transferAppIn(dst);
+        int n = 0;
+        if (dst.hasRemaining()) {
+            n = this.channel.read(this.netIn);
+            produced += unwrapInto(dst);
+        }
+        this.inputBuffered = this.appIn.hasRemaining() || (!dst.hasRemaining() && this.netIn.position() > 0);
+        if (produced == 0 && (n < 0 || this.engine.isInboundDone())) {
+            return -1;
+        }
+        return produced;
+    }
+
+    /**
+     * @return true if the last read left decrypted or encrypted input in
+     * our buffers because the caller's buffer was full, in which case the
+     * socket may not become readable again before it is read
+     */
+    boolean hasBufferedInput() {
+        return this.inputBuffered;
+    }
+
+    /** Decrypts every complete record in netIn that fits into dst, spilling into appIn */
+    private int unwrapInto(ByteBuffer dst) throws IOException {
+        int produced = 0;
+        this.netIn.flip();
+        try {
+            while (this.netIn.hasRemaining() && dst.hasRemaining()) {
+                SSLEngineResult result = this.engine.unwrap(this.netIn, dst);
+                produced += result.bytesProduced();
+                switch (result.getStatus()) {
+                  case OK:
+                      afterUnwrap(result.getHandshakeStatus());
+                      break;
+                  case BUFFER_UNDERFLOW:
+                      return produced;
+                  case BUFFER_OVERFLOW:
+                      // Less room left in dst than a record may need: decrypt the next one aside
+                      int appSize = this.engine.getSession().getApplicationBufferSize();
+                      if (this.appIn.capacity() < appSize) {
+                          this.appIn = ByteBuffer.allocate(appSize);
+                          this.appIn.flip();
+                      }
+                      this.appIn.compact();
+                      try {
+                          result = this.engine.unwrap(this.netIn, this.appIn);
+                      } finally {
+                          this.appIn.flip();
+                      }
+                      afterUnwrap(result.getHandshakeStatus());
+                      produced += transferAppIn(dst);
+                      if (result.getStatus() != SSLEngineResult.Status.OK) return produced;
+                      break;
+                  default: // CLOSED
+                      return produced;
+                }
+            }
+            return produced;
+        } finally {
+            this.netIn.compact();
+            growNetIn();
+        }
+    }
+
+    /** Deals with the handshake status after unwrapping application data */
+    private void afterUnwrap(HandshakeStatus status) throws IOException {
+        if (status == HandshakeStatus.NEED_TASK) {
+            runDelegatedTasks();
+            status = this.engine.getHandshakeStatus();
+        }
+        if (status == HandshakeStatus.NEED_WRAP) {
+            // The peer wants a reply, such as to a key update or close_notify:
+            // queue it, and write it now if the socket will take it
+            synchronized (this.writeLock) {
+                wrap(new ByteBuffer[] { EMPTY });
+                flush();
+            }
+        }
+    }
+
+    private int transferAppIn(ByteBuffer dst) {
+        int count = Math.min(this.appIn.remaining(), dst.remaining());
+        if (count == 0) return 0;
+        int limit = this.appIn.limit();
+        this.appIn.limit(this.appIn.position() + count);
+        dst.put(this.appIn);
+        this.appIn.limit(limit);
+        return count;
+    }
+
+    /**
+     * Encrypt and write as much of the given buffers as the socket will
+     * take without blocking. Encrypted records the socket would not take
+     * are kept, and written before anything else, see {@link #flush}.
+     * @param srcs buffers to write
+     * @return number of bytes taken from srcs, possibly zero
+     * @throws IOException if writing or encryption fails
+     */
+    long write(ByteBuffer[] srcs) throws IOException {
+        synchronized (this.writeLock) {
+            if (!flush()) return 0;
+            long consumed = 0;
+            do {
+                SSLEngineResult result = wrap(srcs);
+                if (result.bytesConsumed() == 0) break;
+                consumed += result.bytesConsumed();
+            } while (hasRemaining(srcs) && this.netOut.limit() < this.netOut.capacity());
+            flush();
+            return consumed;
+        }
+    }
+
+    /**
+     * Write encrypted records left over by earlier writes, if the socket
+     * will take them.
+     * @return true if nothing remains to be written
+     * @throws IOException if writing fails
+     */
+    boolean flush() throws IOException {
+        synchronized (this.writeLock) {
+            while (this.netOut.hasRemaining()) {
+                if (this.channel.write(this.netOut) == 0) return false;
+            }
+            return true;
+        }
+    }
+
+    /** Encrypts one record from srcs onto the end of netOut - called with writeLock held */
+    private SSLEngineResult wrap(ByteBuffer[] srcs) throws IOException {
+        while (true) {
+            this.netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = this.engine.wrap(srcs, this.netOut);
+            } finally {
+                this.netOut.flip();
+            }
+            switch (result.getStatus()) {
+              case OK:
+                  if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                      runDelegatedTasks();
+                  }
+                  return result;
+              case BUFFER_OVERFLOW:
+                  if (this.netOut.hasRemaining()) {
+                      return result; // no room for another record until netOut is written
+                  }
+                  this.netOut = grow(this.netOut, this.engine.getSession().getPacketBufferSize());
+                  break;
+              case CLOSED:
+                  // closing outbound gives CLOSED along with the close_notify record
+                  if (result.bytesProduced() > 0) return result;
+                  throw new SSLException("TLS engine closed: " + result.getStatus());
+              default:
+                  throw new SSLException("TLS engine closed: " + result.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Send close_notify, as far as the socket will take it without
+     * blocking; the caller then closes the socket.
+     */
+    void close() {
+        synchronized (this.writeLock) {
+            this.engine.closeOutbound();
+            try {
+                wrap(new ByteBuffer[] { EMPTY });
+                flush();
+            } catch (IOException _) {
+                // the socket is being closed anyway
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = this.engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /** Makes sure netIn has room for a whole record */
+    private void growNetIn() {
+        int packetSize = this.engine.getSession().getPacketBufferSize();
+        if (this.netIn.remaining() < packetSize) {
+            ByteBuffer bigger = ByteBuffer.allocate(this.netIn.position() + packetSize);
+            this.netIn.flip();
+            bigger.put(this.netIn);
+            this.netIn = bigger;
+        }
+    }
+
+    /** @return a buffer in read mode with the contents of buffer and room for extra more bytes */
+    private static ByteBuffer grow(ByteBuffer buffer, int extra) {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.remaining() + extra);
+        bigger.put(buffer);
+        bigger.flip();
+        return bigger;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) return true;
+        }
+        return false;
+    }
+}
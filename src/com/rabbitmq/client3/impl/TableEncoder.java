@@ -0,0 +1,305 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import com.rabbitmq.client3.LongString;
+
+/**
+ * Encodes field tables, field arrays and field values in a single pass,
+ * for {@link ValueWriter}.
+ * <p/>
+ * Every length prefix has its slot reserved before the value is written
+ * into a growable array, and is filled in once the value's size is
+ * known, so no string is converted to UTF-8 more than once and nothing
+ * is measured ahead of writing. Strings made only of ASCII characters,
+ * which most keys and header values are, are copied char by char with
+ * no conversion at all.
+ * <p/>
+ * Each thread reuses one encoder, see {@link #acquire}.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * Instances are not thread-safe.
+ */
+final class TableEncoder {
+    private static final int INITIAL_SIZE = 256;
+    /** Largest array an idle encoder keeps for its thread to reuse */
+    private static final int MAX_RETAINED_SIZE = 256 * 1024;
+
+    private static final ThreadLocal<TableEncoder> cached = new ThreadLocal<TableEncoder>() {
+        @Override protected TableEncoder initialValue() {
+            return new TableEncoder();
+        }
+    };
+
+    private byte[] buf = new byte[INITIAL_SIZE];
+    private int count = 0;
+    /** Whether this is a thread's encoder, handed out and not yet released */
+    private boolean inUse = false;
+
+    /**
+     * Take this thread's encoder, or a new one if it is already in use.
+     * This is the only thread-local lookup made for a whole table.
+     * @return an empty encoder, to be handed back with {@link #release}
+     */
+    static TableEncoder acquire() {
+        TableEncoder encoder = cached.get();
+        if (encoder.inUse) {
+            return new TableEncoder();
+        }
+        encoder.inUse = true;
+        return encoder;
+    }
+
+    /** Hand an encoder back for its thread to reuse. */
+    static void release(TableEncoder encoder) {
+        encoder.count = 0;
+        encoder.inUse = false;
+        if (encoder.buf.length > MAX_RETAINED_SIZE) {
+            encoder.buf = new byte[INITIAL_SIZE];
+        }
+    }
+
+    /** @return the number of bytes encoded so far */
+    int size() {
+        return this.count;
+    }
+
+    /** Write everything encoded so far to a stream. */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(this.buf, 0, this.count);
+    }
+
+    /** Encode a table, with its length, as for a field of type 'F'. */
+    void table(Map<String, Object> table) throws IOException {
+        int slot = reserve(4);
+        for (Map.Entry<String, Object> entry : table.entrySet()) {
+            shortstr(entry.getKey());
+            fieldValue(entry.getValue());
+        }
+        putInt(slot, this.count - slot - 4);
+    }
+
+    /** Encode a list, with its length, as for a field of type 'A'. */
+    void array(List<?> values) throws IOException {
+        int slot = reserve(4);
+        for (Object value : values) {
+            fieldValue(value);
+        }
+        putInt(slot, this.count - slot - 4);
+    }
+
+    /** Encode an array, with its length, as for a field of type 'A'. */
+    void array(Object[] values) throws IOException {
+        int slot = reserve(4);
+        for (Object value : values) {
+            fieldValue(value);
+        }
+        putInt(slot, this.count - slot - 4);
+    }
+
+    /** Encode a short string: a length octet and at most 255 bytes of UTF-8. */
+    void shortstr(String str) throws IOException {
+        int slot = reserve(1);
+        int length = utf8(str);
+        if (length > 255) {
+            this.count = slot;
+            throw new IllegalArgumentException(
+                    "Short string too long; utf-8 encoded length = " + length +
+                    ", max = 255.");
+        }
+        this.buf[slot] = (byte) length;
+    }
+
+    /** Encode a long string: a four-byte length and the UTF-8 bytes. */
+    void longstr(String str) throws IOException {
+        int slot = reserve(4);
+        putInt(slot, utf8(str));
+    }
+
+    /** Encode a long string from a LongString: a four-byte length and its bytes. */
+    void longstr(LongString str) throws IOException {
+        int length = (int) str.length();
+        int slot = reserve(4);
+        putInt(slot, length);
+        ensure(length + 1); // so reading the end of the stream needs no growth
+        InputStream in = str.getStream();
+        int n;
+        while ((n = in.read(this.buf, this.count, this.buf.length - this.count)) > 0) {
+            this.count += n;
+            ensure(1);
+        }
+    }
+
+    void fieldValue(Object value) throws IOException {
+        if (value instanceof String) {
+            octet('S');
+            longstr((String) value);
+        }
+        else if (value instanceof LongString) {
+            octet('S');
+            longstr((LongString) value);
+        }
+        else if (value instanceof Integer) {
+            octet('I');
+            putInt(reserve(4), (Integer) value);
+        }
+        else if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            BigInteger unscaled = decimal.unscaledValue();
+            if (unscaled.bitLength() > 32) /*Integer.SIZE in Java 1.5*/
+                throw new IllegalArgumentException
+                    ("BigDecimal too large to be encoded");
+            octet('D');
+            octet(decimal.scale());
+            putInt(reserve(4), unscaled.intValue());
+        }
+        else if (value instanceof Date) {
+            octet('T');
+            // AMQP uses POSIX time_t which is in seconds since the epoch began
+            putLong(((Date) value).getTime() / 1000);
+        }
+        else if (value instanceof Map) {
+            octet('F');
+            @SuppressWarnings("unchecked")
+            Map<String, Object> map = (Map<String, Object>) value;
+            table(map);
+        }
+        else if (value instanceof Byte) {
+            octet('b');
+            octet((Byte) value);
+        }
+        else if (value instanceof Double) {
+            octet('d');
+            putLong(Double.doubleToLongBits((Double) value));
+        }
+        else if (value instanceof Float) {
+            octet('f');
+            putInt(reserve(4), Float.floatToIntBits((Float) value));
+        }
+        else if (value instanceof Long) {
+            octet('l');
+            putLong((Long) value);
+        }
+        else if (value instanceof Short) {
+            octet('s');
+            short s = (Short) value;
+            octet(s >> 8);
+            octet(s);
+        }
+        else if (value instanceof Boolean) {
+            octet('t');
+            octet(((Boolean) value) ? 1 : 0);
+        }
+        else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            octet('x');
+            putInt(reserve(4), bytes.length);
+            append(bytes);
+        }
+        else if (value == null) {
+            octet('V');
+        }
+        else if (value instanceof List) {
+            octet('A');
+            array((List<?>) value);
+        }
+        else if (value instanceof Object[]) {
+            octet('A');
+            array((Object[]) value);
+        }
+        else {
+            throw new IllegalArgumentException
+                ("Invalid value type: " + value.getClass().getName());
+        }
+    }
+
+    private void octet(int octet) {
+        ensure(1);
+        this.buf[this.count++] = (byte) octet;
+    }
+
+    private void append(byte[] bytes) {
+        int pos = reserve(bytes.length);
+        System.arraycopy(bytes, 0, this.buf, pos, bytes.length);
+    }
+
+    private void putLong(long l) {
+        int slot = reserve(8);
+        putInt(slot, (int) (l >>> 32));
+        putInt(slot + 4, (int) l);
+    }
+
+    private void putInt(int pos, int i) {
+        this.buf[pos] = (byte) (i >>> 24);
+        this.buf[pos + 1] = (byte) (i >>> 16);
+        this.buf[pos + 2] = (byte) (i >>> 8);
+        this.buf[pos + 3] = (byte) i;
+    }
+
+    /**
+     * Append the UTF-8 encoding of a string, converting it directly if it
+     * is all ASCII.
+     * @return the number of bytes appended
+     */
+    private int utf8(String str) throws IOException {
+        int length = str.length();
+        int start = reserve(length);
+        byte[] b = this.buf;
+        for (int i = 0; i < length; i++) {
+            char c = str.charAt(i);
+            if (c >= 0x80) {
+                this.count = start;
+                byte[] bytes = str.getBytes("utf-8");
+                append(bytes);
+                return bytes.length;
+            }
+            b[start + i] = (byte) c;
+        }
+        return length;
+    }
+
+    /**
+     * Advance past a number of bytes, growing the array if needed.
+     * @return the position of the first of them
+     */
+    private int reserve(int n) {
+        ensure(n);
+        int pos = this.count;
+        this.count += n;
+        return pos;
+    }
+
+    private void ensure(int n) {
+        int needed = this.count + n;
+        if (needed > this.buf.length) {
+            int size = Math.max(this.buf.length << 1, needed);
+            byte[] grown = new byte[size];
+            System.arraycopy(this.buf, 0, grown, 0, this.count);
+            this.buf = grown;
+        }
+    }
+}
@@ -50,13 +50,27 @@ public class ValueReader
 
     /** The stream we are reading from. */
     private final DataInputStream in;
+    /** Where repeated short strings are looked up, or null to decode each afresh */
+    private final ShortStringCache cache;
 
     /**
      * Construct a MethodArgumentReader streaming over the given DataInputStream.
      */
     public ValueReader(DataInputStream in)
+    {
+        this(in, null);
+    }
+
+    /**
+     * Construct a ValueReader streaming over the given DataInputStream,
+     * looking up method arguments and table keys in a cache.
+     * @param in the stream
+     * @param cache the connection's short string cache, or null for none
+     */
+    public ValueReader(DataInputStream in, ShortStringCache cache)
     {
         this.in = in;
+        this.cache = cache;
     }
 
     /** Convenience method - reads a short string from a DataInput
@@ -77,6 +91,26 @@ public class ValueReader
         return readShortstr(this.in);
     }
 
+    /** Convenience method - reads a short string through a cache, if
+     * there is one.
+     */
+    private static final String readShortstr(DataInputStream in, ShortStringCache cache)
+        throws IOException
+    {
+        return (cache == null) ? readShortstr(in) : cache.read(in);
+    }
+
+    /**
+     * Private API - reads a short string through the
+     * {@link ShortStringCache}, if there is one; only for fields with
+     * few distinct values.
+     */
+    public final String readCachedShortstr()
+        throws IOException
+    {
+        return readShortstr(this.in, this.cache);
+    }
+
     /** Convenience method - reads a 32-bit-length-prefix
      * byte vector from a DataInputStream.
      */
@@ -136,7 +170,7 @@ public class ValueReader
      * Reads a table argument from a given stream. Also
      * called by {@link ContentHeaderPropertyReader}.
      */
-    private static final Map<String, Object> readTable(DataInputStream in)
+    private static final Map<String, Object> readTable(DataInputStream in, ShortStringCache cache)
         throws IOException
     {
         long tableLength = unsignedExtend(in.readInt());
@@ -146,15 +180,15 @@ public class ValueReader
         DataInputStream tableIn = new DataInputStream
             (new TruncatedInputStream(in, tableLength));
         while(tableIn.available() > 0) {
-            String name = readShortstr(tableIn);
-            Object value = readFieldValue(tableIn);
+            String name = readShortstr(tableIn, cache);
+            Object value = readFieldValue(tableIn, cache);
             if(!table.containsKey(name))
                 table.put(name, value);
         }
         return table;
     }
 
-    private static final Object readFieldValue(DataInputStream in)
+    private static final Object readFieldValue(DataInputStream in, ShortStringCache cache)
         throws IOException {
         Object value = null;
         switch(in.readUnsignedByte()) {
@@ -174,10 +208,10 @@ public class ValueReader
               value = readTimestamp(in);
               break;
           case 'F':
-              value = readTable(in);
+              value = readTable(in, cache);
               break;
           case 'A':
-              value = readArray(in);
+              value = readArray(in, cache);
               break;
           case 'b':
               value = in.readByte();
@@ -211,7 +245,7 @@ public class ValueReader
     }
 
     /** Read a field-array */
-    private static final List<Object> readArray(DataInputStream in)
+    private static final List<Object> readArray(DataInputStream in, ShortStringCache cache)
         throws IOException
     {
         long length = unsignedExtend(in.readInt());
@@ -219,7 +253,7 @@ public class ValueReader
             (new TruncatedInputStream(in, length));
         List<Object> array = new ArrayList<Object>();
         while(arrayIn.available() > 0) {
-            Object value = readFieldValue(arrayIn);
+            Object value = readFieldValue(arrayIn, cache);
             array.add(value);
         }
         return array;
@@ -229,7 +263,7 @@ public class ValueReader
     public final Map<String, Object> readTable()
         throws IOException
     {
-        return readTable(this.in);
+        return readTable(this.in, this.cache);
     }
 
     /** Public API - reads an octet. */
@@ -21,8 +21,6 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.math.BigDecimal;
-import java.math.BigInteger;
 import java.util.Date;
 import java.util.Map;
 import java.util.List;
@@ -31,6 +29,10 @@ import com.rabbitmq.client3.LongString;
 
 /**
  * Helper class to generate AMQP wire-protocol encoded values.
+ * <p/>
+ * Strings are written straight to the stream. Tables, arrays and field
+ * values are encoded in one pass by a {@link TableEncoder}, then written
+ * to the stream.
  */
 public class ValueWriter
 {
@@ -45,15 +47,35 @@ public class ValueWriter
     public final void writeShortstr(String str)
         throws IOException
     {
-        byte [] bytes = str.getBytes("utf-8");
-        int length = bytes.length;
+        if (isAscii(str)) {
+            checkShortstrLength(str.length());
+            out.writeByte(str.length());
+            out.writeBytes(str);
+        } else {
+            byte [] bytes = str.getBytes("utf-8");
+            checkShortstrLength(bytes.length);
+            out.writeByte(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static void checkShortstrLength(int length) {
         if (length > 255) {
             throw new IllegalArgumentException(
                     "Short string too long; utf-8 encoded length = " + length +
                     ", max = 255.");
         }
-        out.writeByte(bytes.length);
-        out.write(bytes);
+    }
+
+    /**
+     * @return true if every char of str is ASCII, so that its UTF-8
+     * encoding is the low byte of each char
+     */
+    private static boolean isAscii(String str) {
+        for (int i = 0; i < str.length(); i++) {
+            if (str.charAt(i) >= 0x80) return false;
+        }
+        return true;
     }
 
     /** Public API - encodes a long string from a LongString. */
@@ -79,9 +101,14 @@ public class ValueWriter
     public final void writeLongstr(String str)
         throws IOException
     {
-        byte [] bytes = str.getBytes("utf-8");
-        writeLong(bytes.length);
-        out.write(bytes);
+        if (isAscii(str)) {
+            writeLong(str.length());
+            out.writeBytes(str);
+        } else {
+            byte [] bytes = str.getBytes("utf-8");
+            writeLong(bytes.length);
+            out.write(bytes);
+        }
     }
 
     /** Public API - encodes a short integer. */
@@ -117,11 +144,12 @@ public class ValueWriter
             // Convenience.
             out.writeInt(0);
         } else {
-            out.writeInt((int)Frame.tableSize(table));
-            for(Map.Entry<String,Object> entry: table.entrySet()) {
-                writeShortstr(entry.getKey());
-                Object value = entry.getValue();
-                writeFieldValue(value);
+            TableEncoder encoder = TableEncoder.acquire();
+            try {
+                encoder.table(table);
+                encoder.writeTo(out);
+            } finally {
+                TableEncoder.release(encoder);
             }
         }
     }
@@ -129,84 +157,12 @@ public class ValueWriter
     public final void writeFieldValue(Object value)
         throws IOException
     {
-        if(value instanceof String) {
-            writeOctet('S');
-            writeLongstr((String)value);
-        }
-        else if(value instanceof LongString) {
-            writeOctet('S');
-            writeLongstr((LongString)value);
-        }
-        else if(value instanceof Integer) {
-            writeOctet('I');
-            writeLong((Integer) value);
-        }
-        else if(value instanceof BigDecimal) {
-            writeOctet('D');
-            BigDecimal decimal = (BigDecimal)value;
-            writeOctet(decimal.scale());
-            BigInteger unscaled = decimal.unscaledValue();
-            if(unscaled.bitLength() > 32) /*Integer.SIZE in Java 1.5*/
-                throw new IllegalArgumentException
-                    ("BigDecimal too large to be encoded");
-            writeLong(decimal.unscaledValue().intValue());
-        }
-        else if(value instanceof Date) {
-            writeOctet('T');
-            writeTimestamp((Date)value);
-        }
-        else if(value instanceof Map) {
-            writeOctet('F');
-            // Ignore the warnings here.  We hate erasure
-            // (not even a little respect)
-            // (We even have trouble recognising it.)
-            @SuppressWarnings("unchecked")
-            Map<String,Object> map = (Map<String,Object>) value;
-            writeTable(map);
-        }
-        else if (value instanceof Byte) {
-            writeOctet('b');
-            out.writeByte((Byte)value);
-        }
-        else if(value instanceof Double) {
-            writeOctet('d');
-            out.writeDouble((Double)value);
-        }
-        else if(value instanceof Float) {
-            writeOctet('f');
-            out.writeFloat((Float)value);
-        }
-        else if(value instanceof Long) {
-            writeOctet('l');
-            out.writeLong((Long)value);
-        }
-        else if(value instanceof Short) {
-            writeOctet('s');
-            out.writeShort((Short)value);
-        }
-        else if(value instanceof Boolean) {
-            writeOctet('t');
-            out.writeBoolean((Boolean)value);
-        }
-        else if(value instanceof byte[]) {
-            writeOctet('x');
-            writeLong(((byte[])value).length);
-            out.write((byte[])value);
-        }
-        else if(value == null) {
-            writeOctet('V');
-        }
-        else if(value instanceof List) {
-            writeOctet('A');
-            writeArray((List<?>)value);
-        }
-        else if(value instanceof Object[]) {
-            writeOctet('A');
-            writeArray((Object[])value);
-        }
-        else {
-            throw new IllegalArgumentException
-                ("Invalid value type: " + value.getClass().getName());
+        TableEncoder encoder = TableEncoder.acquire();
+        try {
+            encoder.fieldValue(value);
+            encoder.writeTo(out);
+        } finally {
+            TableEncoder.release(encoder);
         }
     }
 
@@ -217,9 +173,12 @@ public class ValueWriter
             out.write(0);
         }
         else {
-            out.writeInt((int)Frame.arraySize(value));
-            for (Object item : value) {
-                writeFieldValue(item);
+            TableEncoder encoder = TableEncoder.acquire();
+            try {
+                encoder.array(value);
+                encoder.writeTo(out);
+            } finally {
+                TableEncoder.release(encoder);
             }
         }
     }
@@ -231,9 +190,12 @@ public class ValueWriter
             out.write(0);
         }
         else {
-            out.writeInt((int)Frame.arraySize(value));
-            for (Object item : value) {
-                writeFieldValue(item);
+            TableEncoder encoder = TableEncoder.acquire();
+            try {
+                encoder.array(value);
+                encoder.writeTo(out);
+            } finally {
+                TableEncoder.release(encoder);
             }
         }
     }
@@ -1,12 +1,11 @@
 package com.rabbitmq.client3.impl;
 
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Map;
 import java.util.Queue;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This is a generic implementation of the <q>Channels</q> specification
@@ -39,16 +38,22 @@ import java.util.Set;
  * All clients may be unregistered with <code><b>unregisterAllKeys()</b></code>.
  * <p/>
  * <b>Concurrent Semantics</b><br/>
- * This implementation is thread-safe.
+ * This implementation is thread-safe, and takes no locks: clients sharing
+ * a pool (all the channels of a connection) do not contend with each
+ * other except on the queue of <i>ready</i> clients.
  * <p/>
  * <b>Implementation Notes</b><br/>
  * The state is, roughly, as follows:
- * <pre> pool :: <i>map</i>(K, <i>seq</i> W)
- * inProgress :: <i>set</i> K
- * ready :: <i>iseq</i> K</pre>
+ * <pre> pool :: <i>map</i>(K, (state, <i>seq</i> W))
+ * ready :: <i>seq</i> (K, state, <i>seq</i> W)</pre>
  * <p/>
- * where a <code><i>seq</i></code> is a sequence (queue or list) and an <code><i>iseq</i></code>
- * (<i>i</i> for <i>i</i>njective) is a sequence with no duplicates.
+ * where each client's <code>state</code> is an atomic integer, and each
+ * <code><i>seq</i></code> a lock-free queue. A client is only added to
+ * <code>ready</code> by the thread which moves its state to <i>ready</i>
+ * with a compare-and-set, so it is never in <code>ready</code> twice, and
+ * only the thread which moves it on to <i>in progress</i> takes its items.
+ * Unregistered clients are marked as such, and skipped if still found in
+ * <code>ready</code>.
  * <p/>
  * <b>State transitions</b><br/><pre>
  *      finish(k)            -------------
@@ -61,21 +66,33 @@ import java.util.Set;
  *             -----------> | ready       |
  *      finish(k)            -------------
  * </pre>
- * <i>dormant</i> is not represented in the implementation state, and adding items
- * when the client is <i>in progress</i> or <i>ready</i> does not change its state.
+ * A client finishing work becomes <i>dormant</i>, and then, if it has
+ * items, tries to become <i>ready</i>. An item added meanwhile may make it
+ * <i>ready</i> first; either way exactly one of the two calls reports it.
  * @param <K> Key -- type of client
  * @param <W> Work -- type of work item
  */
 public class WorkPool<K, W> {
+    private static final int DORMANT = 0;
+    private static final int READY = 1;
+    private static final int IN_PROGRESS = 2;
+    private static final int UNREGISTERED = 3;
 
-    /** protecting <code>ready</code>, <code>inProgress</code> and <code>pool</code> */
-    private final Object monitor = new Object();
-        /** An injective queue of <i>ready</i> clients. */
-        private final SetQueue<K> ready = new SetQueue<K>();
-        /** The set of clients which have work <i>in progress</i>. */
-        private final Set<K> inProgress = new HashSet<K>();
-        /** The pool of registered clients, with their work queues. */
-        private final Map<K, LinkedList<W>> pool = new HashMap<K, LinkedList<W>>();
+    /** A registered client, its state and its queue of work items */
+    private static final class Client<K, W> {
+        final K key;
+        final AtomicInteger state = new AtomicInteger(DORMANT);
+        final Queue<W> items = new ConcurrentLinkedQueue<W>();
+
+        Client(K key) {
+            this.key = key;
+        }
+    }
+
+    /** A queue of <i>ready</i> clients, possibly including some since unregistered. */
+    private final Queue<Client<K, W>> ready = new ConcurrentLinkedQueue<Client<K, W>>();
+    /** The pool of registered clients, with their work queues. */
+    private final ConcurrentMap<K, Client<K, W>> pool = new ConcurrentHashMap<K, Client<K, W>>();
 
     /**
      * Add client <code><b>key</b></code> to pool of item queues, with an empty queue.
@@ -85,10 +102,8 @@ public class WorkPool<K, W> {
      * @param key client to add to pool
      */
     public void registerKey(K key) {
-        synchronized (this.monitor) {
-            if (!this.pool.containsKey(key)) {
-                this.pool.put(key, new LinkedList<W>());
-            }
+        if (!this.pool.containsKey(key)) {
+            this.pool.putIfAbsent(key, new Client<K, W>(key));
         }
     }
 
@@ -97,10 +112,9 @@ public class WorkPool<K, W> {
      * @param key of client to unregister
      */
     public void unregisterKey(K key) {
-        synchronized (this.monitor) {
-            this.pool.remove(key);
-            this.ready.remove(key);
-            this.inProgress.remove(key);
+        Client<K, W> client = this.pool.remove(key);
+        if (client != null) {
+            client.state.set(UNREGISTERED);
         }
     }
 
@@ -108,11 +122,10 @@ public class WorkPool<K, W> {
      * Remove all clients from pool and from any other state.
      */
     public void unregisterAllKeys() {
-        synchronized (this.monitor) {
-            this.pool.clear();
-            this.ready.clear();
-            this.inProgress.clear();
+        for (K key : this.pool.keySet()) {
+            unregisterKey(key);
         }
+        this.ready.clear();
     }
 
     /**
@@ -126,25 +139,50 @@ public class WorkPool<K, W> {
      * @return key of client to whom items belong, or <code><b>null</b></code> if there is none.
      */
     public K nextWorkBlock(Collection<W> to, int size) {
-        synchronized (this.monitor) {
-            K nextKey = readyToInProgress();
-            if (nextKey != null) {
-                LinkedList<W> queue = this.pool.get(nextKey);
-                drainTo(queue, to, size);
+        Client<K, W> client;
+        while ((client = this.ready.poll()) != null) {
+            if (client.state.compareAndSet(READY, IN_PROGRESS)) {
+                drainTo(client.items, to, size);
+                return client.key;
             }
-            return nextKey;
+            // unregistered since it became ready
+        }
+        return null;
+    }
+
+    /**
+     * Transfer further items of a client already <i>in progress</i>, for
+     * callers which only decide how many to take once they know the client.
+     * @param key client whose items to transfer
+     * @param to collection object in which to transfer items
+     * @param size max number of items to transfer
+     * @return number of items transferred; 0 if the client is not <i>in progress</i>
+     */
+    public int takeWorkItems(K key, Collection<W> to, int size) {
+        Client<K, W> client = this.pool.get(key);
+        if (client == null || client.state.get() != IN_PROGRESS) {
+            return 0;
         }
+        return drainTo(client.items, to, size);
     }
 
     /**
-     * Private implementation of <code><b>drainTo</b></code> (not implemented for <code><b>LinkedList&lt;W&gt;</b></code>s).
+     * @return true if some client may be <i>ready</i>, waiting for
+     * {@link #nextWorkBlock}; a hint only, as clients come and go
+     */
+    public boolean hasReadyClients() {
+        return !this.ready.isEmpty();
+    }
+
+    /**
+     * Private implementation of <code><b>drainTo</b></code> (not implemented for <code><b>Queue&lt;W&gt;</b></code>s).
      * @param <W> element type
      * @param deList to take (poll) elements from
      * @param c to add elements to
      * @param maxElements to take from deList
      * @return number of elements actually taken
      */
-    private static <W> int drainTo(LinkedList<W> deList, Collection<W> c, int maxElements) {
+    private static <W> int drainTo(Queue<W> deList, Collection<W> c, int maxElements) {
         int n = 0;
         while (n < maxElements) {
             W first = deList.poll();
@@ -166,17 +204,12 @@ public class WorkPool<K, W> {
      * &mdash; <i>as a result of this work item</i>
      */
     public boolean addWorkItem(K key, W item) {
-        synchronized (this.monitor) {
-            Queue<W> queue = this.pool.get(key);
-            if (queue != null) {
-                queue.offer(item);
-                if (isDormant(key)) {
-                    dormantToReady(key);
-                    return true;
-                }
-            }
+        Client<K, W> client = this.pool.get(key);
+        if (client == null) {
             return false;
         }
+        client.items.offer(item);
+        return dormantToReady(client);
     }
 
     /**
@@ -187,45 +220,26 @@ public class WorkPool<K, W> {
      * @throws IllegalStateException if registered client not <i>in progress</i>
      */
     public boolean finishWorkBlock(K key) {
-        synchronized (this.monitor) {
-            if (!this.isRegistered(key))
-                return false;
-            if (!this.inProgress.contains(key)) {
-                throw new IllegalStateException("Client " + key + " not in progress");
-            }
-
-            if (moreWorkItems(key)) {
-                inProgressToReady(key);
-                return true;
-            } else {
-                inProgressToDormant(key);
+        Client<K, W> client = this.pool.get(key);
+        if (client == null) {
+            return false;
+        }
+        if (!client.state.compareAndSet(IN_PROGRESS, DORMANT)) {
+            if (client.state.get() == UNREGISTERED) {
                 return false;
             }
+            throw new IllegalStateException("Client " + key + " not in progress");
         }
+        // items added while in progress did not make the client ready
+        return !client.items.isEmpty() && dormantToReady(client);
     }
 
-    private boolean moreWorkItems(K key) {
-        LinkedList<W> leList = this.pool.get(key);
-        return (leList==null ? false : !leList.isEmpty());
-    }
-
-    /* State identification functions */
-    private boolean isInProgress(K key){ return this.inProgress.contains(key); }
-    private boolean isReady(K key){ return this.ready.contains(key); }
-    private boolean isRegistered(K key) { return this.pool.containsKey(key); }
-    private boolean isDormant(K key){ return !isInProgress(key) && !isReady(key) && isRegistered(key); }
-
-    /* State transition methods - all assume key registered */
-    private void inProgressToReady(K key){ this.inProgress.remove(key); this.ready.addIfNotPresent(key); };
-    private void inProgressToDormant(K key){ this.inProgress.remove(key); };
-    private void dormantToReady(K key){ this.ready.addIfNotPresent(key); };
-
-    /* Basic work selector and state transition step */
-    private K readyToInProgress() {
-        K key = this.ready.poll();
-        if (key != null) {
-            this.inProgress.add(key);
+    /* State transition method - the only way into ready */
+    private boolean dormantToReady(Client<K, W> client) {
+        if (client.state.compareAndSet(DORMANT, READY)) {
+            this.ready.offer(client);
+            return true;
         }
-        return key;
-    };
+        return false;
+    }
 }
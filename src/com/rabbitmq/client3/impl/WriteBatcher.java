@@ -0,0 +1,150 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.impl;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesces the flushes of an {@link AMQConnection}'s output, so that
+ * commands written in quick succession, from any number of channels, go
+ * to the socket in a few large writes rather than one write each.
+ * <p/>
+ * Once a command has been written the output is flushed straight away if
+ * at least <code>batchSize</code> bytes are waiting, or if the command
+ * needs a reply; otherwise a flush is scheduled for <code>linger</code>
+ * later, when whatever has accumulated by then is written. An idle or
+ * lightly-loaded connection therefore delays a command by at most the
+ * linger time.
+ * <p/>
+ * <b>Concurrency</b><br/>
+ * This class is thread-safe.
+ */
+final class WriteBatcher {
+
+    private final Object monitor = new Object();
+
+    private final FrameHandler frameHandler;
+
+    private final int batchSize;
+
+    private final long lingerNanos;
+
+    /** Bytes written since the last flush */
+    private final AtomicInteger pendingBytes = new AtomicInteger();
+
+    /** True while a lingering flush is scheduled */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flushScheduled.set(false);
+            try {
+                flush();
+            } catch (IOException e) {
+                flushFailure = e;
+            }
+        }
+    };
+
+    /** Failure of the last scheduled flush, reported to the next writer */
+    private volatile IOException flushFailure;
+
+    private ScheduledExecutorService executor;
+
+    private boolean shutdown = false;
+
+    /**
+     * @param frameHandler the frame handler to flush
+     * @param batchSize bytes which may accumulate before a flush is forced
+     * @param lingerMicros longest time, in microseconds, written bytes may
+     * wait to be flushed
+     */
+    WriteBatcher(FrameHandler frameHandler, int batchSize, long lingerMicros) {
+        this.frameHandler = frameHandler;
+        this.batchSize = batchSize;
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+    }
+
+    /** Account for bytes written to the frame handler. */
+    public void bytesWritten(int bytes) {
+        this.pendingBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Called once a whole command has been written: flushes now, or makes
+     * sure a flush is scheduled.
+     * @param urgent true if a reply to the command is awaited, so that it
+     * must not linger
+     * @throws IOException if a flush fails, now or when last scheduled
+     */
+    public void commandWritten(boolean urgent) throws IOException {
+        IOException failure = this.flushFailure;
+        if (failure != null) {
+            throw failure;
+        }
+        if (urgent || this.lingerNanos <= 0 || this.pendingBytes.get() >= this.batchSize) {
+            flush();
+        } else if (this.flushScheduled.compareAndSet(false, true)) {
+            ScheduledExecutorService executor = createExecutorIfNecessary();
+            if (executor == null) {
+                this.flushScheduled.set(false);
+                flush();
+            } else {
+                executor.schedule(this.flushTask, this.lingerNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /** Flush the frame handler now. */
+    public void flush() throws IOException {
+        this.pendingBytes.set(0);
+        this.frameHandler.flush();
+    }
+
+    private ScheduledExecutorService createExecutorIfNecessary() {
+        synchronized (this.monitor) {
+            if (this.executor == null && !this.shutdown) {
+                this.executor = Executors.newSingleThreadScheduledExecutor();
+            }
+            return this.executor;
+        }
+    }
+
+    /**
+     * Stop scheduling flushes; commands written afterwards are flushed
+     * straight away.
+     */
+    public void shutdown() {
+        ExecutorService executorToShutdown = null;
+        synchronized (this.monitor) {
+            this.shutdown = true;
+            // to be safe, we shouldn't call shutdown holding the monitor.
+            executorToShutdown = this.executor;
+            this.executor = null;
+        }
+        if (executorToShutdown != null) {
+            executorToShutdown.shutdown();
+        }
+    }
+}
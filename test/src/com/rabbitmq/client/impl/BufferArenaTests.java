@@ -0,0 +1,130 @@
+package com.rabbitmq.client3.impl;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.rabbitmq.client3.AMQP;
+
+/**
+ * Unit tests for {@link BufferArena} and the reading of pooled frames
+ */
+public class BufferArenaTests extends TestCase {
+
+    private final BufferArena arena = new BufferArena();
+
+    /**
+     * Test arrays are rounded up to their size class and reused
+     */
+    public void testReuse() {
+        byte[] small = this.arena.allocate(100);
+        assertEquals(128, small.length);
+        byte[] medium = this.arena.allocate(129);
+        assertEquals(256, medium.length);
+
+        this.arena.release(small);
+        assertSame(small, this.arena.allocate(1));
+        assertNotSame(small, this.arena.allocate(1));
+    }
+
+    /**
+     * Test only payloads up to the largest size class are pooled
+     */
+    public void testPools() {
+        assertFalse(this.arena.pools(0));
+        assertTrue(this.arena.pools(1));
+        assertTrue(this.arena.pools(128 * 1024));
+        assertFalse(this.arena.pools(128 * 1024 + 1));
+    }
+
+    /**
+     * Test arrays released from a thread other than the owner are dropped
+     * @throws Exception untested
+     */
+    public void testReleaseFromOtherThread() throws Exception {
+        final byte[] buffer = this.arena.allocate(1000);
+        Thread t = new Thread() {
+            @Override public void run() {
+                BufferArenaTests.this.arena.release(buffer);
+            }
+        };
+        t.start();
+        t.join();
+        assertNotSame(buffer, this.arena.allocate(1000));
+    }
+
+    /**
+     * Test a new thread allocating takes the arena over, so arrays it
+     * releases are reused
+     * @throws Exception untested
+     */
+    public void testOwnerChange() throws Exception {
+        this.arena.release(this.arena.allocate(1000));
+        final byte[][] result = new byte[2][];
+        Thread t = new Thread() {
+            @Override public void run() {
+                byte[] buffer = BufferArenaTests.this.arena.allocate(1000);
+                BufferArenaTests.this.arena.release(buffer);
+                result[0] = buffer;
+                result[1] = BufferArenaTests.this.arena.allocate(1000);
+            }
+        };
+        t.start();
+        t.join();
+        assertSame(result[0], result[1]);
+        // and the arena can pass back to the first thread
+        byte[] buffer = this.arena.allocate(1000);
+        this.arena.release(buffer);
+        assertSame(buffer, this.arena.allocate(1000));
+    }
+
+    /**
+     * Test a pooled frame never hands out its pooled array
+     * @throws Exception untested
+     */
+    public void testPooledFramePayload() throws Exception {
+        byte[] payload = new byte[] { 1, 2, 3 };
+        Frame frame = Frame.readFrom(input(new Frame(AMQP.FRAME_BODY, 1, payload)), this.arena);
+        assertTrue(frame.isPooled());
+        assertEquals(3, frame.getPayloadLength());
+        assertTrue(Arrays.equals(payload, frame.getPayload()));
+        assertEquals(3, frame.getInputStream().available());
+    }
+
+    /**
+     * Test a body spread over several pooled frames is assembled and the
+     * frames given back to the arena
+     * @throws Exception untested
+     */
+    public void testAssembleFromPooledFrames() throws Exception {
+        byte[] body = new byte[300];
+        for (int i = 0; i < body.length; i++) body[i] = (byte) i;
+        AMQContentHeader header = new AMQP.BasicProperties.Builder().build();
+
+        AMQCommand command = new AMQCommand();
+        assertFalse(command.handleFrame(pooled(new AMQImpl.Basic.Deliver("ctag", 1, false, "x", "rk").toFrame(1))));
+        assertFalse(command.handleFrame(pooled(header.toFrame(1, body.length))));
+        Frame first = pooled(Frame.fromBodyFragment(1, body, 0, 200));
+        assertFalse(command.handleFrame(first));
+        assertFalse(first.isPooled());
+        assertTrue(command.handleFrame(pooled(Frame.fromBodyFragment(1, body, 200, 100))));
+
+        assertTrue(Arrays.equals(body, command.getContentBody()));
+        assertEquals("ctag", ((AMQP.Basic.Deliver) command.getMethod()).getConsumerTag());
+    }
+
+    private Frame pooled(Frame frame) throws IOException {
+        return Frame.readFrom(input(frame), this.arena);
+    }
+
+    private static DataInputStream input(Frame frame) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        frame.writeTo(new DataOutputStream(bytes));
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+}
@@ -0,0 +1,158 @@
+package com.rabbitmq.client3.impl;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.rabbitmq.client3.AMQP;
+
+/**
+ * Unit tests for content bodies held in {@link ByteBuffer}s
+ */
+public class ByteBufferBodyTests extends TestCase {
+    private static final byte[] BODY = "0123456789".getBytes();
+
+    /**
+     * Test a body frame over a direct buffer is written as an array frame is
+     * @throws Exception untested
+     */
+    public void testDirectBufferFrame() throws Exception {
+        ByteBuffer direct = ByteBuffer.allocateDirect(BODY.length + 4);
+        direct.position(2);
+        direct.put(BODY);
+        direct.position(2);
+        direct.limit(2 + BODY.length);
+        assertBufferFrame(direct);
+        assertEquals(2, direct.position());
+    }
+
+    /**
+     * Test a body frame over part of a heap buffer is written as an array frame is
+     * @throws Exception untested
+     */
+    public void testHeapBufferFrame() throws Exception {
+        byte[] padded = new byte[BODY.length + 4];
+        System.arraycopy(BODY, 0, padded, 3, BODY.length);
+        assertBufferFrame(ByteBuffer.wrap(padded, 3, BODY.length));
+    }
+
+    /**
+     * Test a small pooled single-frame body is viewed read-only
+     * @throws Exception untested
+     */
+    public void testPooledBodyBuffer() throws Exception {
+        BufferArena arena = new BufferArena();
+        AMQCommand command = new AMQCommand();
+        command.handleFrame(new AMQImpl.Basic.Deliver("tag", 1L, false, "", "queue").toFrame(1));
+        command.handleFrame(new AMQP.BasicProperties.Builder().build().toFrame(1, BODY.length));
+        Frame pooled = Frame.readFrom(new DataInputStream(new ByteArrayInputStream(
+            frameBytes(new Frame(AMQP.FRAME_BODY, 1, BODY)))), arena);
+        assertTrue(command.handleFrame(pooled));
+
+        ByteBuffer body = command.getContentBodyBuffer();
+        assertTrue(body.isReadOnly());
+        assertEquals(BODY.length, body.remaining());
+        assertTrue(Arrays.equals(BODY, bytesOf(body)));
+
+        // the array has left the pool, so reuse cannot overwrite the view
+        Arrays.fill(arena.allocate(BODY.length), (byte) 'x');
+        assertTrue(Arrays.equals(BODY, bytesOf(body)));
+        assertTrue(Arrays.equals(BODY, command.getContentBody()));
+    }
+
+    /**
+     * Test a large pooled body is viewed in place, its array leaving the
+     * pool, while a small one is copied and its array given back
+     * @throws Exception untested
+     */
+    public void testPooledArrayKeptOnlyForLargeBodies() throws Exception {
+        BufferArena arena = new BufferArena();
+        byte[] large = new byte[3000];
+        Arrays.fill(large, (byte) 'L');
+        byte[] array = arena.allocate(large.length);
+        arena.release(array);
+        ByteBuffer body = pooledCommand(arena, large).getContentBodyBuffer();
+        assertTrue(Arrays.equals(large, bytesOf(body)));
+        assertNotSame(array, arena.allocate(large.length));
+
+        array = arena.allocate(BODY.length);
+        arena.release(array);
+        body = pooledCommand(arena, BODY).getContentBodyBuffer();
+        assertSame(array, arena.allocate(BODY.length));
+        Arrays.fill(array, (byte) 'x');
+        assertTrue(Arrays.equals(BODY, bytesOf(body)));
+    }
+
+    /**
+     * Test a command dealt with without its body gives the pooled array back
+     * @throws Exception untested
+     */
+    public void testReleaseContentBody() throws Exception {
+        BufferArena arena = new BufferArena();
+        byte[] large = new byte[3000];
+        byte[] array = arena.allocate(large.length);
+        arena.release(array);
+        AMQCommand command = pooledCommand(arena, large);
+        command.releaseContentBody();
+        assertSame(array, arena.allocate(large.length));
+        assertEquals(0, command.getContentBody().length);
+    }
+
+    private static AMQCommand pooledCommand(BufferArena arena, byte[] content) throws IOException {
+        AMQCommand command = new AMQCommand();
+        command.handleFrame(new AMQImpl.Basic.Deliver("tag", 1L, false, "", "queue").toFrame(1));
+        command.handleFrame(new AMQP.BasicProperties.Builder().build().toFrame(1, content.length));
+        Frame pooled = Frame.readFrom(new DataInputStream(new ByteArrayInputStream(
+            frameBytes(new Frame(AMQP.FRAME_BODY, 1, content)))), arena);
+        assertTrue(command.handleFrame(pooled));
+        return command;
+    }
+
+    /**
+     * Test a body of several frames is viewed whole
+     * @throws Exception untested
+     */
+    public void testFragmentedBodyBuffer() throws Exception {
+        AMQCommand command = new AMQCommand();
+        command.handleFrame(new AMQImpl.Basic.Deliver("tag", 1L, false, "", "queue").toFrame(1));
+        command.handleFrame(new AMQP.BasicProperties.Builder().build().toFrame(1, BODY.length));
+        command.handleFrame(Frame.copyOfBodyFragment(1, BODY, 0, 4));
+        assertTrue(command.handleFrame(Frame.copyOfBodyFragment(1, BODY, 4, BODY.length - 4)));
+        ByteBuffer body = command.getContentBodyBuffer();
+        assertTrue(body.isReadOnly());
+        assertTrue(Arrays.equals(BODY, bytesOf(body)));
+    }
+
+    private static void assertBufferFrame(ByteBuffer body) throws IOException {
+        Frame frame = Frame.fromBodyBuffer(1, body);
+        Frame expected = new Frame(AMQP.FRAME_BODY, 1, BODY);
+        assertEquals(BODY.length, frame.getPayloadLength());
+        assertTrue(Arrays.equals(BODY, frame.getPayload()));
+        assertTrue(Arrays.equals(frameBytes(expected), frameBytes(frame)));
+        ByteArrayOutputStream gathered = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : Frame.toByteBuffers(Arrays.asList(frame))) {
+            gathered.write(bytesOf(buffer));
+        }
+        assertTrue(Arrays.equals(frameBytes(expected), gathered.toByteArray()));
+    }
+
+    private static byte[] frameBytes(Frame frame) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(out);
+        frame.writeTo(os);
+        os.flush();
+        return out.toByteArray();
+    }
+
+    private static byte[] bytesOf(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
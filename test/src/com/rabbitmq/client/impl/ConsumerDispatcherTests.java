@@ -0,0 +1,120 @@
+package com.rabbitmq.client3.impl;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client3.AMQP;
+import com.rabbitmq.client3.Channel;
+import com.rabbitmq.client3.Consumer;
+import com.rabbitmq.client3.DefaultConsumer;
+import com.rabbitmq.client3.Envelope;
+import com.rabbitmq.client3.test.StubChannel;
+
+/**
+ * Unit tests for the dispatch modes of {@link ConsumerDispatcher}
+ */
+public class ConsumerDispatcherTests extends TestCase {
+    private static final Envelope ENVELOPE = new Envelope(1, false, "x", "k");
+
+    private ExecutorService executor;
+    private ConsumerWorkService workService;
+    private ConsumerDispatcher dispatcher;
+    private final LinkedBlockingQueue<Thread> deliveredOn = new LinkedBlockingQueue<Thread>();
+    private Channel channel;
+    private DefaultConsumer consumer;
+
+    @Override protected void setUp() throws Exception {
+        this.executor = Executors.newSingleThreadExecutor();
+        this.workService = new ConsumerWorkService(this.executor);
+        Channel channel = this.channel = StubChannel.create();
+        this.dispatcher = new ConsumerDispatcher(null, channel, this.workService);
+        this.consumer = new DefaultConsumer(channel) {
+            @Override public void handleDelivery(String consumerTag, Envelope envelope,
+                                                 AMQP.BasicProperties properties, byte[] body) {
+                deliveredOn.add(Thread.currentThread());
+            }
+        };
+    }
+
+    @Override protected void tearDown() throws Exception {
+        this.workService.shutdown();
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Test deliveries go to the executor by default
+     * @throws Exception untested
+     */
+    public void testExecutorDelivery() throws Exception {
+        this.dispatcher.handleDelivery(this.consumer, "tag", ENVELOPE, null, new byte[0]);
+        Thread thread = this.deliveredOn.poll(10, TimeUnit.SECONDS);
+        assertNotNull(thread);
+        assertNotSame(Thread.currentThread(), thread);
+    }
+
+    /**
+     * Test inline deliveries run on the calling thread, before the call returns
+     * @throws Exception untested
+     */
+    public void testInlineDelivery() throws Exception {
+        this.dispatcher.setInline(true);
+        this.dispatcher.handleDelivery(this.consumer, "tag", ENVELOPE, null, new byte[0]);
+        assertSame(Thread.currentThread(), this.deliveredOn.poll());
+        assertEquals(0, this.workService.getBlockCount());
+    }
+
+    /**
+     * Test nothing is delivered inline once shutdown has begun
+     * @throws Exception untested
+     */
+    public void testInlineQuiesced() throws Exception {
+        this.dispatcher.setInline(true);
+        this.dispatcher.quiesce();
+        this.dispatcher.handleDelivery(this.consumer, "tag", ENVELOPE, null, new byte[0]);
+        assertNull(this.deliveredOn.poll());
+    }
+
+    /**
+     * Test an exception from an inline consumer is handled off the calling
+     * thread, so a handler which closes the channel cannot block the thread
+     * which would read the close reply
+     * @throws Exception untested
+     */
+    public void testInlineConsumerException() throws Exception {
+        final LinkedBlockingQueue<Thread> handledOn = new LinkedBlockingQueue<Thread>();
+        final CountDownLatch closeReply = new CountDownLatch(1);
+        AMQConnection connection = new AMQConnection("guest", "guest", null, this.executor, "/",
+            new HashMap<String, Object>(), 0, 0, 0, null,
+            new DefaultExceptionHandler() {
+                @Override public void handleConsumerException(Channel channel, Throwable exception,
+                                                              Consumer consumer, String consumerTag,
+                                                              String methodName) {
+                    handledOn.add(Thread.currentThread());
+                    try {
+                        // as a channel close would, wait for the broker
+                        closeReply.await();
+                    } catch (InterruptedException _) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        ConsumerDispatcher dispatcher = new ConsumerDispatcher(connection, this.channel, this.workService);
+        dispatcher.setInline(true);
+        dispatcher.handleDelivery(new DefaultConsumer(this.channel) {
+            @Override public void handleDelivery(String consumerTag, Envelope envelope,
+                                                 AMQP.BasicProperties properties, byte[] body) {
+                throw new RuntimeException("consumer failure");
+            }
+        }, "tag", ENVELOPE, null, new byte[0]);
+        Thread thread = handledOn.poll(10, TimeUnit.SECONDS);
+        closeReply.countDown();
+        assertNotNull(thread);
+        assertNotSame(Thread.currentThread(), thread);
+    }
+}
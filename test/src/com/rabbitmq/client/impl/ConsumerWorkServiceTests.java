@@ -0,0 +1,134 @@
+package com.rabbitmq.client3.impl;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client3.Channel;
+import com.rabbitmq.client3.test.StubChannel;
+
+/**
+ * Unit tests for the block sizing of {@link ConsumerWorkService}
+ */
+public class ConsumerWorkServiceTests extends TestCase {
+    private ExecutorService executor;
+    private ConsumerWorkService service;
+
+    @Override protected void setUp() throws Exception {
+        this.executor = Executors.newSingleThreadExecutor();
+        this.service = new ConsumerWorkService(this.executor);
+    }
+
+    @Override protected void tearDown() throws Exception {
+        this.service.shutdown();
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Test fixed-size blocks never change size
+     * @throws Exception untested
+     */
+    public void testFixedBlockSize() throws Exception {
+        this.service.setBlockSize(10, 10);
+        Channel channel = StubChannel.create();
+        this.service.registerKey(channel);
+        runBacklog(channel, 100);
+        assertEquals(10, this.service.getBlockSizeLimit(channel));
+        assertEquals(101, this.service.getCallbackCount());
+        assertEquals(0, this.service.getBlockSizeIncreases());
+        assertEquals(0, this.service.getBlockSizeDecreases());
+    }
+
+    /**
+     * Test a lone channel with a backlog gets larger blocks, then smaller
+     * again once its backlog drains
+     * @throws Exception untested
+     */
+    public void testBlockSizeGrowsWithBacklog() throws Exception {
+        this.service.setBlockSize(4, 64);
+        Channel channel = StubChannel.create();
+        this.service.registerKey(channel);
+        runBacklog(channel, 1000);
+        assertTrue(this.service.getBlockSizeIncreases() >= 4);
+        assertTrue(this.service.getAverageBlockSize() > 4.0);
+        // the last block drained the backlog
+        assertTrue(this.service.getBlockSizeDecreases() >= 1);
+        assertTrue(this.service.getBlockSizeLimit(channel) < 64);
+        assertEquals(1001, this.service.getCallbackCount());
+    }
+
+    /**
+     * Test channels waiting for the only thread keep blocks small
+     * @throws Exception untested
+     */
+    public void testBlockSizeStaysSmallWhenOthersWait() throws Exception {
+        this.service.setBlockSize(4, 64);
+        Channel one = StubChannel.create();
+        Channel two = StubChannel.create();
+        this.service.registerKey(one);
+        this.service.registerKey(two);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2002);
+        this.service.addWork(one, blocker(release, done));
+        this.service.addWork(two, counter(done));
+        for (int i = 0; i < 1000; i++) {
+            this.service.addWork(one, counter(done));
+            this.service.addWork(two, counter(done));
+        }
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, this.service.getBlockSizeIncreases());
+        assertEquals(4, this.service.getBlockSizeLimit(one));
+        assertEquals(4, this.service.getBlockSizeLimit(two));
+    }
+
+    /**
+     * Test a channel which has stopped has no limit
+     * @throws Exception untested
+     */
+    public void testStoppedChannel() throws Exception {
+        Channel channel = StubChannel.create();
+        this.service.registerKey(channel);
+        assertEquals(16, this.service.getBlockSizeLimit(channel));
+        this.service.stopWork(channel);
+        assertEquals(0, this.service.getBlockSizeLimit(channel));
+    }
+
+    /** Runs a blocked callback and then a backlog of others for one channel */
+    private void runBacklog(Channel channel, int backlog) throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(backlog + 1);
+        this.service.addWork(channel, blocker(release, done));
+        for (int i = 0; i < backlog; i++) {
+            this.service.addWork(channel, counter(done));
+        }
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        // the only thread finishes the last block, and adapts, before running this
+        this.executor.submit(new Runnable() { public void run() { } }).get(10, TimeUnit.SECONDS);
+    }
+
+    private static Runnable blocker(final CountDownLatch release, final CountDownLatch done) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        };
+    }
+
+    private static Runnable counter(final CountDownLatch done) {
+        return new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        };
+    }
+}
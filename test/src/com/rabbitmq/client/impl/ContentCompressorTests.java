@@ -0,0 +1,135 @@
+package com.rabbitmq.client3.impl;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.rabbitmq.client3.AMQP;
+import com.rabbitmq.client3.DeflateContentCodec;
+
+/**
+ * Unit tests for {@link ContentCompressor} and {@link DeflateContentCodec}
+ */
+public class ContentCompressorTests extends TestCase {
+    private static final AMQP.BasicProperties PLAIN =
+        new AMQP.BasicProperties.Builder().contentType("application/json").build();
+
+    /**
+     * Test a compressible body is compressed, marked, and restored
+     * @throws Exception untested
+     */
+    public void testRoundTrip() throws Exception {
+        ContentCompressor compressor = new ContentCompressor(new DeflateContentCodec(), 100);
+        byte[] body = json(2000);
+        assertTrue(compressor.compresses(PLAIN, body));
+        byte[] compressed = compressor.compress(body);
+        assertNotNull(compressed);
+        assertTrue(compressed.length < body.length);
+
+        AMQP.BasicProperties props = compressor.compressed(PLAIN);
+        assertEquals("deflate", props.getContentEncoding());
+        assertEquals("application/json", props.getContentType());
+        assertTrue(compressor.decompresses(props));
+        assertTrue(Arrays.equals(body, compressor.decompress(compressed)));
+        assertNull(compressor.decompressed(props).getContentEncoding());
+
+        assertEquals(1, compressor.getCompressedCount());
+        assertEquals(body.length, compressor.getUncompressedBytes());
+        assertEquals(compressed.length, compressor.getCompressedBytes());
+        assertEquals((double) compressed.length / body.length, compressor.getCompressionRatio(), 1e-9);
+        assertEquals(1, compressor.getDecompressedCount());
+    }
+
+    /**
+     * Test small bodies, and bodies already encoded, are left alone
+     * @throws Exception untested
+     */
+    public void testNotCompressed() throws Exception {
+        ContentCompressor compressor = new ContentCompressor(new DeflateContentCodec(), 100);
+        assertFalse(compressor.compresses(PLAIN, json(1)));
+        AMQP.BasicProperties gzipped = PLAIN.builder().contentEncoding("gzip").build();
+        assertFalse(compressor.compresses(gzipped, json(2000)));
+        assertFalse(compressor.decompresses(gzipped));
+        assertFalse(compressor.decompresses(PLAIN));
+        assertEquals(1.0, compressor.getCompressionRatio(), 0.0);
+    }
+
+    /**
+     * Test a body compression does not shrink is sent as it is
+     * @throws Exception untested
+     */
+    public void testIncompressible() throws Exception {
+        ContentCompressor compressor = new ContentCompressor(new DeflateContentCodec(), 0);
+        byte[] random = new byte[1000];
+        new Random(42).nextBytes(random);
+        assertNull(compressor.compress(random));
+        assertEquals(0, compressor.getCompressedCount());
+        assertEquals(0, compressor.getUncompressedBytes());
+    }
+
+    /**
+     * Test a truncated or corrupt body fails to decode
+     * @throws Exception untested
+     */
+    public void testBadBody() throws Exception {
+        DeflateContentCodec codec = new DeflateContentCodec();
+        byte[] compressed = codec.encode(json(2000));
+        byte[] truncated = new byte[compressed.length / 2];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+        try {
+            codec.decode(truncated);
+            fail("Expected IOException");
+        } catch (IOException expected) {
+            // expected
+        }
+        try {
+            codec.decode("not deflated".getBytes());
+            fail("Expected IOException");
+        } catch (IOException expected) {
+            // expected
+        }
+        // the thread's inflater is still usable afterwards
+        assertTrue(Arrays.equals(json(2000), codec.decode(compressed)));
+    }
+
+    /**
+     * Test bodies far larger or smaller than the first guess at their size
+     * @throws Exception untested
+     */
+    public void testBufferGrowth() throws Exception {
+        DeflateContentCodec codec = new DeflateContentCodec(9);
+        byte[] zeros = new byte[1 << 20];
+        assertTrue(Arrays.equals(zeros, codec.decode(codec.encode(zeros))));
+        byte[] empty = new byte[0];
+        assertTrue(Arrays.equals(empty, codec.decode(codec.encode(empty))));
+    }
+
+    /**
+     * Test a body inflating past the maximum decoded size is refused, and
+     * one of exactly the maximum is not
+     * @throws Exception untested
+     */
+    public void testMaxDecodedSize() throws Exception {
+        DeflateContentCodec codec = new DeflateContentCodec(9, 100000);
+        byte[] bomb = codec.encode(new byte[100001]);
+        try {
+            codec.decode(bomb);
+            fail("Expected IOException");
+        } catch (IOException expected) {
+            // expected
+        }
+        byte[] largest = new byte[100000];
+        assertTrue(Arrays.equals(largest, codec.decode(codec.encode(largest))));
+    }
+
+    private static byte[] json(int records) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < records; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"id\":").append(i).append(",\"name\":\"record\",\"active\":true}");
+        }
+        return sb.append(']').toString().getBytes();
+    }
+}
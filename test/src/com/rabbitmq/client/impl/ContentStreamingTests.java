@@ -0,0 +1,126 @@
+package com.rabbitmq.client3.impl;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.rabbitmq.client3.AMQP;
+import com.rabbitmq.client3.Command;
+
+/**
+ * Unit tests for streaming inbound content bodies through a {@link ContentBodySink}
+ */
+public class ContentStreamingTests extends TestCase {
+    private static final byte[] BODY = "0123456789".getBytes();
+
+    /**
+     * Test body fragments go to the sink, in order, followed by the end
+     * @throws Exception untested
+     */
+    public void testStreamedBody() throws Exception {
+        StreamingChannel channel = new StreamingChannel(true);
+        for (Frame frame : deliveryFrames(BODY, 3)) {
+            channel.handleFrame(frame);
+        }
+        assertEquals(4, channel.fragments.size());
+        assertTrue(Arrays.equals(BODY, channel.streamed.toByteArray()));
+        assertEquals(1, channel.ends);
+        assertEquals(1, channel.sinksRequested);
+        assertTrue(channel.completed.isEmpty());
+    }
+
+    /**
+     * Test a body the channel does not stream is accumulated as before
+     * @throws Exception untested
+     */
+    public void testAccumulatedBody() throws Exception {
+        StreamingChannel channel = new StreamingChannel(false);
+        for (Frame frame : deliveryFrames(BODY, 3)) {
+            channel.handleFrame(frame);
+        }
+        assertEquals(1, channel.sinksRequested);
+        assertEquals(1, channel.completed.size());
+        assertTrue(Arrays.equals(BODY, channel.completed.get(0).getContentBody()));
+    }
+
+    /**
+     * Test an empty body completes the command without asking for a sink
+     * @throws Exception untested
+     */
+    public void testEmptyBody() throws Exception {
+        StreamingChannel channel = new StreamingChannel(true);
+        for (Frame frame : deliveryFrames(new byte[0], 3)) {
+            channel.handleFrame(frame);
+        }
+        assertEquals(0, channel.sinksRequested);
+        assertEquals(1, channel.completed.size());
+        assertEquals(0, channel.completed.get(0).getContentBody().length);
+    }
+
+    /**
+     * Test streaming is refused before the header has arrived
+     * @throws Exception untested
+     */
+    public void testStreamTooEarly() throws Exception {
+        AMQCommand command = new AMQCommand();
+        command.handleFrame(deliveryFrames(BODY, 3).get(0));
+        assertFalse(command.isExpectingContentBody());
+        try {
+            command.streamContentBody(new StreamingChannel(true).newSink());
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+    }
+
+    private static List<Frame> deliveryFrames(byte[] body, int fragmentSize) throws IOException {
+        List<Frame> frames = new ArrayList<Frame>();
+        frames.add(new AMQImpl.Basic.Deliver("tag", 1L, false, "", "queue").toFrame(1));
+        frames.add(new AMQP.BasicProperties.Builder().build().toFrame(1, body.length));
+        for (int offset = 0; offset < body.length; offset += fragmentSize) {
+            int length = Math.min(fragmentSize, body.length - offset);
+            frames.add(Frame.copyOfBodyFragment(1, body, offset, length));
+        }
+        return frames;
+    }
+
+    private static class StreamingChannel extends AMQChannel {
+        final List<byte[]> fragments = new ArrayList<byte[]>();
+        final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        final List<Command> completed = new ArrayList<Command>();
+        int ends = 0;
+        int sinksRequested = 0;
+        private final boolean stream;
+
+        StreamingChannel(boolean stream) {
+            super(null, 1);
+            this.stream = stream;
+        }
+
+        ContentBodySink newSink() {
+            return new ContentBodySink() {
+                public void handleBodyFragment(byte[] fragment) throws IOException {
+                    fragments.add(fragment);
+                    streamed.write(fragment);
+                }
+                public void handleBodyEnd() {
+                    ends++;
+                }
+            };
+        }
+
+        @Override protected ContentBodySink contentBodySink(AMQCommand command) {
+            sinksRequested++;
+            return this.stream ? newSink() : null;
+        }
+
+        @Override public boolean processAsync(Command command) {
+            this.completed.add(command);
+            return true;
+        }
+    }
+}
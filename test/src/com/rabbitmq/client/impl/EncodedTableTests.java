@@ -0,0 +1,119 @@
+package com.rabbitmq.client3.impl;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.rabbitmq.client3.MalformedFrameException;
+
+/**
+ * Unit tests for {@link EncodedTable}
+ */
+public class EncodedTableTests extends TestCase {
+
+    /**
+     * Test a view of a table of every type equals the table read eagerly
+     * @throws Exception untested
+     */
+    public void testMatchesEagerRead() throws Exception {
+        Map<String, Object> nested = new HashMap<String, Object>();
+        nested.put("reason", "expired");
+        nested.put("count", 3L);
+        Map<String, Object> table = new HashMap<String, Object>();
+        table.put("longstr", "a long string");
+        table.put("int", 42);
+        table.put("decimal", new BigDecimal("12.34"));
+        table.put("timestamp", new Date(1234567890000L));
+        table.put("table", nested);
+        table.put("array", Arrays.asList(1, "two", nested));
+        table.put("byte", (byte) -2);
+        table.put("double", 2.5d);
+        table.put("float", 1.5f);
+        table.put("long", Long.MAX_VALUE);
+        table.put("short", (short) -7);
+        table.put("bool", true);
+        table.put("void", null);
+        byte[] bytes = marshal(table);
+        Map<String, Object> eager = new ValueReader(
+            new DataInputStream(new ByteArrayInputStream(bytes))).readTable();
+
+        EncodedTable view = EncodedTable.wrap(bytes, 0);
+        assertEquals(eager, view);
+        assertEquals(view, eager);
+        assertEquals(eager.hashCode(), view.hashCode());
+        assertEquals(table.size(), view.size());
+        assertEquals(42, view.get("int"));
+        assertEquals(Long.MAX_VALUE, view.get("long"));
+        assertEquals("expired", ((Map<?, ?>) view.get("table")).get("reason").toString());
+        assertEquals(3, ((List<?>) view.get("array")).size());
+        assertTrue(view.containsKey("void"));
+        assertNull(view.get("void"));
+        assertFalse(view.containsKey("missing"));
+        assertNull(view.get(42));
+    }
+
+    /**
+     * Test a view is read-only
+     * @throws Exception untested
+     */
+    public void testReadOnly() throws Exception {
+        Map<String, Object> table = new HashMap<String, Object>();
+        table.put("key", 1);
+        EncodedTable view = EncodedTable.wrap(marshal(table), 0);
+        try {
+            view.put("other", 2);
+            fail("expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    /**
+     * Test an empty table
+     * @throws Exception untested
+     */
+    public void testEmpty() throws Exception {
+        EncodedTable view = EncodedTable.wrap(marshal(new HashMap<String, Object>()), 0);
+        assertTrue(view.isEmpty());
+        assertEquals(0, view.size());
+        assertNull(view.get("key"));
+    }
+
+    /**
+     * Test a malformed table is rejected when wrapped
+     * @throws Exception untested
+     */
+    public void testMalformed() throws Exception {
+        Map<String, Object> table = new HashMap<String, Object>();
+        table.put("key", 1);
+        byte[] bytes = marshal(table);
+        bytes[4 + 1 + 3] = 'Q'; // the value's type tag
+        try {
+            EncodedTable.wrap(bytes, 0);
+            fail("expected MalformedFrameException");
+        } catch (MalformedFrameException expected) {
+        }
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(marshal(table), 0, truncated, 0, truncated.length);
+        try {
+            EncodedTable.wrap(truncated, 0);
+            fail("expected MalformedFrameException");
+        } catch (MalformedFrameException expected) {
+        }
+    }
+
+    private static byte[] marshal(Map<String, Object> table) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        new ValueWriter(new DataOutputStream(buffer)).writeTable(table);
+        return buffer.toByteArray();
+    }
+}
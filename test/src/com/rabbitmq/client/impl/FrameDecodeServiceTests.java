@@ -0,0 +1,144 @@
+package com.rabbitmq.client3.impl;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client3.AMQP;
+import com.rabbitmq.client3.Command;
+
+/**
+ * Unit tests for {@link FrameDecodeService}
+ */
+public class FrameDecodeServiceTests extends TestCase {
+
+    private static final int CHANNELS = 8;
+    private static final int FRAMES = 1000;
+
+    private final FrameDecodeService decodeService = new FrameDecodeService(null, 4);
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.decodeService.shutdown();
+        super.tearDown();
+    }
+
+    /**
+     * Test every frame is handled, each channel's frames in order
+     * @throws Exception untested
+     */
+    public void testChannelOrderPreserved() throws Exception {
+        CountDownLatch done = new CountDownLatch(CHANNELS * FRAMES);
+        List<RecordingChannel> channels = new ArrayList<RecordingChannel>();
+        for (int c = 1; c <= CHANNELS; c++) {
+            RecordingChannel channel = new RecordingChannel(c, done);
+            this.decodeService.startDecoding(channel);
+            channels.add(channel);
+        }
+        for (int f = 0; f < FRAMES; f++) {
+            for (RecordingChannel channel : channels) {
+                this.decodeService.addFrame(channel, frame(channel.getChannelNumber(), f));
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (RecordingChannel channel : channels) {
+            assertEquals(FRAMES, channel.handled.size());
+            for (int f = 0; f < FRAMES; f++) {
+                assertEquals(f, channel.handled.get(f).intValue());
+            }
+        }
+    }
+
+    /**
+     * Test a channel which is slow to handle a frame does not hold up
+     * other channels
+     * @throws Exception untested
+     */
+    public void testChannelsDecodedInParallel() throws Exception {
+        final CountDownLatch otherHandled = new CountDownLatch(1);
+        final CountDownLatch slowHandled = new CountDownLatch(1);
+        AMQChannel slow = new RecordingChannel(1, slowHandled) {
+            @Override public void handleFrame(Frame frame) throws IOException {
+                try {
+                    otherHandled.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.handleFrame(frame);
+            }
+        };
+        AMQChannel other = new RecordingChannel(2, otherHandled);
+        this.decodeService.startDecoding(slow);
+        this.decodeService.startDecoding(other);
+        this.decodeService.addFrame(slow, frame(1, 0));
+        this.decodeService.addFrame(other, frame(2, 0));
+        assertTrue(slowHandled.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test frames for a channel not being decoded are dropped, and that
+     * frames arriving after shutdown are dropped without error
+     * @throws Exception untested
+     */
+    public void testUnregisteredAndShutdown() throws Exception {
+        CountDownLatch handled = new CountDownLatch(1);
+        RecordingChannel channel = new RecordingChannel(1, handled);
+        this.decodeService.addFrame(channel, frame(1, 0));
+        this.decodeService.startDecoding(channel);
+        this.decodeService.addFrame(channel, frame(1, 1));
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(1), channel.handled);
+
+        this.decodeService.shutdown();
+        this.decodeService.startDecoding(channel);
+        this.decodeService.addFrame(channel, frame(1, 2));
+    }
+
+    /**
+     * Test the worker threads do not keep the JVM running
+     * @throws Exception untested
+     */
+    public void testDaemonThreads() throws Exception {
+        final LinkedBlockingQueue<Boolean> daemon = new LinkedBlockingQueue<Boolean>();
+        AMQChannel channel = new RecordingChannel(1, new CountDownLatch(1)) {
+            @Override public void handleFrame(Frame frame) throws IOException {
+                daemon.add(Thread.currentThread().isDaemon());
+            }
+        };
+        this.decodeService.startDecoding(channel);
+        this.decodeService.addFrame(channel, frame(1, 0));
+        assertEquals(Boolean.TRUE, daemon.poll(5, TimeUnit.SECONDS));
+    }
+
+    private static Frame frame(int channel, int sequence) {
+        return new Frame(AMQP.FRAME_BODY, channel,
+                         new byte[] { (byte) (sequence >> 8), (byte) sequence });
+    }
+
+    /** Channel which records the sequence numbers of the frames it is given */
+    private static class RecordingChannel extends AMQChannel {
+        final List<Integer> handled = Collections.synchronizedList(new ArrayList<Integer>());
+        private final CountDownLatch latch;
+
+        RecordingChannel(int channelNumber, CountDownLatch latch) {
+            super(null, channelNumber);
+            this.latch = latch;
+        }
+
+        @Override public void handleFrame(Frame frame) throws IOException {
+            byte[] payload = frame.getPayload();
+            this.handled.add(((payload[0] & 0xff) << 8) | (payload[1] & 0xff));
+            this.latch.countDown();
+        }
+
+        @Override public boolean processAsync(Command command) {
+            return false;
+        }
+    }
+}
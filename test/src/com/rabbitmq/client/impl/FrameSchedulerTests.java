@@ -0,0 +1,118 @@
+package com.rabbitmq.client3.impl;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.rabbitmq.client3.AMQP;
+
+/**
+ * Unit tests for {@link FrameScheduler}
+ */
+public class FrameSchedulerTests extends TestCase {
+
+    private final FrameScheduler scheduler = new FrameScheduler();
+
+    /**
+     * Test content frames from different channels are interleaved
+     */
+    public void testRoundRobin() {
+        this.scheduler.add(content(1, 3));
+        this.scheduler.add(content(2, 3));
+
+        List<Frame> batch = new ArrayList<Frame>();
+        this.scheduler.nextBatch(batch, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList(1, 2, 1, 2, 1, 2), channels(batch));
+        assertTrue(this.scheduler.isEmpty());
+    }
+
+    /**
+     * Test commands without content go ahead of other channels' content,
+     * but not of their own channel's
+     */
+    public void testControlFirst() {
+        this.scheduler.add(content(1, 3));
+        this.scheduler.add(control(1));
+        this.scheduler.add(control(2));
+
+        List<Frame> batch = new ArrayList<Frame>();
+        this.scheduler.nextBatch(batch, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList(2, 1, 1, 1, 1), channels(batch));
+        assertEquals(AMQP.FRAME_METHOD, batch.get(0).type);
+        assertEquals(AMQP.FRAME_METHOD, batch.get(4).type);
+        assertEquals(0, batch.get(4).getPayloadLength());
+    }
+
+    /**
+     * Test a batch stops once it is big enough, and the rest follows
+     */
+    public void testBatchLimit() {
+        this.scheduler.add(content(1, 4));
+
+        List<Frame> batch = new ArrayList<Frame>();
+        this.scheduler.nextBatch(batch, 1);
+        assertEquals(1, batch.size());
+        assertFalse(this.scheduler.isEmpty());
+
+        this.scheduler.add(control(2));
+        batch.clear();
+        this.scheduler.nextBatch(batch, 1);
+        assertEquals(Arrays.asList(2), channels(batch));
+        batch.clear();
+        this.scheduler.nextBatch(batch, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList(1, 1, 1), channels(batch));
+        assertTrue(this.scheduler.isEmpty());
+    }
+
+    /**
+     * Test a body queued a frame at a time, as a streamed publish queues
+     * it, takes its turn with other channels' content rather than going
+     * ahead as if each frame were a command without content
+     */
+    public void testStreamedContentInterleaved() {
+        List<Frame> start = new ArrayList<Frame>();
+        start.add(new Frame(AMQP.FRAME_METHOD, 1, new byte[1]));
+        start.add(new Frame(AMQP.FRAME_HEADER, 1, new byte[14]));
+        this.scheduler.add(start);
+        for (int i = 0; i < 3; i++) {
+            this.scheduler.add(Collections.singletonList(new Frame(AMQP.FRAME_BODY, 1, new byte[1])));
+        }
+        this.scheduler.add(content(2, 3));
+        this.scheduler.add(control(3));
+
+        List<Integer> order = new ArrayList<Integer>();
+        List<Frame> batch = new ArrayList<Frame>();
+        while (!this.scheduler.isEmpty()) {
+            batch.clear();
+            this.scheduler.nextBatch(batch, 1);
+            order.addAll(channels(batch));
+        }
+        assertEquals(Arrays.asList(3, 1, 2, 1, 2, 1, 2, 1, 1), order);
+    }
+
+    private static List<Frame> content(int channel, int frameCount) {
+        List<Frame> frames = new ArrayList<Frame>();
+        frames.add(new Frame(AMQP.FRAME_METHOD, channel, new byte[1]));
+        for (int i = 1; i < frameCount; i++) {
+            frames.add(new Frame(AMQP.FRAME_BODY, channel, new byte[1]));
+        }
+        return frames;
+    }
+
+    private static List<Frame> control(int channel) {
+        List<Frame> frames = new ArrayList<Frame>();
+        frames.add(new Frame(AMQP.FRAME_METHOD, channel, new byte[0]));
+        return frames;
+    }
+
+    private static List<Integer> channels(List<Frame> frames) {
+        List<Integer> channels = new ArrayList<Integer>();
+        for (Frame frame : frames) {
+            channels.add(frame.channel);
+        }
+        return channels;
+    }
+}
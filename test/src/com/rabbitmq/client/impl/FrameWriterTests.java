@@ -0,0 +1,163 @@
+package com.rabbitmq.client3.impl;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client3.AMQP;
+
+/**
+ * Unit tests for {@link FrameWriter}
+ */
+public class FrameWriterTests extends TestCase {
+
+    private static final int THREADS = 8;
+    private static final int COMMANDS = 500;
+    private static final int FRAMES_PER_COMMAND = 3;
+
+    private final RecordingFrameHandler frameHandler = new RecordingFrameHandler();
+    private final FrameWriter writer = new FrameWriter(this.frameHandler);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.writer.start("test writer");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.writer.shutdown();
+        super.tearDown();
+    }
+
+    /**
+     * Test every command is written, each channel's frames in order
+     * @throws Exception untested
+     */
+    public void testChannelOrderPreserved() throws Exception {
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            final int channel = t + 1;
+            new Thread() {
+                @Override public void run() {
+                    try {
+                        for (int c = 0; c < COMMANDS; c++) {
+                            List<Frame> command = new ArrayList<Frame>();
+                            for (int f = 0; f < FRAMES_PER_COMMAND; f++) {
+                                command.add(new Frame(AMQP.FRAME_BODY, channel, new byte[] { (byte) f }));
+                            }
+                            writer.enqueue(command);
+                        }
+                    } catch (IOException e) {
+                        fail(e.toString());
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        int total = THREADS * COMMANDS * FRAMES_PER_COMMAND;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (this.frameHandler.frames.size() < total && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        List<Frame> frames = new ArrayList<Frame>(this.frameHandler.frames);
+        assertEquals(total, frames.size());
+        int[] framesSeen = new int[THREADS + 1];
+        for (Frame frame : frames) {
+            int expected = framesSeen[frame.channel]++ % FRAMES_PER_COMMAND;
+            assertEquals(expected, frame.getPayload()[0]);
+        }
+        assertTrue(this.frameHandler.flushes > 0);
+    }
+
+    /**
+     * Test a write failure closes the frame handler and is reported to
+     * later writers
+     * @throws Exception untested
+     */
+    public void testFailureReported() throws Exception {
+        this.frameHandler.failWrites = true;
+        this.writer.enqueue(new Frame(AMQP.FRAME_HEARTBEAT, 0));
+        assertTrue(this.frameHandler.closed.await(5, TimeUnit.SECONDS));
+        try {
+            this.writer.enqueue(new Frame(AMQP.FRAME_HEARTBEAT, 0));
+            fail("write after failure should throw");
+        } catch (IOException expected) {
+            assertNotNull(expected.getCause());
+        }
+    }
+
+    /**
+     * Test shutting down with a drain writes and flushes what is queued
+     * before the writer stops
+     * @throws Exception untested
+     */
+    public void testDrainOnShutdown() throws Exception {
+        this.frameHandler.writeDelayMs = 5;
+        for (int i = 0; i < 20; i++) {
+            this.writer.enqueue(new Frame(AMQP.FRAME_BODY, 1, new byte[] { (byte) i }));
+        }
+        assertTrue(this.writer.drainAndShutdown(10000));
+        assertEquals(20, this.frameHandler.frames.size());
+        assertTrue(this.frameHandler.flushes > 0);
+        assertEquals(1, this.frameHandler.closed.getCount());
+    }
+
+    /**
+     * Test a sender can wait for the queue to shrink to a bound
+     * @throws Exception untested
+     */
+    public void testAwaitQueuedBytes() throws Exception {
+        this.frameHandler.writeDelayMs = 5;
+        for (int i = 0; i < 20; i++) {
+            this.writer.enqueue(new Frame(AMQP.FRAME_BODY, 1, new byte[100]));
+        }
+        this.writer.awaitQueuedBytesAtMost(0);
+        assertEquals(20, this.frameHandler.frames.size());
+    }
+
+    private static class RecordingFrameHandler implements FrameHandler {
+        final List<Frame> frames = Collections.synchronizedList(new ArrayList<Frame>());
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile int flushes = 0;
+        volatile boolean failWrites = false;
+        volatile long writeDelayMs = 0;
+
+        public void writeFrame(Frame frame) throws IOException {
+            if (failWrites) throw new IOException("write failed");
+            if (writeDelayMs > 0) {
+                try {
+                    Thread.sleep(writeDelayMs);
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+            }
+            frames.add(frame);
+        }
+
+        public void flush() throws IOException {
+            flushes++;
+        }
+
+        public void close() {
+            closed.countDown();
+        }
+
+        public void setTimeout(int timeoutMs) throws SocketException {}
+        public int getTimeout() throws SocketException { return 0; }
+        public void sendHeader() throws IOException {}
+        public Frame readFrame() throws IOException { return null; }
+        public InetAddress getAddress() { return null; }
+        public int getPort() { return -1; }
+    }
+}
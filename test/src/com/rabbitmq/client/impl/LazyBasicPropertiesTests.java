@@ -0,0 +1,139 @@
+package com.rabbitmq.client3.impl;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.rabbitmq.client3.AMQP;
+import com.rabbitmq.client3.MalformedFrameException;
+
+/**
+ * Unit tests for {@link LazyBasicProperties}
+ */
+public class LazyBasicPropertiesTests extends TestCase {
+
+    /**
+     * Test every property decodes as it was written
+     * @throws Exception untested
+     */
+    public void testAllProperties() throws Exception {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("count", 42);
+        Date timestamp = new Date(1234567890000L);
+        AMQP.BasicProperties props = new AMQP.BasicProperties("text/plain", "gzip", headers, 2, 9,
+                                                              "corr", "reply", "60000", "msg",
+                                                              timestamp, "type", "user", "app",
+                                                              "cluster");
+        AMQP.BasicProperties lazy = roundTrip(props, 12345L);
+        assertTrue(lazy instanceof LazyBasicProperties);
+        assertEquals(12345L, lazy.getBodySize());
+        assertEquals("text/plain", lazy.getContentType());
+        assertEquals("gzip", lazy.getContentEncoding());
+        assertEquals(42, lazy.getHeaders().get("count"));
+        assertEquals(Integer.valueOf(2), lazy.getDeliveryMode());
+        assertEquals(Integer.valueOf(9), lazy.getPriority());
+        assertEquals("corr", lazy.getCorrelationId());
+        assertEquals("reply", lazy.getReplyTo());
+        assertEquals("60000", lazy.getExpiration());
+        assertEquals("msg", lazy.getMessageId());
+        assertEquals(timestamp, lazy.getTimestamp());
+        assertEquals("type", lazy.getType());
+        assertEquals("user", lazy.getUserId());
+        assertEquals("app", lazy.getAppId());
+        assertEquals("cluster", lazy.getClusterId());
+        assertEquals(props.toString(), lazy.toString());
+    }
+
+    /**
+     * Test absent properties are null, and those after them still decode
+     * @throws Exception untested
+     */
+    public void testSomeProperties() throws Exception {
+        AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
+            .deliveryMode(1).messageId("id").appId("app").build();
+        AMQP.BasicProperties lazy = roundTrip(props, 0);
+        assertNull(lazy.getContentType());
+        assertNull(lazy.getHeaders());
+        assertEquals(Integer.valueOf(1), lazy.getDeliveryMode());
+        assertNull(lazy.getTimestamp());
+        assertEquals("id", lazy.getMessageId());
+        assertEquals("app", lazy.getAppId());
+        assertNull(lazy.getClusterId());
+    }
+
+    /**
+     * Test properties can be re-encoded, and changes are kept
+     * @throws Exception untested
+     */
+    @SuppressWarnings("deprecation")
+    public void testReencode() throws Exception {
+        AMQP.BasicProperties lazy = roundTrip(new AMQP.BasicProperties.Builder()
+            .contentType("a").priority(3).build(), 7);
+        lazy.setContentType("b");
+        AMQP.BasicProperties copy = (AMQP.BasicProperties) lazy.clone();
+        copy.setContentType("c");
+        assertEquals("b", lazy.getContentType());
+        AMQP.BasicProperties again = roundTrip(lazy, 7);
+        assertEquals("b", again.getContentType());
+        assertEquals(Integer.valueOf(3), again.getPriority());
+        assertEquals("b", lazy.builder().build().getContentType());
+    }
+
+    /**
+     * Test a header whose properties overrun the frame is rejected on receipt
+     * @throws Exception untested
+     */
+    public void testTruncated() throws Exception {
+        byte[] payload = new AMQP.BasicProperties.Builder().messageId("message")
+            .build().toFrame(1, 0).getPayload();
+        byte[] truncated = new byte[payload.length - 2];
+        System.arraycopy(payload, 0, truncated, 0, truncated.length);
+        try {
+            LazyBasicProperties.readFrom(truncated);
+            fail("expected MalformedFrameException");
+        } catch (MalformedFrameException expected) {
+        }
+    }
+
+    /**
+     * Test a header cut off within its property flags is rejected on receipt
+     * @throws Exception untested
+     */
+    public void testTruncatedFlags() throws Exception {
+        byte[] payload = new AMQP.BasicProperties().toFrame(1, 0).getPayload();
+        byte[] truncated = new byte[13];
+        System.arraycopy(payload, 0, truncated, 0, truncated.length);
+        try {
+            LazyBasicProperties.readFrom(truncated);
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Test a headers table with a negative length is rejected on receipt
+     * @throws Exception untested
+     */
+    public void testNegativeHeadersLength() throws Exception {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("h", "v");
+        byte[] payload = new AMQP.BasicProperties.Builder().headers(headers)
+            .build().toFrame(1, 0).getPayload();
+        // the headers table is the only property, so its length follows the flags
+        payload[14] = (byte) 0xff;
+        try {
+            LazyBasicProperties.readFrom(payload);
+            fail("expected MalformedFrameException");
+        } catch (MalformedFrameException expected) {
+        }
+    }
+
+    private static AMQP.BasicProperties roundTrip(AMQP.BasicProperties props, long bodySize)
+        throws IOException
+    {
+        return (AMQP.BasicProperties) LazyBasicProperties.readFrom(props.toFrame(1, bodySize).getPayload());
+    }
+}
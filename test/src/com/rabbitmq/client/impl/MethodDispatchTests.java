@@ -0,0 +1,68 @@
+package com.rabbitmq.client3.impl;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import com.rabbitmq.client3.UnknownClassOrMethodId;
+
+/**
+ * Unit tests for the generated method ids and method decoder table
+ */
+public class MethodDispatchTests extends TestCase {
+
+    /**
+     * Test each method's id combines its class and method ids
+     * @throws Exception untested
+     */
+    public void testProtocolIds() throws Exception {
+        Method deliver = new AMQImpl.Basic.Deliver("tag", 1L, false, "x", "k");
+        assertEquals(AMQImpl.Basic.Deliver.ID, deliver.protocolId());
+        assertEquals((60 << 16) | 60, deliver.protocolId());
+        Method close = new AMQImpl.Channel.Close(200, "bye", 0, 0);
+        assertEquals(AMQImpl.Channel.Close.ID, AMQImpl.protocolId(close));
+        assertEquals((20 << 16) | 40, AMQImpl.protocolId(close));
+    }
+
+    /**
+     * Test methods decode through the table as they were encoded
+     * @throws Exception untested
+     */
+    public void testReadMethod() throws Exception {
+        Method[] methods = {
+            new AMQImpl.Connection.Tune(10, 131072, 60),
+            new AMQImpl.Basic.Deliver("tag", 7L, true, "exchange", "key"),
+            new AMQImpl.Basic.Nack(9L, true, false),
+            new AMQImpl.Confirm.SelectOk(),
+            new AMQImpl.Tx.CommitOk()
+        };
+        for (Method m : methods) {
+            Method decoded = AMQImpl.readMethodFrom(payloadOf(m));
+            assertEquals(m.getClass(), decoded.getClass());
+            assertEquals(m.toString(), decoded.toString());
+        }
+    }
+
+    /**
+     * Test unknown class and method ids are rejected, not misread
+     * @throws Exception untested
+     */
+    public void testUnknownIds() throws Exception {
+        int[][] ids = { { 60, 61 }, { 60, 1000 }, { 61, 10 }, { 1000, 10 }, { 0xFFFF, 10 }, { 10, 0xFFFF } };
+        for (int[] id : ids) {
+            byte[] payload = { (byte) (id[0] >> 8), (byte) id[0], (byte) (id[1] >> 8), (byte) id[1] };
+            try {
+                AMQImpl.readMethodFrom(new DataInputStream(new ByteArrayInputStream(payload)));
+                fail("Expected UnknownClassOrMethodId for " + id[0] + "/" + id[1]);
+            } catch (UnknownClassOrMethodId expected) {
+                // expected
+            }
+        }
+    }
+
+    private static DataInputStream payloadOf(Method m) throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(m.toFrame(0).getPayload()));
+    }
+}
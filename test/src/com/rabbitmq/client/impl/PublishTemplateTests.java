@@ -0,0 +1,65 @@
+package com.rabbitmq.client3.impl;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.rabbitmq.client3.AMQP;
+
+/**
+ * Unit tests for {@link PublishTemplateImpl}
+ */
+public class PublishTemplateTests extends TestCase {
+
+    /**
+     * Test the cached method encodes exactly as the method itself does
+     * @throws Exception untested
+     */
+    public void testMethodFrame() throws Exception {
+        AMQImpl.Basic.Publish publish = new AMQImpl.Basic.Publish(0, "exchange", "key", true, false);
+        PublishTemplateImpl.EncodedMethod encoded =
+            new PublishTemplateImpl.EncodedMethod(publish, publish.toFrame(0).getPayload());
+        assertSameFrame(publish.toFrame(7), encoded.toFrame(7));
+        assertEquals(publish.toString(), encoded.toString());
+        assertTrue(encoded.hasContent());
+    }
+
+    /**
+     * Test the cached header encodes as the properties do, for any body size
+     * @throws Exception untested
+     */
+    public void testHeaderFrame() throws Exception {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("h", "v");
+        AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
+            .contentType("text/plain").deliveryMode(2).headers(headers).build();
+        PublishTemplateImpl.EncodedHeader encoded =
+            new PublishTemplateImpl.EncodedHeader(props, props.toFrame(0, 0).getPayload());
+        long[] sizes = { 0L, 1L, 255L, 256L, 65536L, 1L << 40, Long.MAX_VALUE };
+        for (long size : sizes) {
+            assertSameFrame(props.toFrame(3, size), encoded.toFrame(3, size));
+        }
+        assertEquals(props.toString(), encoded.toString());
+    }
+
+    /**
+     * Test patching one header frame does not change those made before it
+     * @throws Exception untested
+     */
+    public void testHeaderFramesIndependent() throws Exception {
+        AMQP.BasicProperties props = new AMQP.BasicProperties.Builder().build();
+        PublishTemplateImpl.EncodedHeader encoded =
+            new PublishTemplateImpl.EncodedHeader(props, props.toFrame(0, 0).getPayload());
+        Frame first = encoded.toFrame(1, 10);
+        encoded.toFrame(1, 20);
+        assertSameFrame(props.toFrame(1, 10), first);
+    }
+
+    private static void assertSameFrame(Frame expected, Frame actual) {
+        assertEquals(expected.type, actual.type);
+        assertEquals(expected.channel, actual.channel);
+        assertTrue(Arrays.equals(expected.getPayload(), actual.getPayload()));
+    }
+}
@@ -0,0 +1,210 @@
+package com.rabbitmq.client3.impl;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.rabbitmq.client3.ShortStringCacheStatistics;
+
+/**
+ * Unit tests for {@link ShortStringCache}
+ */
+public class ShortStringCacheTests extends TestCase {
+
+    private final ShortStringCache cache = new ShortStringCache(ShortStringCache.DEFAULT_CAPACITY);
+
+    /**
+     * Test a repeated string is returned from the cache
+     * @throws Exception untested
+     */
+    public void testRepeatedStringShared() throws Exception {
+        String first = read("amq.direct");
+        String second = read("amq.direct");
+        assertEquals("amq.direct", first);
+        assertSame(first, second);
+        assertNotSame(first, read("amq.topic"));
+    }
+
+    /**
+     * Test strings which share a slot are each decoded correctly
+     * @throws Exception untested
+     */
+    public void testCollisions() throws Exception {
+        this.cache.setCapacity(1);
+        assertEquals(1, this.cache.getCapacity());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("key-" + (i % 3), read("key-" + (i % 3)));
+        }
+        assertEquals("", read(""));
+        assertEquals("caf\u00e9", read("caf\u00e9"));
+    }
+
+    /**
+     * Test two strings which share a set both stay cached, and a third
+     * evicts the one used longest ago
+     * @throws Exception untested
+     */
+    public void testCollidingStringsBothCached() throws Exception {
+        this.cache.setCapacity(2);
+        ShortStringCacheStatistics statistics = this.cache;
+        String direct = read("amq.direct");
+        String topic = read("amq.topic");
+        long hits = statistics.getHits();
+        long misses = statistics.getMisses();
+        for (int i = 0; i < 10; i++) {
+            assertSame(direct, read("amq.direct"));
+            assertSame(topic, read("amq.topic"));
+        }
+        assertEquals(hits + 20, statistics.getHits());
+        assertEquals(misses, statistics.getMisses());
+
+        read("amq.fanout");
+        assertSame(topic, read("amq.topic"));
+        assertNotSame(direct, read("amq.direct"));
+    }
+
+    /**
+     * Test hits and misses counted on several threads are all added up
+     * @throws Exception untested
+     */
+    public void testStatisticsFromSeveralThreads() throws Exception {
+        final ShortStringCacheStatistics statistics = this.cache;
+        read("exchange");
+        long hits = statistics.getHits();
+        Thread[] threads = new Thread[4];
+        final Exception[] failure = new Exception[1];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override public void run() {
+                    try {
+                        for (int j = 0; j < 100; j++) {
+                            read("exchange");
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure[0] != null) throw failure[0];
+        assertTrue(statistics.getHits() >= hits + 4 * 100 - threads.length);
+    }
+
+    /**
+     * Test a capacity of zero turns caching off
+     * @throws Exception untested
+     */
+    public void testDisabled() throws Exception {
+        this.cache.setCapacity(0);
+        assertEquals(0, this.cache.getCapacity());
+        String first = read("queue");
+        assertEquals(first, read("queue"));
+        assertNotSame(first, read("queue"));
+        this.cache.setCapacity(100);
+        assertEquals(128, this.cache.getCapacity());
+    }
+
+    /**
+     * Test hits and misses are counted exactly
+     * @throws Exception untested
+     */
+    public void testStatistics() throws Exception {
+        ShortStringCacheStatistics statistics = this.cache;
+        read("routing.key");
+        long hits = statistics.getHits();
+        long misses = statistics.getMisses();
+        for (int i = 0; i < 10; i++) {
+            read("routing.key");
+        }
+        read("other.routing.key");
+        assertEquals(hits + 10, statistics.getHits());
+        assertEquals(misses + 1, statistics.getMisses());
+        assertTrue(statistics.getHitRatio() > 0);
+    }
+
+    /**
+     * Test only method arguments and table keys are cached, not short
+     * strings such as message ids
+     * @throws Exception untested
+     */
+    public void testOnlyLowCardinalityFieldsCached() throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        new ValueWriter(new DataOutputStream(buffer)).writeShortstr("message-id");
+        byte[] bytes = buffer.toByteArray();
+        String first = reader(bytes).readShortstr();
+        assertNotSame(first, reader(bytes).readShortstr());
+        assertNotSame(first, new MethodArgumentReader(reader(bytes)).readShortstr());
+
+        Map<String, Object> table = new HashMap<String, Object>();
+        table.put("header", 1);
+        buffer.reset();
+        new ValueWriter(new DataOutputStream(buffer)).writeTable(table);
+        bytes = buffer.toByteArray();
+        String key = reader(bytes).readTable().keySet().iterator().next();
+        assertSame(key, reader(bytes).readTable().keySet().iterator().next());
+    }
+
+    /**
+     * Test a reader without a cache decodes every short string afresh
+     * @throws Exception untested
+     */
+    public void testReaderWithoutCache() throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        new ValueWriter(new DataOutputStream(buffer)).writeShortstr("amq.direct");
+        byte[] bytes = buffer.toByteArray();
+        String first = uncachedReader(bytes).readCachedShortstr();
+        assertEquals("amq.direct", first);
+        assertNotSame(first, uncachedReader(bytes).readCachedShortstr());
+    }
+
+    /**
+     * Test each connection has its own cache, which only its inbound
+     * commands look strings up in
+     * @throws Exception untested
+     */
+    public void testCachePerConnection() throws Exception {
+        AMQConnection one = connection();
+        AMQConnection other = connection();
+        one.setShortStringCacheCapacity(16);
+        assertEquals(16, one.getShortStringCacheStatistics().getCapacity());
+        assertEquals(ShortStringCache.DEFAULT_CAPACITY, other.getShortStringCacheStatistics().getCapacity());
+
+        Frame frame = new AMQImpl.Basic.ConsumeOk("ctag").toFrame(1);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(new AMQCommand(one.getShortStringCache()).handleFrame(frame));
+        }
+        assertEquals(1, one.getShortStringCacheStatistics().getMisses());
+        assertEquals(2, one.getShortStringCacheStatistics().getHits());
+        assertEquals(0, other.getShortStringCacheStatistics().getMisses());
+        assertEquals(0, other.getShortStringCacheStatistics().getHits());
+    }
+
+    private String read(String s) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        new ValueWriter(new DataOutputStream(buffer)).writeShortstr(s);
+        return new MethodArgumentReader(reader(buffer.toByteArray())).readShortstr();
+    }
+
+    private ValueReader reader(byte[] bytes) {
+        return new ValueReader(new DataInputStream(new ByteArrayInputStream(bytes)), this.cache);
+    }
+
+    private static ValueReader uncachedReader(byte[] bytes) {
+        return new ValueReader(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private static AMQConnection connection() {
+        return new AMQConnection("guest", "guest", null, null, "/",
+                                 new HashMap<String, Object>(), 0, 0, 0, null);
+    }
+}
@@ -0,0 +1,166 @@
+package com.rabbitmq.client3.impl;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Unit tests for {@link SslEngineChannel}, with a client and a server
+ * engine talking over a loopback connection
+ */
+public class SslEngineChannelTests extends TestCase {
+
+    private static final int TIMEOUT = 10000;
+
+    private ServerSocketChannel listener;
+    private SocketChannel clientSocket;
+    private SocketChannel serverSocket;
+    private SSLEngine clientEngine;
+    private SSLEngine serverEngine;
+    private SslEngineChannel client;
+    private SslEngineChannel server;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        listener = ServerSocketChannel.open();
+        listener.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        clientSocket = SocketChannel.open(listener.socket().getLocalSocketAddress());
+        clientSocket.configureBlocking(false);
+        serverSocket = listener.accept();
+        serverSocket.configureBlocking(false);
+
+        SSLContext context = TlsTestContext.get();
+        clientEngine = context.createSSLEngine("localhost", listener.socket().getLocalPort());
+        clientEngine.setUseClientMode(true);
+        serverEngine = context.createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        client = new SslEngineChannel(clientSocket, clientEngine);
+        server = new SslEngineChannel(serverSocket, serverEngine);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        clientSocket.close();
+        serverSocket.close();
+        listener.close();
+        super.tearDown();
+    }
+
+    /**
+     * Test a handshake, then a write bigger than a record
+     * @throws Exception untested
+     */
+    public void testHandshakeAndLargeWrite() throws Exception {
+        handshakeBoth();
+
+        byte[] sent = new byte[3 * clientEngine.getSession().getPacketBufferSize() + 17];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = (byte) (i * 31);
+        }
+        writeFully(client, clientSocket, ByteBuffer.wrap(sent));
+
+        ByteBuffer received = ByteBuffer.allocate(sent.length);
+        assertTrue(readFully(server, serverSocket, received));
+        assertTrue(Arrays.equals(sent, received.array()));
+    }
+
+    /**
+     * Test closing one end sends close_notify, which the other end reads
+     * as the end of the stream
+     * @throws Exception untested
+     */
+    public void testCloseNotify() throws Exception {
+        handshakeBoth();
+        client.close();
+
+        ByteBuffer received = ByteBuffer.allocate(1);
+        assertFalse(readFully(server, serverSocket, received));
+        assertEquals(0, received.position());
+        assertTrue(serverEngine.isInboundDone());
+        assertTrue(clientSocket.isOpen());
+    }
+
+    /**
+     * Test the handshake gives up if the peer never answers
+     * @throws Exception untested
+     */
+    public void testHandshakeTimeout() throws Exception {
+        long start = System.nanoTime();
+        try {
+            client.handshake(200);
+            fail("handshake should have timed out");
+        } catch (SocketTimeoutException expected) {
+            // the server never took part
+        }
+        assertTrue((System.nanoTime() - start) / 1000000 < TIMEOUT);
+    }
+
+    private void handshakeBoth() throws Exception {
+        final IOException[] serverFailure = new IOException[1];
+        Thread serverThread = new Thread() {
+            @Override public void run() {
+                try {
+                    server.handshake(TIMEOUT);
+                } catch (IOException e) {
+                    serverFailure[0] = e;
+                }
+            }
+        };
+        serverThread.start();
+        client.handshake(TIMEOUT);
+        serverThread.join(TIMEOUT);
+        assertFalse(serverThread.isAlive());
+        if (serverFailure[0] != null) throw serverFailure[0];
+    }
+
+    private static void writeFully(SslEngineChannel channel, SocketChannel socket, ByteBuffer src)
+        throws IOException
+    {
+        ByteBuffer[] srcs = new ByteBuffer[] { src };
+        while (src.hasRemaining()) {
+            if (channel.write(srcs) == 0) {
+                await(socket, SelectionKey.OP_WRITE);
+            }
+        }
+        while (!channel.flush()) {
+            await(socket, SelectionKey.OP_WRITE);
+        }
+    }
+
+    /** @return true if dst was filled, false if the stream ended first */
+    private static boolean readFully(SslEngineChannel channel, SocketChannel socket, ByteBuffer dst)
+        throws IOException
+    {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst);
+            if (n < 0) return false;
+            if (n == 0 && !channel.hasBufferedInput()) {
+                await(socket, SelectionKey.OP_READ);
+            }
+        }
+        return true;
+    }
+
+    private static void await(SocketChannel socket, int ops) throws IOException {
+        Selector selector = Selector.open();
+        try {
+            socket.register(selector, ops);
+            assertTrue("socket not ready in time", selector.select(TIMEOUT) > 0);
+        } finally {
+            selector.close();
+        }
+    }
+}
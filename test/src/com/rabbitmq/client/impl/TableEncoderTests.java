@@ -0,0 +1,176 @@
+package com.rabbitmq.client3.impl;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link TableEncoder}
+ */
+public class TableEncoderTests extends TestCase {
+
+    /**
+     * Test strings encode to the same bytes as a UTF-8 conversion gives
+     * @throws Exception untested
+     */
+    public void testStrings() throws Exception {
+        String[] strings = { "", "ascii", "caf\u00e9", "\u65e5\u672c", "mixed \u00e9 and \ud83d\ude00 end" };
+        for (String str : strings) {
+            byte[] utf8 = str.getBytes("utf-8");
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(expected);
+            out.writeByte(utf8.length);
+            out.write(utf8);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            ValueWriter writer = new ValueWriter(new DataOutputStream(actual));
+            writer.writeShortstr(str);
+            writer.writeLongstr(str);
+            writer.flush();
+            assertTrue(str, Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+        }
+    }
+
+    /**
+     * Test a too-long short string is rejected without writing anything
+     * @throws Exception untested
+     */
+    public void testShortStringTooLong() throws Exception {
+        char[] chars = new char[200];
+        Arrays.fill(chars, '\u00e9');
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        ValueWriter writer = new ValueWriter(new DataOutputStream(actual));
+        try {
+            writer.writeShortstr(new String(chars));
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        writer.writeShortstr("ok");
+        writer.flush();
+        assertTrue(Arrays.equals(new byte[] { 2, 'o', 'k' }, actual.toByteArray()));
+    }
+
+    /**
+     * Test nested tables and arrays get the lengths the old size computation gave
+     * @throws Exception untested
+     */
+    public void testNestedLengths() throws Exception {
+        Map<String, Object> inner = new LinkedHashMap<String, Object>();
+        inner.put("k\u00e9y", "v\u00e4lue");
+        inner.put("num", 42);
+        inner.put("list", Arrays.asList("a", 1L, null, new byte[] { 1, 2, 3 }));
+        Map<String, Object> table = new LinkedHashMap<String, Object>();
+        table.put("inner", inner);
+        table.put("array", new Object[] { inner, 1.5d, 2.5f, (short) 7, (byte) 8, true });
+        table.put("decimal", new BigDecimal("12.345"));
+        table.put("date", new Date(1234567890000L));
+        table.put("long", LongStringHelper.asLongString("long string"));
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ValueWriter writer = new ValueWriter(new DataOutputStream(buffer));
+        writer.writeTable(table);
+        writer.flush();
+        byte[] bytes = buffer.toByteArray();
+        assertEquals(Frame.tableSize(table) + 4, bytes.length);
+
+        Map<String, Object> decoded =
+            new ValueReader(new DataInputStream(new ByteArrayInputStream(bytes))).readTable();
+        @SuppressWarnings("unchecked")
+        Map<String, Object> decodedInner = (Map<String, Object>) decoded.get("inner");
+        assertEquals("v\u00e4lue", decodedInner.get("k\u00e9y").toString());
+        assertEquals(42, decodedInner.get("num"));
+        assertEquals(new BigDecimal("12.345"), decoded.get("decimal"));
+        assertEquals(new Date(1234567890000L), decoded.get("date"));
+        assertEquals("long string", decoded.get("long").toString());
+    }
+
+    /**
+     * Test an invalid value fails the whole table, leaving the stream untouched
+     * @throws Exception untested
+     */
+    public void testInvalidValue() throws Exception {
+        Map<String, Object> table = new LinkedHashMap<String, Object>();
+        table.put("fine", "value");
+        table.put("bad", new Object());
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ValueWriter writer = new ValueWriter(new DataOutputStream(buffer));
+        try {
+            writer.writeTable(table);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        writer.flush();
+        assertEquals(0, buffer.size());
+    }
+
+    /**
+     * Test the per-thread encoder is handed out empty, and not twice at once
+     * @throws Exception untested
+     */
+    public void testAcquire() throws Exception {
+        TableEncoder first = TableEncoder.acquire();
+        first.longstr("something");
+        TableEncoder second = TableEncoder.acquire();
+        assertNotSame(first, second);
+        assertEquals(0, second.size());
+        TableEncoder.release(first);
+        TableEncoder again = TableEncoder.acquire();
+        assertSame(first, again);
+        assertEquals(0, again.size());
+        TableEncoder.release(again);
+    }
+
+    /**
+     * Test single field values are encoded by the table encoder, as in a table
+     * @throws Exception untested
+     */
+    public void testFieldValue() throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(expected);
+        out.writeByte('I');
+        out.writeInt(42);
+        out.writeByte('S');
+        out.writeInt(3);
+        out.write(new byte[] { 'a', 'b', 'c' });
+        out.writeByte('t');
+        out.writeByte(1);
+        out.writeByte('V');
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        ValueWriter writer = new ValueWriter(new DataOutputStream(actual));
+        writer.writeFieldValue(42);
+        writer.writeFieldValue("abc");
+        writer.writeFieldValue(true);
+        writer.writeFieldValue(null);
+        writer.flush();
+        assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+    }
+
+    /**
+     * Test an encoder which grew too big is kept, with a small array again
+     * @throws Exception untested
+     */
+    public void testReleaseShrinks() throws Exception {
+        TableEncoder encoder = TableEncoder.acquire();
+        encoder.longstr(new String(new char[512 * 1024]));
+        TableEncoder.release(encoder);
+        TableEncoder again = TableEncoder.acquire();
+        assertSame(encoder, again);
+        assertEquals(0, again.size());
+        again.longstr("small");
+        assertEquals(9, again.size());
+        TableEncoder.release(again);
+    }
+}
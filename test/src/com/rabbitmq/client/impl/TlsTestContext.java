@@ -0,0 +1,88 @@
+package com.rabbitmq.client3.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+import com.rabbitmq.client3.NullTrustManager;
+
+/**
+ * An SSL context for tests which need TLS without a broker: it holds a
+ * self-signed key for localhost, made with the JDK's keytool when first
+ * asked for, and trusts every certificate.
+ */
+public class TlsTestContext {
+    private static final String PASSWORD = "changeit";
+
+    private static SSLContext context;
+
+    /**
+     * @return a context which can act as either end of a TLS connection
+     * @throws Exception if keytool cannot make the key
+     */
+    public static synchronized SSLContext get() throws Exception {
+        if (context == null) {
+            context = create();
+        }
+        return context;
+    }
+
+    /**
+     * @return a new context, with its own session caches, over the same key
+     * @throws Exception if keytool cannot make the key
+     */
+    public static SSLContext create() throws Exception {
+        return create("TLS");
+    }
+
+    /**
+     * @param protocol the protocol to ask the context for, such as "TLSv1.2"
+     * @return a new context, with its own session caches, over the same key
+     * @throws Exception if keytool cannot make the key
+     */
+    public static SSLContext create(String protocol) throws Exception {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore(), PASSWORD.toCharArray());
+        SSLContext sslContext = SSLContext.getInstance(protocol);
+        sslContext.init(kmf.getKeyManagers(), new TrustManager[] { new NullTrustManager() }, null);
+        return sslContext;
+    }
+
+    private static KeyStore keyStore;
+
+    private static synchronized KeyStore keyStore() throws Exception {
+        if (keyStore != null) return keyStore;
+        File file = File.createTempFile("tls-test", ".jks");
+        try {
+            file.delete();
+            String keytool = System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "keytool";
+            Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "test",
+                    "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=localhost",
+                    "-validity", "1", "-storetype", "JKS", "-keystore", file.getPath(),
+                    "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true).start();
+            InputStream output = process.getInputStream();
+            while (output.read() != -1) { /* discard */ }
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException("keytool failed to make a test key");
+            }
+            KeyStore ks = KeyStore.getInstance("JKS");
+            FileInputStream in = new FileInputStream(file);
+            try {
+                ks.load(in, PASSWORD.toCharArray());
+            } finally {
+                in.close();
+            }
+            keyStore = ks;
+            return ks;
+        } finally {
+            file.delete();
+        }
+    }
+}
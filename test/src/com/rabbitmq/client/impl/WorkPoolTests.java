@@ -3,7 +3,12 @@ package com.rabbitmq.client3.impl;
 import junit.framework.TestCase;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Unit tests for {@link WorkPool}
@@ -155,4 +160,83 @@ public class WorkPoolTests extends TestCase {
         List<Object> workList = new ArrayList<Object>(16);
         assertNull(this.pool.nextWorkBlock(workList, 1));
     }
+
+    /**
+     * Test many threads adding and taking work: each client's items are
+     * processed in order, never by two threads at once, and each time a
+     * client becomes ready exactly one caller is told so.
+     * @throws Exception untested
+     */
+    public void testConcurrentClients() throws Exception {
+        final int producers = 4, keysPerProducer = 8, itemsPerKey = 2000, workers = 4;
+        final int total = producers * keysPerProducer * itemsPerKey;
+        final WorkPool<String, Integer> workPool = new WorkPool<String, Integer>();
+        final Map<String, AtomicInteger> expected = new ConcurrentHashMap<String, AtomicInteger>();
+        final Map<String, AtomicBoolean> busy = new ConcurrentHashMap<String, AtomicBoolean>();
+        for (int p = 0; p < producers; p++) {
+            for (int k = 0; k < keysPerProducer; k++) {
+                String key = p + "-" + k;
+                workPool.registerKey(key);
+                expected.put(key, new AtomicInteger());
+                busy.put(key, new AtomicBoolean());
+            }
+        }
+        final AtomicInteger madeReady = new AtomicInteger();
+        final AtomicInteger blocksTaken = new AtomicInteger();
+        final AtomicInteger processed = new AtomicInteger();
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads.add(new Thread() {
+                @Override public void run() {
+                    for (int i = 0; i < itemsPerKey; i++) {
+                        for (int k = 0; k < keysPerProducer; k++) {
+                            if (workPool.addWorkItem(producer + "-" + k, i)) {
+                                madeReady.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        for (int w = 0; w < workers; w++) {
+            threads.add(new Thread() {
+                @Override public void run() {
+                    List<Integer> block = new ArrayList<Integer>();
+                    while (processed.get() < total && failures.isEmpty()) {
+                        block.clear();
+                        String key = workPool.nextWorkBlock(block, 16);
+                        if (key == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        blocksTaken.incrementAndGet();
+                        if (!busy.get(key).compareAndSet(false, true)) {
+                            failures.add("Client " + key + " in progress twice");
+                        }
+                        for (Integer item : block) {
+                            int next = expected.get(key).getAndIncrement();
+                            if (item.intValue() != next) {
+                                failures.add("Client " + key + " got " + item + ", expected " + next);
+                            }
+                        }
+                        processed.addAndGet(block.size());
+                        busy.get(key).set(false);
+                        if (workPool.finishWorkBlock(key)) {
+                            madeReady.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join(60000);
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(total, processed.get());
+        assertEquals(blocksTaken.get(), madeReady.get());
+        assertNull(workPool.nextWorkBlock(new ArrayList<Integer>(), 1));
+    }
 }
@@ -0,0 +1,101 @@
+package com.rabbitmq.client3.impl;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link WriteBatcher}
+ */
+public class WriteBatcherTests extends TestCase {
+
+    private final CountingFrameHandler frameHandler = new CountingFrameHandler();
+
+    /**
+     * Test a full batch is flushed straight away
+     * @throws Exception untested
+     */
+    public void testFlushWhenBatchFull() throws Exception {
+        WriteBatcher batcher = new WriteBatcher(this.frameHandler, 100, TimeUnit.SECONDS.toMicros(60));
+        try {
+            batcher.bytesWritten(60);
+            batcher.commandWritten(false);
+            assertEquals(0, this.frameHandler.flushes);
+            batcher.bytesWritten(60);
+            batcher.commandWritten(false);
+            assertEquals(1, this.frameHandler.flushes);
+        } finally {
+            batcher.shutdown();
+        }
+    }
+
+    /**
+     * Test a command awaiting a reply is flushed straight away
+     * @throws Exception untested
+     */
+    public void testFlushWhenReplyAwaited() throws Exception {
+        WriteBatcher batcher = new WriteBatcher(this.frameHandler, 100, TimeUnit.SECONDS.toMicros(60));
+        try {
+            batcher.bytesWritten(10);
+            batcher.commandWritten(true);
+            assertEquals(1, this.frameHandler.flushes);
+        } finally {
+            batcher.shutdown();
+        }
+    }
+
+    /**
+     * Test a partial batch is flushed once, after the linger time
+     * @throws Exception untested
+     */
+    public void testFlushAfterLinger() throws Exception {
+        WriteBatcher batcher = new WriteBatcher(this.frameHandler, 100, 1000);
+        try {
+            for (int i = 0; i < 5; i++) {
+                batcher.bytesWritten(10);
+                batcher.commandWritten(false);
+            }
+            assertTrue(this.frameHandler.flushed.await(5, TimeUnit.SECONDS));
+            Thread.sleep(50);
+            assertEquals(1, this.frameHandler.flushes);
+        } finally {
+            batcher.shutdown();
+        }
+    }
+
+    /**
+     * Test commands are flushed straight away after shutdown
+     * @throws Exception untested
+     */
+    public void testFlushAfterShutdown() throws Exception {
+        WriteBatcher batcher = new WriteBatcher(this.frameHandler, 100, TimeUnit.SECONDS.toMicros(60));
+        batcher.shutdown();
+        batcher.bytesWritten(10);
+        batcher.commandWritten(false);
+        batcher.commandWritten(false);
+        assertEquals(2, this.frameHandler.flushes);
+    }
+
+    private static class CountingFrameHandler implements FrameHandler {
+        volatile int flushes = 0;
+        final CountDownLatch flushed = new CountDownLatch(1);
+
+        public void flush() throws IOException {
+            flushes++;
+            flushed.countDown();
+        }
+
+        public void setTimeout(int timeoutMs) throws SocketException {}
+        public int getTimeout() throws SocketException { return 0; }
+        public void sendHeader() throws IOException {}
+        public Frame readFrame() throws IOException { return null; }
+        public void writeFrame(Frame frame) throws IOException {}
+        public void close() {}
+        public InetAddress getAddress() { return null; }
+        public int getPort() { return -1; }
+    }
+}
@@ -30,12 +30,34 @@ public class ClientTests extends TestCase {
         suite.addTest(ValueOrExceptionTest.suite());
         suite.addTest(BrokenFramesTest.suite());
         suite.addTest(ClonePropertiesTest.suite());
+        suite.addTest(NioFrameHandlerTest.suite());
+        suite.addTest(SocketFrameHandlerTest.suite());
+        suite.addTest(ConnectionFactoryTlsTest.suite());
+        suite.addTest(MessageBatchTest.suite());
+        suite.addTest(KeyOrderedConsumerTest.suite());
         suite.addTestSuite(Bug20004Test.class);
         suite.addTestSuite(CloseInMainLoop.class);
         suite.addTestSuite(ChannelNumberAllocationTests.class);
         suite.addTestSuite(QueueingConsumerShutdownTests.class);
         suite.addTestSuite(MultiThreadedChannel.class);
         suite.addTestSuite(com.rabbitmq.utility3.IntAllocatorTests.class);
+        suite.addTestSuite(com.rabbitmq.client3.impl.BufferArenaTests.class);
+        suite.addTestSuite(com.rabbitmq.client3.impl.WriteBatcherTests.class);
+        suite.addTestSuite(com.rabbitmq.client3.impl.FrameWriterTests.class);
+        suite.addTestSuite(com.rabbitmq.client3.impl.FrameSchedulerTests.class);
+        suite.addTestSuite(com.rabbitmq.client3.impl.FrameDecodeServiceTests.class);
+        suite.addTestSuite(com.rabbitmq.client3.impl.LazyBasicPropertiesTests.class);
+        suite.addTestSuite(com.rabbitmq.client3.impl.EncodedTableTests.class);
+        suite.addTestSuite(com.rabbitmq.client3.impl.ShortStringCacheTests.class);
+        suite.addTestSuite(com.rabbitmq.client3.impl.PublishTemplateTests.class);
+        suite.addTestSuite(com.rabbitmq.client3.impl.MethodDispatchTests.class);
+        suite.addTestSuite(com.rabbitmq.client3.impl.TableEncoderTests.class);
+        suite.addTestSuite(com.rabbitmq.client3.impl.ContentStreamingTests.class);
+        suite.addTestSuite(com.rabbitmq.client3.impl.ByteBufferBodyTests.class);
+        suite.addTestSuite(com.rabbitmq.client3.impl.ContentCompressorTests.class);
+        suite.addTestSuite(com.rabbitmq.client3.impl.ConsumerWorkServiceTests.class);
+        suite.addTestSuite(com.rabbitmq.client3.impl.ConsumerDispatcherTests.class);
+        suite.addTestSuite(com.rabbitmq.client3.impl.SslEngineChannelTests.class);
         suite.addTestSuite(AMQBuilderApiTest.class);
         suite.addTestSuite(AmqpUriTest.class);
         suite.addTestSuite(JSONReadWriteTest.class);
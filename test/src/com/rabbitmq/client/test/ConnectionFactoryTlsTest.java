@@ -0,0 +1,146 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.rabbitmq.client3.Address;
+import com.rabbitmq.client3.ConnectionFactory;
+import com.rabbitmq.client3.impl.FrameHandler;
+import com.rabbitmq.client3.impl.TlsTestContext;
+
+/**
+ * Checks that the connection factory finishes the TLS handshake before
+ * handing over a frame handler, and counts resumed sessions, against a
+ * local TLS server rather than a broker.
+ */
+public class ConnectionFactoryTlsTest extends TestCase {
+    public static TestSuite suite() {
+        TestSuite suite = new TestSuite("connectionFactoryTls");
+        suite.addTestSuite(ConnectionFactoryTlsTest.class);
+        return suite;
+    }
+
+    private static final int TIMEOUT = 10000;
+
+    /** Exposes the frame handler the factory would give a connection */
+    private static class TestConnectionFactory extends ConnectionFactory {
+        FrameHandler connect(Address address) throws IOException {
+            return createFrameHandler(address);
+        }
+    }
+
+    private SSLServerSocket server;
+    private final List<SSLSocket> accepted = new ArrayList<SSLSocket>();
+    /** A permit for each connection whose handshake the server finished */
+    private final Semaphore handshakes = new Semaphore(0);
+    private final List<FrameHandler> handlers = new ArrayList<FrameHandler>();
+    private Address address;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = (SSLServerSocket) TlsTestContext.get().getServerSocketFactory()
+            .createServerSocket(0, 5, InetAddress.getByName("127.0.0.1"));
+        address = new Address("127.0.0.1", server.getLocalPort());
+        Thread acceptor = new Thread() {
+            @Override public void run() {
+                try {
+                    while (true) {
+                        SSLSocket socket = (SSLSocket) server.accept();
+                        synchronized (accepted) {
+                            accepted.add(socket);
+                        }
+                        socket.setSoTimeout(TIMEOUT);
+                        socket.startHandshake();
+                        handshakes.release();
+                    }
+                } catch (IOException e) {
+                    // the server socket was closed, or a handshake failed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (FrameHandler handler : handlers) {
+            handler.close();
+        }
+        server.close();
+        synchronized (accepted) {
+            for (SSLSocket socket : accepted) {
+                socket.close();
+            }
+        }
+        super.tearDown();
+    }
+
+    public void testBlockingHandshakeBeforeHandler() throws Exception {
+        TestConnectionFactory factory = new TestConnectionFactory();
+        factory.useSslProtocol(TlsTestContext.create("TLSv1.2"));
+        checkHandshakesAndResumption(factory);
+    }
+
+    public void testNioHandshakeBeforeHandler() throws Exception {
+        TestConnectionFactory factory = new TestConnectionFactory();
+        factory.useSslProtocol(TlsTestContext.create("TLSv1.2"));
+        factory.useNio();
+        checkHandshakesAndResumption(factory);
+    }
+
+    /**
+     * Nothing is read or written through the handlers, so the server only
+     * finishes its handshakes if the factory ran the client's.
+     */
+    private void checkHandshakesAndResumption(TestConnectionFactory factory) throws Exception {
+        handlers.add(factory.connect(address));
+        assertTrue(handshakes.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(0, factory.getTlsSessionCacheHits());
+        assertEquals(1, factory.getTlsSessionCacheMisses());
+
+        handlers.add(factory.connect(address));
+        assertTrue(handshakes.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(1, factory.getTlsSessionCacheHits());
+        assertEquals(1, factory.getTlsSessionCacheMisses());
+    }
+
+    public void testNewContextMisses() throws Exception {
+        TestConnectionFactory factory = new TestConnectionFactory();
+        factory.useSslProtocol(TlsTestContext.create("TLSv1.2"));
+        handlers.add(factory.connect(address));
+        factory.useSslProtocol(TlsTestContext.create("TLSv1.2"));
+        handlers.add(factory.connect(address));
+        assertTrue(handshakes.tryAcquire(2, TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(0, factory.getTlsSessionCacheHits());
+        assertEquals(2, factory.getTlsSessionCacheMisses());
+    }
+}
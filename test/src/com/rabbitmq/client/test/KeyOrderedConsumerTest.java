@@ -0,0 +1,211 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.rabbitmq.client3.AMQP;
+import com.rabbitmq.client3.Channel;
+import com.rabbitmq.client3.Envelope;
+import com.rabbitmq.client3.KeyOrderedConsumer;
+
+/**
+ * Tests for {@link KeyOrderedConsumer}, acknowledging to a stub channel.
+ */
+public class KeyOrderedConsumerTest extends TestCase {
+
+    public static TestSuite suite()
+    {
+        TestSuite suite = new TestSuite("keyOrderedConsumer");
+        suite.addTestSuite(KeyOrderedConsumerTest.class);
+        return suite;
+    }
+
+    /** acks and rejects sent to the stub channel, in order */
+    private final List<String> settled = Collections.synchronizedList(new ArrayList<String>());
+
+    /** if set, acks wait for it to open before being sent */
+    private volatile CountDownLatch ackGate = null;
+    /** opened once an ack is waiting at the gate */
+    private final CountDownLatch ackWaiting = new CountDownLatch(1);
+
+    private final Channel channel = StubChannel.create(new StubChannel.Methods() {
+            public Object invoke(String name, Object[] args) {
+                if (name.equals("basicAck")) {
+                    CountDownLatch gate = ackGate;
+                    if (gate != null) {
+                        ackWaiting.countDown();
+                        try {
+                            gate.await();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    settled.add("ack " + args[0] + " " + args[1]);
+                } else if (name.equals("basicReject")) {
+                    settled.add("reject " + args[0] + " " + args[1]);
+                } else {
+                    throw new UnsupportedOperationException(name);
+                }
+                return null;
+            }
+        });
+
+    /** Keys messages by the integer in their type property */
+    private static final KeyOrderedConsumer.KeyFunction TYPE = new KeyOrderedConsumer.KeyFunction() {
+        public Object keyOf(Envelope envelope, AMQP.BasicProperties properties) {
+            return Integer.valueOf(properties.getType());
+        }
+    };
+
+    private KeyOrderedConsumer consumer;
+
+    @Override protected void tearDown() throws Exception {
+        if (consumer != null) {
+            consumer.handleShutdownSignal("tag", null);
+            consumer.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    public void testKeyOrder() throws Exception {
+        final int messages = 2000, keys = 10;
+        final Map<Integer, List<Long>> handled = new HashMap<Integer, List<Long>>();
+        for (int k = 0; k < keys; k++) {
+            handled.put(k, Collections.synchronizedList(new ArrayList<Long>()));
+        }
+        consumer = new KeyOrderedConsumer(channel, 4, TYPE) {
+            protected void handleMessage(String consumerTag, Envelope envelope,
+                                         AMQP.BasicProperties properties, byte[] body) {
+                handled.get(Integer.valueOf(properties.getType())).add(envelope.getDeliveryTag());
+            }
+        };
+        for (long tag = 1; tag <= messages; tag++) {
+            deliver(tag, (int) (tag % keys));
+        }
+        awaitSettled("ack " + messages + " true");
+        consumer.handleCancelOk("tag");
+        assertTrue(consumer.awaitTermination(10, TimeUnit.SECONDS));
+
+        int total = 0;
+        for (List<Long> tags : handled.values()) {
+            for (int i = 1; i < tags.size(); i++) {
+                assertTrue(tags.get(i - 1) < tags.get(i));
+            }
+            total += tags.size();
+        }
+        assertEquals(messages, total);
+        long last = 0;
+        for (String ack : new ArrayList<String>(settled)) {
+            long tag = Long.parseLong(ack.split(" ")[1]);
+            assertTrue(tag > last);
+            last = tag;
+        }
+    }
+
+    public void testAckCoalescing() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch fastDone = new CountDownLatch(4);
+        consumer = new KeyOrderedConsumer(channel, 2, TYPE) {
+            protected void handleMessage(String consumerTag, Envelope envelope,
+                                         AMQP.BasicProperties properties, byte[] body)
+                throws InterruptedException
+            {
+                if (envelope.getDeliveryTag() == 1) {
+                    release.await();
+                } else {
+                    fastDone.countDown();
+                }
+            }
+        };
+        deliver(1, 0);
+        for (long tag = 2; tag <= 5; tag++) {
+            deliver(tag, 1);
+        }
+        assertTrue(fastDone.await(10, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertTrue(settled.toString(), settled.isEmpty());
+        release.countDown();
+        awaitSettled("ack 5 true");
+        assertEquals(Arrays.asList("ack 5 true"), settled);
+    }
+
+    public void testFailures() throws Exception {
+        consumer = new KeyOrderedConsumer(channel, 1, TYPE) {
+            protected void handleMessage(String consumerTag, Envelope envelope,
+                                         AMQP.BasicProperties properties, byte[] body) {
+                if (envelope.getDeliveryTag() % 2 == 0) {
+                    throw new IllegalArgumentException("bad message");
+                }
+            }
+        };
+        for (long tag = 1; tag <= 4; tag++) {
+            deliver(tag, 0);
+        }
+        awaitSettled("reject 4 false");
+        // no acknowledgement ends on a rejected tag
+        assertEquals(Arrays.asList("ack 1 true", "reject 2 false", "ack 3 true", "reject 4 false"),
+                     settled);
+    }
+
+    public void testSlowAckDoesNotBlockDelivery() throws Exception {
+        ackGate = new CountDownLatch(1);
+        consumer = new KeyOrderedConsumer(channel, 2, TYPE) {
+            protected void handleMessage(String consumerTag, Envelope envelope,
+                                         AMQP.BasicProperties properties, byte[] body) {
+            }
+        };
+        deliver(1, 0);
+        assertTrue(ackWaiting.await(10, TimeUnit.SECONDS));
+        Thread deliverer = new Thread() {
+            @Override public void run() {
+                deliver(2, 1);
+            }
+        };
+        deliverer.start();
+        deliverer.join(10000);
+        assertFalse("delivery blocked behind an ack", deliverer.isAlive());
+        ackGate.countDown();
+        awaitSettled("ack 2 true");
+        assertEquals(Arrays.asList("ack 1 true", "ack 2 true"), settled);
+    }
+
+    private void deliver(long tag, int key) {
+        consumer.handleDelivery("tag", new Envelope(tag, false, "x", "k"),
+                                new AMQP.BasicProperties.Builder().type(Integer.toString(key)).build(),
+                                new byte[0]);
+    }
+
+    private void awaitSettled(String last) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!settled.contains(last)) {
+            assertTrue("Timed out waiting for " + last + " in " + settled,
+                       System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
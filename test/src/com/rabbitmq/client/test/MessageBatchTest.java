@@ -0,0 +1,248 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.rabbitmq.client3.AMQP;
+import com.rabbitmq.client3.BatchingConsumer;
+import com.rabbitmq.client3.BatchingPublisher;
+import com.rabbitmq.client3.Channel;
+import com.rabbitmq.client3.Envelope;
+import com.rabbitmq.client3.MessageBatch;
+
+/**
+ * Tests for {@link MessageBatch}, {@link BatchingPublisher} and
+ * {@link BatchingConsumer}, publishing to a stub channel.
+ */
+public class MessageBatchTest extends TestCase {
+
+    public static TestSuite suite()
+    {
+        TestSuite suite = new TestSuite("messageBatch");
+        suite.addTestSuite(MessageBatchTest.class);
+        return suite;
+    }
+
+    /** batches published to the stub channel */
+    private final BlockingQueue<Published> published = new LinkedBlockingQueue<Published>();
+    /** thrown by the stub channel's basicPublish, if set */
+    private volatile IOException publishFailure = null;
+
+    private final Channel channel = StubChannel.create(new StubChannel.Methods() {
+            public Object invoke(String name, Object[] args) throws IOException {
+                if (!name.equals("basicPublish")) {
+                    throw new UnsupportedOperationException(name);
+                }
+                if (publishFailure != null) {
+                    throw publishFailure;
+                }
+                published.add(new Published((AMQP.BasicProperties) args[2], (byte[]) args[3]));
+                return null;
+            }
+        });
+
+    public void testPackUnpack() throws IOException {
+        List<byte[]> messages = Arrays.asList(new byte[0], bytes(1, 127), bytes(2, 128),
+                                              bytes(3, 16383), bytes(4, 16384), bytes(5, 80));
+        byte[] batch = MessageBatch.pack(messages);
+        assertEquals(0 + 1 + 127 + 1 + 128 + 2 + 16383 + 2 + 16384 + 3 + 80 + 1, batch.length);
+        assertMessages(messages, MessageBatch.unpack(batch));
+        assertEquals(0, MessageBatch.unpack(new byte[0]).size());
+    }
+
+    public void testMalformedBatch() {
+        assertMalformed(new byte[] { 5, 1, 2 });
+        assertMalformed(new byte[] { (byte) 0x80 });
+        assertMalformed(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0 });
+    }
+
+    public void testFlushByCount() throws IOException {
+        BatchingPublisher publisher = new BatchingPublisher(channel, "x", "k", null, 3, 1 << 20);
+        for (int i = 0; i < 7; i++) {
+            publisher.publish(bytes(i, 80));
+        }
+        assertEquals(2, published.size());
+        assertEquals(1, publisher.getPendingCount());
+        publisher.close();
+        List<byte[]> all = new ArrayList<byte[]>();
+        for (Published p : published) {
+            assertEquals(MessageBatch.CONTENT_TYPE, p.props.getContentType());
+            all.addAll(MessageBatch.unpack(p.body));
+        }
+        assertEquals(7, all.size());
+        for (int i = 0; i < 7; i++) {
+            assertTrue(Arrays.equals(bytes(i, 80), all.get(i)));
+        }
+        try {
+            publisher.publish(bytes(0, 1));
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+    }
+
+    public void testFlushByBytes() throws IOException {
+        BatchingPublisher publisher = new BatchingPublisher(channel, "x", "k", null, 100, 200);
+        publisher.publish(bytes(1, 80));
+        publisher.publish(bytes(2, 80));
+        assertEquals(0, published.size());
+        // would take the batch past 200 bytes, so the first two go alone
+        publisher.publish(bytes(3, 80));
+        assertEquals(1, published.size());
+        assertEquals(2, MessageBatch.unpack(published.poll().body).size());
+        // too big for any batch: published at once, on its own
+        publisher.publish(bytes(4, 500));
+        assertEquals(2, published.size());
+        assertEquals(1, MessageBatch.unpack(published.poll().body).size());
+        assertEquals(1, MessageBatch.unpack(published.poll().body).size());
+    }
+
+    public void testFlushByLinger() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            BatchingPublisher publisher =
+                new BatchingPublisher(channel, "x", "k", null, 100, 1 << 20, 50, scheduler);
+            publisher.publish(bytes(1, 80));
+            publisher.publish(bytes(2, 80));
+            Published p = published.poll(5, TimeUnit.SECONDS);
+            assertNotNull(p);
+            assertEquals(2, MessageBatch.unpack(p.body).size());
+            assertEquals(0, publisher.getPendingCount());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public void testCloseAfterLingerFailure() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            BatchingPublisher publisher =
+                new BatchingPublisher(channel, "x", "k", null, 100, 1 << 20, 50, scheduler);
+            IOException failure = new IOException("publish failed");
+            publishFailure = failure;
+            publisher.publish(bytes(1, 80));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (publisher.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, publisher.getPendingCount());
+            publishFailure = null;
+            try {
+                publisher.close();
+                fail("Expected the linger failure");
+            } catch (IOException expected) {
+                assertSame(failure, expected);
+            }
+            try {
+                publisher.publish(bytes(2, 1));
+                fail("Expected IllegalStateException");
+            } catch (IllegalStateException expected) {
+                // closed despite the failure
+            }
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public void testCloseReportsPublishFailure() throws IOException {
+        BatchingPublisher publisher = new BatchingPublisher(channel, "x", "k", null, 100, 1 << 20);
+        publisher.publish(bytes(1, 80));
+        publishFailure = new IOException("publish failed");
+        try {
+            publisher.close();
+            fail("Expected IOException");
+        } catch (IOException expected) {
+            assertSame(publishFailure, expected);
+        }
+        assertEquals(0, publisher.getPendingCount());
+        publishFailure = null;
+        publisher.close();
+        assertEquals(0, published.size());
+    }
+
+    public void testConsumer() throws IOException {
+        final List<byte[]> received = new ArrayList<byte[]>();
+        final List<Boolean> last = new ArrayList<Boolean>();
+        BatchingConsumer consumer = new BatchingConsumer(channel) {
+            public void handleMessage(String consumerTag, Envelope envelope,
+                                      AMQP.BasicProperties properties, byte[] body,
+                                      boolean lastInDelivery) {
+                received.add(body);
+                last.add(lastInDelivery);
+            }
+        };
+        Envelope envelope = new Envelope(1, false, "x", "k");
+        List<byte[]> messages = Arrays.asList(bytes(1, 3), bytes(2, 4));
+        AMQP.BasicProperties batchProps =
+            new AMQP.BasicProperties.Builder().contentType(MessageBatch.CONTENT_TYPE).build();
+        consumer.handleDelivery("tag", envelope, batchProps, MessageBatch.pack(messages));
+        consumer.handleDelivery("tag", envelope, null, bytes(3, 5));
+        assertMessages(Arrays.asList(bytes(1, 3), bytes(2, 4), bytes(3, 5)), received);
+        assertEquals(Arrays.asList(false, true, true), last);
+
+        // an empty batch is still a delivery, so must be seen as its last message
+        consumer.handleDelivery("tag", envelope, batchProps, new byte[0]);
+        assertEquals(4, received.size());
+        assertEquals(0, received.get(3).length);
+        assertEquals(Boolean.TRUE, last.get(3));
+    }
+
+    private static void assertMalformed(byte[] batch) {
+        try {
+            MessageBatch.unpack(batch);
+            fail("Expected IOException");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    private static void assertMessages(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertTrue(Arrays.equals(expected.get(i), actual.get(i)));
+        }
+    }
+
+    private static byte[] bytes(int seed, int length) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) seed);
+        return bytes;
+    }
+
+    private static class Published {
+        final AMQP.BasicProperties props;
+        final byte[] body;
+
+        Published(AMQP.BasicProperties props, byte[] body) {
+            this.props = props;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.rabbitmq.client3.AMQP;
+import com.rabbitmq.client3.impl.Frame;
+import com.rabbitmq.client3.impl.FrameReceiver;
+import com.rabbitmq.client3.impl.NioFrameHandler;
+import com.rabbitmq.client3.impl.NioLoopGroup;
+
+public class NioFrameHandlerTest extends TestCase {
+    public static TestSuite suite() {
+        TestSuite suite = new TestSuite("nioFrameHandler");
+        suite.addTestSuite(NioFrameHandlerTest.class);
+        return suite;
+    }
+
+    private ServerSocket server;
+    private Socket peer;
+    private NioFrameHandler handler;
+    private RecordingReceiver receiver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        SocketChannel channel = SocketChannel.open(
+            new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+        peer = server.accept();
+        handler = new NioLoopGroup(1).newFrameHandler(channel);
+        receiver = new RecordingReceiver();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        handler.close();
+        peer.close();
+        server.close();
+        super.tearDown();
+    }
+
+    public void testPartialFrameIsNotConsumed() throws IOException {
+        byte[] bytes = frameBytes(frame(AMQP.FRAME_BODY, 3, 10));
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, bytes.length - 1);
+        assertNull(Frame.readFrom(buffer));
+        assertEquals(0, buffer.position());
+
+        buffer = ByteBuffer.wrap(bytes);
+        Frame frame = Frame.readFrom(buffer);
+        assertEquals(AMQP.FRAME_BODY, frame.type);
+        assertEquals(3, frame.channel);
+        assertEquals(10, frame.getPayload().length);
+        assertFalse(buffer.hasRemaining());
+    }
+
+    public void testFramesSplitAcrossReads() throws Exception {
+        handler.startReading(receiver);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        wire.write(frameBytes(frame(AMQP.FRAME_METHOD, 1, 20)));
+        wire.write(frameBytes(frame(AMQP.FRAME_BODY, 2, NioFrameHandler.DEFAULT_READ_BUFFER_SIZE * 3)));
+        byte[] bytes = wire.toByteArray();
+
+        OutputStream out = peer.getOutputStream();
+        int split = 25;
+        out.write(bytes, 0, split);
+        out.flush();
+        Thread.sleep(50);
+        out.write(bytes, split, bytes.length - split);
+        out.flush();
+
+        Frame first = receiver.frames.poll(5, TimeUnit.SECONDS);
+        Frame second = receiver.frames.poll(5, TimeUnit.SECONDS);
+        assertNotNull(first);
+        assertEquals(1, first.channel);
+        assertEquals(20, first.getPayload().length);
+        assertNotNull(second);
+        assertEquals(2, second.channel);
+        assertEquals(NioFrameHandler.DEFAULT_READ_BUFFER_SIZE * 3, second.getPayload().length);
+    }
+
+    public void testEndOfStreamTerminates() throws Exception {
+        handler.startReading(receiver);
+        peer.close();
+        assertTrue(receiver.terminated.await(5, TimeUnit.SECONDS));
+        assertTrue(receiver.cause instanceof EOFException);
+    }
+
+    public void testTimeout() throws Exception {
+        handler.setTimeout(20);
+        handler.startReading(receiver);
+        assertTrue(receiver.timeouts.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testReadFrame() throws Exception {
+        OutputStream out = peer.getOutputStream();
+        out.write(frameBytes(frame(AMQP.FRAME_METHOD, 1, 20)));
+        out.write(frameBytes(frame(AMQP.FRAME_BODY, 2, 30)));
+        out.flush();
+        handler.setTimeout(5000);
+        Frame first = handler.readFrame();
+        Frame second = handler.readFrame();
+        assertEquals(1, first.channel);
+        assertEquals(20, first.getPayload().length);
+        assertEquals(2, second.channel);
+        assertEquals(30, second.getPayload().length);
+
+        handler.setTimeout(20);
+        assertNull(handler.readFrame());
+
+        handler.setTimeout(5000);
+        peer.close();
+        try {
+            handler.readFrame();
+            fail("expected EOFException");
+        } catch (EOFException expected) {
+        }
+    }
+
+    public void testReadFrameAfterClose() throws Exception {
+        handler.setTimeout(20);
+        assertNull(handler.readFrame());
+        handler.close();
+        try {
+            handler.readFrame();
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testReadFrameAfterStartReading() throws Exception {
+        handler.startReading(receiver);
+        try {
+            handler.readFrame();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testGatheringWriteMatchesFrameEncoding() throws Exception {
+        byte[] body = new byte[1000];
+        for (int i = 0; i < body.length; i++) body[i] = (byte) i;
+        List<Frame> frames = new ArrayList<Frame>();
+        frames.add(frame(AMQP.FRAME_METHOD, 5, 12));
+        frames.add(frame(AMQP.FRAME_HEADER, 5, 14));
+        frames.add(Frame.fromBodyFragment(5, body, 0, 600));
+        frames.add(Frame.fromBodyFragment(5, body, 600, 400));
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (Frame frame : frames) {
+            expected.write(frameBytes(frame));
+        }
+        handler.writeFrames(frames);
+
+        byte[] received = new byte[expected.size()];
+        new DataInputStream(peer.getInputStream()).readFully(received);
+        assertTrue(Arrays.equals(expected.toByteArray(), received));
+    }
+
+    public void testBodyFragmentPayloadIsSlice() throws IOException {
+        byte[] body = new byte[] { 1, 2, 3, 4, 5 };
+        Frame frame = Frame.fromBodyFragment(1, body, 1, 3);
+        assertTrue(Arrays.equals(new byte[] { 2, 3, 4 }, frame.getPayload()));
+        assertEquals(3 + 8, frameBytes(frame).length);
+    }
+
+    private static Frame frame(int type, int channel, int size) throws IOException {
+        Frame frame = new Frame(type, channel);
+        frame.getOutputStream().write(new byte[size]);
+        return frame;
+    }
+
+    private static byte[] frameBytes(Frame frame) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        frame.writeTo(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static class RecordingReceiver implements FrameReceiver {
+        final BlockingQueue<Frame> frames = new LinkedBlockingQueue<Frame>();
+        final CountDownLatch timeouts = new CountDownLatch(2);
+        final CountDownLatch terminated = new CountDownLatch(1);
+        volatile Throwable cause;
+
+        public boolean isRunning() {
+            return true;
+        }
+
+        public void handleFrame(Frame frame) {
+            frames.add(frame);
+        }
+
+        public void handleTimeout() {
+            timeouts.countDown();
+        }
+
+        public void handleTermination(Throwable cause) {
+            this.cause = cause;
+            terminated.countDown();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.rabbitmq.client3.AMQP;
+import com.rabbitmq.client3.Address;
+import com.rabbitmq.client3.ConnectionFactory;
+import com.rabbitmq.client3.impl.Frame;
+import com.rabbitmq.client3.impl.FrameHandler;
+import com.rabbitmq.client3.impl.SocketFrameHandler;
+
+public class SocketFrameHandlerTest extends TestCase {
+    public static TestSuite suite() {
+        TestSuite suite = new TestSuite("socketFrameHandler");
+        suite.addTestSuite(SocketFrameHandlerTest.class);
+        return suite;
+    }
+
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    private ServerSocket server;
+    private Socket peer;
+    private SocketFrameHandler handler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        Socket socket = new Socket("127.0.0.1", server.getLocalPort());
+        peer = server.accept();
+        handler = new SocketFrameHandler(socket, true, READ_BUFFER_SIZE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        handler.close();
+        peer.close();
+        server.close();
+        super.tearDown();
+    }
+
+    public void testReadAheadBatch() throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        for (int i = 1; i <= 10; i++) {
+            wire.write(frameBytes(new Frame(AMQP.FRAME_METHOD, i, new byte[20])));
+        }
+        OutputStream out = peer.getOutputStream();
+        out.write(wire.toByteArray());
+        out.flush();
+
+        List<Frame> frames = new ArrayList<Frame>();
+        while (frames.size() < 10) {
+            assertTrue(handler.readFrames(frames) > 0);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i + 1, frames.get(i).channel);
+            assertEquals(20, frames.get(i).getPayloadLength());
+        }
+    }
+
+    public void testFrameLargerThanBuffer() throws Exception {
+        byte[] big = frameBytes(new Frame(AMQP.FRAME_BODY, 1, new byte[READ_BUFFER_SIZE * 5]));
+        OutputStream out = peer.getOutputStream();
+        out.write(big, 0, 100);
+        out.flush();
+        Thread.sleep(20);
+        out.write(big, 100, big.length - 100);
+        out.flush();
+
+        Frame frame = handler.readFrame();
+        assertEquals(READ_BUFFER_SIZE * 5, frame.getPayloadLength());
+    }
+
+    public void testTimeout() throws Exception {
+        handler.setTimeout(20);
+        List<Frame> frames = new ArrayList<Frame>();
+        assertEquals(0, handler.readFrames(frames));
+        assertNull(handler.readFrame());
+    }
+
+    public void testEndOfStream() throws Exception {
+        peer.close();
+        try {
+            handler.readFrame();
+            fail("expected EOFException");
+        } catch (EOFException expected) {
+        }
+    }
+
+    public void testWriteFileRegion() throws Exception {
+        assertFalse(handler.canTransferFiles());
+
+        File file = File.createTempFile("body", ".bin");
+        SocketChannel channel = SocketChannel.open(server.getLocalSocketAddress());
+        Socket channelPeer = server.accept();
+        SocketFrameHandler channelHandler = new SocketFrameHandler(channel.socket(), false, 0);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] contents = new byte[100000];
+            for (int i = 0; i < contents.length; i++) {
+                contents[i] = (byte) (i * 7);
+            }
+            raf.write(contents);
+            assertTrue(channelHandler.canTransferFiles());
+
+            channelHandler.writeFrame(new Frame(AMQP.FRAME_METHOD, 3, new byte[4]));
+            channelHandler.writeFileRegion(3, raf.getChannel(), 1000, 50000);
+            channelHandler.flush();
+
+            DataInputStream in = new DataInputStream(channelPeer.getInputStream());
+            assertEquals(AMQP.FRAME_METHOD, Frame.readFrom(in).type);
+            Frame body = Frame.readFrom(in);
+            assertEquals(AMQP.FRAME_BODY, body.type);
+            assertEquals(3, body.channel);
+            byte[] expected = new byte[50000];
+            System.arraycopy(contents, 1000, expected, 0, expected.length);
+            assertTrue(Arrays.equals(expected, body.getPayload()));
+        } finally {
+            raf.close();
+            channelHandler.close();
+            channelPeer.close();
+            file.delete();
+        }
+    }
+
+    /** Exposes the frame handler the factory would give a connection */
+    private static class TestConnectionFactory extends ConnectionFactory {
+        FrameHandler connect(Address address) throws IOException {
+            return createFrameHandler(address);
+        }
+    }
+
+    public void testDefaultFactorySocketHasChannel() throws Exception {
+        FrameHandler factoryHandler =
+            new TestConnectionFactory().connect(new Address("127.0.0.1", server.getLocalPort()));
+        Socket factoryPeer = server.accept();
+        try {
+            assertTrue(((SocketFrameHandler) factoryHandler).canTransferFiles());
+            // timeouts still work on a channel's socket, as heartbeats need
+            factoryHandler.setTimeout(20);
+            assertNull(factoryHandler.readFrame());
+        } finally {
+            factoryHandler.close();
+            factoryPeer.close();
+        }
+    }
+
+    private static byte[] frameBytes(Frame frame) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        frame.writeTo(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,79 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.rabbitmq.client3.Channel;
+
+/**
+ * Stub {@link Channel}s for tests which need a channel but no broker.
+ * A stub is equal only to itself, and hands every other method to the
+ * test's {@link Methods}.
+ */
+public final class StubChannel {
+    /**
+     * Stands in for the channel methods a test uses.
+     */
+    public interface Methods {
+        /**
+         * @param name the name of the channel method called
+         * @param args its arguments, or null if it has none
+         * @return the method's result
+         * @throws IOException as the channel method may
+         * @throws UnsupportedOperationException for methods not stood in for
+         */
+        Object invoke(String name, Object[] args) throws IOException;
+    }
+
+    /** Stands in for no methods at all */
+    private static final Methods NONE = new Methods() {
+        public Object invoke(String name, Object[] args) {
+            throw new UnsupportedOperationException(name);
+        }
+    };
+
+    private StubChannel() {
+    }
+
+    /** @return a stub channel on which every channel method fails */
+    public static Channel create() {
+        return create(NONE);
+    }
+
+    /**
+     * @param methods what the stub's channel methods do
+     * @return a stub channel
+     */
+    public static Channel create(final Methods methods) {
+        return (Channel) Proxy.newProxyInstance(
+            Channel.class.getClassLoader(), new Class<?>[] { Channel.class },
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws IOException {
+                    String name = method.getName();
+                    if (name.equals("hashCode")) return System.identityHashCode(proxy);
+                    if (name.equals("equals")) return proxy == args[0];
+                    if (name.equals("toString")) return "StubChannel@" + System.identityHashCode(proxy);
+                    return methods.invoke(name, args);
+                }
+            });
+    }
+}
@@ -0,0 +1,97 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.test.functional;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client3.AMQP;
+import com.rabbitmq.client3.Channel;
+import com.rabbitmq.client3.DefaultConsumer;
+import com.rabbitmq.client3.Envelope;
+import com.rabbitmq.client3.MessageProperties;
+import com.rabbitmq.client3.StreamingConsumer;
+import com.rabbitmq.client3.test.BrokerTestCase;
+
+/**
+ * Test message bodies are streamed to a {@link StreamingConsumer} in chunks.
+ */
+public class StreamingConsumption extends BrokerTestCase {
+    private static final int BODY_SIZE = 1024 * 1024;
+
+    public void testLargeBodyStreamed() throws Exception {
+        byte[] body = new byte[BODY_SIZE];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        ChunkCollector collector = consume(body);
+        assertEquals(BODY_SIZE, collector.bodySize);
+        assertTrue(Arrays.equals(body, collector.body.toByteArray()));
+        assertTrue("expected several chunks, got " + collector.chunks, collector.chunks > 1);
+    }
+
+    public void testEmptyBody() throws Exception {
+        ChunkCollector collector = consume(new byte[0]);
+        assertEquals(0, collector.bodySize);
+        assertEquals(0, collector.chunks);
+    }
+
+    private ChunkCollector consume(byte[] body) throws Exception {
+        String queue = channel.queueDeclare().getQueue();
+        channel.basicPublish("", queue, MessageProperties.MINIMAL_BASIC, body);
+        ChunkCollector collector = new ChunkCollector(channel);
+        channel.basicConsume(queue, true, collector);
+        assertTrue(collector.ended.await(10, TimeUnit.SECONDS));
+        assertFalse(collector.wholeDelivery);
+        return collector;
+    }
+
+    private static class ChunkCollector extends DefaultConsumer implements StreamingConsumer {
+        final CountDownLatch ended = new CountDownLatch(1);
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        volatile long bodySize = -1;
+        volatile int chunks = 0;
+        volatile boolean wholeDelivery = false;
+
+        ChunkCollector(Channel channel) {
+            super(channel);
+        }
+
+        public void handleDeliveryStart(String consumerTag, Envelope envelope,
+                                        AMQP.BasicProperties properties) {
+            bodySize = properties.getBodySize();
+        }
+
+        public void handleBodyChunk(String consumerTag, byte[] chunk) throws IOException {
+            chunks++;
+            body.write(chunk);
+        }
+
+        public void handleDeliveryEnd(String consumerTag) {
+            ended.countDown();
+        }
+
+        @Override public void handleDelivery(String consumerTag, Envelope envelope,
+                                             AMQP.BasicProperties properties, byte[] body) {
+            wholeDelivery = true;
+        }
+    }
+}
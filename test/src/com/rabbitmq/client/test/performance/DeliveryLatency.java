@@ -0,0 +1,158 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.test.performance;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+
+import com.rabbitmq.client3.AMQP;
+import com.rabbitmq.client3.Channel;
+import com.rabbitmq.client3.Connection;
+import com.rabbitmq.client3.ConnectionFactory;
+import com.rabbitmq.client3.DefaultConsumer;
+import com.rabbitmq.client3.Envelope;
+
+/**
+ * Measures the latency from publishing a message to its consumer being
+ * called, with consumers called on the consumer executor and inline on
+ * the connection's reading thread (see {@link Channel#setInlineDelivery}).
+ * Messages are sent one at a time, each once the last has arrived, so
+ * that queueing does not hide the cost of dispatch.
+ */
+public class DeliveryLatency {
+
+    protected static class Parameters {
+        String host;
+        int port;
+        int messageCount;
+        int warmupCount;
+        int bodySize;
+
+        public static CommandLine parseCommandLine(String[] args) {
+            CLIHelper helper = CLIHelper.defaultHelper();
+            helper.addOption(new Option("n", "messages", true, "number of timed messages per mode"));
+            helper.addOption(new Option("w", "warmup",   true, "number of untimed messages per mode"));
+            helper.addOption(new Option("s", "size",     true, "message body size, at least 8 bytes"));
+            return helper.parseCommandLine(args);
+        }
+
+        public Parameters(CommandLine cmd) {
+            host         = cmd.getOptionValue("h", "localhost");
+            port         = CLIHelper.getOptionValue(cmd, "p", AMQP.PROTOCOL.PORT);
+            messageCount = CLIHelper.getOptionValue(cmd, "n", 20000);
+            warmupCount  = CLIHelper.getOptionValue(cmd, "w", 5000);
+            bodySize     = Math.max(8, CLIHelper.getOptionValue(cmd, "s", 64));
+        }
+
+        public String toString() {
+            StringBuilder b = new StringBuilder();
+            b.append("host="      + host);
+            b.append(",port="     + port);
+            b.append(",messages=" + messageCount);
+            b.append(",warmup="   + warmupCount);
+            b.append(",size="     + bodySize);
+            return b.toString();
+        }
+    }
+
+    protected final Parameters params;
+    protected final ConnectionFactory connectionFactory = new ConnectionFactory();
+
+    public DeliveryLatency(Parameters p) {
+        params = p;
+    }
+
+    /**
+     * @param inline whether to call the consumer inline
+     * @return the latency of each timed message, in nanoseconds, sorted
+     */
+    public long[] run(boolean inline) throws IOException, InterruptedException {
+        connectionFactory.setHost(params.host);
+        connectionFactory.setPort(params.port);
+        Connection connection = connectionFactory.newConnection();
+        try {
+            Channel publisher = connection.createChannel();
+            Channel consumerChannel = connection.createChannel();
+            consumerChannel.setInlineDelivery(inline);
+            String queue = consumerChannel.queueDeclare().getQueue();
+
+            final BlockingQueue<Long> arrivals = new LinkedBlockingQueue<Long>();
+            consumerChannel.basicConsume(queue, true, new DefaultConsumer(consumerChannel) {
+                @Override public void handleDelivery(String consumerTag, Envelope envelope,
+                                                     AMQP.BasicProperties properties, byte[] body) {
+                    long latency = System.nanoTime() - readLong(body);
+                    arrivals.add(latency); // never blocks the reading thread
+                }
+            });
+
+            byte[] body = new byte[params.bodySize];
+            long[] latencies = new long[params.messageCount];
+            for (int i = -params.warmupCount; i < params.messageCount; i++) {
+                writeLong(body, System.nanoTime());
+                publisher.basicPublish("", queue, null, body);
+                long latency = arrivals.take();
+                if (i >= 0) latencies[i] = latency;
+            }
+            Arrays.sort(latencies);
+            return latencies;
+        } finally {
+            connection.abort();
+        }
+    }
+
+    private static void writeLong(byte[] body, long value) {
+        for (int i = 0; i < 8; i++) {
+            body[i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    private static long readLong(byte[] body) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (body[i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static String summary(long[] sorted) {
+        return "p50=" + micros(sorted, 0.5) +
+               "us p99=" + micros(sorted, 0.99) +
+               "us p99.9=" + micros(sorted, 0.999) +
+               "us max=" + sorted[sorted.length - 1] / 1000 + "us";
+    }
+
+    private static long micros(long[] sorted, double percentile) {
+        int index = (int) Math.min(sorted.length - 1, Math.round(percentile * sorted.length));
+        return sorted[index] / 1000;
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLine cmd = Parameters.parseCommandLine(args);
+        if (cmd == null) return;
+        Parameters params = new Parameters(cmd);
+        System.out.println(params.toString());
+        DeliveryLatency test = new DeliveryLatency(params);
+        System.out.println("executor -> " + summary(test.run(false)));
+        System.out.println("inline   -> " + summary(test.run(true)));
+    }
+}
@@ -0,0 +1,236 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.test.performance;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+
+import com.rabbitmq.client3.impl.SetQueue;
+import com.rabbitmq.client3.impl.WorkPool;
+
+/**
+ * Measures consumer dispatch through {@link WorkPool} under contention,
+ * against the single-monitor implementation it replaced. No broker is
+ * needed: producer threads stand in for connection threads adding
+ * deliveries for many channels, and a thread pool takes blocks of work
+ * as the connection's consumer work service does.
+ */
+public class WorkPoolContention {
+
+    protected static class Parameters {
+        int channelCount;
+        int producerCount;
+        int threadCount;
+        int itemCount;
+        int blockSize;
+        int rounds;
+
+        public static CommandLine parseCommandLine(String[] args) {
+            CLIHelper helper = CLIHelper.defaultHelper();
+            helper.addOption(new Option("c", "channels",  true, "number of channels (work pool clients)"));
+            helper.addOption(new Option("P", "producers", true, "number of threads adding work"));
+            helper.addOption(new Option("t", "threads",   true, "number of threads doing work"));
+            helper.addOption(new Option("n", "items",     true, "number of work items per channel"));
+            helper.addOption(new Option("b", "block",     true, "most work items taken at once"));
+            helper.addOption(new Option("r", "rounds",    true, "number of timed rounds per implementation"));
+            return helper.parseCommandLine(args);
+        }
+
+        public Parameters(CommandLine cmd) {
+            channelCount  = CLIHelper.getOptionValue(cmd, "c", 200);
+            producerCount = CLIHelper.getOptionValue(cmd, "P", 2);
+            threadCount   = CLIHelper.getOptionValue(cmd, "t", 8);
+            itemCount     = CLIHelper.getOptionValue(cmd, "n", 5000);
+            blockSize     = CLIHelper.getOptionValue(cmd, "b", 16);
+            rounds        = CLIHelper.getOptionValue(cmd, "r", 5);
+        }
+
+        public String toString() {
+            StringBuilder b = new StringBuilder();
+            b.append("channels="    + channelCount);
+            b.append(",producers="  + producerCount);
+            b.append(",threads="    + threadCount);
+            b.append(",items="      + itemCount);
+            b.append(",block="      + blockSize);
+            b.append(",rounds="     + rounds);
+            return b.toString();
+        }
+    }
+
+    /** The operations of a work pool used by consumer dispatch */
+    private interface Pool {
+        void registerKey(Integer key);
+        boolean addWorkItem(Integer key, Runnable item);
+        Integer nextWorkBlock(Collection<Runnable> to, int size);
+        boolean finishWorkBlock(Integer key);
+    }
+
+    private static Pool lockFree() {
+        final WorkPool<Integer, Runnable> pool = new WorkPool<Integer, Runnable>();
+        return new Pool() {
+            public void registerKey(Integer key) { pool.registerKey(key); }
+            public boolean addWorkItem(Integer key, Runnable item) { return pool.addWorkItem(key, item); }
+            public Integer nextWorkBlock(Collection<Runnable> to, int size) { return pool.nextWorkBlock(to, size); }
+            public boolean finishWorkBlock(Integer key) { return pool.finishWorkBlock(key); }
+            public String toString() { return "lock-free"; }
+        };
+    }
+
+    /**
+     * The previous implementation of {@link WorkPool}: every operation
+     * synchronizes on one monitor shared by all clients.
+     */
+    private static Pool monitor() {
+        return new Pool() {
+            private final Object monitor = new Object();
+            private final SetQueue<Integer> ready = new SetQueue<Integer>();
+            private final Set<Integer> inProgress = new HashSet<Integer>();
+            private final Map<Integer, LinkedList<Runnable>> pool = new HashMap<Integer, LinkedList<Runnable>>();
+
+            public void registerKey(Integer key) {
+                synchronized (monitor) {
+                    if (!pool.containsKey(key)) pool.put(key, new LinkedList<Runnable>());
+                }
+            }
+
+            public boolean addWorkItem(Integer key, Runnable item) {
+                synchronized (monitor) {
+                    LinkedList<Runnable> queue = pool.get(key);
+                    if (queue != null) {
+                        queue.offer(item);
+                        if (!inProgress.contains(key) && !ready.contains(key)) {
+                            ready.addIfNotPresent(key);
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            }
+
+            public Integer nextWorkBlock(Collection<Runnable> to, int size) {
+                synchronized (monitor) {
+                    Integer key = ready.poll();
+                    if (key != null) {
+                        inProgress.add(key);
+                        LinkedList<Runnable> queue = pool.get(key);
+                        for (int n = 0; n < size && !queue.isEmpty(); n++) {
+                            to.add(queue.poll());
+                        }
+                    }
+                    return key;
+                }
+            }
+
+            public boolean finishWorkBlock(Integer key) {
+                synchronized (monitor) {
+                    inProgress.remove(key);
+                    if (!pool.get(key).isEmpty()) {
+                        ready.addIfNotPresent(key);
+                        return true;
+                    }
+                    return false;
+                }
+            }
+
+            public String toString() { return "monitor"; }
+        };
+    }
+
+    protected final Parameters params;
+
+    public WorkPoolContention(Parameters p) {
+        params = p;
+    }
+
+    /**
+     * Dispatch every item through the pool, as ConsumerWorkService does.
+     * @return the time taken in nanoseconds
+     */
+    public long run(final Pool pool) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(params.threadCount);
+        final int total = params.channelCount * params.itemCount;
+        final CountDownLatch done = new CountDownLatch(total);
+        final Runnable item = new Runnable() {
+            public void run() { done.countDown(); }
+        };
+        final Runnable worker = new Runnable() {
+            public void run() {
+                List<Runnable> block = new ArrayList<Runnable>(params.blockSize);
+                Integer key = pool.nextWorkBlock(block, params.blockSize);
+                if (key == null) return;
+                for (Runnable r : block) r.run();
+                if (pool.finishWorkBlock(key)) executor.execute(this);
+            }
+        };
+        for (int c = 0; c < params.channelCount; c++) {
+            pool.registerKey(c);
+        }
+
+        List<Thread> producers = new ArrayList<Thread>();
+        for (int p = 0; p < params.producerCount; p++) {
+            final int first = p;
+            producers.add(new Thread() {
+                public void run() {
+                    for (int i = 0; i < params.itemCount; i++) {
+                        for (int c = first; c < params.channelCount; c += params.producerCount) {
+                            if (pool.addWorkItem(c, item)) executor.execute(worker);
+                        }
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : producers) t.start();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        for (Thread t : producers) t.join();
+        executor.shutdown();
+        return elapsed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLine cmd = Parameters.parseCommandLine(args);
+        if (cmd == null) return;
+        Parameters params = new Parameters(cmd);
+        System.out.println(params.toString());
+        WorkPoolContention test = new WorkPoolContention(params);
+        long items = (long) params.channelCount * params.itemCount;
+        for (int round = -1; round < params.rounds; round++) {
+            // round -1 warms up both implementations
+            for (Pool pool : new Pool[] { monitor(), lockFree() }) {
+                long elapsed = test.run(pool);
+                if (round >= 0) {
+                    System.out.println(pool + " -> " + elapsed / 1000000 + "ms, " +
+                                       items * 1000000000L / elapsed + " items/s");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2013 GoPivotal, Inc.  All rights reserved.
+//
+
+
+package com.rabbitmq.client3.test.ssl;
+
+import java.io.IOException;
+
+/**
+ * As {@link UnverifiedConnection}, but over non-blocking I/O, with TLS
+ * done by an SSLEngine
+ */
+public class NioUnverifiedConnection extends UnverifiedConnection {
+    @Override
+    public void openConnection()
+        throws IOException
+    {
+        connectionFactory.useNio();
+        super.openConnection();
+    }
+}
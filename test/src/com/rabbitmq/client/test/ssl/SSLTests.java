@@ -24,6 +24,7 @@ public class SSLTests extends TestCase {
     public static TestSuite suite() {
         TestSuite suite = new TestSuite("ssl");
         suite.addTestSuite(UnverifiedConnection.class);
+        suite.addTestSuite(NioUnverifiedConnection.class);
         suite.addTestSuite(VerifiedConnection.class);
         suite.addTestSuite(BadVerifiedConnection.class);
         return suite;
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 
+import com.rabbitmq.client3.Connection;
 import com.rabbitmq.client3.GetResponse;
 import com.rabbitmq.client3.test.BrokerTestCase;
 
@@ -69,5 +70,13 @@ public class UnverifiedConnection extends BrokerTestCase {
         byte[] body = chResponse.getBody();
         assertEquals("SSL", new String(body));
     }
+
+    public void testSessionResumed() throws IOException
+    {
+        long hits = connectionFactory.getTlsSessionCacheHits();
+        Connection reconnection = connectionFactory.newConnection();
+        reconnection.close();
+        assertEquals(hits + 1, connectionFactory.getTlsSessionCacheHits());
+    }
     
 }